@@ -19,12 +19,60 @@ package org.openintents.openpgp.util;
 
 import android.os.ParcelFileDescriptor;
 
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ParcelFileDescriptorUtil {
 
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Idle transfer threads are kept around this long before they are terminated.
+     */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Transfers run on a pool of daemon threads. The pool is unbounded because every call to
+     * {@link OpenPgpApi#executeApi} needs both of its transfers running at the same time.
+     */
+    private static final ExecutorService sTransferExecutor = new ThreadPoolExecutor(0,
+            Integer.MAX_VALUE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r,
+                            "ParcelFileDescriptor Transfer Thread #" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Every transfer thread reuses its own buffer.
+     */
+    private static final ThreadLocal<byte[]> sBuffer = new ThreadLocal<byte[]>();
+
+    private static volatile int sBufferSize = DEFAULT_BUFFER_SIZE;
+
+    private static final AtomicLong sTransferCount = new AtomicLong();
+    private static final AtomicLong sTransferredBytes = new AtomicLong();
+    private static final AtomicLong sTransferNanos = new AtomicLong();
+
     public interface IThreadListener {
         void onThreadFinished(final Thread thread);
     }
@@ -35,10 +83,9 @@ public class ParcelFileDescriptorUtil {
         ParcelFileDescriptor readSide = pipe[0];
         ParcelFileDescriptor writeSide = pipe[1];
 
-        // start the transfer thread
-        new TransferThread(inputStream, new ParcelFileDescriptor.AutoCloseOutputStream(writeSide),
-                listener)
-                .start();
+        // start the transfer
+        sTransferExecutor.execute(new Transfer(inputStream,
+                new ParcelFileDescriptor.AutoCloseOutputStream(writeSide), listener));
 
         return readSide;
     }
@@ -49,55 +96,188 @@ public class ParcelFileDescriptorUtil {
         ParcelFileDescriptor readSide = pipe[0];
         ParcelFileDescriptor writeSide = pipe[1];
 
-        // start the transfer thread
-        new TransferThread(new ParcelFileDescriptor.AutoCloseInputStream(readSide), outputStream,
-                listener)
-                .start();
+        // start the transfer
+        sTransferExecutor.execute(new Transfer(
+                new ParcelFileDescriptor.AutoCloseInputStream(readSide), outputStream, listener));
 
         return writeSide;
     }
 
-    static class TransferThread extends Thread {
+    /**
+     * Sets the size of the buffer used to copy data. Transfers that are already running keep
+     * their buffer.
+     */
+    public static void setBufferSize(int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Invalid buffer size " + bufferSize);
+        }
+        sBufferSize = bufferSize;
+    }
+
+    public static int getBufferSize() {
+        return sBufferSize;
+    }
+
+    /**
+     * @return The number of finished transfers.
+     */
+    public static long getTransferCount() {
+        return sTransferCount.get();
+    }
+
+    /**
+     * @return The number of bytes copied by all finished transfers.
+     */
+    public static long getTransferredBytes() {
+        return sTransferredBytes.get();
+    }
+
+    /**
+     * @return The time spent in all finished transfers, in milliseconds.
+     */
+    public static long getTransferTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(sTransferNanos.get());
+    }
+
+    /**
+     * @return The average throughput of all finished transfers in bytes per second, or 0 if
+     *         nothing has been transferred yet.
+     */
+    public static long getThroughput() {
+        long nanos = sTransferNanos.get();
+        if (nanos <= 0) {
+            return 0;
+        }
+        return (long) (sTransferredBytes.get() * (double) TimeUnit.SECONDS.toNanos(1) / nanos);
+    }
+
+    public static void resetStatistics() {
+        sTransferCount.set(0);
+        sTransferredBytes.set(0);
+        sTransferNanos.set(0);
+    }
+
+    /**
+     * Copies everything from {@code in} to {@code out}.
+     *
+     * <p>
+     * If {@code in} reads from a regular file, the data is handed to the kernel with
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)}. Otherwise it's copied
+     * through the buffer of the current thread.
+     * </p>
+     *
+     * @return The number of bytes copied.
+     */
+    static long copy(InputStream in, OutputStream out) throws IOException {
+        if (in.getClass() == FileInputStream.class) {
+            long transferred = transferFromFile(((FileInputStream) in).getChannel(), out);
+            if (transferred >= 0) {
+                return transferred;
+            }
+        }
+
+        byte[] buf = getBuffer();
+        long total = 0;
+        int len;
+        while ((len = in.read(buf)) > 0) {
+            out.write(buf, 0, len);
+            total += len;
+        }
+        return total;
+    }
+
+    /**
+     * @return The number of bytes copied, or -1 if the channel isn't backed by a regular file and
+     *         nothing has been copied.
+     */
+    private static long transferFromFile(FileChannel source, OutputStream out) throws IOException {
+        long position;
+        long size;
+        try {
+            position = source.position();
+            size = source.size();
+        } catch (IOException e) {
+            return -1;
+        }
+
+        // pipes and sockets report a size of 0
+        if (size <= position) {
+            return -1;
+        }
+
+        WritableByteChannel target;
+        if (out instanceof FileOutputStream) {
+            target = ((FileOutputStream) out).getChannel();
+        } else {
+            target = Channels.newChannel(out);
+        }
+
+        long total = 0;
+        while (position < size) {
+            long count = source.transferTo(position, size - position, target);
+            if (count <= 0) {
+                break;
+            }
+            position += count;
+            total += count;
+        }
+        source.position(position);
+
+        return total;
+    }
+
+    private static byte[] getBuffer() {
+        int size = sBufferSize;
+        byte[] buf = sBuffer.get();
+        if (buf == null || buf.length != size) {
+            buf = new byte[size];
+            sBuffer.set(buf);
+        }
+        return buf;
+    }
+
+    static class Transfer implements Runnable {
         final InputStream mIn;
         final OutputStream mOut;
         final IThreadListener mListener;
 
-        TransferThread(InputStream in, OutputStream out, IThreadListener listener) {
-            super("ParcelFileDescriptor Transfer Thread");
+        Transfer(InputStream in, OutputStream out, IThreadListener listener) {
             mIn = in;
             mOut = out;
             mListener = listener;
-            setDaemon(true);
         }
 
         @Override
         public void run() {
-            byte[] buf = new byte[1024];
-            int len;
+            long start = System.nanoTime();
+            long transferred = 0;
 
             try {
-                while ((len = mIn.read(buf)) > 0) {
-                    mOut.write(buf, 0, len);
-                }
+                transferred = copy(mIn, mOut);
                 mOut.flush(); // just to be safe
             } catch (IOException e) {
-                //Log.e(OpenPgpApi.TAG, "TransferThread" + getId() + ": writing failed", e);
+                //Log.e(OpenPgpApi.TAG, "Transfer: writing failed", e);
             } finally {
                 try {
                     mIn.close();
                 } catch (IOException e) {
-                    //Log.e(OpenPgpApi.TAG, "TransferThread" + getId(), e);
+                    //Log.e(OpenPgpApi.TAG, "Transfer", e);
                 }
                 try {
                     mOut.close();
                 } catch (IOException e) {
-                    //Log.e(OpenPgpApi.TAG, "TransferThread" + getId(), e);
+                    //Log.e(OpenPgpApi.TAG, "Transfer", e);
                 }
             }
+
+            sTransferCount.incrementAndGet();
+            sTransferredBytes.addAndGet(transferred);
+            sTransferNanos.addAndGet(System.nanoTime() - start);
+
             if (mListener != null) {
-                //Log.d(OpenPgpApi.TAG, "TransferThread " + getId() + " finished!");
-                mListener.onThreadFinished(this);
+                //Log.d(OpenPgpApi.TAG, "Transfer finished!");
+                mListener.onThreadFinished(Thread.currentThread());
             }
         }
     }
-}
\ No newline at end of file
+}
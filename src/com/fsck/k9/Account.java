@@ -82,6 +82,7 @@ public class Account implements BaseAccount {
     public static final boolean DEFAULT_REPLY_AFTER_QUOTE = false;
     public static final boolean DEFAULT_STRIP_SIGNATURE = true;
     public static final int DEFAULT_REMOTE_SEARCH_NUM_RESULTS = 25;
+    public static final int DEFAULT_MAX_SEND_CONNECTIONS = 2;
 
     public static final String ACCOUNT_DESCRIPTION_KEY = "description";
     public static final String STORE_URI_KEY = "storeUri";
@@ -185,6 +186,7 @@ public class Account implements BaseAccount {
     private boolean mIsSignatureBeforeQuotedText;
     private String mExpungePolicy = EXPUNGE_IMMEDIATELY;
     private int mMaxPushFolders;
+    private int mMaxSendConnections;
     private int mIdleRefreshMinutes;
     private boolean goToUnreadMessageSearch;
     private final Map<String, Boolean> compressionMap = new ConcurrentHashMap<String, Boolean>();
@@ -284,6 +286,7 @@ public class Account implements BaseAccount {
         mAutoExpandFolderName = INBOX;
         mInboxFolderName = INBOX;
         mMaxPushFolders = 10;
+        mMaxSendConnections = DEFAULT_MAX_SEND_CONNECTIONS;
         mChipColor = pickColor(context);
         goToUnreadMessageSearch = false;
         subscribedFoldersOnly = false;
@@ -395,6 +398,8 @@ public class Account implements BaseAccount {
         mSyncRemoteDeletions = prefs.getBoolean(mUuid  + ".syncRemoteDeletions", true);
 
         mMaxPushFolders = prefs.getInt(mUuid + ".maxPushFolders", 10);
+        mMaxSendConnections = prefs.getInt(mUuid + ".maxSendConnections",
+                DEFAULT_MAX_SEND_CONNECTIONS);
         goToUnreadMessageSearch = prefs.getBoolean(mUuid + ".goToUnreadMessageSearch", false);
         subscribedFoldersOnly = prefs.getBoolean(mUuid + ".subscribedFoldersOnly", false);
         maximumPolledMessageAge = prefs.getInt(mUuid + ".maximumPolledMessageAge", -1);
@@ -556,6 +561,7 @@ public class Account implements BaseAccount {
         editor.remove(mUuid + ".expungePolicy");
         editor.remove(mUuid + ".syncRemoteDeletions");
         editor.remove(mUuid + ".maxPushFolders");
+        editor.remove(mUuid + ".maxSendConnections");
         editor.remove(mUuid + ".searchableFolders");
         editor.remove(mUuid + ".chipColor");
         editor.remove(mUuid + ".led");
@@ -724,6 +730,7 @@ public class Account implements BaseAccount {
         editor.putString(mUuid + ".expungePolicy", mExpungePolicy);
         editor.putBoolean(mUuid + ".syncRemoteDeletions", mSyncRemoteDeletions);
         editor.putInt(mUuid + ".maxPushFolders", mMaxPushFolders);
+        editor.putInt(mUuid + ".maxSendConnections", mMaxSendConnections);
         editor.putString(mUuid + ".searchableFolders", searchableFolders.name());
         editor.putInt(mUuid + ".chipColor", mChipColor);
         editor.putBoolean(mUuid + ".goToUnreadMessageSearch", goToUnreadMessageSearch);
@@ -1288,6 +1295,18 @@ public class Account implements BaseAccount {
         return oldMaxPushFolders != maxPushFolders;
     }
 
+    /**
+     * @return The maximum number of connections used at the same time to send the messages in
+     *         the outbox.
+     */
+    public synchronized int getMaxSendConnections() {
+        return mMaxSendConnections;
+    }
+
+    public synchronized void setMaxSendConnections(int maxSendConnections) {
+        mMaxSendConnections = maxSendConnections;
+    }
+
     public LocalStore getLocalStore() throws MessagingException {
         return Store.getLocalInstance(this, K9.app);
     }
@@ -0,0 +1,307 @@
+package com.fsck.k9.activity.loader;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.fsck.k9.helper.MergeCursor;
+import com.fsck.k9.provider.EmailProvider;
+import com.fsck.k9.provider.EmailProvider.MessageColumns;
+
+/**
+ * Loader to fetch a message list from {@link EmailProvider} page by page.
+ *
+ * <p>
+ * Works like {@link android.content.CursorLoader}, but initially only queries the first page.
+ * {@link #loadMore()} queries the page following the last row loaded so far (see
+ * {@link EmailProvider#QUERY_PARAMETER_LIMIT}) and delivers a cursor combining all pages. When
+ * the content changes, all rows loaded so far are queried again with a single query.
+ * </p>
+ * <p>
+ * Lists whose sort order can't be paged (see {@link EmailProvider#getPagingColumn(String)}) are
+ * loaded completely.
+ * </p>
+ */
+public class MessageListLoader extends AsyncTaskLoader<Cursor> {
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+
+    private final Uri mUri;
+    private final String[] mProjection;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+    private final String mSortOrder;
+    private final int mPageSize;
+    private final String mPagingColumn;
+
+    private volatile PagedCursor mCursor;
+
+    /**
+     * Set while the next page is loaded.
+     */
+    private volatile boolean mLoadingMore;
+
+    /**
+     * Set while the content has changed since the last complete query.
+     */
+    private volatile boolean mReloadPending = true;
+
+    /**
+     * Set once all rows have been requested, e.g. to select all messages. Reloads then query
+     * all rows, too.
+     */
+    private volatile boolean mLoadAll;
+
+    /**
+     * @param pageSize
+     *         The number of rows per page, or {@code 0} to load all rows at once.
+     */
+    public MessageListLoader(Context context, Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder, int pageSize) {
+        super(context);
+        mUri = uri;
+        mProjection = projection;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mSortOrder = sortOrder;
+        mPageSize = pageSize;
+        mPagingColumn = (pageSize > 0) ? EmailProvider.getPagingColumn(sortOrder) : null;
+    }
+
+    /**
+     * Starts loading the next page, unless all rows have been loaded or a query is running
+     * already.
+     */
+    public void loadMore() {
+        PagedCursor cursor = mCursor;
+        if (cursor == null || !cursor.hasMore() || mLoadingMore || mReloadPending) {
+            return;
+        }
+
+        mLoadingMore = true;
+        forceLoad();
+    }
+
+    /**
+     * Loads all remaining rows with a single query. Later reloads don't use pages anymore, until
+     * {@link #resumePaging()} is called.
+     */
+    public void loadAll() {
+        if (mLoadAll) {
+            return;
+        }
+
+        mLoadAll = true;
+        if (!isFullyLoaded()) {
+            onContentChanged();
+        }
+    }
+
+    /**
+     * Undoes {@link #loadAll()}, e.g. when the selection is cleared. Later reloads query the rows
+     * loaded so far again, and {@link #loadMore()} continues after them.
+     */
+    public void resumePaging() {
+        mLoadAll = false;
+    }
+
+    /**
+     * @return {@code true} if the current cursor contains all rows.
+     */
+    public boolean isFullyLoaded() {
+        PagedCursor cursor = mCursor;
+        return cursor != null && !cursor.hasMore() && !(mLoadAll && mReloadPending);
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        PagedCursor current = mCursor;
+        if (mLoadingMore && !mReloadPending && current != null) {
+            return query(mPageSize, current, true);
+        }
+
+        int limit = 0;
+        if (mPagingColumn != null && !mLoadAll) {
+            // Keep the rows that have been loaded already
+            limit = (current != null) ? Math.max(mPageSize, current.getCount()) : mPageSize;
+        }
+
+        return query(limit, null, false);
+    }
+
+    private PagedCursor query(int limit, PagedCursor previous, boolean appendix) {
+        Uri.Builder builder = mUri.buildUpon();
+        if (limit > 0) {
+            builder.appendQueryParameter(EmailProvider.QUERY_PARAMETER_LIMIT,
+                    Integer.toString(limit));
+        }
+        if (previous != null) {
+            builder.appendQueryParameter(EmailProvider.QUERY_PARAMETER_AFTER_ID,
+                    previous.mAfterId);
+            if (previous.mAfterValue != null) {
+                builder.appendQueryParameter(EmailProvider.QUERY_PARAMETER_AFTER_VALUE,
+                        previous.mAfterValue);
+            }
+        }
+
+        Cursor cursor = getContext().getContentResolver().query(builder.build(), mProjection,
+                mSelection, mSelectionArgs, mSortOrder);
+        if (cursor == null) {
+            return null;
+        }
+
+        // Fill the cursor window in the background, like CursorLoader does
+        int count = cursor.getCount();
+        cursor.registerContentObserver(mObserver);
+
+        // Remember the sort key of the last row, the next page starts after it
+        String afterValue = null;
+        String afterId = null;
+        if (limit > 0 && count >= limit && cursor.moveToLast()) {
+            int valueColumn = cursor.getColumnIndex(mPagingColumn);
+            int idColumn = cursor.getColumnIndex(MessageColumns.ID);
+            if (valueColumn != -1 && idColumn != -1) {
+                afterValue = cursor.isNull(valueColumn) ? null : cursor.getString(valueColumn);
+                afterId = cursor.getString(idColumn);
+            }
+            cursor.moveToPosition(-1);
+        }
+
+        return new PagedCursor(new Cursor[] { cursor }, appendix, afterValue, afterId);
+    }
+
+    @Override
+    public void deliverResult(Cursor cursor) {
+        if (isReset()) {
+            if (cursor != null) {
+                cursor.close();
+            }
+            return;
+        }
+
+        PagedCursor old = mCursor;
+        PagedCursor result = (PagedCursor) cursor;
+        if (result != null && result.mAppendix) {
+            // Combine the pages here, so the cursor in use isn't moved by a background thread
+            result = (old != null) ? old.append(result) : result;
+        } else if (result != old) {
+            mReloadPending = false;
+        }
+        mLoadingMore = false;
+        mCursor = result;
+
+        if (isStarted()) {
+            super.deliverResult(result);
+        }
+
+        if (old != null && old != result && !old.isClosed()) {
+            old.closePagesNotIn(result);
+        }
+    }
+
+    @Override
+    public void onContentChanged() {
+        mReloadPending = true;
+        super.onContentChanged();
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (mCursor != null) {
+            deliverResult(mCursor);
+        }
+        if (takeContentChanged() || mCursor == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    public void onCanceled(Cursor cursor) {
+        // Results of background queries don't share pages with the current cursor
+        if (cursor != null && !cursor.isClosed()) {
+            cursor.close();
+        }
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+
+        onStopLoading();
+
+        if (mCursor != null && !mCursor.isClosed()) {
+            mCursor.close();
+        }
+        mCursor = null;
+        mLoadingMore = false;
+        mReloadPending = true;
+        mLoadAll = false;
+    }
+
+    /**
+     * The pages of a message list shown one after another.
+     *
+     * <p>
+     * A cursor with an additional page shares the other pages with its predecessor. Only the
+     * loader closes pages.
+     * </p>
+     */
+    static class PagedCursor extends MergeCursor {
+        /**
+         * {@link MergeCursor} passes the cursor with the lower index first. Always preferring it
+         * shows the pages in order.
+         */
+        private static final Comparator<Cursor> PAGE_ORDER = new Comparator<Cursor>() {
+            @Override
+            public int compare(Cursor lhs, Cursor rhs) {
+                return -1;
+            }
+        };
+
+        /**
+         * Whether this is a page that still has to be appended to the current cursor.
+         */
+        final boolean mAppendix;
+
+        /**
+         * The sort key of the last row, or {@code null} if there are no more rows to load.
+         */
+        final String mAfterValue;
+        final String mAfterId;
+
+        PagedCursor(Cursor[] pages, boolean appendix, String afterValue, String afterId) {
+            super(pages, PAGE_ORDER);
+            mAppendix = appendix;
+            mAfterValue = afterValue;
+            mAfterId = afterId;
+        }
+
+        boolean hasMore() {
+            return mAfterId != null;
+        }
+
+        PagedCursor append(PagedCursor appendix) {
+            Cursor[] pages = Arrays.copyOf(mCursors, mCursors.length + appendix.mCursors.length);
+            System.arraycopy(appendix.mCursors, 0, pages, mCursors.length,
+                    appendix.mCursors.length);
+
+            return new PagedCursor(pages, false, appendix.mAfterValue, appendix.mAfterId);
+        }
+
+        void closePagesNotIn(PagedCursor successor) {
+            for (Cursor page : mCursors) {
+                if (successor == null || !Arrays.asList(successor.mCursors).contains(page)) {
+                    page.close();
+                }
+            }
+        }
+    }
+}
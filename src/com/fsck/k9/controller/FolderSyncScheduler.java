@@ -0,0 +1,129 @@
+package com.fsck.k9.controller;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+import com.fsck.k9.K9;
+
+/**
+ * Runs the folder synchronizations of an account concurrently.
+ *
+ * <p>
+ * Every running synchronization holds one connection of the remote store's connection pool, so
+ * the number of folders synchronized at the same time is bounded twice: per call to
+ * {@link #runAll(String, int, List, Runnable)} (i.e. per account) and per server. Accounts that live on the
+ * same server share the server limit.
+ * </p>
+ */
+class FolderSyncScheduler {
+    /**
+     * Maximum number of folders of one account that are synchronized at the same time.
+     */
+    static final int DEFAULT_ACCOUNT_CONCURRENCY = 3;
+
+    /**
+     * Maximum number of concurrent folder synchronizations against a single server.
+     */
+    static final int DEFAULT_SERVER_CONCURRENCY = 4;
+
+    private final Executor mExecutor;
+    private final int mServerConcurrency;
+    private final ConcurrentHashMap<String, Semaphore> mServerPermits =
+            new ConcurrentHashMap<String, Semaphore>();
+
+    FolderSyncScheduler(Executor executor, int serverConcurrency) {
+        if (serverConcurrency < 1) {
+            throw new IllegalArgumentException("Invalid server concurrency " + serverConcurrency);
+        }
+        mExecutor = executor;
+        mServerConcurrency = serverConcurrency;
+    }
+
+    /**
+     * Starts running all tasks and returns without waiting for them.
+     *
+     * <p>
+     * At most {@code concurrency} workers take turns picking the next task. A worker only waits
+     * for a server permit on its own pool thread, so the caller is never blocked.
+     * </p>
+     *
+     * @param serverKey
+     *         Identifies the server the tasks talk to.
+     * @param concurrency
+     *         Maximum number of these tasks that may run at the same time.
+     * @param tasks
+     *         The synchronization tasks. Exceptions thrown by a task don't affect the others.
+     * @param onFinished
+     *         Run once every task has finished, on the thread that finished last. Tasks that were
+     *         skipped because their worker was interrupted count as finished.
+     */
+    void runAll(String serverKey, int concurrency, List<Runnable> tasks,
+            final Runnable onFinished) {
+        if (tasks.isEmpty()) {
+            onFinished.run();
+            return;
+        }
+
+        final Semaphore serverPermits = getServerPermits(serverKey);
+        final Queue<Runnable> pending = new ConcurrentLinkedQueue<Runnable>(tasks);
+        final AtomicInteger remaining = new AtomicInteger(tasks.size());
+
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                Runnable task;
+                while ((task = pending.poll()) != null) {
+                    try {
+                        runWithPermit(serverPermits, task);
+                    } finally {
+                        if (remaining.decrementAndGet() == 0) {
+                            onFinished.run();
+                        }
+                    }
+                }
+            }
+        };
+
+        int workers = Math.min(Math.max(1, concurrency), tasks.size());
+        for (int i = 0; i < workers; i++) {
+            mExecutor.execute(worker);
+        }
+    }
+
+    private static void runWithPermit(Semaphore serverPermits, Runnable task) {
+        try {
+            serverPermits.acquire();
+        } catch (InterruptedException e) {
+            // The pool is shutting down, skip the task
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            Log.e(K9.LOG_TAG, "Folder synchronization failed", e);
+        } finally {
+            serverPermits.release();
+        }
+    }
+
+    private Semaphore getServerPermits(String serverKey) {
+        Semaphore permits = mServerPermits.get(serverKey);
+        if (permits == null) {
+            permits = new Semaphore(mServerConcurrency);
+            Semaphore existing = mServerPermits.putIfAbsent(serverKey, permits);
+            if (existing != null) {
+                permits = existing;
+            }
+        }
+        return permits;
+    }
+}
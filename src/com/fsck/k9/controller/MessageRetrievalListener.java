@@ -14,4 +14,16 @@ public interface MessageRetrievalListener {
      * @param total
      */
     public void messagesFinished(int total);
+
+    /**
+     * Called by stores that fetch messages in windows after each window has been received.
+     *
+     * @param messageCount
+     *         Number of messages requested in the window.
+     * @param bytes
+     *         Number of bytes received for the window.
+     * @param elapsedMillis
+     *         Time it took to receive the window.
+     */
+    public void windowFinished(int messageCount, long bytes, long elapsedMillis);
 }
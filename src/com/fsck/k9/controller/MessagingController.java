@@ -12,15 +12,18 @@ import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.app.Application;
 import android.app.KeyguardManager;
@@ -76,6 +79,7 @@ import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.Part;
 import com.fsck.k9.mail.PushReceiver;
 import com.fsck.k9.mail.Pusher;
+import com.fsck.k9.mail.ServerSettings;
 import com.fsck.k9.mail.Store;
 import com.fsck.k9.mail.Transport;
 import com.fsck.k9.mail.internet.MimeMessage;
@@ -148,6 +152,12 @@ public class MessagingController implements Runnable {
     private static final String PENDING_COMMAND_MARK_ALL_AS_READ = "com.fsck.k9.MessagingController.markAllAsRead";
     private static final String PENDING_COMMAND_EXPUNGE = "com.fsck.k9.MessagingController.expunge";
 
+    /**
+     * Maximum number of consecutive pending append commands for the same folder that are
+     * processed together.
+     */
+    private static final int PENDING_APPEND_BATCH_SIZE = 25;
+
     public static class UidReverseComparator implements Comparator<Message> {
         @Override
         public int compare(Message o1, Message o2) {
@@ -187,6 +197,18 @@ public class MessagingController implements Runnable {
 
     private final ExecutorService threadPool = Executors.newCachedThreadPool();
 
+    private final FolderSyncScheduler mFolderSyncScheduler =
+            new FolderSyncScheduler(threadPool, FolderSyncScheduler.DEFAULT_SERVER_CONCURRENCY);
+    private final OutboxDeliveryScheduler mOutboxDeliveryScheduler =
+            new OutboxDeliveryScheduler(threadPool);
+
+    /**
+     * Folders of the same account may be synchronized concurrently. These locks make sure only
+     * one thread at a time replays the pending commands of an account.
+     */
+    private final ConcurrentHashMap<String, Object> mPendingCommandsLocks =
+            new ConcurrentHashMap<String, Object>();
+
     private MessagingListener checkMailListener = null;
 
     private MemorizingListener memorizingListener = new MemorizingListener();
@@ -697,6 +719,8 @@ public class MessagingController implements Runnable {
                 @Override
                 public void messagesFinished(int number) {}
                 @Override
+                public void windowFinished(int messageCount, long bytes, long elapsedMillis) {}
+                @Override
                 public void messageFinished(Message message, int number, int ofTotal) {
                     if (!isMessageSuppressed(message.getFolder().getAccount(), message)) {
                         List<Message> messages = new ArrayList<Message>();
@@ -1038,6 +1062,36 @@ public class MessagingController implements Runnable {
              */
             int remoteMessageCount = remoteFolder.getMessageCount();
 
+            /*
+             * If the server tracks mod-sequences (IMAP CONDSTORE) we only need to look at changes
+             * since the last sync. With QRESYNC an unchanged mod-sequence means nothing happened
+             * at all, not even an expunge, so we're done after opening the folder. Without
+             * QRESYNC expunges don't change the mod-sequence, but only they lower the message
+             * count. New messages would have raised the mod-sequence.
+             */
+            final long remoteUidValidity = remoteFolder.getUidValidity();
+            final long remoteModSeq = remoteFolder.getHighestModSeq();
+            final long remoteUidNext = remoteFolder.getUidNext();
+            final long localModSeq = localFolder.getHighestModSeq();
+            final boolean syncStateValid = remoteModSeq > 0 && localModSeq > 0 &&
+                    remoteUidValidity == localFolder.getUidValidity();
+
+            if (syncStateValid && commandException == null && remoteModSeq == localModSeq &&
+                    (remoteFolder.supportsQuickResync() ||
+                     remoteMessageCount == localFolder.getSyncedMessageCount())) {
+                if (K9.DEBUG)
+                    Log.d(K9.LOG_TAG, "SYNC: Mod-sequence " + remoteModSeq + " unchanged for folder " +
+                          account.getDescription() + ":" + folder + ", skipping sync");
+
+                localFolder.setLastChecked(System.currentTimeMillis());
+                localFolder.setStatus(null);
+
+                for (MessagingListener l : getListeners(listener)) {
+                    l.synchronizeMailboxFinished(account, folder, remoteMessageCount, 0);
+                }
+                return;
+            }
+
             int visibleLimit = localFolder.getVisibleLimit();
 
             if (visibleLimit < 0) {
@@ -1071,7 +1125,19 @@ public class MessagingController implements Runnable {
                 }
 
 
-                List<? extends Message> remoteMessageArray = remoteFolder.getMessages(remoteStart, remoteEnd, earliestDate, null);
+                /*
+                 * If all messages are synchronized and none was expunged since the last sync,
+                 * only the messages added since have to be listed. A limited window of the newest
+                 * messages is small, so it's simply listed again.
+                 */
+                List<? extends Message> remoteMessageArray = null;
+                if (syncStateValid && commandException == null && remoteStart == 1) {
+                    remoteMessageArray = getRemoteMessagesAddedSinceSync(remoteFolder, localFolder,
+                            localMessages, earliestDate);
+                }
+                if (remoteMessageArray == null) {
+                    remoteMessageArray = remoteFolder.getMessages(remoteStart, remoteEnd, earliestDate, null);
+                }
 
                 int messageCount = remoteMessageArray.size();
 
@@ -1122,7 +1188,14 @@ public class MessagingController implements Runnable {
             /*
              * Now we download the actual content of messages.
              */
-            int newMessages = downloadMessages(account, remoteFolder, localFolder, remoteMessages, false);
+            int newMessages = downloadMessages(account, remoteFolder, localFolder, remoteMessages, false,
+                    syncStateValid ? localModSeq : -1);
+
+            // Remember up to which mod-sequence the folder is synchronized
+            if (remoteModSeq > 0 || localModSeq > 0) {
+                localFolder.setSyncState(remoteUidValidity, remoteModSeq, remoteMessageCount,
+                        remoteUidNext);
+            }
 
             int unreadMessageCount = localFolder.getUnreadMessageCount();
             for (MessagingListener l : getListeners()) {
@@ -1189,6 +1262,40 @@ public class MessagingController implements Runnable {
     }
 
 
+    /**
+     * Lists the remote messages without asking the server for the UIDs of those that are known
+     * from the last sync.
+     *
+     * @return The known and the added messages, or {@code null} if messages may have been expunged
+     *         since the last sync.
+     */
+    private List<Message> getRemoteMessagesAddedSinceSync(Folder remoteFolder, LocalFolder localFolder,
+            List<? extends Message> localMessages, Date earliestDate) throws MessagingException {
+        List<? extends Message> addedMessages = remoteFolder.getMessagesAddedSince(
+                localFolder.getSyncedMessageCount(), localFolder.getSyncedUidNext(), earliestDate, null);
+        if (addedMessages == null) {
+            return null;
+        }
+
+        // Uploaded messages are known locally and have been added, too
+        Map<String, Message> remoteMessages = new LinkedHashMap<String, Message>();
+        for (Message localMessage : localMessages) {
+            String uid = localMessage.getUid();
+            if (!uid.startsWith(K9.LOCAL_UID_PREFIX)) {
+                remoteMessages.put(uid, remoteFolder.getMessage(uid));
+            }
+        }
+        for (Message message : addedMessages) {
+            remoteMessages.put(message.getUid(), message);
+        }
+
+        if (K9.DEBUG)
+            Log.v(K9.LOG_TAG, "SYNC: " + addedMessages.size() + " messages added to folder " +
+                  remoteFolder.getName() + " since the last sync");
+
+        return new ArrayList<Message>(remoteMessages.values());
+    }
+
     private void closeFolder(Folder f) {
         if (f != null) {
             f.close();
@@ -1244,6 +1351,19 @@ public class MessagingController implements Runnable {
     private int downloadMessages(final Account account, final Folder remoteFolder,
                                  final LocalFolder localFolder, List<Message> inputMessages,
                                  boolean flagSyncOnly) throws MessagingException {
+        return downloadMessages(account, remoteFolder, localFolder, inputMessages, flagSyncOnly, -1);
+    }
+
+    /**
+     * @param changedSince
+     *            If positive, only flags that changed after this mod-sequence are fetched for
+     *            messages that are already present locally.
+     *
+     * @see #downloadMessages(Account, Folder, LocalFolder, List, boolean)
+     */
+    private int downloadMessages(final Account account, final Folder remoteFolder,
+                                 final LocalFolder localFolder, List<Message> inputMessages,
+                                 boolean flagSyncOnly, long changedSince) throws MessagingException {
 
         final Date earliestDate = account.getEarliestPollDate();
         Date downloadStarted = new Date(); // now
@@ -1361,7 +1481,8 @@ public class MessagingController implements Runnable {
          * download.
          */
 
-        refreshLocalMessageFlags(account, remoteFolder, localFolder, syncFlagMessages, progress, todo);
+        refreshLocalMessageFlags(account, remoteFolder, localFolder, syncFlagMessages, progress, todo,
+                changedSince);
 
         if (K9.DEBUG)
             Log.d(K9.LOG_TAG, "SYNC: Synced remote messages for folder " + folder + ", " + newMessages.get() + " new messages");
@@ -1538,6 +1659,14 @@ public class MessagingController implements Runnable {
                 // FIXME this method is almost never invoked by various Stores! Don't rely on it unless fixed!!
             }
 
+            @Override
+            public void windowFinished(int messageCount, long bytes, long elapsedMillis) {
+                if (K9.DEBUG) {
+                    Log.v(K9.LOG_TAG, "SYNC: Fetched envelopes of " + messageCount + " messages (" +
+                          bytes + " bytes) in " + elapsedMillis + "ms");
+                }
+            }
+
         });
         if (!chunk.isEmpty()) {
             writeUnsyncedMessages(chunk, localFolder, account, folder);
@@ -1664,6 +1793,9 @@ public class MessagingController implements Runnable {
 
             @Override
             public void messagesFinished(int total) {}
+
+            @Override
+            public void windowFinished(int messageCount, long bytes, long elapsedMillis) {}
         });
 
         if (K9.DEBUG)
@@ -1801,7 +1933,8 @@ public class MessagingController implements Runnable {
                                           final LocalFolder localFolder,
                                           List<Message> syncFlagMessages,
                                           final AtomicInteger progress,
-                                          final int todo
+                                          final int todo,
+                                          final long changedSince
                                          ) throws MessagingException {
 
         final String folder = remoteFolder.getName();
@@ -1820,44 +1953,96 @@ public class MessagingController implements Runnable {
                 }
             }
 
-            remoteFolder.fetch(undeletedMessages, fp, null);
-            for (Message remoteMessage : syncFlagMessages) {
-                Message localMessage = localFolder.getMessage(remoteMessage.getUid());
-                boolean messageChanged = syncFlags(localMessage, remoteMessage);
-                if (messageChanged) {
-                    boolean shouldBeNotifiedOf = false;
-                    if (localMessage.isSet(Flag.DELETED) || isMessageSuppressed(account, localMessage)) {
-                        for (MessagingListener l : getListeners()) {
-                            l.synchronizeMailboxRemovedMessage(account, folder, localMessage);
-                        }
-                    } else {
-                        for (MessagingListener l : getListeners()) {
-                            l.synchronizeMailboxAddOrUpdateMessage(account, folder, localMessage);
-                        }
-                        if (shouldNotifyForMessage(account, localFolder, localMessage)) {
-                            shouldBeNotifiedOf = true;
-                        }
-                    }
+            /*
+             * Apply the flags of each message as soon as its FETCH response has been read. Stores
+             * that stream their responses then never need to hold the complete result.
+             */
+            final Set<String> refreshedUids = new HashSet<String>();
+            MessageRetrievalListener flagListener = new MessageRetrievalListener() {
+                @Override
+                public void messageStarted(String uid, int number, int ofTotal) {
+                }
 
-                    // we're only interested in messages that need removing
-                    if (!shouldBeNotifiedOf) {
-                        NotificationData data = getNotificationData(account, null);
-                        if (data != null) {
-                            synchronized (data) {
-                                MessageReference ref = localMessage.makeMessageReference();
-                                if (data.removeMatchingMessage(mApplication, ref)) {
-                                    notifyAccountWithDataLocked(mApplication, account, null, data);
-                                }
-                            }
-                        }
+                @Override
+                public void messageFinished(Message remoteMessage, int number, int ofTotal) {
+                    try {
+                        refreshLocalMessageFlags(account, localFolder, remoteMessage, progress, todo);
+                        refreshedUids.add(remoteMessage.getUid());
+                    } catch (MessagingException e) {
+                        Log.w(K9.LOG_TAG, "SYNC: Unable to refresh flags of message " + remoteMessage.getUid() +
+                              ", retrying after fetch", e);
                     }
                 }
-                progress.incrementAndGet();
+
+                @Override
+                public void messagesFinished(int total) {
+                }
+
+                @Override
+                public void windowFinished(int messageCount, long bytes, long elapsedMillis) {
+                }
+            };
+
+            if (changedSince > 0) {
+                remoteFolder.fetchChangedFlags(undeletedMessages, changedSince, flagListener);
+            } else {
+                remoteFolder.fetch(undeletedMessages, fp, flagListener);
+            }
+
+            // Deleted messages and those missing from the FETCH response still need to be handled.
+            // When fetching changes only, a missing response means the flags didn't change.
+            for (Message remoteMessage : syncFlagMessages) {
+                if (refreshedUids.contains(remoteMessage.getUid())) {
+                    continue;
+                }
+                if (changedSince > 0 && !remoteMessage.isSet(Flag.DELETED)) {
+                    progress.incrementAndGet();
+                } else {
+                    refreshLocalMessageFlags(account, localFolder, remoteMessage, progress, todo);
+                }
+            }
+        }
+    }
+
+    private void refreshLocalMessageFlags(final Account account, final LocalFolder localFolder,
+                                          final Message remoteMessage,
+                                          final AtomicInteger progress,
+                                          final int todo) throws MessagingException {
+        final String folder = localFolder.getName();
+        Message localMessage = localFolder.getMessage(remoteMessage.getUid());
+        boolean messageChanged = syncFlags(localMessage, remoteMessage);
+        if (messageChanged) {
+            boolean shouldBeNotifiedOf = false;
+            if (localMessage.isSet(Flag.DELETED) || isMessageSuppressed(account, localMessage)) {
                 for (MessagingListener l : getListeners()) {
-                    l.synchronizeMailboxProgress(account, folder, progress.get(), todo);
+                    l.synchronizeMailboxRemovedMessage(account, folder, localMessage);
+                }
+            } else {
+                for (MessagingListener l : getListeners()) {
+                    l.synchronizeMailboxAddOrUpdateMessage(account, folder, localMessage);
+                }
+                if (shouldNotifyForMessage(account, localFolder, localMessage)) {
+                    shouldBeNotifiedOf = true;
+                }
+            }
+
+            // we're only interested in messages that need removing
+            if (!shouldBeNotifiedOf) {
+                NotificationData data = getNotificationData(account, null);
+                if (data != null) {
+                    synchronized (data) {
+                        MessageReference ref = localMessage.makeMessageReference();
+                        if (data.removeMatchingMessage(mApplication, ref)) {
+                            notifyAccountWithDataLocked(mApplication, account, null, data);
+                        }
+                    }
                 }
             }
         }
+        progress.incrementAndGet();
+        for (MessagingListener l : getListeners()) {
+            l.synchronizeMailboxProgress(account, folder, progress.get(), todo);
+        }
     }
 
     private boolean syncFlags(Message localMessage, Message remoteMessage) throws MessagingException {
@@ -1935,6 +2120,21 @@ public class MessagingController implements Runnable {
     }
 
     private void processPendingCommandsSynchronous(Account account) throws MessagingException {
+        Object lock = mPendingCommandsLocks.get(account.getUuid());
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = mPendingCommandsLocks.putIfAbsent(account.getUuid(), newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+
+        synchronized (lock) {
+            processPendingCommandsLocked(account);
+        }
+    }
+
+    private void processPendingCommandsLocked(Account account) throws MessagingException {
         LocalStore localStore = account.getLocalStore();
         List<PendingCommand> commands = localStore.getPendingCommands();
 
@@ -1951,8 +2151,10 @@ public class MessagingController implements Runnable {
 
         PendingCommand processingCommand = null;
         try {
-            for (PendingCommand command : commands) {
+            for (int i = 0; i < commands.size(); i++) {
+                PendingCommand command = commands.get(i);
                 processingCommand = command;
+                List<PendingCommand> batch = Collections.singletonList(command);
                 if (K9.DEBUG)
                     Log.d(K9.LOG_TAG, "Processing pending command '" + command + "'");
 
@@ -1968,7 +2170,8 @@ public class MessagingController implements Runnable {
                  */
                 try {
                     if (PENDING_COMMAND_APPEND.equals(command.command)) {
-                        processPendingAppend(command, account);
+                        batch = getPendingAppendBatch(commands, i);
+                        processPendingAppends(batch, account);
                     } else if (PENDING_COMMAND_SET_FLAG_BULK.equals(command.command)) {
                         processPendingSetFlag(command, account);
                     } else if (PENDING_COMMAND_SET_FLAG.equals(command.command)) {
@@ -1986,19 +2189,25 @@ public class MessagingController implements Runnable {
                     } else if (PENDING_COMMAND_EXPUNGE.equals(command.command)) {
                         processPendingExpunge(command, account);
                     }
-                    localStore.removePendingCommand(command);
-                    if (K9.DEBUG)
-                        Log.d(K9.LOG_TAG, "Done processing pending command '" + command + "'");
+                    for (PendingCommand processedCommand : batch) {
+                        localStore.removePendingCommand(processedCommand);
+                        if (K9.DEBUG)
+                            Log.d(K9.LOG_TAG, "Done processing pending command '" + processedCommand + "'");
+                    }
                 } catch (MessagingException me) {
                     if (me.isPermanentFailure()) {
                         addErrorMessage(account, null, me);
                         Log.e(K9.LOG_TAG, "Failure of command '" + command + "' was permanent, removing command from queue");
-                        localStore.removePendingCommand(processingCommand);
+                        localStore.removePendingCommand(command);
+
+                        // The other commands of a batch may not have been attempted yet
+                        batch = Collections.singletonList(command);
                     } else {
                         throw me;
                     }
                 } finally {
-                    progress++;
+                    i += batch.size() - 1;
+                    progress += batch.size();
                     for (MessagingListener l : getListeners()) {
                         l.synchronizeMailboxProgress(account, null, progress, todo);
                         l.pendingCommandCompleted(account, commandTitle);
@@ -2017,6 +2226,149 @@ public class MessagingController implements Runnable {
         }
     }
 
+    /**
+     * Returns the pending append commands starting at {@code start} that target the same folder,
+     * up to {@link #PENDING_APPEND_BATCH_SIZE}. Only consecutive commands are combined, so the
+     * order of the other commands is maintained.
+     */
+    private static List<PendingCommand> getPendingAppendBatch(List<PendingCommand> commands, int start) {
+        String folder = commands.get(start).arguments[0];
+        int end = start + 1;
+        while (end < commands.size() && end - start < PENDING_APPEND_BATCH_SIZE) {
+            PendingCommand command = commands.get(end);
+            if (!PENDING_COMMAND_APPEND.equals(command.command) ||
+                    !folder.equals(command.arguments[0])) {
+                break;
+            }
+            end++;
+        }
+        return commands.subList(start, end);
+    }
+
+    /**
+     * Processes pending append commands for the same folder.
+     *
+     * <p>
+     * Messages that have never been uploaded are sent with a single call to
+     * {@link Folder#appendMessages(List)}, which lets the store upload them in bulk. Messages
+     * that might already exist on the server are handled one by one by
+     * {@link #processPendingAppend(PendingCommand, Account)}.
+     * </p>
+     *
+     * @param commands arguments of each command = (String folder, String uid)
+     */
+    private void processPendingAppends(List<PendingCommand> commands, Account account)
+    throws MessagingException {
+        if (commands.size() == 1) {
+            processPendingAppend(commands.get(0), account);
+            return;
+        }
+
+        String folder = commands.get(0).arguments[0];
+        if (account.getErrorFolderName().equals(folder)) {
+            return;
+        }
+
+        Folder remoteFolder = null;
+        LocalFolder localFolder = null;
+        try {
+            LocalStore localStore = account.getLocalStore();
+            localFolder = localStore.getFolder(folder);
+
+            Set<String> uids = new HashSet<String>();
+            List<LocalMessage> newMessages = new ArrayList<LocalMessage>();
+            List<PendingCommand> newMessageCommands = new ArrayList<PendingCommand>();
+            for (PendingCommand command : commands) {
+                String uid = command.arguments[1];
+                if (!uids.add(uid)) {
+                    continue;
+                }
+
+                LocalMessage localMessage = localFolder.getMessage(uid);
+                if (localMessage != null && uid.startsWith(K9.LOCAL_UID_PREFIX) &&
+                        !localMessage.isSet(Flag.X_REMOTE_COPY_STARTED)) {
+                    newMessages.add(localMessage);
+                    newMessageCommands.add(command);
+                } else {
+                    processPendingAppendOfBatch(command, account);
+                }
+            }
+
+            if (newMessages.isEmpty()) {
+                return;
+            }
+
+            Store remoteStore = account.getRemoteStore();
+            remoteFolder = remoteStore.getFolder(folder);
+            if (!remoteFolder.exists()) {
+                if (!remoteFolder.create(FolderType.HOLDS_MESSAGES)) {
+                    return;
+                }
+            }
+            remoteFolder.open(Folder.OPEN_MODE_RW);
+            if (remoteFolder.getMode() != Folder.OPEN_MODE_RW) {
+                return;
+            }
+
+            FetchProfile fp = new FetchProfile();
+            fp.add(FetchProfile.Item.BODY);
+            localFolder.fetch(newMessages, fp, null);
+
+            String[] oldUids = new String[newMessages.size()];
+            for (int i = 0; i < oldUids.length; i++) {
+                LocalMessage localMessage = newMessages.get(i);
+                oldUids[i] = localMessage.getUid();
+                localMessage.setFlag(Flag.X_REMOTE_COPY_STARTED, true);
+            }
+
+            try {
+                remoteFolder.appendMessages(newMessages);
+            } catch (MessagingException me) {
+                if (!me.isPermanentFailure()) {
+                    throw me;
+                }
+
+                // Find out which message can't be uploaded. The others are checked against the
+                // server first, since X_REMOTE_COPY_STARTED is set.
+                closeFolder(remoteFolder);
+                remoteFolder = null;
+                for (PendingCommand command : newMessageCommands) {
+                    processPendingAppendOfBatch(command, account);
+                }
+                return;
+            }
+
+            localFolder.changeUids(newMessages);
+            for (int i = 0; i < oldUids.length; i++) {
+                for (MessagingListener l : getListeners()) {
+                    l.messageUidChanged(account, folder, oldUids[i], newMessages.get(i).getUid());
+                }
+            }
+        } finally {
+            closeFolder(remoteFolder);
+            closeFolder(localFolder);
+        }
+    }
+
+    /**
+     * Processes one of the pending append commands of a batch. A permanent failure only removes
+     * this command, so the other messages of the batch are still uploaded.
+     */
+    private void processPendingAppendOfBatch(PendingCommand command, Account account)
+    throws MessagingException {
+        try {
+            processPendingAppend(command, account);
+        } catch (MessagingException me) {
+            if (!me.isPermanentFailure()) {
+                throw me;
+            }
+
+            addErrorMessage(account, null, me);
+            Log.e(K9.LOG_TAG, "Failure of command '" + command + "' was permanent, removing command from queue");
+            account.getLocalStore().removePendingCommand(command);
+        }
+    }
+
     /**
      * Process a pending append message command. This command uploads a local message to the
      * server, first checking to be sure that the server message is not newer than
@@ -2331,18 +2683,26 @@ public class MessagingController implements Runnable {
              * upto speed with the remote UIDs of remote destination folder.
              */
             if (!localUidMap.isEmpty() && remoteUidMap != null && !remoteUidMap.isEmpty()) {
+                List<LocalMessage> changedMessages = new ArrayList<LocalMessage>();
+                List<String> oldUids = new ArrayList<String>();
                 for (Map.Entry<String, String> entry : remoteUidMap.entrySet()) {
                     String remoteSrcUid = entry.getKey();
                     String localDestUid = localUidMap.get(remoteSrcUid);
                     String newUid = entry.getValue();
 
-                    Message localDestMessage = localDestFolder.getMessage(localDestUid);
+                    LocalMessage localDestMessage = localDestFolder.getMessage(localDestUid);
                     if (localDestMessage != null) {
                         localDestMessage.setUid(newUid);
-                        localDestFolder.changeUid((LocalMessage)localDestMessage);
-                        for (MessagingListener l : getListeners()) {
-                            l.messageUidChanged(account, destFolder, localDestUid, newUid);
-                        }
+                        changedMessages.add(localDestMessage);
+                        oldUids.add(localDestUid);
+                    }
+                }
+
+                localDestFolder.changeUids(changedMessages);
+                for (int i = 0; i < changedMessages.size(); i++) {
+                    for (MessagingListener l : getListeners()) {
+                        l.messageUidChanged(account, destFolder, oldUids.get(i),
+                                changedMessages.get(i).getUid());
                     }
                 }
             }
@@ -3474,13 +3834,20 @@ public class MessagingController implements Runnable {
 
     /**
      * Attempt to send any messages that are sitting in the Outbox.
+     *
+     * <p>
+     * Messages are sent concurrently over up to {@link Account#getMaxSendConnections()}
+     * connections. Each connection is reused for several messages. Messages to the same
+     * recipient domain are still sent in outbox order.
+     * </p>
      * @param account
      */
     public void sendPendingMessagesSynchronous(final Account account) {
         Folder localFolder = null;
-        Exception lastFailure = null;
+        List<Transport> transports = new ArrayList<Transport>();
+        final AtomicReference<Exception> lastFailure = new AtomicReference<Exception>();
         try {
-            Store localStore = account.getLocalStore();
+            final Store localStore = account.getLocalStore();
             localFolder = localStore.getFolder(
                               account.getOutboxFolderName());
             if (!localFolder.exists()) {
@@ -3492,124 +3859,111 @@ public class MessagingController implements Runnable {
             localFolder.open(Folder.OPEN_MODE_RW);
 
             List<? extends Message> localMessages = localFolder.getMessages(null);
-            int progress = 0;
-            int todo = localMessages.size();
+            final AtomicInteger progress = new AtomicInteger(0);
+            final int todo = localMessages.size();
             for (MessagingListener l : getListeners()) {
-                l.synchronizeMailboxProgress(account, account.getSentFolderName(), progress, todo);
+                l.synchronizeMailboxProgress(account, account.getSentFolderName(), 0, todo);
             }
             /*
              * The profile we will use to pull all of the content
              * for a given local message into memory for sending.
              */
-            FetchProfile fp = new FetchProfile();
+            final FetchProfile fp = new FetchProfile();
             fp.add(FetchProfile.Item.ENVELOPE);
             fp.add(FetchProfile.Item.BODY);
 
             if (K9.DEBUG)
                 Log.i(K9.LOG_TAG, "Scanning folder '" + account.getOutboxFolderName() + "' (" + ((LocalFolder)localFolder).getId() + ") for messages to send");
 
-            Transport transport = Transport.getInstance(account);
-            for (Message message : localMessages) {
+            final String outboxName = account.getOutboxFolderName();
+            List<OutboxDeliveryScheduler.Delivery> deliveries =
+                    new ArrayList<OutboxDeliveryScheduler.Delivery>();
+            for (final Message message : localMessages) {
                 if (message.isSet(Flag.DELETED)) {
                     message.destroy();
                     continue;
                 }
-                try {
-                    AtomicInteger count = new AtomicInteger(0);
-                    AtomicInteger oldCount = sendCount.putIfAbsent(message.getUid(), count);
-                    if (oldCount != null) {
-                        count = oldCount;
-                    }
-
-                    if (K9.DEBUG)
-                        Log.i(K9.LOG_TAG, "Send count for message " + message.getUid() + " is " + count.get());
+                final String uid = message.getUid();
+                final Set<String> recipientDomains = getRecipientDomains(message);
+                deliveries.add(new OutboxDeliveryScheduler.Delivery() {
+                    /*
+                     * Deliveries run on pool threads, so each one uses its own folder and
+                     * message instead of the ones listed above.
+                     */
+                    private Folder mOutbox;
+                    private Message mMessage;
 
-                    if (count.incrementAndGet() > K9.MAX_SEND_ATTEMPTS) {
-                        Log.e(K9.LOG_TAG, "Send count for message " + message.getUid() + " can't be delivered after " + K9.MAX_SEND_ATTEMPTS + " attempts.  Giving up until the user restarts the device");
-                        notifySendTempFailed(account, new MessagingException(message.getSubject()));
-                        continue;
+                    @Override
+                    public Collection<String> getOrderingKeys() {
+                        return recipientDomains;
                     }
 
-
-
-                    localFolder.fetch(Collections.singletonList(message), fp, null);
-                    try {
-
-
-                        if (message.getHeader(K9.IDENTITY_HEADER) != null) {
-                            Log.v(K9.LOG_TAG, "The user has set the Outbox and Drafts folder to the same thing. " +
-                                  "This message appears to be a draft, so K-9 will not send it");
-                            continue;
-
+                    @Override
+                    public boolean send(Transport transport) {
+                        boolean sent = false;
+                        try {
+                            mOutbox = localStore.getFolder(outboxName);
+                            mOutbox.open(Folder.OPEN_MODE_RW);
+                            mMessage = mOutbox.getMessage(uid);
+                            if (mMessage == null || !sendPendingMessage(account, localStore,
+                                    mOutbox, mMessage, fp, transport, lastFailure)) {
+                                return false;
+                            }
+                            sent = true;
+                        } catch (MessagingException e) {
+                            Log.e(K9.LOG_TAG, "Failed to open outbox for sending", e);
+                            lastFailure.set(e);
+                            return false;
+                        } finally {
+                            if (!sent) {
+                                closeFolder(mOutbox);
+                            }
                         }
 
-
-                        message.setFlag(Flag.X_SEND_IN_PROGRESS, true);
-                        if (K9.DEBUG)
-                            Log.i(K9.LOG_TAG, "Sending message with UID " + message.getUid());
-                        transport.sendMessage(message);
-                        message.setFlag(Flag.X_SEND_IN_PROGRESS, false);
-                        message.setFlag(Flag.SEEN, true);
-                        progress++;
+                        int done = progress.incrementAndGet();
                         for (MessagingListener l : getListeners()) {
-                            l.synchronizeMailboxProgress(account, account.getSentFolderName(), progress, todo);
-                        }
-                        if (!account.hasSentFolder()) {
-                            if (K9.DEBUG)
-                                Log.i(K9.LOG_TAG, "Account does not have a sent mail folder; deleting sent message");
-                            message.setFlag(Flag.DELETED, true);
-                        } else {
-                            LocalFolder localSentFolder = (LocalFolder) localStore.getFolder(account.getSentFolderName());
-                            if (K9.DEBUG)
-                                Log.i(K9.LOG_TAG, "Moving sent message to folder '" + account.getSentFolderName() + "' (" + localSentFolder.getId() + ") ");
-
-                            localFolder.moveMessages(Collections.singletonList(message), localSentFolder);
-
-                            if (K9.DEBUG)
-                                Log.i(K9.LOG_TAG, "Moved sent message to folder '" + account.getSentFolderName() + "' (" + localSentFolder.getId() + ") ");
-
-                            PendingCommand command = new PendingCommand();
-                            command.command = PENDING_COMMAND_APPEND;
-                            command.arguments = new String[] { localSentFolder.getName(), message.getUid() };
-                            queuePendingCommand(account, command);
-                            processPendingCommands(account);
-                        }
-
-                    } catch (Exception e) {
-                        // 5.x.x errors from the SMTP server are "PERMFAIL"
-                        // move the message over to drafts rather than leaving it in the outbox
-                        // This is a complete hack, but is worlds better than the previous
-                        // "don't even bother" functionality
-                        if (getRootCauseMessage(e).startsWith("5")) {
-                            localFolder.moveMessages(Collections.singletonList(message), (LocalFolder) localStore.getFolder(account.getDraftsFolderName()));
+                            l.synchronizeMailboxProgress(account, account.getSentFolderName(),
+                                    done, todo);
                         }
+                        return true;
+                    }
 
-                        notifyUserIfCertificateProblem(mApplication, e, account, false);
-                        addErrorMessage(account, "Failed to send message", e);
-                        message.setFlag(Flag.X_SEND_FAILED, true);
-                        Log.e(K9.LOG_TAG, "Failed to send message", e);
-                        for (MessagingListener l : getListeners()) {
-                            l.synchronizeMailboxFailed(account, localFolder.getName(), getRootCauseMessage(e));
+                    @Override
+                    public void afterSend() {
+                        try {
+                            moveSentMessage(account, localStore, mOutbox, mMessage, lastFailure);
+                        } finally {
+                            closeFolder(mOutbox);
                         }
-                        lastFailure = e;
                     }
-                } catch (Exception e) {
-                    Log.e(K9.LOG_TAG, "Failed to fetch message for sending", e);
-                    for (MessagingListener l : getListeners()) {
-                        l.synchronizeMailboxFailed(account, localFolder.getName(), getRootCauseMessage(e));
-                    }
-                    addErrorMessage(account, "Failed to fetch message for sending", e);
-                    lastFailure = e;
-                }
+                });
+            }
+
+            // Every transport keeps its connection open until all messages have been sent
+            int connections = getSendConnections(account, deliveries.size());
+            for (int i = 0; i < connections; i++) {
+                Transport transport = Transport.getInstance(account);
+                transport.setReuseConnection(true);
+                transports.add(transport);
             }
+
+            try {
+                mOutboxDeliveryScheduler.runAll(transports, deliveries);
+            } catch (InterruptedException e) {
+                Log.i(K9.LOG_TAG, "Interrupted while sending messages of " +
+                        account.getDescription());
+                Thread.currentThread().interrupt();
+            }
+
             for (MessagingListener l : getListeners()) {
                 l.sendPendingMessagesCompleted(account);
             }
-            if (lastFailure != null) {
-                if (getRootCauseMessage(lastFailure).startsWith("5")) {
-                    notifySendPermFailed(account, lastFailure);
+            Exception failure = lastFailure.get();
+            if (failure != null) {
+                if (getRootCauseMessage(failure).startsWith("5")) {
+                    notifySendPermFailed(account, failure);
                 } else {
-                    notifySendTempFailed(account, lastFailure);
+                    notifySendTempFailed(account, failure);
                 }
             }
         } catch (UnavailableStorageException e) {
@@ -3622,13 +3976,169 @@ public class MessagingController implements Runnable {
             addErrorMessage(account, null, e);
 
         } finally {
-            if (lastFailure == null) {
+            for (Transport transport : transports) {
+                transport.close();
+            }
+            if (lastFailure.get() == null) {
                 cancelNotification(K9.SEND_FAILED_NOTIFICATION - account.getAccountNumber());
             }
             closeFolder(localFolder);
         }
     }
 
+    /**
+     * Messages to the same domain are sent in outbox order, so e.g. a reply doesn't arrive before
+     * the message it answers.
+     */
+    private static Set<String> getRecipientDomains(Message message) throws MessagingException {
+        Set<String> domains = new HashSet<String>();
+        for (RecipientType type : new RecipientType[] {
+                RecipientType.TO, RecipientType.CC, RecipientType.BCC }) {
+            Address[] addresses = message.getRecipients(type);
+            if (addresses == null) {
+                continue;
+            }
+            for (Address address : addresses) {
+                String email = address.getAddress();
+                if (email != null) {
+                    domains.add(email.substring(email.lastIndexOf('@') + 1).toLowerCase(Locale.US));
+                }
+            }
+        }
+        return domains;
+    }
+
+    /**
+     * Only SMTP accounts can use more than one connection to send messages.
+     */
+    private static int getSendConnections(Account account, int messageCount) {
+        int connections = 1;
+        if (account.getTransportUri().startsWith("smtp")) {
+            connections = Math.max(1, account.getMaxSendConnections());
+        }
+        return Math.max(1, Math.min(connections, messageCount));
+    }
+
+    /**
+     * Sends a single message from the Outbox.
+     *
+     * @return {@code true} if the message was sent.
+     */
+    private boolean sendPendingMessage(Account account, Store localStore, Folder localFolder,
+            Message message, FetchProfile fp, Transport transport,
+            AtomicReference<Exception> lastFailure) {
+        try {
+            AtomicInteger count = new AtomicInteger(0);
+            AtomicInteger oldCount = sendCount.putIfAbsent(message.getUid(), count);
+            if (oldCount != null) {
+                count = oldCount;
+            }
+
+            if (K9.DEBUG)
+                Log.i(K9.LOG_TAG, "Send count for message " + message.getUid() + " is " + count.get());
+
+            if (count.incrementAndGet() > K9.MAX_SEND_ATTEMPTS) {
+                Log.e(K9.LOG_TAG, "Send count for message " + message.getUid() + " can't be delivered after " + K9.MAX_SEND_ATTEMPTS + " attempts.  Giving up until the user restarts the device");
+                notifySendTempFailed(account, new MessagingException(message.getSubject()));
+                return false;
+            }
+
+
+
+            localFolder.fetch(Collections.singletonList(message), fp, null);
+            try {
+
+
+                if (message.getHeader(K9.IDENTITY_HEADER) != null) {
+                    Log.v(K9.LOG_TAG, "The user has set the Outbox and Drafts folder to the same thing. " +
+                          "This message appears to be a draft, so K-9 will not send it");
+                    return false;
+
+                }
+
+
+                message.setFlag(Flag.X_SEND_IN_PROGRESS, true);
+                if (K9.DEBUG)
+                    Log.i(K9.LOG_TAG, "Sending message with UID " + message.getUid());
+                transport.sendMessage(message);
+                message.setFlag(Flag.X_SEND_IN_PROGRESS, false);
+                message.setFlag(Flag.SEEN, true);
+                return true;
+            } catch (Exception e) {
+                handleSendFailure(account, localStore, localFolder, message, e, lastFailure);
+            }
+        } catch (Exception e) {
+            Log.e(K9.LOG_TAG, "Failed to fetch message for sending", e);
+            for (MessagingListener l : getListeners()) {
+                l.synchronizeMailboxFailed(account, localFolder.getName(), getRootCauseMessage(e));
+            }
+            addErrorMessage(account, "Failed to fetch message for sending", e);
+            lastFailure.set(e);
+        }
+        return false;
+    }
+
+    /**
+     * Moves a message that has been sent to the Sent folder, or deletes it if the account
+     * doesn't have one.
+     */
+    private void moveSentMessage(Account account, Store localStore, Folder localFolder,
+            Message message, AtomicReference<Exception> lastFailure) {
+        try {
+            if (!account.hasSentFolder()) {
+                if (K9.DEBUG)
+                    Log.i(K9.LOG_TAG, "Account does not have a sent mail folder; deleting sent message");
+                message.setFlag(Flag.DELETED, true);
+            } else {
+                LocalFolder localSentFolder = (LocalFolder) localStore.getFolder(account.getSentFolderName());
+                if (K9.DEBUG)
+                    Log.i(K9.LOG_TAG, "Moving sent message to folder '" + account.getSentFolderName() + "' (" + localSentFolder.getId() + ") ");
+
+                localFolder.moveMessages(Collections.singletonList(message), localSentFolder);
+
+                if (K9.DEBUG)
+                    Log.i(K9.LOG_TAG, "Moved sent message to folder '" + account.getSentFolderName() + "' (" + localSentFolder.getId() + ") ");
+
+                PendingCommand command = new PendingCommand();
+                command.command = PENDING_COMMAND_APPEND;
+                command.arguments = new String[] { localSentFolder.getName(), message.getUid() };
+                queuePendingCommand(account, command);
+                processPendingCommands(account);
+            }
+        } catch (Exception e) {
+            handleSendFailure(account, localStore, localFolder, message, e, lastFailure);
+        }
+    }
+
+    private void handleSendFailure(Account account, Store localStore, Folder localFolder,
+            Message message, Exception e, AtomicReference<Exception> lastFailure) {
+        try {
+            // 5.x.x errors from the SMTP server are "PERMFAIL"
+            // move the message over to drafts rather than leaving it in the outbox
+            // This is a complete hack, but is worlds better than the previous
+            // "don't even bother" functionality
+            if (getRootCauseMessage(e).startsWith("5")) {
+                localFolder.moveMessages(Collections.singletonList(message), (LocalFolder) localStore.getFolder(account.getDraftsFolderName()));
+            }
+
+            notifyUserIfCertificateProblem(mApplication, e, account, false);
+            addErrorMessage(account, "Failed to send message", e);
+            message.setFlag(Flag.X_SEND_FAILED, true);
+            Log.e(K9.LOG_TAG, "Failed to send message", e);
+            for (MessagingListener l : getListeners()) {
+                l.synchronizeMailboxFailed(account, localFolder.getName(), getRootCauseMessage(e));
+            }
+            lastFailure.set(e);
+        } catch (Exception e2) {
+            Log.e(K9.LOG_TAG, "Failed to fetch message for sending", e2);
+            for (MessagingListener l : getListeners()) {
+                l.synchronizeMailboxFailed(account, localFolder.getName(), getRootCauseMessage(e2));
+            }
+            addErrorMessage(account, "Failed to fetch message for sending", e2);
+            lastFailure.set(e2);
+        }
+    }
+
     public void getAccountStats(final Context context, final Account account,
             final MessagingListener listener) {
 
@@ -4318,6 +4828,35 @@ public class MessagingController implements Runnable {
         putBackground("checkMail", listener, new Runnable() {
             @Override
             public void run() {
+                // Folders are synchronized on pool threads, the last account to finish (or this
+                // command, if it's later) finalizes the check
+                final AtomicInteger pendingChecks = new AtomicInteger(1);
+                final Runnable finishCheck = new Runnable() {
+                    @Override
+                    public void run() {
+                        if (pendingChecks.decrementAndGet() > 0) {
+                            return;
+                        }
+
+                        putBackground("finalize sync", null, new Runnable() {
+                            @Override
+                            public void run() {
+
+                                if (K9.DEBUG)
+                                    Log.i(K9.LOG_TAG, "Finished mail sync");
+
+                                if (wakeLock != null) {
+                                    wakeLock.release();
+                                }
+                                for (MessagingListener l : getListeners()) {
+                                    l.checkMailFinished(context, account);
+                                }
+
+                            }
+                        }
+                                     );
+                    }
+                };
 
                 try {
                     if (K9.DEBUG)
@@ -4333,50 +4872,45 @@ public class MessagingController implements Runnable {
                     }
 
                     for (final Account account : accounts) {
-                        checkMailForAccount(context, account, ignoreLastCheckedTime, prefs, listener);
+                        pendingChecks.incrementAndGet();
+                        checkMailForAccount(context, account, ignoreLastCheckedTime, prefs,
+                                listener, finishCheck);
                     }
 
                 } catch (Exception e) {
                     Log.e(K9.LOG_TAG, "Unable to synchronize mail", e);
                     addErrorMessage(account, null, e);
                 }
-                putBackground("finalize sync", null, new Runnable() {
-                    @Override
-                    public void run() {
-
-                        if (K9.DEBUG)
-                            Log.i(K9.LOG_TAG, "Finished mail sync");
-
-                        if (wakeLock != null) {
-                            wakeLock.release();
-                        }
-                        for (MessagingListener l : getListeners()) {
-                            l.checkMailFinished(context, account);
-                        }
-
-                    }
-                }
-                             );
+                finishCheck.run();
             }
         });
     }
 
 
 
+    /**
+     * Starts synchronizing the folders of an account without waiting for them.
+     *
+     * @param onFinished
+     *         Run once the account has been checked, possibly on another thread.
+     */
     private void checkMailForAccount(final Context context, final Account account,
                                      final boolean ignoreLastCheckedTime,
                                      final Preferences prefs,
-                                     final MessagingListener listener) {
+                                     final MessagingListener listener,
+                                     final Runnable onFinished) {
         if (!account.isAvailable(context)) {
             if (K9.DEBUG) {
                 Log.i(K9.LOG_TAG, "Skipping synchronizing unavailable account " + account.getDescription());
             }
+            onFinished.run();
             return;
         }
         final long accountInterval = account.getAutomaticCheckIntervalMinutes() * 60 * 1000;
         if (!ignoreLastCheckedTime && accountInterval <= 0) {
             if (K9.DEBUG)
                 Log.i(K9.LOG_TAG, "Skipping synchronizing account " + account.getDescription());
+            onFinished.run();
             return;
         }
 
@@ -4387,11 +4921,38 @@ public class MessagingController implements Runnable {
 
         sendPendingMessages(account, listener);
 
+        final Runnable clearNotificationFlag = new Runnable() {
+            @Override
+            public void run() {
+                putBackground("clear notification flag for " + account.getDescription(), null, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (K9.DEBUG)
+                            Log.v(K9.LOG_TAG, "Clearing notification flag for " + account.getDescription());
+                        account.setRingNotified(false);
+                        try {
+                            AccountStats stats = account.getStats(context);
+                            if (stats == null || stats.unreadMessageCount == 0) {
+                                notifyAccountCancel(context, account);
+                            }
+                        } catch (MessagingException e) {
+                            Log.e(K9.LOG_TAG, "Unable to getUnreadMessageCount for account: " + account, e);
+                        } finally {
+                            onFinished.run();
+                        }
+                    }
+                }
+                             );
+            }
+        };
+
+        boolean syncStarted = false;
         try {
             Account.FolderMode aDisplayMode = account.getFolderDisplayMode();
             Account.FolderMode aSyncMode = account.getFolderSyncMode();
 
             Store localStore = account.getLocalStore();
+            List<Runnable> folderSyncs = new ArrayList<Runnable>();
             for (final Folder folder : localStore.getPersonalNamespaces(false)) {
                 folder.open(Folder.OPEN_MODE_RW);
                 folder.refresh(prefs);
@@ -4420,36 +4981,96 @@ public class MessagingController implements Runnable {
 
                     continue;
                 }
-                synchronizeFolder(account, folder, ignoreLastCheckedTime, accountInterval, listener);
+                Runnable folderSync = createFolderSync(account, folder, ignoreLastCheckedTime,
+                        accountInterval, listener);
+                if (folderSync != null) {
+                    folderSyncs.add(folderSync);
+                }
             }
+            synchronizeFolders(account, folderSyncs, clearNotificationFlag);
+            syncStarted = true;
         } catch (MessagingException e) {
             Log.e(K9.LOG_TAG, "Unable to synchronize account " + account.getName(), e);
             addErrorMessage(account, null, e);
         } finally {
-            putBackground("clear notification flag for " + account.getDescription(), null, new Runnable() {
+            if (!syncStarted) {
+                clearNotificationFlag.run();
+            }
+        }
+
+
+    }
+
+
+    private void synchronizeFolder(
+        final Account account,
+        final Folder folder,
+        final boolean ignoreLastCheckedTime,
+        final long accountInterval,
+        final MessagingListener listener) {
+
+        Runnable folderSync = createFolderSync(account, folder, ignoreLastCheckedTime,
+                accountInterval, listener);
+        if (folderSync != null) {
+            putBackground("sync" + folder.getName(), null, folderSync);
+        }
+    }
+
+    /**
+     * Synchronizes the given folders concurrently on pool threads.
+     *
+     * <p>
+     * This doesn't block the calling thread, so other background commands keep running while
+     * folders are synchronized. Anything that has to happen after the synchronization belongs in
+     * {@code onFinished}.
+     * </p>
+     */
+    private void synchronizeFolders(final Account account, final List<Runnable> folderSyncs,
+            final Runnable onFinished) {
+        List<Runnable> tasks = new ArrayList<Runnable>(folderSyncs.size());
+        for (final Runnable folderSync : folderSyncs) {
+            tasks.add(new Runnable() {
                 @Override
                 public void run() {
-                    if (K9.DEBUG)
-                        Log.v(K9.LOG_TAG, "Clearing notification flag for " + account.getDescription());
-                    account.setRingNotified(false);
+                    // Pool threads are shared, so restore their priority afterwards
+                    int tid = Process.myTid();
+                    int priority = Process.getThreadPriority(tid);
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
                     try {
-                        AccountStats stats = account.getStats(context);
-                        if (stats == null || stats.unreadMessageCount == 0) {
-                            notifyAccountCancel(context, account);
-                        }
-                    } catch (MessagingException e) {
-                        Log.e(K9.LOG_TAG, "Unable to getUnreadMessageCount for account: " + account, e);
+                        folderSync.run();
+                    } finally {
+                        Process.setThreadPriority(tid, priority);
                     }
                 }
-            }
-                         );
+            });
         }
 
+        mFolderSyncScheduler.runAll(getSyncServerKey(account), getFolderSyncConcurrency(account),
+                tasks, onFinished);
+    }
 
+    /**
+     * Only IMAP accounts can use more than one connection at a time.
+     */
+    private static int getFolderSyncConcurrency(Account account) {
+        return account.getStoreUri().startsWith("imap") ?
+                FolderSyncScheduler.DEFAULT_ACCOUNT_CONCURRENCY : 1;
     }
 
+    private static String getSyncServerKey(Account account) {
+        try {
+            ServerSettings settings = Store.decodeStoreUri(account.getStoreUri());
+            return settings.type + ":" + settings.host + ":" + settings.port;
+        } catch (IllegalArgumentException e) {
+            return account.getUuid();
+        }
+    }
 
-    private void synchronizeFolder(
+    /**
+     * Creates the task that synchronizes a single folder, or returns {@code null} if the folder
+     * was synchronized recently enough.
+     */
+    private Runnable createFolderSync(
         final Account account,
         final Folder folder,
         final boolean ignoreLastCheckedTime,
@@ -4468,9 +5089,9 @@ public class MessagingController implements Runnable {
                       + ", previously synced @ " + new Date(folder.getLastChecked())
                       + " which would be too recent for the account period");
 
-            return;
+            return null;
         }
-        putBackground("sync" + folder.getName(), null, new Runnable() {
+        return new Runnable() {
             @Override
             public void run() {
                 LocalFolder tLocalFolder = null;
@@ -4504,10 +5125,7 @@ public class MessagingController implements Runnable {
                     closeFolder(tLocalFolder);
                 }
             }
-        }
-                     );
-
-
+        };
     }
 
 
@@ -0,0 +1,174 @@
+package com.fsck.k9.controller;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+import android.util.Log;
+
+import com.fsck.k9.K9;
+import com.fsck.k9.mail.Transport;
+
+/**
+ * Sends the messages of an outbox concurrently over a fixed set of transports.
+ *
+ * <p>
+ * Every delivery has two phases. {@link Delivery#send(Transport)} has exclusive use of one of the
+ * transports. {@link Delivery#afterSend()}, e.g. moving the message to the Sent folder, runs after
+ * the transport has been handed to the next delivery. So with a single transport, the follow-up
+ * work of one message overlaps with the transmission of the next one.
+ * </p>
+ * <p>
+ * Deliveries that share an ordering key (see {@link Delivery#getOrderingKeys()}), directly or
+ * through other deliveries, form a queue. The deliveries of a queue run one after another in
+ * the order they were passed in, on the same thread. Only different queues run concurrently.
+ * </p>
+ */
+class OutboxDeliveryScheduler {
+    interface Delivery {
+        /**
+         * @return The keys, e.g. recipient domains, of the deliveries whose order has to be kept
+         *         relative to this one.
+         */
+        Collection<String> getOrderingKeys();
+
+        /**
+         * @return {@code true} if the message was sent and {@link #afterSend()} should be called.
+         */
+        boolean send(Transport transport);
+
+        void afterSend();
+    }
+
+    private final Executor mExecutor;
+
+    OutboxDeliveryScheduler(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Runs all deliveries and blocks until every one of them has finished.
+     *
+     * @param transports
+     *         The transports to send with. Each of them is used by at most one delivery at a time.
+     * @param deliveries
+     *         The deliveries to run, in outbox order. Exceptions thrown by a delivery don't affect
+     *         the others.
+     *
+     * @throws InterruptedException
+     *         If the calling thread was interrupted while waiting. Deliveries that were already
+     *         started keep running.
+     */
+    void runAll(List<Transport> transports, List<Delivery> deliveries) throws InterruptedException {
+        if (transports.isEmpty()) {
+            throw new IllegalArgumentException("No transports");
+        }
+        if (deliveries.isEmpty()) {
+            return;
+        }
+
+        final BlockingQueue<Transport> idleTransports =
+                new ArrayBlockingQueue<Transport>(transports.size(), false, transports);
+
+        // Enough to keep every transport busy while the previous deliveries finish up
+        final Semaphore permits = new Semaphore(transports.size() * 2);
+        List<List<Delivery>> queues = groupByOrderingKeys(deliveries);
+        final CountDownLatch finished = new CountDownLatch(queues.size());
+
+        for (final List<Delivery> queue : queues) {
+            permits.acquire();
+
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (Delivery delivery : queue) {
+                            deliver(delivery, idleTransports);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        permits.release();
+                        finished.countDown();
+                    }
+                }
+            });
+        }
+
+        finished.await();
+    }
+
+    private static void deliver(Delivery delivery, BlockingQueue<Transport> idleTransports)
+            throws InterruptedException {
+        Transport transport = idleTransports.take();
+        try {
+            boolean sent;
+            try {
+                sent = delivery.send(transport);
+            } finally {
+                idleTransports.add(transport);
+            }
+
+            if (sent) {
+                delivery.afterSend();
+            }
+        } catch (RuntimeException e) {
+            Log.e(K9.LOG_TAG, "Delivery failed", e);
+        }
+    }
+
+    /**
+     * Splits the deliveries into queues. Deliveries with a common ordering key end up in the same
+     * queue, and every queue keeps the original order.
+     */
+    static List<List<Delivery>> groupByOrderingKeys(List<Delivery> deliveries) {
+        int count = deliveries.size();
+        int[] parents = new int[count];
+        Map<String, Integer> firstByKey = new HashMap<String, Integer>();
+        for (int i = 0; i < count; i++) {
+            parents[i] = i;
+
+            Collection<String> keys = deliveries.get(i).getOrderingKeys();
+            if (keys == null) {
+                continue;
+            }
+            for (String key : keys) {
+                Integer first = firstByKey.get(key);
+                if (first == null) {
+                    firstByKey.put(key, i);
+                } else {
+                    parents[findRoot(parents, i)] = findRoot(parents, first);
+                }
+            }
+        }
+
+        Map<Integer, List<Delivery>> queues = new LinkedHashMap<Integer, List<Delivery>>();
+        for (int i = 0; i < count; i++) {
+            int root = findRoot(parents, i);
+            List<Delivery> queue = queues.get(root);
+            if (queue == null) {
+                queue = new ArrayList<Delivery>();
+                queues.put(root, queue);
+            }
+            queue.add(deliveries.get(i));
+        }
+
+        return new ArrayList<List<Delivery>>(queues.values());
+    }
+
+    private static int findRoot(int[] parents, int index) {
+        while (parents[index] != index) {
+            parents[index] = parents[parents[index]];
+            index = parents[index];
+        }
+        return index;
+    }
+}
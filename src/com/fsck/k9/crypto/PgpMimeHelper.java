@@ -0,0 +1,113 @@
+package com.fsck.k9.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.fsck.k9.helper.HtmlConverter;
+import com.fsck.k9.mail.Body;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.Multipart;
+import com.fsck.k9.mail.Part;
+import com.fsck.k9.mail.internet.BinaryTempFileBody;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.MimeUtility;
+
+/**
+ * Helper methods for PGP/MIME encrypted messages (RFC 3156).
+ *
+ * <p>
+ * The encrypted payload is read from the body of the message part and the plaintext is written to
+ * a {@link BinaryTempFileBody}, so neither of them has to fit into memory. The plaintext is a MIME
+ * entity that is parsed with {@link MimeMessage}, which again keeps the bodies in temp files.
+ * </p>
+ */
+public class PgpMimeHelper {
+    public static final String PGP_ENCRYPTED_MIME_TYPE = "application/pgp-encrypted";
+
+    /**
+     * Finds the part holding the OpenPGP message of a {@code multipart/encrypted} message.
+     *
+     * @return The second body part of the first {@code multipart/encrypted} part, or {@code null}
+     *         if there is no such part or its body hasn't been downloaded.
+     */
+    public static Part findEncryptedPayload(Part part) throws MessagingException {
+        Part encrypted = MimeUtility.findFirstPartByMimeType(part, "multipart/encrypted");
+        if (encrypted == null || !(encrypted.getBody() instanceof Multipart)) {
+            return null;
+        }
+
+        String protocol = MimeUtility.getHeaderParameter(encrypted.getContentType(), "protocol");
+        if (!PGP_ENCRYPTED_MIME_TYPE.equalsIgnoreCase(protocol)) {
+            return null;
+        }
+
+        Multipart multipart = (Multipart) encrypted.getBody();
+        if (multipart.getCount() != 2) {
+            return null;
+        }
+
+        Part payload = multipart.getBodyPart(1);
+        return (payload.getBody() != null) ? payload : null;
+    }
+
+    /**
+     * Opens the decoded contents of the payload returned by {@link #findEncryptedPayload(Part)}.
+     *
+     * <p>
+     * Every call returns a new stream, so the payload can be decrypted again, e.g. after the
+     * user entered a passphrase.
+     * </p>
+     */
+    public static InputStream getPayloadInputStream(Part payload) throws MessagingException {
+        Body body = payload.getBody();
+        if (body == null) {
+            throw new MessagingException("Encrypted part has no body");
+        }
+        return MimeUtility.decodeBody(body);
+    }
+
+    /**
+     * Parses the decrypted MIME entity.
+     *
+     * <p>
+     * The temp file backing {@code decrypted} is deleted afterwards.
+     * </p>
+     */
+    public static MimeMessage parseDecrypted(BinaryTempFileBody decrypted)
+            throws IOException, MessagingException {
+        InputStream in = decrypted.getInputStream();
+        try {
+            return new MimeMessage(in, true);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the text to display for a decrypted message.
+     *
+     * @return The contents of the first {@code text/plain} part, or the text of the first
+     *         {@code text/html} part if there is no plain text. An empty string if the message
+     *         contains neither.
+     */
+    public static String getText(Message message) throws MessagingException {
+        Part part = MimeUtility.findFirstPartByMimeType(message, "text/plain");
+        if (part != null) {
+            String text = MimeUtility.getTextFromPart(part);
+            if (text != null) {
+                return text;
+            }
+        }
+
+        part = MimeUtility.findFirstPartByMimeType(message, "text/html");
+        if (part != null) {
+            String html = MimeUtility.getTextFromPart(part);
+            if (html != null) {
+                return HtmlConverter.htmlToText(html);
+            }
+        }
+
+        return "";
+    }
+}
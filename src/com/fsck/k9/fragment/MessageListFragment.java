@@ -33,7 +33,6 @@ import android.os.Parcelable;
 import android.app.DialogFragment;
 import android.app.LoaderManager;
 import android.app.LoaderManager.LoaderCallbacks;
-import android.content.CursorLoader;
 import android.content.Loader;
 import android.support.v4.content.LocalBroadcastManager;
 import android.widget.CursorAdapter;
@@ -74,6 +73,7 @@ import com.fsck.k9.activity.ActivityListener;
 import com.fsck.k9.activity.ChooseFolder;
 import com.fsck.k9.activity.FolderInfoHolder;
 import com.fsck.k9.activity.MessageReference;
+import com.fsck.k9.activity.loader.MessageListLoader;
 import com.fsck.k9.activity.misc.ContactPictureLoader;
 import com.fsck.k9.cache.EmailProviderCache;
 import com.fsck.k9.controller.MessagingController;
@@ -331,6 +331,16 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
     }
 
 
+    /**
+     * Number of messages loaded at a time, see {@link MessageListLoader}.
+     */
+    private static final int MESSAGE_LIST_PAGE_SIZE = 100;
+
+    /**
+     * Start loading the next page when a message this close to the end of the list is shown.
+     */
+    private static final int LOAD_MORE_THRESHOLD = 20;
+
     private static final int ACTIVITY_CHOOSE_FOLDER_MOVE = 1;
     private static final int ACTIVITY_CHOOSE_FOLDER_COPY = 2;
 
@@ -416,6 +426,12 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
     private int mSelectedCount = 0;
     private Set<Long> mSelected = new HashSet<Long>();
 
+    /**
+     * The messages that were shown when "select all" was used while not all messages had been
+     * loaded, or {@code null}. The messages loaded afterwards get selected, too.
+     */
+    private Set<Long> mSelectAllPending;
+
     private FontSizes mFontSizes = K9.getFontSizes();
 
     private ActionMode mActionMode;
@@ -1913,6 +1929,10 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
 
         @Override
         public void bindView(View view, Context context, Cursor cursor) {
+            if (cursor.getPosition() >= cursor.getCount() - LOAD_MORE_THRESHOLD) {
+                loadMoreMessages();
+            }
+
             Account account = getAccountFromCursor(cursor);
 
             String fromList = cursor.getString(SENDER_LIST_COLUMN);
@@ -2231,7 +2251,9 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
             computeSelectAllVisibility();
         } else {
             mSelected.clear();
+            mSelectAllPending = null;
             mSelectedCount = 0;
+            resumePaging();
             if (mActionMode != null) {
                 mActionMode.finish();
                 mActionMode = null;
@@ -2849,6 +2871,13 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
 
         @Override
         public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+            if (mSelectAllPending != null && item.getItemId() != R.id.select_all) {
+                // Don't act on the messages loaded so far only
+                Toast.makeText(getActivity(), R.string.status_loading_more, Toast.LENGTH_SHORT)
+                        .show();
+                return true;
+            }
+
             /*
              * In the following we assume that we can't move or copy
              * mails to the same folder. Also that spam isn't available if we are
@@ -3013,9 +3042,72 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
     }
 
     public void selectAll() {
+        if (loadAllMessages()) {
+            mSelectAllPending = new HashSet<Long>();
+            for (int i = 0, end = mAdapter.getCount(); i < end; i++) {
+                Cursor cursor = (Cursor) mAdapter.getItem(i);
+                mSelectAllPending.add(cursor.getLong(mUniqueIdColumn));
+            }
+        }
         setSelectionState(true);
     }
 
+    /**
+     * Makes the loaders load all messages instead of pages.
+     *
+     * @return {@code true} if not all messages have been loaded yet.
+     */
+    private boolean loadAllMessages() {
+        boolean loading = false;
+        LoaderManager loaderManager = getLoaderManager();
+        for (int i = 0, len = mAccountUuids.length; i < len; i++) {
+            Loader<Cursor> loader = loaderManager.getLoader(i);
+            if (loader instanceof MessageListLoader) {
+                MessageListLoader messageListLoader = (MessageListLoader) loader;
+                messageListLoader.loadAll();
+                loading |= !messageListLoader.isFullyLoaded();
+            }
+        }
+        return loading;
+    }
+
+    /**
+     * Makes the loaders load pages again after {@link #loadAllMessages()}.
+     */
+    private void resumePaging() {
+        LoaderManager loaderManager = getLoaderManager();
+        for (int i = 0, len = mAccountUuids.length; i < len; i++) {
+            Loader<Cursor> loader = loaderManager.getLoader(i);
+            if (loader instanceof MessageListLoader) {
+                ((MessageListLoader) loader).resumePaging();
+            }
+        }
+    }
+
+    /**
+     * Selects the messages that weren't loaded yet when "select all" was used. The selection
+     * count and the action mode are updated by the caller.
+     */
+    private void completeSelectAll() {
+        if (mSelectAllPending == null || loadAllMessages()) {
+            return;
+        }
+
+        for (int i = 0, end = mAdapter.getCount(); i < end; i++) {
+            Cursor cursor = (Cursor) mAdapter.getItem(i);
+            long uniqueId = cursor.getLong(mUniqueIdColumn);
+            if (!mSelectAllPending.contains(uniqueId)) {
+                mSelected.add(uniqueId);
+            }
+        }
+        mSelectAllPending = null;
+
+        if (mActionMode != null) {
+            computeSelectAllVisibility();
+        }
+        mAdapter.notifyDataSetChanged();
+    }
+
     public void onMoveUp() {
         int currentPosition = mListView.getSelectedItemPosition();
         if (currentPosition == AdapterView.INVALID_POSITION || mListView.isInTouchMode()) {
@@ -3359,8 +3451,21 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
 
         String sortOrder = buildSortOrder();
 
-        return new CursorLoader(getActivity(), uri, projection, selection, selectionArgs,
-                sortOrder);
+        // Threads are short, they are loaded completely
+        int pageSize = (threadId != null) ? 0 : MESSAGE_LIST_PAGE_SIZE;
+
+        return new MessageListLoader(getActivity(), uri, projection, selection, selectionArgs,
+                sortOrder, pageSize);
+    }
+
+    private void loadMoreMessages() {
+        LoaderManager loaderManager = getLoaderManager();
+        for (int i = 0, len = mAccountUuids.length; i < len; i++) {
+            Loader<Cursor> loader = loaderManager.getLoader(i);
+            if (loader instanceof MessageListLoader) {
+                ((MessageListLoader) loader).loadMore();
+            }
+        }
     }
 
     private String getThreadId(LocalSearch search) {
@@ -3466,6 +3571,10 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
 
         mAdapter.swapCursor(cursor);
 
+        if (isLoadFinished()) {
+            completeSelectAll();
+        }
+
         resetActionMode();
         computeBatchDirection();
 
@@ -189,6 +189,69 @@ public abstract class Folder {
         return true;
     }
 
+    /**
+     * @return The UIDVALIDITY reported when the folder was opened, or {@code -1} if unknown.
+     */
+    public long getUidValidity() {
+        return -1;
+    }
+
+    /**
+     * @return The highest mod-sequence (RFC 7162 HIGHESTMODSEQ) reported when the folder was
+     *         opened, or {@code -1} if the store doesn't track changes that way.
+     */
+    public long getHighestModSeq() {
+        return -1;
+    }
+
+    /**
+     * @return The UID the next new message will get (IMAP UIDNEXT) as reported when the folder
+     *         was opened, or {@code -1} if unknown.
+     */
+    public long getUidNext() {
+        return -1;
+    }
+
+    /**
+     * Lists the messages added since the folder was last synchronized, if no message has been
+     * expunged since then. The other messages are then still those known from that
+     * synchronization.
+     *
+     * @param syncedMessageCount
+     *         The message count of the folder when it was synchronized.
+     * @param syncedUidNext
+     *         {@link #getUidNext()} when it was synchronized.
+     *
+     * @return The added messages like {@link #getMessages(int, int, Date, MessageRetrievalListener)}
+     *         lists them, or {@code null} if messages may have been expunged. All messages have to
+     *         be listed then.
+     */
+    public List<? extends Message> getMessagesAddedSince(int syncedMessageCount, long syncedUidNext,
+            Date earliestDate, MessageRetrievalListener listener) throws MessagingException {
+        return null;
+    }
+
+    /**
+     * @return {@code true} if every change to the folder, including expunges, increases
+     *         {@link #getHighestModSeq()}. An unchanged mod-sequence then means there is nothing
+     *         to synchronize.
+     */
+    public boolean supportsQuickResync() {
+        return false;
+    }
+
+    /**
+     * Fetches the flags of those messages that changed after the mod-sequence {@code modSeq}.
+     * Only messages whose flags were fetched are reported to {@code listener}. Stores that can't
+     * restrict the result to changed messages fetch the flags of all messages.
+     */
+    public void fetchChangedFlags(List<? extends Message> messages, long modSeq,
+            MessageRetrievalListener listener) throws MessagingException {
+        FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.FLAGS);
+        fetch(messages, fp, listener);
+    }
+
     @Override
     public String toString() {
         return getName();
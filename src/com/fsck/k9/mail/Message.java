@@ -13,8 +13,7 @@ import android.util.Log;
 
 import com.fsck.k9.K9;
 import com.fsck.k9.activity.MessageReference;
-import com.fsck.k9.mail.filter.CountingOutputStream;
-import com.fsck.k9.mail.filter.EOLConvertingOutputStream;
+import com.fsck.k9.mail.filter.SizeCountingOutputStream;
 import com.fsck.k9.mail.store.UnavailableStorageException;
 
 
@@ -169,43 +168,15 @@ public abstract class Message implements Part, CompositeBody {
      * Quoted text, "On $date" and so on will be stripped out.
      * All newlines and whitespace will be compressed.
      *
+     * Only the first 8k of the text are looked at and the result is
+     * limited to 512 characters. See PreviewExtractor.
      */
     public static String calculateContentPreview(String text) {
         if (text == null) {
             return null;
         }
 
-        // Only look at the first 8k of a message when calculating
-        // the preview.  This should avoid unnecessary
-        // memory usage on large messages
-        if (text.length() > 8192) {
-            text = text.substring(0, 8192);
-        }
-
-        // Remove (correctly delimited by '-- \n') signatures
-        text = text.replaceAll("(?ms)^-- [\\r\\n]+.*", "");
-        // try to remove lines of dashes in the preview
-        text = text.replaceAll("(?m)^----.*?$", "");
-        // remove quoted text from the preview
-        text = text.replaceAll("(?m)^[#>].*$", "");
-        // Remove a common quote header from the preview
-        text = text.replaceAll("(?m)^On .*wrote.?$", "");
-        // Remove a more generic quote header from the preview
-        text = text.replaceAll("(?m)^.*\\w+:$", "");
-        // Remove horizontal rules.
-        text = text.replaceAll("\\s*([-=_]{30,}+)\\s*", " ");
-
-        // URLs in the preview should just be shown as "..." - They're not
-        // clickable and they usually overwhelm the preview
-        text = text.replaceAll("https?://\\S+", "...");
-        // Don't show newlines in the preview
-        text = text.replaceAll("(\\r|\\n)+", " ");
-        // Collapse whitespace in the preview
-        text = text.replaceAll("\\s+", " ");
-        // Remove any whitespace at the beginning and end of the string.
-        text = text.trim();
-
-        return (text.length() <= 512) ? text : text.substring(0, 512);
+        return PreviewExtractor.extract(text);
     }
 
     public void delete(String trashFolderName) throws MessagingException {}
@@ -266,13 +237,19 @@ public abstract class Message implements Part, CompositeBody {
         return mReference;
     }
 
+    /**
+     * Calculates the number of bytes {@link #writeTo(java.io.OutputStream)} writes, with line
+     * breaks converted to CRLF.
+     *
+     * <p>
+     * Bodies that know their encoded size (e.g. base64 encoded attachments stored in files) are
+     * not encoded, only the remaining parts of the message are serialized.
+     * </p>
+     */
     public long calculateSize() {
         try {
-
-            CountingOutputStream out = new CountingOutputStream();
-            EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(out);
-            writeTo(eolOut);
-            eolOut.flush();
+            SizeCountingOutputStream out = new SizeCountingOutputStream();
+            writeTo(out);
             return out.getCount();
         } catch (IOException e) {
             Log.e(K9.LOG_TAG, "Failed to calculate a message size", e);
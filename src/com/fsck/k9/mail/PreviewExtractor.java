@@ -0,0 +1,242 @@
+package com.fsck.k9.mail;
+
+/**
+ * Creates the preview text of a message from its plain text body.
+ *
+ * <p>
+ * The text is processed line by line in a single pass. Lines that are quotes, quote headers or
+ * separators are skipped, everything after a signature separator ({@code "-- "}) is ignored,
+ * horizontal rules are dropped, URLs are replaced by {@code "..."} and whitespace is folded into
+ * single spaces. Processing stops as soon as {@link #MAX_PREVIEW_LENGTH} characters have been
+ * produced.
+ * </p>
+ *
+ * @see Message#calculateContentPreview(String)
+ */
+class PreviewExtractor {
+    /**
+     * Only this many characters of the text are looked at.
+     */
+    static final int MAX_TEXT_LENGTH = 8192;
+
+    static final int MAX_PREVIEW_LENGTH = 512;
+
+    /**
+     * Minimum number of '-', '=' or '_' characters that make up a horizontal rule.
+     */
+    private static final int MIN_HORIZONTAL_RULE_LENGTH = 30;
+
+    private static final String URL_REPLACEMENT = "...";
+
+    private final String mText;
+    private final int mLength;
+    private final StringBuilder mPreview;
+    private boolean mPendingSpace;
+
+    static String extract(String text) {
+        return new PreviewExtractor(text).extract();
+    }
+
+    private PreviewExtractor(String text) {
+        mText = text;
+        mLength = Math.min(text.length(), MAX_TEXT_LENGTH);
+        mPreview = new StringBuilder(Math.min(mLength, MAX_PREVIEW_LENGTH));
+    }
+
+    private String extract() {
+        int lineStart = 0;
+        while (lineStart < mLength && !isFull()) {
+            int lineEnd = findLineEnd(lineStart);
+            boolean hasLineBreak = lineEnd < mLength;
+
+            // Everything after a signature separator is ignored
+            if (hasLineBreak && isSignatureSeparator(lineStart, lineEnd)) {
+                break;
+            }
+
+            if (!isSkippedLine(lineStart, lineEnd)) {
+                appendLine(lineStart, lineEnd);
+            }
+
+            if (hasLineBreak) {
+                mPendingSpace = true;
+                lineStart = skipLineBreak(lineEnd);
+            } else {
+                lineStart = lineEnd;
+            }
+        }
+
+        // Like String.trim()
+        int end = mPreview.length();
+        while (end > 0 && mPreview.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return mPreview.substring(0, end);
+    }
+
+    private int findLineEnd(int start) {
+        for (int i = start; i < mLength; i++) {
+            char c = mText.charAt(i);
+            if (c == '\r' || c == '\n') {
+                return i;
+            }
+        }
+        return mLength;
+    }
+
+    private int skipLineBreak(int index) {
+        if (mText.charAt(index) == '\r' && index + 1 < mLength && mText.charAt(index + 1) == '\n') {
+            return index + 2;
+        }
+        return index + 1;
+    }
+
+    private boolean isSignatureSeparator(int start, int end) {
+        return end - start == 3 && mText.startsWith("-- ", start);
+    }
+
+    /**
+     * Checks for lines that don't contribute to the preview: separator lines starting with
+     * "----", quoted lines, "On ... wrote" and other quote headers ending in a colon.
+     */
+    private boolean isSkippedLine(int start, int end) {
+        int length = end - start;
+        if (length == 0) {
+            return false;
+        }
+
+        char first = mText.charAt(start);
+        if (first == '#' || first == '>') {
+            return true;
+        }
+        if (mText.startsWith("----", start) && length >= 4) {
+            return true;
+        }
+        if (length >= 8 && mText.startsWith("On ", start) &&
+                (endsWith(start + 3, end, "wrote") || endsWith(start + 3, end - 1, "wrote"))) {
+            return true;
+        }
+        return length >= 2 && mText.charAt(end - 1) == ':' && isWordChar(mText.charAt(end - 2));
+    }
+
+    private boolean endsWith(int start, int end, String suffix) {
+        int suffixStart = end - suffix.length();
+        return suffixStart >= start && mText.startsWith(suffix, suffixStart);
+    }
+
+    private void appendLine(int start, int end) {
+        int i = start;
+        while (i < end && !isFull()) {
+            char c = mText.charAt(i);
+            if (isWhitespace(c)) {
+                mPendingSpace = true;
+                i++;
+            } else if (isHorizontalRuleChar(c)) {
+                int runEnd = findHorizontalRuleRunEnd(i, end);
+                if (runEnd - i >= MIN_HORIZONTAL_RULE_LENGTH) {
+                    mPendingSpace = true;
+                } else {
+                    for (int j = i; j < runEnd; j++) {
+                        append(mText.charAt(j));
+                    }
+                }
+                i = runEnd;
+            } else {
+                int urlEnd = findUrlEnd(i, end);
+                if (urlEnd > i) {
+                    for (int j = 0; j < URL_REPLACEMENT.length(); j++) {
+                        append(URL_REPLACEMENT.charAt(j));
+                    }
+                    i = urlEnd;
+                } else {
+                    append(c);
+                    i++;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The end of the URL starting at {@code start}, or {@code start} if there is none.
+     */
+    private int findUrlEnd(int start, int end) {
+        int i;
+        if (mText.startsWith("http://", start)) {
+            i = start + 7;
+        } else if (mText.startsWith("https://", start)) {
+            i = start + 8;
+        } else {
+            return start;
+        }
+
+        int urlStart = i;
+        while (i < end) {
+            char c = mText.charAt(i);
+            if (isWhitespace(c)) {
+                break;
+            } else if (isHorizontalRuleChar(c)) {
+                // Horizontal rules are removed before URLs, so they end a URL
+                int runEnd = findHorizontalRuleRunEnd(i, end);
+                if (runEnd - i >= MIN_HORIZONTAL_RULE_LENGTH) {
+                    break;
+                }
+                i = runEnd;
+            } else {
+                i++;
+            }
+        }
+
+        return (i > urlStart && i <= end) ? i : start;
+    }
+
+    private int findHorizontalRuleRunEnd(int start, int end) {
+        int i = start;
+        while (i < end && isHorizontalRuleChar(mText.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private void append(char c) {
+        if (mPreview.length() == 0) {
+            // Like String.trim()
+            if (c > ' ') {
+                mPreview.append(c);
+                mPendingSpace = false;
+            }
+            return;
+        }
+
+        if (mPendingSpace) {
+            mPreview.append(' ');
+            mPendingSpace = false;
+            if (isFull()) {
+                return;
+            }
+        }
+        mPreview.append(c);
+    }
+
+    private boolean isFull() {
+        return mPreview.length() >= MAX_PREVIEW_LENGTH;
+    }
+
+    /**
+     * Same as {@code \s} in a regular expression.
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /**
+     * Same as {@code \w} in a regular expression.
+     */
+    private static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+                c == '_';
+    }
+
+    private static boolean isHorizontalRuleChar(char c) {
+        return c == '-' || c == '=' || c == '_';
+    }
+}
@@ -70,5 +70,17 @@ public abstract class Transport {
 
     public abstract void sendMessage(Message message) throws MessagingException;
 
+    /**
+     * Asks the transport to keep its connection open between calls to
+     * {@link #sendMessage(Message)} until {@link #close()} is called.
+     *
+     * <p>
+     * The default implementation ignores the request.
+     * </p>
+     */
+    public void setReuseConnection(boolean reuseConnection) {
+        // Not supported by default
+    }
+
     public abstract void close();
 }
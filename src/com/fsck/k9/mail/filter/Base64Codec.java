@@ -0,0 +1,339 @@
+package com.fsck.k9.mail.filter;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Base64 encoder and decoder for MIME bodies (RFC 2045) that works on blocks of bytes.
+ *
+ * <p>
+ * {@link Base64} and {@link Base64OutputStream} process the input one byte at a time and buffer
+ * the output in an intermediate array. The {@link Encoder} and {@link Decoder} of this class
+ * convert whole groups of 3 bytes or 4 characters with table lookups and write straight into the
+ * caller's output array. They keep the state needed to continue with the next block, so data can
+ * be converted in chunks of any size.
+ * </p>
+ *
+ * @see Base64EncoderOutputStream
+ * @see Base64DecoderInputStream
+ */
+public class Base64Codec {
+    /**
+     * Number of characters per line of encoded output, not counting the line break.
+     */
+    public static final int LINE_LENGTH = 76;
+
+    private static final int GROUPS_PER_LINE = LINE_LENGTH / 4;
+
+    private static final byte[] ENCODE_TABLE = {
+        'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M',
+        'N', 'O', 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z',
+        'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm',
+        'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z',
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '+', '/'
+    };
+
+    private static final byte PAD = '=';
+
+    /**
+     * Maps characters to their 6-bit value. {@link #INVALID} for characters that aren't part of
+     * the Base64 alphabet, {@link #PADDING} for the pad character.
+     */
+    private static final byte[] DECODE_TABLE = new byte[256];
+
+    private static final byte INVALID = -1;
+    private static final byte PADDING = -2;
+
+    /**
+     * Size of the chunks used to convert {@link ByteBuffer}s that aren't backed by an array.
+     */
+    private static final int DIRECT_BUFFER_CHUNK_SIZE = 3 * 1024;
+
+    static {
+        for (int i = 0; i < DECODE_TABLE.length; i++) {
+            DECODE_TABLE[i] = INVALID;
+        }
+        for (int i = 0; i < ENCODE_TABLE.length; i++) {
+            DECODE_TABLE[ENCODE_TABLE[i]] = (byte) i;
+        }
+        DECODE_TABLE[PAD] = PADDING;
+    }
+
+    /**
+     * Encodes data as Base64 with lines of {@link #LINE_LENGTH} characters separated by CRLF.
+     *
+     * <p>
+     * The output is the same as the one of {@link Base64OutputStream} with the default line
+     * length and separator: every line ends with CRLF, including the last one.
+     * </p>
+     */
+    public static class Encoder {
+        private final byte[] mLeftover = new byte[3];
+        private int mLeftoverCount;
+        private int mGroupsOnLine;
+
+        /**
+         * Returns the maximum number of bytes {@link #encode(byte[], int, int, byte[], int)}
+         * writes for {@code length} bytes of input.
+         */
+        public static int getMaxEncodedLength(int length) {
+            int groups = (length + 2) / 3 + 1;
+            return groups * 4 + (groups / GROUPS_PER_LINE + 1) * 2;
+        }
+
+        /**
+         * Returns the maximum number of bytes {@link #finish(byte[], int)} writes.
+         */
+        public static int getMaxFinishLength() {
+            return 4 + 2 + 2;
+        }
+
+        /**
+         * Encodes {@code length} bytes of {@code in}. Up to two bytes that don't make up a
+         * complete group are kept until the next call.
+         *
+         * @return The number of bytes written to {@code out}.
+         */
+        public int encode(byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+            int i = inOffset;
+            int end = inOffset + length;
+            int o = outOffset;
+
+            if (mLeftoverCount > 0) {
+                while (mLeftoverCount < 3 && i < end) {
+                    mLeftover[mLeftoverCount++] = in[i++];
+                }
+                if (mLeftoverCount < 3) {
+                    return 0;
+                }
+                o = encodeGroups(mLeftover, 0, 1, out, o);
+                mLeftoverCount = 0;
+            }
+
+            int groups = (end - i) / 3;
+            o = encodeGroups(in, i, groups, out, o);
+            i += groups * 3;
+
+            while (i < end) {
+                mLeftover[mLeftoverCount++] = in[i++];
+            }
+
+            return o - outOffset;
+        }
+
+        /**
+         * Encodes the remaining bytes with padding and terminates the last line.
+         *
+         * @return The number of bytes written to {@code out}.
+         */
+        public int finish(byte[] out, int outOffset) {
+            int o = outOffset;
+            if (mLeftoverCount == 1) {
+                int bits = (mLeftover[0] & 0xff) << 16;
+                out[o++] = ENCODE_TABLE[bits >>> 18];
+                out[o++] = ENCODE_TABLE[(bits >>> 12) & 0x3f];
+                out[o++] = PAD;
+                out[o++] = PAD;
+            } else if (mLeftoverCount == 2) {
+                int bits = (mLeftover[0] & 0xff) << 16 | (mLeftover[1] & 0xff) << 8;
+                out[o++] = ENCODE_TABLE[bits >>> 18];
+                out[o++] = ENCODE_TABLE[(bits >>> 12) & 0x3f];
+                out[o++] = ENCODE_TABLE[(bits >>> 6) & 0x3f];
+                out[o++] = PAD;
+            }
+            out[o++] = '\r';
+            out[o++] = '\n';
+
+            mLeftoverCount = 0;
+            mGroupsOnLine = 0;
+            return o - outOffset;
+        }
+
+        /**
+         * Encodes the remaining bytes of {@code in} to {@code out}.
+         *
+         * @throws BufferOverflowException
+         *         If {@code out} has less than {@link #getMaxEncodedLength(int)} bytes remaining.
+         */
+        public void encode(ByteBuffer in, ByteBuffer out) {
+            if (out.remaining() < getMaxEncodedLength(in.remaining())) {
+                throw new BufferOverflowException();
+            }
+
+            if (in.hasArray() && out.hasArray()) {
+                int length = in.remaining();
+                int count = encode(in.array(), in.arrayOffset() + in.position(), length,
+                        out.array(), out.arrayOffset() + out.position());
+                in.position(in.position() + length);
+                out.position(out.position() + count);
+                return;
+            }
+
+            byte[] inChunk = new byte[Math.min(in.remaining(), DIRECT_BUFFER_CHUNK_SIZE)];
+            byte[] outChunk = new byte[getMaxEncodedLength(inChunk.length)];
+            while (in.hasRemaining()) {
+                int length = Math.min(in.remaining(), inChunk.length);
+                in.get(inChunk, 0, length);
+                out.put(outChunk, 0, encode(inChunk, 0, length, outChunk, 0));
+            }
+        }
+
+        private int encodeGroups(byte[] in, int inOffset, int groups, byte[] out, int outOffset) {
+            int i = inOffset;
+            int o = outOffset;
+            while (groups > 0) {
+                int lineGroups = Math.min(groups, GROUPS_PER_LINE - mGroupsOnLine);
+                int lineEnd = i + lineGroups * 3;
+                while (i < lineEnd) {
+                    int bits = (in[i] & 0xff) << 16 | (in[i + 1] & 0xff) << 8 | (in[i + 2] & 0xff);
+                    out[o] = ENCODE_TABLE[bits >>> 18];
+                    out[o + 1] = ENCODE_TABLE[(bits >>> 12) & 0x3f];
+                    out[o + 2] = ENCODE_TABLE[(bits >>> 6) & 0x3f];
+                    out[o + 3] = ENCODE_TABLE[bits & 0x3f];
+                    i += 3;
+                    o += 4;
+                }
+
+                groups -= lineGroups;
+                mGroupsOnLine += lineGroups;
+                if (mGroupsOnLine == GROUPS_PER_LINE) {
+                    out[o++] = '\r';
+                    out[o++] = '\n';
+                    mGroupsOnLine = 0;
+                }
+            }
+            return o;
+        }
+    }
+
+    /**
+     * Decodes Base64 data.
+     *
+     * <p>
+     * Like mime4j's lenient {@code Base64InputStream}, characters outside the Base64 alphabet are
+     * ignored, decoding stops at the first pad character and incomplete groups at the end of the
+     * data are dropped.
+     * </p>
+     */
+    public static class Decoder {
+        private int mBits;
+        private int mSextets;
+        private boolean mFinished;
+
+        /**
+         * Returns the maximum number of bytes {@link #decode(byte[], int, int, byte[], int)}
+         * writes for {@code length} bytes of input.
+         */
+        public static int getMaxDecodedLength(int length) {
+            return (length / 4 + 1) * 3;
+        }
+
+        /**
+         * Returns {@code true} once a pad character was found. All input after that is ignored.
+         */
+        public boolean isFinished() {
+            return mFinished;
+        }
+
+        /**
+         * Decodes {@code length} bytes of {@code in}. Up to three characters that don't make up
+         * a complete group are kept until the next call.
+         *
+         * @return The number of bytes written to {@code out}.
+         */
+        public int decode(byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+            if (mFinished) {
+                return 0;
+            }
+
+            int i = inOffset;
+            int end = inOffset + length;
+            int o = outOffset;
+            int bits = mBits;
+            int sextets = mSextets;
+
+            while (i < end) {
+                // Fast path for complete groups without line breaks or other characters
+                if (sextets == 0) {
+                    int groupEnd = end - 3;
+                    while (i < groupEnd) {
+                        int a = DECODE_TABLE[in[i] & 0xff];
+                        int b = DECODE_TABLE[in[i + 1] & 0xff];
+                        int c = DECODE_TABLE[in[i + 2] & 0xff];
+                        int d = DECODE_TABLE[in[i + 3] & 0xff];
+                        if ((a | b | c | d) < 0) {
+                            break;
+                        }
+
+                        int group = a << 18 | b << 12 | c << 6 | d;
+                        out[o] = (byte) (group >>> 16);
+                        out[o + 1] = (byte) (group >>> 8);
+                        out[o + 2] = (byte) group;
+                        i += 4;
+                        o += 3;
+                    }
+                    if (i == end) {
+                        break;
+                    }
+                }
+
+                int value = DECODE_TABLE[in[i++] & 0xff];
+                if (value >= 0) {
+                    bits = bits << 6 | value;
+                    if (++sextets == 4) {
+                        out[o] = (byte) (bits >>> 16);
+                        out[o + 1] = (byte) (bits >>> 8);
+                        out[o + 2] = (byte) bits;
+                        o += 3;
+                        bits = 0;
+                        sextets = 0;
+                    }
+                } else if (value == PADDING) {
+                    if (sextets == 2) {
+                        out[o++] = (byte) (bits >>> 4);
+                    } else if (sextets == 3) {
+                        out[o++] = (byte) (bits >>> 10);
+                        out[o++] = (byte) (bits >>> 2);
+                    }
+                    mFinished = true;
+                    bits = 0;
+                    sextets = 0;
+                    break;
+                }
+            }
+
+            mBits = bits;
+            mSextets = sextets;
+            return o - outOffset;
+        }
+
+        /**
+         * Decodes the remaining bytes of {@code in} to {@code out}.
+         *
+         * @throws BufferOverflowException
+         *         If {@code out} has less than {@link #getMaxDecodedLength(int)} bytes remaining.
+         */
+        public void decode(ByteBuffer in, ByteBuffer out) {
+            if (out.remaining() < getMaxDecodedLength(in.remaining())) {
+                throw new BufferOverflowException();
+            }
+
+            if (in.hasArray() && out.hasArray()) {
+                int length = in.remaining();
+                int count = decode(in.array(), in.arrayOffset() + in.position(), length,
+                        out.array(), out.arrayOffset() + out.position());
+                in.position(in.position() + length);
+                out.position(out.position() + count);
+                return;
+            }
+
+            byte[] inChunk = new byte[Math.min(in.remaining(), DIRECT_BUFFER_CHUNK_SIZE)];
+            byte[] outChunk = new byte[getMaxDecodedLength(inChunk.length)];
+            while (in.hasRemaining()) {
+                int length = Math.min(in.remaining(), inChunk.length);
+                in.get(inChunk, 0, length);
+                out.put(outChunk, 0, decode(inChunk, 0, length, outChunk, 0));
+            }
+        }
+    }
+}
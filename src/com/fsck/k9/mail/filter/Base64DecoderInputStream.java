@@ -0,0 +1,119 @@
+package com.fsck.k9.mail.filter;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes Base64 data read from the wrapped stream.
+ *
+ * <p>
+ * The data is read and decoded in blocks using {@link Base64Codec.Decoder}. Decoding is lenient
+ * like mime4j's {@code Base64InputStream} in non-strict mode: characters outside the Base64
+ * alphabet are skipped, and the stream ends at the first pad character.
+ * </p>
+ * <p>
+ * {@link #close()} closes the wrapped stream.
+ * </p>
+ */
+public class Base64DecoderInputStream extends FilterInputStream {
+    private static final int INPUT_BUFFER_SIZE = 8192;
+
+    private final Base64Codec.Decoder mDecoder = new Base64Codec.Decoder();
+    private final byte[] mInput = new byte[INPUT_BUFFER_SIZE];
+    private final byte[] mOutput = new byte[Base64Codec.Decoder.getMaxDecodedLength(INPUT_BUFFER_SIZE)];
+    private int mOutputPosition;
+    private int mOutputCount;
+    private boolean mEndOfInput;
+
+    public Base64DecoderInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fillOutput()) {
+            return -1;
+        }
+        return mOutput[mOutputPosition++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (length == 0) {
+            return 0;
+        }
+
+        int total = 0;
+        while (total < length && fillOutput()) {
+            int count = Math.min(length - total, mOutputCount - mOutputPosition);
+            System.arraycopy(mOutput, mOutputPosition, b, offset + total, count);
+            mOutputPosition += count;
+            total += count;
+
+            // Don't block for more input if some data has been returned already
+            if (in.available() <= 0 && mOutputPosition == mOutputCount) {
+                break;
+            }
+        }
+
+        return (total == 0) ? -1 : total;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && fillOutput()) {
+            int count = (int) Math.min(n - skipped, mOutputCount - mOutputPosition);
+            mOutputPosition += count;
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return mOutputCount - mOutputPosition;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        // not supported
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * Makes sure there's decoded data in the output buffer.
+     *
+     * @return {@code false} if the end of the data was reached.
+     */
+    private boolean fillOutput() throws IOException {
+        while (mOutputPosition == mOutputCount) {
+            if (mEndOfInput || mDecoder.isFinished()) {
+                return false;
+            }
+
+            int count = in.read(mInput, 0, mInput.length);
+            if (count == -1) {
+                mEndOfInput = true;
+                return false;
+            }
+
+            mOutputPosition = 0;
+            mOutputCount = mDecoder.decode(mInput, 0, count, mOutput, 0);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,88 @@
+package com.fsck.k9.mail.filter;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes all data written to it as Base64 with lines of 76 characters separated by CRLF.
+ *
+ * <p>
+ * This writes the same output as {@link Base64OutputStream} with the default settings, but uses
+ * {@link Base64Codec.Encoder} to encode whole blocks of data at a time. Single bytes are collected
+ * in a buffer, so they don't cause a write to the wrapped stream each.
+ * </p>
+ * <p>
+ * {@link #close()} writes the remaining data, flushes the wrapped stream, but doesn't close it.
+ * </p>
+ */
+public class Base64EncoderOutputStream extends FilterOutputStream {
+    private static final int INPUT_BUFFER_SIZE = 3 * 1024 * 4;
+
+    private final Base64Codec.Encoder mEncoder = new Base64Codec.Encoder();
+    private final byte[] mInput = new byte[INPUT_BUFFER_SIZE];
+    private final byte[] mOutput = new byte[Base64Codec.Encoder.getMaxEncodedLength(INPUT_BUFFER_SIZE)];
+    private int mInputCount;
+    private boolean mClosed;
+
+    public Base64EncoderOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkNotClosed();
+        if (mInputCount == mInput.length) {
+            encodeInput();
+        }
+        mInput[mInputCount++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int offset, int length) throws IOException {
+        checkNotClosed();
+        if (offset < 0 || length < 0 || offset + length > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        encodeInput();
+        while (length > 0) {
+            int count = Math.min(length, INPUT_BUFFER_SIZE);
+            out.write(mOutput, 0, mEncoder.encode(b, offset, count, mOutput, 0));
+            offset += count;
+            length -= count;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        checkNotClosed();
+        encodeInput();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+
+        encodeInput();
+        out.write(mOutput, 0, mEncoder.finish(mOutput, 0));
+        out.flush();
+        mClosed = true;
+    }
+
+    private void encodeInput() throws IOException {
+        if (mInputCount > 0) {
+            out.write(mOutput, 0, mEncoder.encode(mInput, 0, mInputCount, mOutput, 0));
+            mInputCount = 0;
+        }
+    }
+
+    private void checkNotClosed() throws IOException {
+        if (mClosed) {
+            throw new IOException("Stream has been closed");
+        }
+    }
+}
@@ -91,6 +91,22 @@ public class Base64OutputStream extends FilterOutputStream {
         this.base64 = new Base64(lineLength, lineSeparator);
     }
 
+    /**
+     * Returns the number of bytes an encoding stream with the default line length and line
+     * separator writes for <code>length</code> bytes of input, including the line separator that
+     * is written by {@link #close()}.
+     *
+     * @param length number of bytes to encode
+     * @return number of bytes of encoded output
+     */
+    public static long getEncodedLength(long length) {
+        long groups = length / 3;
+        long groupsPerLine = Base64.CHUNK_SIZE / 4;
+        long separators = groups / groupsPerLine + 1;
+        long padding = (length % 3 != 0) ? 4 : 0;
+        return groups * 4 + padding + separators * Base64.CHUNK_SEPARATOR.length;
+    }
+
     /**
      * Writes the specified <code>byte</code> to this output stream.
      */
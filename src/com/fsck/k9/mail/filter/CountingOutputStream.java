@@ -17,6 +17,13 @@ public class CountingOutputStream extends OutputStream {
         return mCount;
     }
 
+    /**
+     * Counts {@code count} bytes as if they had been written.
+     */
+    public void add(long count) {
+        mCount += count;
+    }
+
     @Override
     public void write(int oneByte) throws IOException {
         mCount++;
@@ -0,0 +1,50 @@
+package com.fsck.k9.mail.filter;
+
+import java.io.IOException;
+
+/**
+ * Counts the bytes of a message as they would be sent over the network, i.e. with all line
+ * breaks converted to CRLF.
+ *
+ * <p>
+ * Bodies that know the size of their encoded contents can call {@link #skip(long)} instead of
+ * writing them. This way {@link com.fsck.k9.mail.Message#calculateSize()} doesn't have to
+ * encode large attachments just to count the result.
+ * </p>
+ */
+public class SizeCountingOutputStream extends EOLConvertingOutputStream {
+    private final CountingOutputStream mCounter;
+
+    public SizeCountingOutputStream() {
+        this(new CountingOutputStream());
+    }
+
+    private SizeCountingOutputStream(CountingOutputStream counter) {
+        super(counter);
+        mCounter = counter;
+    }
+
+    /**
+     * Counts {@code count} bytes without writing them.
+     *
+     * <p>
+     * The skipped data has to end with a CRLF line break and must not contain bare CR or LF
+     * characters, like the output of {@link Base64OutputStream}.
+     * </p>
+     */
+    public void skip(long count) throws IOException {
+        if (count < 2) {
+            throw new IllegalArgumentException("Skipped data has to end with CRLF");
+        }
+        mCounter.add(count - 2);
+
+        // Write the final line break so the line ending state is updated
+        write('\r');
+        write('\n');
+    }
+
+    public long getCount() throws IOException {
+        flush();
+        return mCounter.getCount();
+    }
+}
@@ -2,7 +2,7 @@ package com.fsck.k9.mail.internet;
 
 import com.fsck.k9.mail.Body;
 import com.fsck.k9.mail.MessagingException;
-import com.fsck.k9.mail.filter.Base64OutputStream;
+import com.fsck.k9.mail.filter.Base64EncoderOutputStream;
 import org.apache.commons.io.IOUtils;
 import org.apache.james.mime4j.codec.QuotedPrintableOutputStream;
 import org.apache.james.mime4j.util.MimeUtil;
@@ -48,7 +48,7 @@ public class BinaryTempFileBody implements RawDataBody {
                 if (MimeUtil.ENC_QUOTED_PRINTABLE.equals(encoding)) {
                     out = new QuotedPrintableOutputStream(out, false);
                 } else if (MimeUtil.ENC_BASE64.equals(encoding)) {
-                    out = new Base64OutputStream(out);
+                    out = new Base64EncoderOutputStream(out);
                 } else {
                     throw new RuntimeException("Target encoding not supported: " + encoding);
                 }
@@ -9,17 +9,19 @@ import com.fsck.k9.R;
 import com.fsck.k9.helper.HtmlConverter;
 import com.fsck.k9.mail.*;
 import com.fsck.k9.mail.Message.RecipientType;
-import com.fsck.k9.mail.internet.BinaryTempFileBody.BinaryTempFileBodyInputStream;
+import com.fsck.k9.mail.filter.Base64DecoderInputStream;
 
 import com.fsck.k9.view.MessageHeader;
 import org.apache.commons.io.IOUtils;
-import org.apache.james.mime4j.codec.Base64InputStream;
 import org.apache.james.mime4j.codec.QuotedPrintableInputStream;
 import org.apache.james.mime4j.util.MimeUtil;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
@@ -40,6 +42,12 @@ public class MimeUtility {
     private static final String TEXT_DIVIDER =
             "------------------------------------------------------------------------";
 
+    private static final Pattern HTML_META_CHARSET_PATTERN = Pattern.compile(
+            "<meta http-equiv=\"?Content-Type\"? content=\"text/html; charset=(.+?)\">",
+            Pattern.CASE_INSENSITIVE);
+
+    private static final int TEXT_BUFFER_SIZE = 8192;
+
     /*
      * http://www.w3schools.com/media/media_mimeref.asp
      * +
@@ -1011,77 +1019,90 @@ public class MimeUtility {
       * or an error during conversion.
       */
     public static String getTextFromPart(Part part) {
+        if ((part != null) && (part.getBody() instanceof TextBody)) {
+            return ((TextBody) part.getBody()).getText();
+        }
+
+        StringBuilder out = new StringBuilder();
+        if (!appendTextFromPart(part, out)) {
+            return null;
+        }
+
+        String text = out.toString();
+        try {
+            // Replace the body with a TextBody that already contains the decoded text
+            MimeMessageHelper.setBody(part, new TextBody(text));
+        } catch (MessagingException e) {
+            Log.e(K9.LOG_TAG, "Unable to replace the body of the part", e);
+        }
+        return text;
+    }
+
+    /**
+     * Decodes the Part's body like {@link #getTextFromPart(Part)} and appends the text to
+     * {@code out} while it is read instead of reading it into a separate buffer first.
+     *
+     * <p>
+     * Unlike {@link #getTextFromPart(Part)} this doesn't keep a copy of the text in the part. A
+     * {@link BinaryTempFileBody} is disposed of afterwards, so the part can only be read once.
+     * </p>
+     *
+     * @param part The part containing a body
+     * @param out The builder to append the text to. Nothing is appended if there was an error.
+     * @return {@code true} if the text was appended. {@code false} if there was no text or an
+     * error during conversion.
+     */
+    private static boolean appendTextFromPart(Part part, StringBuilder out) {
+        int start = out.length();
         try {
             if ((part != null) && (part.getBody() != null)) {
                 final Body body = part.getBody();
                 if (body instanceof TextBody) {
-                    return ((TextBody)body).getText();
+                    out.append(((TextBody)body).getText());
+                    return true;
                 }
 
                 final String mimeType = part.getMimeType();
                 if ((mimeType != null) && MimeUtility.mimeTypeMatches(mimeType, "text/*")) {
                     /*
                      * We've got a text part, so let's see if it needs to be processed further.
+                     * Because the stream is wrapped we'll remove any transfer encoding at this
+                     * point.
                      */
                     String charset = getHeaderParameter(part.getContentType(), "charset");
-                    /*
-                     * determine the charset from HTML message.
-                     */
-                    if (mimeType.equalsIgnoreCase("text/html") && charset == null) {
-                        InputStream in = MimeUtility.decodeBody(part.getBody());
-                        try {
+                    InputStream in = new BufferedInputStream(MimeUtility.decodeBody(body));
+                    try {
+                        /*
+                         * determine the charset from HTML message.
+                         */
+                        if (mimeType.equalsIgnoreCase("text/html") && charset == null) {
                             byte[] buf = new byte[256];
-                            in.read(buf, 0, buf.length);
-                            String str = new String(buf, "US-ASCII");
-
-                            if (str.isEmpty()) {
-                                return "";
-                            }
-                            Pattern p = Pattern.compile("<meta http-equiv=\"?Content-Type\"? content=\"text/html; charset=(.+?)\">", Pattern.CASE_INSENSITIVE);
-                            Matcher m = p.matcher(str);
-                            if (m.find()) {
-                                charset = m.group(1);
-                            }
-                        } finally {
-                            try {
-                                if (in instanceof BinaryTempFileBodyInputStream) {
-                                    /*
-                                     * If this is a BinaryTempFileBodyInputStream, calling close()
-                                     * will delete the file. But we can't let that happen because
-                                     * the file needs to be opened again by the code a few lines
-                                     * down.
-                                     */
-                                    ((BinaryTempFileBodyInputStream) in).closeWithoutDeleting();
-                                } else {
-                                    in.close();
+                            in.mark(buf.length);
+                            int count = in.read(buf, 0, buf.length);
+                            in.reset();
+
+                            if (count > 0) {
+                                String str = new String(buf, 0, count, "US-ASCII");
+                                Matcher m = HTML_META_CHARSET_PATTERN.matcher(str);
+                                if (m.find()) {
+                                    charset = m.group(1);
                                 }
-                            } catch (Exception e) { /* ignore */ }
+                            }
                         }
-                    }
-                    charset = fixupCharset(charset, getMessageFromPart(part));
-
-                    /*
-                     * Now we read the part into a buffer for further processing. Because
-                     * the stream is now wrapped we'll remove any transfer encoding at this point.
-                     */
-                    InputStream in = MimeUtility.decodeBody(part.getBody());
-                    try {
-                        String text = readToString(in, charset);
+                        charset = fixupCharset(charset, getMessageFromPart(part));
 
-                        // Replace the body with a TextBody that already contains the decoded text
-                        MimeMessageHelper.setBody(part, new TextBody(text));
-
-                        return text;
+                        appendText(in, charset, out);
                     } finally {
                         try {
                             /*
-                             * This time we don't care if it's a BinaryTempFileBodyInputStream. We
-                             * replaced the body with a TextBody instance and hence don't need the
-                             * file anymore.
+                             * If the body is a BinaryTempFileBody this will delete the file. The
+                             * text has been appended to 'out' and the file isn't needed anymore.
                              */
                             in.close();
                         } catch (IOException e) { /* Ignore */ }
                     }
+
+                    return true;
                 }
             }
 
@@ -1090,15 +1111,17 @@ public class MimeUtility {
              * If we are not able to process the body there's nothing we can do about it. Return
              * null and let the upper layers handle the missing content.
              */
+            out.setLength(start);
             Log.e(K9.LOG_TAG, "Unable to getTextFromPart " + oom.toString());
         } catch (Exception e) {
             /*
              * If we are not able to process the body there's nothing we can do about it. Return
              * null and let the upper layers handle the missing content.
              */
+            out.setLength(start);
             Log.e(K9.LOG_TAG, "Unable to getTextFromPart", e);
         }
-        return null;
+        return false;
     }
 
     /**
@@ -1160,13 +1183,7 @@ public class MimeUtility {
             if (MimeUtil.ENC_7BIT.equalsIgnoreCase(encoding) || MimeUtil.ENC_8BIT.equalsIgnoreCase(encoding)) {
                 inputStream = rawInputStream;
             } else if (MimeUtil.ENC_BASE64.equalsIgnoreCase(encoding)) {
-                inputStream = new Base64InputStream(rawInputStream, false) {
-                    @Override
-                    public void close() throws IOException {
-                        super.close();
-                        rawInputStream.close();
-                    }
-                };
+                inputStream = new Base64DecoderInputStream(rawInputStream);
             } else if (MimeUtil.ENC_QUOTED_PRINTABLE.equalsIgnoreCase(encoding)) {
                 inputStream = new QuotedPrintableInputStream(rawInputStream) {
                     @Override
@@ -1297,6 +1314,12 @@ public class MimeUtility {
 
         /**
          * The viewable text of the message in HTML.
+         *
+         * <p>
+         * {@code null} if the HTML wasn't created.
+         * </p>
+         *
+         * @see MimeUtility#extractTextAndAttachments(Context, Message, boolean)
          */
         public final String html;
 
@@ -1377,12 +1400,43 @@ public class MimeUtility {
      */
     public static ViewableContainer extractTextAndAttachments(Context context, Message message)
             throws MessagingException {
+        return extractTextAndAttachments(context, message, false);
+    }
+
+    /**
+     * Extract the viewable textual parts of a message and return the rest as attachments.
+     *
+     * @param context
+     *         A {@link Context} instance that will be used to get localized strings.
+     * @param message
+     *         The message to extract the text and attachments from.
+     * @param skipPlainTextHtml
+     *         {@code true}, if the HTML shouldn't be created for a message that consists of a
+     *         single {@code text/plain} part. {@link ViewableContainer#html} is {@code null} in
+     *         that case, the HTML can be created with {@link HtmlConverter#textToHtml(String)}
+     *         when it's needed.
+     *
+     * @return A {@link ViewableContainer} instance containing the textual parts of the message as
+     *         plain text and HTML, and a list of message parts considered attachments.
+     *
+     * @throws MessagingException
+     *          In case of an error.
+     */
+    public static ViewableContainer extractTextAndAttachments(Context context, Message message,
+            boolean skipPlainTextHtml) throws MessagingException {
         try {
             List<Part> attachments = new ArrayList<Part>();
 
             // Collect all viewable parts
             List<Viewable> viewables = getViewables(message, attachments);
 
+            if (skipPlainTextHtml && viewables.size() == 1 && viewables.get(0) instanceof Text) {
+                StringBuilder text = new StringBuilder();
+                buildText(viewables.get(0), false, text);
+
+                return new ViewableContainer(text.toString(), null, attachments);
+            }
+
             /*
              * Convert the tree of viewable parts into text and HTML
              */
@@ -1397,8 +1451,7 @@ public class MimeUtility {
                 if (viewable instanceof Textual) {
                     // This is either a text/plain or text/html part. Fill the variables 'text' and
                     // 'html', converting between plain text and HTML as necessary.
-                    text.append(buildText(viewable, !hideDivider));
-                    html.append(buildHtml(viewable, !hideDivider));
+                    buildTextAndHtml(viewable, !hideDivider, text, html);
                     hideDivider = false;
                 } else if (viewable instanceof MessageHeader) {
                     MessageHeader header = (MessageHeader) viewable;
@@ -1414,31 +1467,7 @@ public class MimeUtility {
                     hideDivider = true;
                 } else if (viewable instanceof Alternative) {
                     // Handle multipart/alternative contents
-                    Alternative alternative = (Alternative) viewable;
-
-                    /*
-                     * We made sure at least one of text/plain or text/html is present when
-                     * creating the Alternative object. If one part is not present we convert the
-                     * other one to make sure 'text' and 'html' always contain the same text.
-                     */
-                    List<Viewable> textAlternative = alternative.getText().isEmpty() ?
-                            alternative.getHtml() : alternative.getText();
-                    List<Viewable> htmlAlternative = alternative.getHtml().isEmpty() ?
-                            alternative.getText() : alternative.getHtml();
-
-                    // Fill the 'text' variable
-                    boolean divider = !hideDivider;
-                    for (Viewable textViewable : textAlternative) {
-                        text.append(buildText(textViewable, divider));
-                        divider = true;
-                    }
-
-                    // Fill the 'html' variable
-                    divider = !hideDivider;
-                    for (Viewable htmlViewable : htmlAlternative) {
-                        html.append(buildHtml(htmlViewable, divider));
-                        divider = true;
-                    }
+                    buildTextAndHtml(viewable, !hideDivider, text, html);
                     hideDivider = false;
                 }
             }
@@ -1833,6 +1862,79 @@ public class MimeUtility {
         html.append("</td></tr>");
     }
 
+    /**
+     * Use the contents of a {@link Viewable} to create both the plain text and the HTML to be
+     * displayed.
+     *
+     * <p>
+     * Every part is read only once. It's decoded straight into the {@link StringBuilder} of its
+     * own type and converted from there if the other representation is missing.
+     * </p>
+     *
+     * @param viewable
+     *         The viewable part to build the text and HTML from.
+     * @param prependDivider
+     *         {@code true}, if the dividers should be inserted as first elements.
+     *         {@code false}, otherwise.
+     * @param text
+     *         The {@link StringBuilder} the contents are appended to as plain text.
+     * @param html
+     *         The {@link StringBuilder} the contents are appended to as HTML.
+     */
+    private static void buildTextAndHtml(Viewable viewable, boolean prependDivider,
+            StringBuilder text, StringBuilder html) {
+        if (viewable instanceof Textual) {
+            Part part = ((Textual)viewable).getPart();
+            addTextDivider(text, part, prependDivider);
+            addHtmlDivider(html, part, prependDivider);
+
+            if (viewable instanceof Html) {
+                int start = html.length();
+                if (appendTextFromPart(part, html)) {
+                    text.append(HtmlConverter.htmlToText(html.substring(start)));
+                }
+            } else {
+                int start = text.length();
+                if (appendTextFromPart(part, text)) {
+                    html.append(HtmlConverter.textToHtml(text.substring(start)));
+                }
+            }
+        } else if (viewable instanceof Alternative) {
+            Alternative alternative = (Alternative) viewable;
+
+            /*
+             * We made sure at least one of text/plain or text/html is present when
+             * creating the Alternative object. If one part is not present we convert the
+             * other one to make sure 'text' and 'html' always contain the same text.
+             */
+            if (alternative.getText().isEmpty() || alternative.getHtml().isEmpty()) {
+                List<Viewable> viewables = alternative.getText().isEmpty() ?
+                        alternative.getHtml() : alternative.getText();
+
+                boolean divider = prependDivider;
+                for (Viewable child : viewables) {
+                    buildTextAndHtml(child, divider, text, html);
+                    divider = true;
+                }
+                return;
+            }
+
+            // Fill the 'text' variable
+            boolean divider = prependDivider;
+            for (Viewable textViewable : alternative.getText()) {
+                buildText(textViewable, divider, text);
+                divider = true;
+            }
+
+            // Fill the 'html' variable
+            divider = prependDivider;
+            for (Viewable htmlViewable : alternative.getHtml()) {
+                buildHtml(htmlViewable, divider, html);
+                divider = true;
+            }
+        }
+    }
+
     /**
      * Use the contents of a {@link Viewable} to create the plain text to be displayed.
      *
@@ -1846,23 +1948,24 @@ public class MimeUtility {
      * @param prependDivider
      *         {@code true}, if the text divider should be inserted as first element.
      *         {@code false}, otherwise.
-     *
-     * @return The contents of the supplied viewable instance as plain text.
+     * @param text
+     *         The {@link StringBuilder} the contents of the supplied viewable instance are appended
+     *         to as plain text.
      */
-    private static StringBuilder buildText(Viewable viewable, boolean prependDivider)
+    private static void buildText(Viewable viewable, boolean prependDivider, StringBuilder text)
     {
-        StringBuilder text = new StringBuilder();
         if (viewable instanceof Textual) {
             Part part = ((Textual)viewable).getPart();
             addTextDivider(text, part, prependDivider);
 
-            String t = getTextFromPart(part);
-            if (t == null) {
-                t = "";
-            } else if (viewable instanceof Html) {
-                t = HtmlConverter.htmlToText(t);
+            if (viewable instanceof Html) {
+                String t = getTextFromPart(part);
+                if (t != null) {
+                    text.append(HtmlConverter.htmlToText(t));
+                }
+            } else {
+                appendTextFromPart(part, text);
             }
-            text.append(t);
         } else if (viewable instanceof Alternative) {
             // That's odd - an Alternative as child of an Alternative; go ahead and try to use the
             // text/plain child; fall-back to the text/html part.
@@ -1873,12 +1976,10 @@ public class MimeUtility {
 
             boolean divider = prependDivider;
             for (Viewable textViewable : textAlternative) {
-                text.append(buildText(textViewable, divider));
+                buildText(textViewable, divider, text);
                 divider = true;
             }
         }
-
-        return text;
     }
 
     /*
@@ -1937,23 +2038,24 @@ public class MimeUtility {
      * @param prependDivider
      *         {@code true}, if the HTML divider should be inserted as first element.
      *         {@code false}, otherwise.
-     *
-     * @return The contents of the supplied viewable instance as HTML.
+     * @param html
+     *         The {@link StringBuilder} the contents of the supplied viewable instance are appended
+     *         to as HTML.
      */
-    private static StringBuilder buildHtml(Viewable viewable, boolean prependDivider)
+    private static void buildHtml(Viewable viewable, boolean prependDivider, StringBuilder html)
     {
-        StringBuilder html = new StringBuilder();
         if (viewable instanceof Textual) {
             Part part = ((Textual)viewable).getPart();
             addHtmlDivider(html, part, prependDivider);
 
-            String t = getTextFromPart(part);
-            if (t == null) {
-                t = "";
-            } else if (viewable instanceof Text) {
-                t = HtmlConverter.textToHtml(t);
+            if (viewable instanceof Text) {
+                String t = getTextFromPart(part);
+                if (t != null) {
+                    html.append(HtmlConverter.textToHtml(t));
+                }
+            } else {
+                appendTextFromPart(part, html);
             }
-            html.append(t);
         } else if (viewable instanceof Alternative) {
             // That's odd - an Alternative as child of an Alternative; go ahead and try to use the
             // text/html child; fall-back to the text/plain part.
@@ -1964,12 +2066,10 @@ public class MimeUtility {
 
             boolean divider = prependDivider;
             for (Viewable htmlViewable : htmlAlternative) {
-                html.append(buildHtml(htmlViewable, divider));
+                buildHtml(htmlViewable, divider, html);
                 divider = true;
             }
         }
-
-        return html;
     }
 
     /**
@@ -2307,6 +2407,20 @@ public class MimeUtility {
     }
 
     public static String readToString(InputStream in, String charset) throws IOException {
+        StringBuilder text = new StringBuilder();
+        appendText(in, charset, text);
+        return text.toString();
+    }
+
+    /**
+     * Decodes the bytes of {@code in} as text in {@code charset} and appends it to {@code out}.
+     *
+     * <p>
+     * The input is converted chunk by chunk, so no intermediate copy of the complete text is
+     * created.
+     * </p>
+     */
+    static void appendText(InputStream in, String charset, StringBuilder out) throws IOException {
         boolean isIphoneString = false;
 
         // iso-2022-jp variants are supported by no versions as of Dec 2010.
@@ -2356,22 +2470,33 @@ public class MimeUtility {
         }
 
         /*
-         * Convert and return as new String
+         * Convert and append to the output
          */
-        String str = IOUtils.toString(in, charset);
-
-        if (isIphoneString)
-            str = importStringFromIphone(str);
-        return str;
+        Reader reader = new InputStreamReader(in, charset);
+        char[] buffer = new char[TEXT_BUFFER_SIZE];
+        int count;
+        while ((count = reader.read(buffer)) != -1) {
+            if (isIphoneString) {
+                importCharsFromIphone(buffer, count, out);
+            } else {
+                out.append(buffer, 0, count);
+            }
+        }
     }
 
-    static private String importStringFromIphone(String str) {
-        StringBuilder buff = new StringBuilder(str.length());
-        for (int i = 0; i < str.length(); i = str.offsetByCodePoints(i, 1)) {
-            int codePoint = str.codePointAt(i);
-            buff.appendCodePoint(importCodePointFromIphone(codePoint));
+    /**
+     * The iPhone emoji are all in the Basic Multilingual Plane, so they can be mapped one char at
+     * a time. Surrogate pairs are passed through unchanged.
+     */
+    static private void importCharsFromIphone(char[] buffer, int count, StringBuilder out) {
+        for (int i = 0; i < count; i++) {
+            char c = buffer[i];
+            if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                out.append(c);
+            } else {
+                out.appendCodePoint(importCodePointFromIphone(c));
+            }
         }
-        return buff.toString();
     }
 
     static private int importCodePointFromIphone(int codePoint) {
@@ -5,6 +5,9 @@ import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.filter.FixedLengthInputStream;
 import com.fsck.k9.mail.filter.PeekableInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -17,18 +20,74 @@ public class ImapResponseParser {
     private static final SimpleDateFormat badDateTimeFormat2 = new SimpleDateFormat("E, dd MMM yyyy HH:mm:ss Z", Locale.US);
     private static final SimpleDateFormat badDateTimeFormat3 = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss", Locale.US);
 
+    /**
+     * Size of the byte window the tokenizer scans in. Tokens that fit into the window are
+     * converted to a {@code String} straight from the window without intermediate copies.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 8192;
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    /**
+     * Atoms that show up in nearly every response. These are returned as shared instances
+     * instead of allocating a new {@code String} for each occurrence.
+     */
+    private static final String[] COMMON_ATOMS = {
+        "OK", "NO", "BAD", "BYE", "NIL", "UID", "FETCH", "FLAGS", "EXISTS", "RECENT", "EXPUNGE",
+        "SEARCH", "BODY", "BODYSTRUCTURE", "ENVELOPE", "INTERNALDATE", "RFC822.SIZE", "RFC822",
+        "HEADER", "HEADER.FIELDS", "TEXT", "MIME", "CAPABILITY", "LIST", "LSUB", "STATUS",
+        "UIDNEXT", "UIDVALIDITY", "UNSEEN", "MESSAGES", "PERMANENTFLAGS", "READ-WRITE",
+        "READ-ONLY", "ALERT", "\\Seen", "\\Answered", "\\Flagged", "\\Deleted",
+        "\\Draft", "\\Recent", "\\Noselect", "\\NoInferiors", "\\HasChildren",
+        "\\HasNoChildren", "$Forwarded", "CHARSET", "NAME", "FILENAME", "ATTACHMENT",
+        "INLINE", "7BIT", "8BIT", "BASE64", "QUOTED-PRINTABLE", "MIXED", "ALTERNATIVE",
+        "RELATED", "PLAIN", "HTML", "IMAGE", "APPLICATION", "MULTIPART", "MESSAGE",
+        "US-ASCII", "UTF-8", "ISO-8859-1", "BOUNDARY"
+    };
+
+    private static final byte[][] COMMON_ATOM_BYTES = new byte[COMMON_ATOMS.length][];
+
+    static {
+        for (int i = 0; i < COMMON_ATOMS.length; i++) {
+            COMMON_ATOM_BYTES[i] = COMMON_ATOMS[i].getBytes(ISO_8859_1);
+        }
+    }
+
     private PeekableInputStream mIn;
     private ImapResponse mResponse;
     private Exception mException;
 
+    /**
+     * Holds the bytes received from {@link #mIn} that haven't been consumed yet. The buffer is
+     * always kept in "read mode", i.e. the unread bytes are between position and limit.
+     */
+    private final ByteBuffer mWindow;
+    private final byte[] mWindowArray;
+    private final InputStream mWindowStream = new WindowInputStream();
+    private long mBytesRead;
+
     public ImapResponseParser(PeekableInputStream in) {
+        this(in, DEFAULT_WINDOW_SIZE);
+    }
+
+    public ImapResponseParser(PeekableInputStream in, int windowSize) {
         this.mIn = in;
+        mWindowArray = new byte[windowSize];
+        mWindow = ByteBuffer.wrap(mWindowArray);
+        mWindow.limit(0);
     }
 
     public ImapResponse readResponse() throws IOException {
         return readResponse(null);
     }
 
+    /**
+     * @return The number of bytes this parser has read from the underlying stream so far.
+     */
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
     /**
      * Reads the next response available on the stream and returns an
      * ImapResponse object that represents it.
@@ -39,7 +98,7 @@ public class ImapResponseParser {
             mResponse = response;
             mResponse.mCallback = callback;
 
-            int ch = mIn.peek();
+            int ch = peek();
             if (ch == '*') {
                 parseUntaggedResponse();
                 readTokens(response);
@@ -109,7 +168,7 @@ public class ImapResponseParser {
     private void parseResponseText(ImapResponse parent) throws IOException {
         skipIfSpace();
 
-        int next = mIn.peek();
+        int next = peek();
         if (next == '[') {
             parseSequence(parent);
             skipIfSpace();
@@ -125,7 +184,7 @@ public class ImapResponseParser {
     }
 
     private void skipIfSpace() throws IOException {
-        if (mIn.peek() == ' ') {
+        if (peek() == ' ') {
             expect(' ');
         }
     }
@@ -150,7 +209,7 @@ public class ImapResponseParser {
 
     private Object parseToken(ImapList parent) throws IOException {
         while (true) {
-            int ch = mIn.peek();
+            int ch = peek();
             if (ch == '(') {
                 return parseList(parent);
             } else if (ch == '[') {
@@ -240,13 +299,22 @@ public class ImapResponseParser {
     }
 
     private String parseAtom() throws IOException {
-        StringBuilder sb = new StringBuilder();
-        int ch;
+        StringBuilder sb = null;
+        int offset = 0;
         while (true) {
-            ch = mIn.peek();
-            if (ch == -1) {
-                throw new IOException("parseAtom(): end of stream reached");
-            } else if (ch == '(' || ch == ')' || ch == '{' || ch == ' ' ||
+            if (mWindow.position() + offset == mWindow.limit()) {
+                if (mWindow.limit() == mWindowArray.length && mWindow.position() == 0) {
+                    // The atom doesn't fit into the window. Move what we have so far out of the way.
+                    sb = appendWindow(sb, offset);
+                    offset = 0;
+                }
+                if (!fill()) {
+                    throw new IOException("parseAtom(): end of stream reached");
+                }
+            }
+
+            int ch = mWindowArray[mWindow.position() + offset] & 0xff;
+            if (ch == '(' || ch == ')' || ch == '{' || ch == ' ' ||
                        ch == '[' || ch == ']' ||
                        // docs claim that flags are \ atom but atom isn't supposed to
                        // contain
@@ -257,13 +325,16 @@ public class ImapResponseParser {
                        // it as a flag instead
                        // ch == '"' || ch == '\' ||
                        ch == '"' || (ch >= 0x00 && ch <= 0x1f) || ch == 0x7f) {
-                if (sb.length() == 0) {
-                    throw new IOException(String.format("parseAtom(): (%04x %c)", ch, ch));
+                if (sb == null) {
+                    if (offset == 0) {
+                        throw new IOException(String.format("parseAtom(): (%04x %c)", ch, ch));
+                    }
+                    return consumeToken(offset, true);
                 }
+                sb = appendWindow(sb, offset);
                 return sb.toString();
-            } else {
-                sb.append((char)mIn.read());
             }
+            offset++;
         }
     }
 
@@ -282,7 +353,7 @@ public class ImapResponseParser {
         }
 
         if (mResponse.mCallback != null) {
-            FixedLengthInputStream fixed = new FixedLengthInputStream(mIn, size);
+            FixedLengthInputStream fixed = new FixedLengthInputStream(mWindowStream, size);
 
             Object result = null;
             try {
@@ -313,7 +384,7 @@ public class ImapResponseParser {
         byte[] data = new byte[size];
         int read = 0;
         while (read != size) {
-            int count = mIn.read(data, read, size - read);
+            int count = mWindowStream.read(data, read, size - read);
             if (count == -1) {
                 throw new IOException("parseLiteral(): end of stream reached");
             }
@@ -326,10 +397,33 @@ public class ImapResponseParser {
     private String parseQuoted() throws IOException {
         expect('"');
 
+        // Fast path: no escape characters, the whole string is inside the window
+        int offset = 0;
+        while (true) {
+            if (mWindow.position() + offset == mWindow.limit()) {
+                if (mWindow.limit() == mWindowArray.length && mWindow.position() == 0) {
+                    break;
+                }
+                if (!fill()) {
+                    throw new IOException("parseQuoted(): end of stream reached");
+                }
+            }
+
+            int ch = mWindowArray[mWindow.position() + offset];
+            if (ch == '"') {
+                String result = consumeToken(offset, false);
+                expect('"');
+                return result;
+            } else if (ch == '\\') {
+                break;
+            }
+            offset++;
+        }
+
         StringBuilder sb = new StringBuilder();
         int ch;
         boolean escape = false;
-        while ((ch = mIn.read()) != -1) {
+        while ((ch = read()) != -1) {
             if (!escape && (ch == '\\')) {
                 // Found the escape character
                 escape = true;
@@ -344,27 +438,177 @@ public class ImapResponseParser {
     }
 
     private String readStringUntil(char end) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        int ch;
-        while ((ch = mIn.read()) != -1) {
-            if (ch == end) {
-                return sb.toString();
-            } else {
-                sb.append((char)ch);
+        StringBuilder sb = null;
+        int offset = 0;
+        while (true) {
+            if (mWindow.position() + offset == mWindow.limit()) {
+                if (mWindow.limit() == mWindowArray.length && mWindow.position() == 0) {
+                    sb = appendWindow(sb, offset);
+                    offset = 0;
+                }
+                if (!fill()) {
+                    throw new IOException("readStringUntil(): end of stream reached");
+                }
             }
+
+            if (mWindowArray[mWindow.position() + offset] == end) {
+                String result;
+                if (sb == null) {
+                    result = consumeToken(offset, false);
+                } else {
+                    result = appendWindow(sb, offset).toString();
+                }
+                expect(end);
+                return result;
+            }
+            offset++;
         }
-        throw new IOException("readStringUntil(): end of stream reached");
     }
 
     private int expect(char ch) throws IOException {
         int d;
-        if ((d = mIn.read()) != ch) {
+        if ((d = read()) != ch) {
             throw new IOException(String.format("Expected %04x (%c) but got %04x (%c)", (int)ch,
                                                 ch, d, (char)d));
         }
         return d;
     }
 
+    private int peek() throws IOException {
+        if (!mWindow.hasRemaining() && !fill()) {
+            return -1;
+        }
+        return mWindowArray[mWindow.position()] & 0xff;
+    }
+
+    private int read() throws IOException {
+        if (!mWindow.hasRemaining() && !fill()) {
+            return -1;
+        }
+        return mWindow.get() & 0xff;
+    }
+
+    /**
+     * Reads more data from the underlying stream into the window, keeping the bytes that haven't
+     * been consumed yet.
+     *
+     * @return {@code false} if the end of the stream was reached or the window is full.
+     */
+    private boolean fill() throws IOException {
+        mWindow.compact();
+        try {
+            if (!mWindow.hasRemaining()) {
+                return false;
+            }
+            int count = mIn.read(mWindowArray, mWindow.position(), mWindow.remaining());
+            if (count <= 0) {
+                return false;
+            }
+            mWindow.position(mWindow.position() + count);
+            mBytesRead += count;
+            return true;
+        } finally {
+            mWindow.flip();
+        }
+    }
+
+    /**
+     * Converts the next {@code length} bytes of the window to a {@code String} and consumes them.
+     */
+    private String consumeToken(int length, boolean intern) {
+        int start = mWindow.position();
+        mWindow.position(start + length);
+
+        if (intern) {
+            String common = findCommonAtom(mWindowArray, start, length);
+            if (common != null) {
+                return common;
+            }
+        }
+        return new String(mWindowArray, start, length, ISO_8859_1);
+    }
+
+    /**
+     * Moves the next {@code length} bytes of the window into a {@code StringBuilder}. Only used
+     * for tokens that don't fit into the window.
+     */
+    private StringBuilder appendWindow(StringBuilder sb, int length) {
+        if (sb == null) {
+            sb = new StringBuilder(length * 2);
+        }
+        int start = mWindow.position();
+        for (int i = start, end = start + length; i < end; i++) {
+            sb.append((char) (mWindowArray[i] & 0xff));
+        }
+        mWindow.position(start + length);
+        return sb;
+    }
+
+    private static String findCommonAtom(byte[] data, int start, int length) {
+        outer:
+        for (int i = 0; i < COMMON_ATOM_BYTES.length; i++) {
+            byte[] candidate = COMMON_ATOM_BYTES[i];
+            if (candidate.length != length) {
+                continue;
+            }
+            for (int j = 0; j < length; j++) {
+                if (candidate[j] != data[start + j]) {
+                    continue outer;
+                }
+            }
+            return COMMON_ATOMS[i];
+        }
+        return null;
+    }
+
+    /**
+     * Exposes the unread part of the window followed by the rest of the underlying stream. Used
+     * to hand literals to {@link IImapResponseCallback}s.
+     */
+    private class WindowInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            return ImapResponseParser.this.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (mWindow.hasRemaining()) {
+                int count = Math.min(length, mWindow.remaining());
+                mWindow.get(buffer, offset, count);
+                return count;
+            }
+            int count = mIn.read(buffer, offset, length);
+            if (count > 0) {
+                mBytesRead += count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            if (mWindow.hasRemaining()) {
+                int count = (int) Math.min(n, mWindow.remaining());
+                mWindow.position(mWindow.position() + count);
+                return count;
+            }
+            long count = mIn.skip(n);
+            mBytesRead += count;
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return mWindow.remaining() + mIn.available();
+        }
+    }
+
     /**
      * Represents an IMAP list response and is also the base class for the
      * ImapResponse.
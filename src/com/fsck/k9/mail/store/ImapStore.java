@@ -1,7 +1,6 @@
 
 package com.fsck.k9.mail.store;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -26,6 +25,7 @@ import java.security.Security;
 import java.security.cert.CertificateException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Deque;
@@ -44,8 +44,6 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
 
 import com.fsck.k9.mail.internet.MimeMessageHelper;
 import javax.net.ssl.SSLException;
@@ -95,11 +93,12 @@ import com.fsck.k9.mail.internet.MimeMultipart;
 import com.fsck.k9.mail.internet.MimeUtility;
 import com.fsck.k9.mail.store.ImapResponseParser.ImapList;
 import com.fsck.k9.mail.store.ImapResponseParser.ImapResponse;
+import com.fsck.k9.mail.store.imap.DeflateCompression;
+import com.fsck.k9.mail.store.imap.FetchWindowSizer;
 import com.fsck.k9.mail.store.imap.ImapUtility;
 import com.fsck.k9.mail.transport.imap.ImapSettings;
 import com.fsck.k9.net.ssl.TrustedSocketFactory;
 import com.jcraft.jzlib.JZlib;
-import com.jcraft.jzlib.ZOutputStream;
 
 /**
  * <pre>
@@ -117,6 +116,29 @@ public class ImapStore extends Store {
 
     private static int FETCH_WINDOW_SIZE = 100;
 
+    /**
+     * Number of {@code UID FETCH} commands that are kept in flight on one connection.
+     */
+    private static final int FETCH_PIPELINE_DEPTH = 3;
+    private static final int FETCH_WINDOW_MAX_SIZE = 500;
+    private static final long FETCH_WINDOW_TARGET_MILLIS = 2000;
+    private static final long FETCH_WINDOW_TARGET_BYTES = 1024 * 1024;
+
+    /**
+     * Limits for the messages uploaded with a single MULTIAPPEND command. If the server refuses
+     * the command, all of them have to be sent again.
+     */
+    private static final int MULTIAPPEND_MAX_MESSAGES = 50;
+    private static final long MULTIAPPEND_MAX_BYTES = 5 * 1024 * 1024;
+
+    /**
+     * Maximum number of UIDs in a single {@code UID COPY} command.
+     */
+    private static final int COPY_MAX_UIDS = 500;
+
+    private static final int COMPRESSION_INPUT_BUFFER_SIZE = 8192;
+    private static final int COMPRESSION_OUTPUT_BUFFER_SIZE = 4096;
+
     private Set<Flag> mPermanentFlagsIndex = EnumSet.noneOf(Flag.class);
 
     private static final String CAPABILITY_IDLE = "IDLE";
@@ -134,6 +156,13 @@ public class ImapStore extends Store {
     private static final String CAPABILITY_COMPRESS_DEFLATE = "COMPRESS=DEFLATE";
     private static final String COMMAND_COMPRESS_DEFLATE = "COMPRESS DEFLATE";
 
+    private static final String CAPABILITY_MULTIAPPEND = "MULTIAPPEND";
+    private static final String CAPABILITY_LITERAL_PLUS = "LITERAL+";
+
+    private static final String CAPABILITY_CONDSTORE = "CONDSTORE";
+    private static final String CAPABILITY_QRESYNC = "QRESYNC";
+    private static final String COMMAND_ENABLE_QRESYNC = "ENABLE QRESYNC";
+
     private static final String[] EMPTY_STRING_ARRAY = new String[0];
 
     /**
@@ -788,7 +817,11 @@ public class ImapStore extends Store {
         private volatile boolean mExists;
         private ImapStore store = null;
         Map<Long, String> msgSeqUidMap = new ConcurrentHashMap<Long, String>();
+        // The reverse of msgSeqUidMap, to find the sequence number of a UID
+        Map<String, Long> uidMsgSeqMap = new ConcurrentHashMap<String, Long>();
         private boolean mInSearch = false;
+        private volatile long mUidValidity = -1L;
+        private volatile long mHighestModSeq = -1L;
 
         public ImapFolder(ImapStore nStore, String name) {
             super(nStore.getAccount());
@@ -832,6 +865,21 @@ public class ImapStore extends Store {
             return handleUntaggedResponses(mConnection.executeSimpleCommand(command, sensitve, untaggedHandler));
         }
 
+        /**
+         * Executes a command and passes every untagged response to {@code consumer} right after
+         * the default handling done by {@link #handleUntaggedResponse(ImapResponse)}.
+         */
+        protected ImapResponse executeCommand(String command, final ImapResponseConsumer consumer)
+        throws MessagingException, IOException {
+            return mConnection.executeCommand(command, false, new ImapResponseConsumer() {
+                @Override
+                public void handleResponse(ImapResponse response) throws IOException, MessagingException {
+                    handleUntaggedResponse(response);
+                    consumer.handleResponse(response);
+                }
+            });
+        }
+
         @Override
         public void open(int mode) throws MessagingException {
             internalOpen(mode);
@@ -867,9 +915,15 @@ public class ImapStore extends Store {
             // * OK [UIDNEXT 57576] Predicted next UID
             // 2 OK [READ-WRITE] Select completed.
             try {
-                msgSeqUidMap.clear();
+                clearMsgSeqUids();
+                mUidValidity = -1L;
+                mHighestModSeq = -1L;
                 String command = String.format("%s %s", mode == OPEN_MODE_RW ? "SELECT"
                         : "EXAMINE", encodeString(encodeFolderName(getPrefixedName())));
+                if (mConnection.hasCapability(CAPABILITY_CONDSTORE) || mConnection.isQresyncEnabled()) {
+                    // RFC 7162: Have the server report HIGHESTMODSEQ
+                    command += " (CONDSTORE)";
+                }
 
                 List<ImapResponse> responses = executeSimpleCommand(command);
 
@@ -906,6 +960,13 @@ public class ImapStore extends Store {
                                     } else if ("READ-WRITE".equalsIgnoreCase(key)) {
                                         mMode = OPEN_MODE_RW;
                                     }
+                                } else if ("UIDVALIDITY".equalsIgnoreCase(key) && bracketed.size() > 1) {
+                                    mUidValidity = bracketed.getLong(1);
+                                } else if ("HIGHESTMODSEQ".equalsIgnoreCase(key) && bracketed.size() > 1) {
+                                    mHighestModSeq = bracketed.getLong(1);
+                                } else if ("NOMODSEQ".equalsIgnoreCase(key)) {
+                                    // The folder doesn't support persistent mod-sequences
+                                    mHighestModSeq = -1L;
                                 }
                             }
                         }
@@ -958,6 +1019,67 @@ public class ImapStore extends Store {
             return mMode;
         }
 
+        @Override
+        public long getUidValidity() {
+            return mUidValidity;
+        }
+
+        @Override
+        public long getHighestModSeq() {
+            return mHighestModSeq;
+        }
+
+        @Override
+        public long getUidNext() {
+            return uidNext;
+        }
+
+        @Override
+        public List<? extends Message> getMessagesAddedSince(int syncedMessageCount, long syncedUidNext,
+                Date earliestDate, MessageRetrievalListener listener) throws MessagingException {
+            checkOpen();
+            int messageCount = mMessageCount;
+            if (syncedMessageCount < 1 || syncedUidNext < 1 || messageCount < syncedMessageCount) {
+                return null;
+            }
+
+            // Without expunges the last of the old messages still has the same number. Otherwise
+            // a message added since has moved up to it.
+            List<? extends Message> lastSynced = getMessages(syncedMessageCount, syncedMessageCount,
+                    null, true, null);
+            try {
+                if (lastSynced.size() != 1 || Long.parseLong(lastSynced.get(0).getUid()) >= syncedUidNext) {
+                    return null;
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            if (messageCount == syncedMessageCount) {
+                return Collections.emptyList();
+            }
+            return getMessages(syncedMessageCount + 1, messageCount, earliestDate, listener);
+        }
+
+        @Override
+        public boolean supportsQuickResync() {
+            // With QRESYNC enabled expunges increase the mod-sequence, too.
+            ImapConnection connection = mConnection;
+            return mHighestModSeq > 0 && connection != null && connection.isQresyncEnabled();
+        }
+
+        @Override
+        public void fetchChangedFlags(List<? extends Message> messages, long modSeq,
+                MessageRetrievalListener listener) throws MessagingException {
+            FetchProfile fp = new FetchProfile();
+            fp.add(FetchProfile.Item.FLAGS);
+            if (mHighestModSeq <= 0 || modSeq <= 0) {
+                fetch(messages, fp, listener);
+            } else {
+                fetch(messages, fp, listener, String.format(Locale.US, " (CHANGEDSINCE %d)", modSeq));
+            }
+        }
+
         @Override
         public void close() {
             if (mMessageCount != -1) {
@@ -1127,65 +1249,24 @@ public class ImapStore extends Store {
                     iFolder.create(FolderType.HOLDS_MESSAGES);
                 }
 
-                //TODO: Split this into multiple commands if the command exceeds a certain length.
-                List<ImapResponse> responses = executeSimpleCommand(String.format("UID COPY %s %s",
-                                                      Utility.combine(uids, ','),
-                                                      remoteDestName));
-
-                // Get the tagged response for the UID COPY command
-                ImapResponse response = responses.get(responses.size() - 1);
-
-                Map<String, String> uidMap = null;
-                if (response.size() > 1) {
-                    /*
-                     * If the server supports UIDPLUS, then along with the COPY response it will
-                     * return an COPYUID response code, e.g.
-                     *
-                     * 24 OK [COPYUID 38505 304,319:320 3956:3958] Success
-                     *
-                     * COPYUID is followed by UIDVALIDITY, the set of UIDs of copied messages from
-                     * the source folder and the set of corresponding UIDs assigned to them in the
-                     * destination folder.
-                     *
-                     * We can use the new UIDs included in this response to update our records.
-                     */
-                    Object responseList = response.get(1);
-
-                    if (responseList instanceof ImapList) {
-                        final ImapList copyList = (ImapList) responseList;
-                        if (copyList.size() >= 4 && copyList.getString(0).equals("COPYUID")) {
-                            List<String> srcUids = ImapUtility.getImapSequenceValues(
-                                    copyList.getString(2));
-                            List<String> destUids = ImapUtility.getImapSequenceValues(
-                                    copyList.getString(3));
-
-                            if (srcUids != null && destUids != null) {
-                                if (srcUids.size() == destUids.size()) {
-                                    Iterator<String> srcUidsIterator = srcUids.iterator();
-                                    Iterator<String> destUidsIterator = destUids.iterator();
-                                    uidMap = new HashMap<String, String>();
-                                    while (srcUidsIterator.hasNext() &&
-                                            destUidsIterator.hasNext()) {
-                                        String srcUid = srcUidsIterator.next();
-                                        String destUid = destUidsIterator.next();
-                                        uidMap.put(srcUid, destUid);
-                                    }
-                                } else {
-                                    if (K9.DEBUG) {
-                                        Log.v(K9.LOG_TAG, "Parse error: size of source UIDs " +
-                                                "list is not the same as size of destination " +
-                                                "UIDs list.");
-                                    }
-                                }
-                            } else {
-                                if (K9.DEBUG) {
-                                    Log.v(K9.LOG_TAG, "Parsing of the sequence set failed.");
-                                }
-                            }
-                        }
-                    }
+                /*
+                 * If the server supports UIDPLUS, then along with the COPY response it will
+                 * return a COPYUID response code with the UIDs assigned to the copies in the
+                 * destination folder. Long UID lists are split over several commands so the
+                 * command lines don't get too long.
+                 */
+                List<ImapResponse> responses = new ArrayList<ImapResponse>();
+                for (int start = 0; start < uids.length; start += COPY_MAX_UIDS) {
+                    String[] batch = Arrays.copyOfRange(uids, start,
+                            Math.min(start + COPY_MAX_UIDS, uids.length));
+                    responses.addAll(executeSimpleCommand(String.format("UID COPY %s %s",
+                            Utility.combine(batch, ','), remoteDestName)));
                 }
 
+                Map<String, String> uidMap = ImapUtility.getCopyUidMap(responses);
+                if (uidMap.isEmpty()) {
+                    uidMap = null;
+                }
                 return uidMap;
             } catch (IOException ioe) {
                 throw ioExceptionHandler(mConnection, ioe);
@@ -1274,8 +1355,8 @@ public class ImapStore extends Store {
             try {
                 ImapSearcher searcher = new ImapSearcher() {
                     @Override
-                    public List<ImapResponse> search() throws IOException, MessagingException {
-                        return executeSimpleCommand("UID SEARCH *:*");
+                    public void search(ImapResponseConsumer consumer) throws IOException, MessagingException {
+                        executeCommand("UID SEARCH *:*", consumer);
                     }
                 };
                 List<? extends Message> messages = search(searcher, null);
@@ -1324,8 +1405,8 @@ public class ImapStore extends Store {
 
             ImapSearcher searcher = new ImapSearcher() {
                 @Override
-                public List<ImapResponse> search() throws IOException, MessagingException {
-                    return executeSimpleCommand(String.format(Locale.US, "UID SEARCH %d:%d%s%s", start, end, dateSearchString, includeDeleted ? "" : " NOT DELETED"));
+                public void search(ImapResponseConsumer consumer) throws IOException, MessagingException {
+                    executeCommand(String.format(Locale.US, "UID SEARCH %d:%d%s%s", start, end, dateSearchString, includeDeleted ? "" : " NOT DELETED"), consumer);
                 }
             };
             return search(searcher, listener);
@@ -1335,8 +1416,8 @@ public class ImapStore extends Store {
         throws MessagingException {
             ImapSearcher searcher = new ImapSearcher() {
                 @Override
-                public List<ImapResponse> search() throws IOException, MessagingException {
-                    return executeSimpleCommand(String.format("UID SEARCH %s%s", Utility.combine(mesgSeqs.toArray(), ','), includeDeleted ? "" : " NOT DELETED"));
+                public void search(ImapResponseConsumer consumer) throws IOException, MessagingException {
+                    executeCommand(String.format("UID SEARCH %s%s", Utility.combine(mesgSeqs.toArray(), ','), includeDeleted ? "" : " NOT DELETED"), consumer);
                 }
             };
             return search(searcher, listener);
@@ -1346,8 +1427,8 @@ public class ImapStore extends Store {
         throws MessagingException {
             ImapSearcher searcher = new ImapSearcher() {
                 @Override
-                public List<ImapResponse> search() throws IOException, MessagingException {
-                    return executeSimpleCommand(String.format("UID SEARCH UID %s%s", Utility.combine(mesgUids.toArray(), ','), includeDeleted ? "" : " NOT DELETED"));
+                public void search(ImapResponseConsumer consumer) throws IOException, MessagingException {
+                    executeCommand(String.format("UID SEARCH UID %s%s", Utility.combine(mesgUids.toArray(), ','), includeDeleted ? "" : " NOT DELETED"), consumer);
                 }
             };
             return search(searcher, listener);
@@ -1358,17 +1439,17 @@ public class ImapStore extends Store {
             checkOpen(); //only need READ access
             List<Message> messages = new ArrayList<Message>();
             try {
-                List<Long> uids = new ArrayList<Long>();
-                List<ImapResponse> responses = searcher.search(); //
-                for (ImapResponse response : responses) {
-                    if (response.mTag == null) {
+                final List<Long> uids = new ArrayList<Long>();
+                searcher.search(new ImapResponseConsumer() {
+                    @Override
+                    public void handleResponse(ImapResponse response) {
                         if (ImapResponseParser.equalsIgnoreCase(response.get(0), "SEARCH")) {
                             for (int i = 1, count = response.size(); i < count; i++) {
                                 uids.add(response.getLong(i));
                             }
                         }
                     }
-                }
+                });
 
                 // Sort the uids in numerically decreasing order
                 // By doing it in decreasing order, we ensure newest messages are dealt with first
@@ -1406,15 +1487,17 @@ public class ImapStore extends Store {
             List<Message> messages = new ArrayList<Message>();
             try {
                 if (uids == null) {
-                    List<ImapResponse> responses = executeSimpleCommand("UID SEARCH 1:* NOT DELETED");
-                    List<String> tempUids = new ArrayList<String>();
-                    for (ImapResponse response : responses) {
-                        if (ImapResponseParser.equalsIgnoreCase(response.get(0), "SEARCH")) {
-                            for (int i = 1, count = response.size(); i < count; i++) {
-                                tempUids.add(response.getString(i));
+                    final List<String> tempUids = new ArrayList<String>();
+                    executeCommand("UID SEARCH 1:* NOT DELETED", new ImapResponseConsumer() {
+                        @Override
+                        public void handleResponse(ImapResponse response) {
+                            if (ImapResponseParser.equalsIgnoreCase(response.get(0), "SEARCH")) {
+                                for (int i = 1, count = response.size(); i < count; i++) {
+                                    tempUids.add(response.getString(i));
+                                }
                             }
                         }
-                    }
+                    });
                     uids = tempUids.toArray(EMPTY_STRING_ARRAY);
                 }
                 for (int i = 0, count = uids.length; i < count; i++) {
@@ -1436,6 +1519,15 @@ public class ImapStore extends Store {
         @Override
         public void fetch(List<? extends Message> messages, FetchProfile fp, MessageRetrievalListener listener)
         throws MessagingException {
+            fetch(messages, fp, listener, "");
+        }
+
+        /**
+         * @param fetchModifiers
+         *         Appended to each {@code UID FETCH} command, e.g. {@code " (CHANGEDSINCE 123)"}.
+         */
+        private void fetch(List<? extends Message> messages, FetchProfile fp, MessageRetrievalListener listener,
+                String fetchModifiers) throws MessagingException {
             if (messages == null || messages.isEmpty()) {
                 return;
             }
@@ -1482,79 +1574,186 @@ public class ImapStore extends Store {
 
 
 
-            for (int windowStart = 0; windowStart < messages.size(); windowStart += (FETCH_WINDOW_SIZE)) {
-                List<String> uidWindow = uids.subList(windowStart, Math.min((windowStart + FETCH_WINDOW_SIZE), messages.size()));
+            ImapResponseParser.IImapResponseCallback callback = null;
+            if (fp.contains(FetchProfile.Item.BODY) || fp.contains(FetchProfile.Item.BODY_SANE)) {
+                callback = new FetchBodyCallback(messageMap);
+            }
+            FetchResponseConsumer consumer = new FetchResponseConsumer(messageMap, listener);
+            FetchWindowSizer windowSizer = createFetchWindowSizer(fp);
+            String fetchItems = Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ');
 
-                try {
-                    mConnection.sendCommand(String.format("UID FETCH %s (%s)",
-                                                          Utility.combine(uidWindow.toArray(new String[uidWindow.size()]), ','),
-                                                          Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ')
-                                                         ), false);
-                    ImapResponse response;
-                    int messageNumber = 0;
-
-                    ImapResponseParser.IImapResponseCallback callback = null;
-                    if (fp.contains(FetchProfile.Item.BODY) || fp.contains(FetchProfile.Item.BODY_SANE)) {
-                        callback = new FetchBodyCallback(messageMap);
-                    }
-
-                    do {
-                        response = mConnection.readResponse(callback);
-
-                        if (response.mTag == null && ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
-                            ImapList fetchList = (ImapList)response.getKeyedValue("FETCH");
-                            String uid = fetchList.getKeyedString("UID");
-                            long msgSeq = response.getLong(0);
-                            if (uid != null) {
-                                try {
-                                    msgSeqUidMap.put(msgSeq, uid);
-                                    if (K9.DEBUG) {
-                                        Log.v(K9.LOG_TAG, "Stored uid '" + uid + "' for msgSeq " + msgSeq + " into map " /*+ msgSeqUidMap.toString() */);
-                                    }
-                                } catch (Exception e) {
-                                    Log.e(K9.LOG_TAG, "Unable to store uid '" + uid + "' for msgSeq " + msgSeq);
-                                }
-                            }
+            try {
+                pipelinedFetch(uids, fetchItems, fetchModifiers, windowSizer, consumer, callback, listener);
+            } catch (IOException ioe) {
+                throw ioExceptionHandler(mConnection, ioe);
+            }
+        }
 
-                            Message message = messageMap.get(uid);
-                            if (message == null) {
-                                if (K9.DEBUG)
-                                    Log.d(K9.LOG_TAG, "Do not have message in messageMap for UID " + uid + " for " + getLogId());
+        /**
+         * Picks the initial window size depending on how much data per message is requested.
+         */
+        private FetchWindowSizer createFetchWindowSizer(FetchProfile fp) {
+            int initialSize;
+            if (fp.contains(FetchProfile.Item.BODY) || fp.contains(FetchProfile.Item.BODY_SANE)) {
+                initialSize = 10;
+            } else if (fp.contains(FetchProfile.Item.STRUCTURE)) {
+                initialSize = FETCH_WINDOW_SIZE / 2;
+            } else if (fp.contains(FetchProfile.Item.ENVELOPE)) {
+                initialSize = FETCH_WINDOW_SIZE;
+            } else {
+                initialSize = FETCH_WINDOW_MAX_SIZE;
+            }
+            return new FetchWindowSizer(initialSize, 1, FETCH_WINDOW_MAX_SIZE,
+                    FETCH_WINDOW_TARGET_MILLIS, FETCH_WINDOW_TARGET_BYTES);
+        }
 
-                                handleUntaggedResponse(response);
-                                continue;
-                            }
-                            if (listener != null) {
-                                listener.messageStarted(uid, messageNumber++, messageMap.size());
-                            }
+        /**
+         * Fetches the given UIDs using up to {@link #FETCH_PIPELINE_DEPTH} {@code UID FETCH}
+         * commands in flight, so the connection isn't idle while waiting for the next window to
+         * be requested. The size of each window is taken from {@code windowSizer} which in turn is
+         * fed the measured time and bytes of every completed window.
+         */
+        private void pipelinedFetch(List<String> uids, String fetchItems, String fetchModifiers,
+                FetchWindowSizer windowSizer,
+                ImapResponseConsumer consumer, ImapResponseParser.IImapResponseCallback callback,
+                MessageRetrievalListener listener) throws IOException, MessagingException {
+            LinkedList<FetchWindow> inFlight = new LinkedList<FetchWindow>();
+            int next = 0;
+            long windowStartTime = 0;
+            long windowStartBytes = 0;
+
+            while (next < uids.size() || !inFlight.isEmpty()) {
+                while (inFlight.size() < FETCH_PIPELINE_DEPTH && next < uids.size()) {
+                    int end = Math.min(next + windowSizer.getWindowSize(), uids.size());
+                    List<String> uidWindow = uids.subList(next, end);
+                    String tag = mConnection.sendCommand(String.format("UID FETCH %s (%s)%s",
+                            Utility.combine(uidWindow.toArray(new String[uidWindow.size()]), ','),
+                            fetchItems, fetchModifiers), false);
+                    if (inFlight.isEmpty()) {
+                        windowStartTime = System.currentTimeMillis();
+                        windowStartBytes = mConnection.getBytesRead();
+                    }
+                    inFlight.add(new FetchWindow(tag, uidWindow.size()));
+                    next = end;
+                }
 
-                            ImapMessage imapMessage = (ImapMessage) message;
+                ImapResponse response = mConnection.readResponse(callback);
+                if (response.mTag == null) {
+                    mConnection.handleResponse(consumer, response);
+                    continue;
+                }
 
-                            Object literal = handleFetchResponse(imapMessage, fetchList);
+                FetchWindow window = null;
+                for (Iterator<FetchWindow> it = inFlight.iterator(); it.hasNext(); ) {
+                    FetchWindow candidate = it.next();
+                    if (candidate.tag.equalsIgnoreCase(response.mTag)) {
+                        window = candidate;
+                        it.remove();
+                        break;
+                    }
+                }
+                if (window == null) {
+                    Log.w(K9.LOG_TAG, "Got tag response from previous command " + response + " for " + getLogId());
+                    continue;
+                }
 
-                            if (literal != null) {
-                                if (literal instanceof String) {
-                                    String bodyString = (String)literal;
-                                    InputStream bodyStream = new ByteArrayInputStream(bodyString.getBytes());
-                                    imapMessage.parse(bodyStream);
-                                } else if (literal instanceof Integer) {
-                                    // All the work was done in FetchBodyCallback.foundLiteral()
-                                } else {
-                                    // This shouldn't happen
-                                    throw new MessagingException("Got FETCH response with bogus parameters");
-                                }
-                            }
+                // Responses of pipelined windows arrive back to back, so each window is measured
+                // from the completion of the previous one.
+                long now = System.currentTimeMillis();
+                long bytesRead = mConnection.getBytesRead();
+                long elapsed = now - windowStartTime;
+                long bytes = bytesRead - windowStartBytes;
+                windowStartTime = now;
+                windowStartBytes = bytesRead;
+
+                windowSizer.windowFinished(window.messageCount, bytes, elapsed);
+                if (listener != null) {
+                    listener.windowFinished(window.messageCount, bytes, elapsed);
+                }
+                if (K9.DEBUG && K9.DEBUG_PROTOCOL_IMAP) {
+                    Log.v(K9.LOG_TAG, "Fetched " + window.messageCount + " messages (" + bytes +
+                            " bytes) in " + elapsed + "ms, next window size " +
+                            windowSizer.getWindowSize() + " for " + getLogId());
+                }
+            }
+        }
 
-                            if (listener != null) {
-                                listener.messageFinished(message, messageNumber, messageMap.size());
-                            }
-                        } else {
-                            handleUntaggedResponse(response);
+        private class FetchWindow {
+            final String tag;
+            final int messageCount;
+
+            FetchWindow(String tag, int messageCount) {
+                this.tag = tag;
+                this.messageCount = messageCount;
+            }
+        }
+
+        /**
+         * Applies untagged FETCH responses to the messages they belong to as soon as each one has
+         * been read, so only a single response is held in memory at any time.
+         */
+        private class FetchResponseConsumer implements ImapResponseConsumer {
+            private final Map<String, Message> mMessageMap;
+            private final MessageRetrievalListener mListener;
+            private int mMessageNumber = 0;
+
+            FetchResponseConsumer(Map<String, Message> messageMap, MessageRetrievalListener listener) {
+                mMessageMap = messageMap;
+                mListener = listener;
+            }
+
+            @Override
+            public void handleResponse(ImapResponse response) throws MessagingException {
+                if (!ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
+                    handleUntaggedResponse(response);
+                    return;
+                }
+
+                ImapList fetchList = (ImapList)response.getKeyedValue("FETCH");
+                String uid = fetchList.getKeyedString("UID");
+                long msgSeq = response.getLong(0);
+                if (uid != null) {
+                    try {
+                        putMsgSeqUid(msgSeq, uid);
+                        if (K9.DEBUG) {
+                            Log.v(K9.LOG_TAG, "Stored uid '" + uid + "' for msgSeq " + msgSeq + " into map " /*+ msgSeqUidMap.toString() */);
                         }
+                    } catch (Exception e) {
+                        Log.e(K9.LOG_TAG, "Unable to store uid '" + uid + "' for msgSeq " + msgSeq);
+                    }
+                }
 
-                    } while (response.mTag == null);
-                } catch (IOException ioe) {
-                    throw ioExceptionHandler(mConnection, ioe);
+                Message message = mMessageMap.get(uid);
+                if (message == null) {
+                    if (K9.DEBUG)
+                        Log.d(K9.LOG_TAG, "Do not have message in messageMap for UID " + uid + " for " + getLogId());
+
+                    handleUntaggedResponse(response);
+                    return;
+                }
+                if (mListener != null) {
+                    mListener.messageStarted(uid, mMessageNumber++, mMessageMap.size());
+                }
+
+                ImapMessage imapMessage = (ImapMessage) message;
+
+                Object literal = handleFetchResponse(imapMessage, fetchList);
+
+                if (literal != null) {
+                    if (literal instanceof String) {
+                        String bodyString = (String)literal;
+                        InputStream bodyStream = new ByteArrayInputStream(bodyString.getBytes());
+                        imapMessage.parse(bodyStream);
+                    } else if (literal instanceof Integer) {
+                        // All the work was done in FetchBodyCallback.foundLiteral()
+                    } else {
+                        // This shouldn't happen
+                        throw new MessagingException("Got FETCH response with bogus parameters");
+                    }
+                }
+
+                if (mListener != null) {
+                    mListener.messageFinished(message, mMessageNumber, mMessageMap.size());
                 }
             }
         }
@@ -1746,11 +1945,39 @@ public class ImapStore extends Store {
             }
         }
 
+        /**
+         * Remembers the UID of a message number in {@link #msgSeqUidMap} and
+         * {@link #uidMsgSeqMap}.
+         */
+        void putMsgSeqUid(long msgSeq, String uid) {
+            String oldUid = msgSeqUidMap.put(msgSeq, uid);
+            if (oldUid != null && !oldUid.equals(uid)) {
+                uidMsgSeqMap.remove(oldUid);
+            }
+            Long oldMsgSeq = uidMsgSeqMap.put(uid, msgSeq);
+            if (oldMsgSeq != null && oldMsgSeq != msgSeq && uid.equals(msgSeqUidMap.get(oldMsgSeq))) {
+                msgSeqUidMap.remove(oldMsgSeq);
+            }
+        }
+
+        void clearMsgSeqUids() {
+            msgSeqUidMap.clear();
+            uidMsgSeqMap.clear();
+        }
+
         /**
          * Handle an untagged response that the caller doesn't care to handle themselves.
          * @param response
          */
         protected void handleUntaggedResponse(ImapResponse response) {
+            if (response.mTag == null && isVanishedResponse(response) && !(response.get(1) instanceof ImapList)) {
+                // * VANISHED 41,43:116 replaces EXPUNGE responses once QRESYNC is enabled.
+                // VANISHED (EARLIER) only reports messages that are already gone.
+                long vanished = ImapUtility.countImapSequenceValues(getVanishedUidRanges(response));
+                mMessageCount = (int) Math.max(0, mMessageCount - vanished);
+                if (K9.DEBUG)
+                    Log.d(K9.LOG_TAG, "Got untagged VANISHED with mMessageCount " + mMessageCount + " for " + getLogId());
+            }
             if (response.mTag == null && response.size() > 1) {
                 if (ImapResponseParser.equalsIgnoreCase(response.get(1), "EXISTS")) {
                     mMessageCount = response.getNumber(0);
@@ -1796,6 +2023,23 @@ public class ImapStore extends Store {
             //Log.i(K9.LOG_TAG, "mMessageCount = " + mMessageCount + " for " + getLogId());
         }
 
+        /**
+         * @return {@code true} for {@code * VANISHED [(EARLIER)] <uid-set>} responses (RFC 7162).
+         */
+        protected boolean isVanishedResponse(ImapResponse response) {
+            return response.size() > 1 && ImapResponseParser.equalsIgnoreCase(response.get(0), "VANISHED");
+        }
+
+        /**
+         * @return The ranges of UIDs listed in a {@code VANISHED} response, see
+         *         {@link ImapUtility#getImapSequenceRanges(String)}. Servers list large numbers
+         *         of UIDs as ranges, so they aren't expanded.
+         */
+        protected long[] getVanishedUidRanges(ImapResponse response) {
+            Object uidSet = response.get(response.size() - 1);
+            return ImapUtility.getImapSequenceRanges((uidSet instanceof String) ? (String) uidSet : null);
+        }
+
         private void parseBodyStructure(ImapList bs, Part part, String id)
         throws MessagingException {
             if (bs.get(0) instanceof ImapList) {
@@ -1970,79 +2214,151 @@ public class ImapStore extends Store {
             checkOpen();
             try {
                 Map<String, String> uidMap = new HashMap<String, String>();
-                for (Message message : messages) {
-                    mConnection.sendCommand(
-                        String.format(Locale.US, "APPEND %s (%s) {%d}",
-                                      encodeString(encodeFolderName(getPrefixedName())),
-                                      combineFlags(message.getFlags()),
-                                      message.calculateSize()), false);
-
-                    ImapResponse response;
-                    do {
-                        response = mConnection.readResponse();
-                        handleUntaggedResponse(response);
-                        if (response.mCommandContinuationRequested) {
-                            EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(mConnection.mOut);
-                            message.writeTo(eolOut);
-                            eolOut.write('\r');
-                            eolOut.write('\n');
-                            eolOut.flush();
-                        }
-                    } while (response.mTag == null);
+                long[] sizes = new long[messages.size()];
+                for (int i = 0; i < sizes.length; i++) {
+                    sizes[i] = messages.get(i).calculateSize();
+                }
 
-                    if (response.size() > 1) {
-                        /*
-                         * If the server supports UIDPLUS, then along with the APPEND response it
-                         * will return an APPENDUID response code, e.g.
-                         *
-                         * 11 OK [APPENDUID 2 238268] APPEND completed
-                         *
-                         * We can use the UID included in this response to update our records.
-                         */
-                        Object responseList = response.get(1);
+                boolean multiAppend = mConnection.hasCapability(CAPABILITY_MULTIAPPEND);
+                int start = 0;
+                while (start < messages.size()) {
+                    int end = start + 1;
+                    long batchSize = sizes[start];
+                    while (multiAppend && end < messages.size() &&
+                            end - start < MULTIAPPEND_MAX_MESSAGES &&
+                            batchSize + sizes[end] <= MULTIAPPEND_MAX_BYTES) {
+                        batchSize += sizes[end];
+                        end++;
+                    }
 
-                        if (responseList instanceof ImapList) {
-                            ImapList appendList = (ImapList) responseList;
-                            if (appendList.size() >= 3 &&
-                                    appendList.getString(0).equals("APPENDUID")) {
+                    appendMessageBatch(messages.subList(start, end), sizes, start, uidMap);
+                    start = end;
+                }
 
-                                String newUid = appendList.getString(2);
+                /*
+                 * We need uidMap to be null if new UIDs are not available to maintain consistency
+                 * with the behavior of other similar methods (copyMessages, moveMessages) which
+                 * return null.
+                 */
+                return (uidMap.isEmpty()) ? null : uidMap;
+            } catch (IOException ioe) {
+                throw ioExceptionHandler(mConnection, ioe);
+            }
+        }
 
-                                if (!StringUtils.isNullOrEmpty(newUid)) {
-                                    message.setUid(newUid);
-                                    uidMap.put(message.getUid(), newUid);
-                                    continue;
-                                }
-                            }
-                        }
+        /**
+         * Uploads the given messages with a single {@code APPEND} command.
+         *
+         * <p>
+         * More than one message requires the MULTIAPPEND extension (RFC 3502). If the server
+         * supports LITERAL+ (RFC 7888) the messages are sent without waiting for a continuation
+         * request before each literal. The server adds either all messages of a MULTIAPPEND
+         * command or none of them, so if it refuses the command the messages are appended one
+         * at a time instead.
+         * </p>
+         *
+         * @param sizes
+         *         The sizes of the messages, starting at {@code sizesOffset}.
+         */
+        private void appendMessageBatch(List<? extends Message> messages, long[] sizes,
+                int sizesOffset, Map<String, String> uidMap) throws IOException, MessagingException {
+            boolean literalPlus = mConnection.hasCapability(CAPABILITY_LITERAL_PLUS);
+            ImapResponse response = null;
+
+            for (int i = 0; i < messages.size() && response == null; i++) {
+                Message message = messages.get(i);
+                String literal = String.format(Locale.US, "(%s) {%d%s}",
+                        combineFlags(message.getFlags()), sizes[sizesOffset + i],
+                        (literalPlus) ? "+" : "");
+
+                if (i == 0) {
+                    mConnection.sendCommand(String.format(Locale.US, "APPEND %s %s",
+                            encodeString(encodeFolderName(getPrefixedName())), literal), false);
+                } else {
+                    mConnection.writeLine(" " + literal, !literalPlus);
+                }
+
+                if (!literalPlus) {
+                    response = readUntilContinuation();
+                    if (response != null) {
+                        // The server refused the command
+                        break;
                     }
+                }
+
+                // flush() completes a trailing CR, which calculateSize() counted as CRLF
+                EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(mConnection.mOut);
+                message.writeTo(eolOut);
+                eolOut.flush();
+            }
+
+            if (response == null) {
+                mConnection.writeLine("", true);
+                do {
+                    response = mConnection.readResponse();
+                    handleUntaggedResponse(response);
+                } while (response.mTag == null);
+            }
+
+            if (messages.size() > 1 && (response.size() < 1 ||
+                    !ImapResponseParser.equalsIgnoreCase(response.get(0), "OK"))) {
+                if (K9.DEBUG) {
+                    Log.d(K9.LOG_TAG, "MULTIAPPEND of " + messages.size() + " messages failed for " +
+                            getLogId() + ", appending them one at a time: " + response);
+                }
+                for (int i = 0; i < messages.size(); i++) {
+                    appendMessageBatch(messages.subList(i, i + 1), sizes, sizesOffset + i, uidMap);
+                }
+                return;
+            }
 
+            /*
+             * If the server supports UIDPLUS, then along with the APPEND response it will return
+             * an APPENDUID response code with the UIDs of the new messages.
+             */
+            List<String> newUids = ImapUtility.getAppendUids(response, messages.size());
+
+            for (int i = 0; i < messages.size(); i++) {
+                Message message = messages.get(i);
+                String newUid;
+                if (newUids != null) {
+                    newUid = newUids.get(i);
+                } else {
                     /*
                      * This part is executed in case the server does not support UIDPLUS or does
                      * not implement the APPENDUID response code.
                      */
-                    String newUid = getUidFromMessageId(message);
+                    newUid = getUidFromMessageId(message);
                     if (K9.DEBUG) {
                         Log.d(K9.LOG_TAG, "Got UID " + newUid + " for message for " + getLogId());
                     }
-
-                    if (!StringUtils.isNullOrEmpty(newUid)) {
-                        uidMap.put(message.getUid(), newUid);
-                        message.setUid(newUid);
-                    }
                 }
 
-                /*
-                 * We need uidMap to be null if new UIDs are not available to maintain consistency
-                 * with the behavior of other similar methods (copyMessages, moveMessages) which
-                 * return null.
-                 */
-                return (uidMap.isEmpty()) ? null : uidMap;
-            } catch (IOException ioe) {
-                throw ioExceptionHandler(mConnection, ioe);
+                if (!StringUtils.isNullOrEmpty(newUid)) {
+                    uidMap.put(message.getUid(), newUid);
+                    message.setUid(newUid);
+                }
             }
         }
 
+        /**
+         * Reads responses until the server requests the next literal.
+         *
+         * @return {@code null} if the server is ready for the literal, otherwise the tagged
+         *         response completing the command.
+         */
+        private ImapResponse readUntilContinuation() throws IOException, MessagingException {
+            ImapResponse response;
+            do {
+                response = mConnection.readResponse();
+                handleUntaggedResponse(response);
+                if (response.mCommandContinuationRequested) {
+                    return null;
+                }
+            } while (response.mTag == null);
+            return response;
+        }
+
         @Override
         public String getUidFromMessageId(Message message) throws MessagingException {
             try {
@@ -2222,7 +2538,7 @@ public class ImapStore extends Store {
             // Setup the searcher
             final ImapSearcher searcher = new ImapSearcher() {
                 @Override
-                public List<ImapResponse> search() throws IOException, MessagingException {
+                public void search(ImapResponseConsumer consumer) throws IOException, MessagingException {
                     String imapQuery = "UID SEARCH ";
                     if (requiredFlags != null) {
                         for (Flag f : requiredFlags) {
@@ -2294,7 +2610,7 @@ public class ImapStore extends Store {
                     } else {
                         imapQuery += "OR SUBJECT " + encodedQry + " FROM " + encodedQry;
                     }
-                    return executeSimpleCommand(imapQuery);
+                    executeCommand(imapQuery, consumer);
                 }
             };
 
@@ -2323,6 +2639,13 @@ public class ImapStore extends Store {
         private ImapResponseParser mParser;
         private int mNextCommandTag;
         private Set<String> capabilities = new HashSet<String>();
+        private boolean mQresyncEnabled;
+
+        /**
+         * Kept across reconnects, so the inflater can be reused.
+         */
+        private DeflateCompression mCompression;
+        private boolean mCompressed;
 
         private ImapSettings mSettings;
 
@@ -2378,6 +2701,7 @@ public class ImapStore extends Store {
             boolean authSuccess = false;
 
             mNextCommandTag = 1;
+            mQresyncEnabled = false;
             try {
                 Security.setProperty("networkaddress.cache.ttl", "0");
             } catch (Exception e) {
@@ -2428,8 +2752,8 @@ public class ImapStore extends Store {
 
                 setReadTimeout(Store.SOCKET_READ_TIMEOUT);
 
-                mIn = new PeekableInputStream(new BufferedInputStream(mSocket.getInputStream(),
-                                              1024));
+                // ImapResponseParser does its own buffering
+                mIn = new PeekableInputStream(mSocket.getInputStream());
                 mParser = new ImapResponseParser(mIn);
                 mOut = new BufferedOutputStream(mSocket.getOutputStream(), 1024);
 
@@ -2461,8 +2785,7 @@ public class ImapStore extends Store {
                                 mSettings.getHost(), mSettings.getPort(),
                                 mSettings.getClientCertificateAlias());
                         mSocket.setSoTimeout(Store.SOCKET_READ_TIMEOUT);
-                        mIn = new PeekableInputStream(new BufferedInputStream(mSocket
-                                                      .getInputStream(), 1024));
+                        mIn = new PeekableInputStream(mSocket.getInputStream());
                         mParser = new ImapResponseParser(mIn);
                         mOut = new BufferedOutputStream(mSocket.getOutputStream(), 1024);
                         // Per RFC 2595 (3.1):  Once TLS has been started, reissue CAPABILITY command
@@ -2541,13 +2864,14 @@ public class ImapStore extends Store {
                     if (useCompression) {
                         try {
                             executeSimpleCommand(COMMAND_COMPRESS_DEFLATE);
-                            Inflater inf = new Inflater(true);
-                            InflaterInputStream zInputStream = new InflaterInputStream(mSocket.getInputStream(), inf);
-                            mIn = new PeekableInputStream(new BufferedInputStream(zInputStream, 1024));
+                            if (mCompression == null) {
+                                mCompression = new DeflateCompression(COMPRESSION_INPUT_BUFFER_SIZE,
+                                        COMPRESSION_OUTPUT_BUFFER_SIZE, JZlib.Z_BEST_SPEED);
+                            }
+                            mIn = new PeekableInputStream(mCompression.decompress(mSocket.getInputStream()));
                             mParser = new ImapResponseParser(mIn);
-                            ZOutputStream zOutputStream = new ZOutputStream(mSocket.getOutputStream(), JZlib.Z_BEST_SPEED, true);
-                            mOut = new BufferedOutputStream(zOutputStream, 1024);
-                            zOutputStream.setFlushMode(JZlib.Z_PARTIAL_FLUSH);
+                            mOut = mCompression.compress(mSocket.getOutputStream());
+                            mCompressed = true;
                             if (K9.DEBUG) {
                                 Log.i(K9.LOG_TAG, "Compression enabled for " + getLogId());
                             }
@@ -2598,6 +2922,9 @@ public class ImapStore extends Store {
                         mSettings.setPathPrefix("");
                     }
                 }
+                if (hasCapability(CAPABILITY_QRESYNC)) {
+                    enableQresync();
+                }
                 if (mSettings.getPathDelimeter() == null) {
                     try {
                         List<ImapResponse> nameResponses =
@@ -2641,6 +2968,33 @@ public class ImapStore extends Store {
             }
         }
 
+        /**
+         * Enables RFC 7162 QRESYNC for this session. From now on the server reports expunged
+         * messages using {@code VANISHED} responses instead of {@code EXPUNGE}.
+         */
+        private void enableQresync() {
+            try {
+                List<ImapResponse> responses = executeSimpleCommand(COMMAND_ENABLE_QRESYNC);
+                for (ImapResponse response : responses) {
+                    if (ImapResponseParser.equalsIgnoreCase(response.get(0), "ENABLED")) {
+                        for (int i = 1, count = response.size(); i < count; i++) {
+                            if (ImapResponseParser.equalsIgnoreCase(response.get(i), CAPABILITY_QRESYNC)) {
+                                mQresyncEnabled = true;
+                            }
+                        }
+                    }
+                }
+                if (K9.DEBUG)
+                    Log.d(K9.LOG_TAG, "QRESYNC enabled = " + mQresyncEnabled + " for " + getLogId());
+            } catch (Exception e) {
+                Log.e(K9.LOG_TAG, "Unable to enable QRESYNC for " + getLogId(), e);
+            }
+        }
+
+        protected boolean isQresyncEnabled() {
+            return mQresyncEnabled;
+        }
+
         protected void login() throws IOException, MessagingException {
             /*
              * Use quoted strings which permit spaces and quotes. (Using IMAP
@@ -2737,6 +3091,53 @@ public class ImapStore extends Store {
             return response;
         }
 
+        /**
+         * Reads responses until the tagged response for {@code tag} arrives. Untagged responses
+         * are passed to {@code consumer} one at a time and are not retained.
+         *
+         * @return The tagged response. Its status is not checked.
+         */
+        public ImapResponse readUntaggedResponses(String tag, ImapResponseConsumer consumer,
+                ImapResponseParser.IImapResponseCallback callback)
+                throws IOException, MessagingException {
+            ImapResponse response;
+            while (true) {
+                response = readResponse(callback);
+                if (response.mTag == null) {
+                    handleResponse(consumer, response);
+                } else if (response.mTag.equalsIgnoreCase(tag)) {
+                    return response;
+                } else {
+                    Log.w(K9.LOG_TAG, "After sending tag " + tag + ", got tag response from previous command " + response + " for " + getLogId());
+                }
+            }
+        }
+
+        /**
+         * Passes an untagged response to {@code consumer}. If that fails the connection is closed
+         * because the remaining responses of the command are still pending on the stream.
+         */
+        void handleResponse(ImapResponseConsumer consumer, ImapResponse response)
+                throws IOException, MessagingException {
+            try {
+                consumer.handleResponse(response);
+            } catch (MessagingException e) {
+                close();
+                throw e;
+            } catch (RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return The number of bytes received on this connection since the last (re)initialization
+         *         of the response parser.
+         */
+        public long getBytesRead() {
+            return mParser != null ? mParser.getBytesRead() : 0;
+        }
+
         protected List<ImapResponse> readStatusResponse(String tag,
                 String commandToLog, UntaggedHandler untaggedHandler)
                 throws IOException, MessagingException {
@@ -2753,7 +3154,8 @@ public class ImapStore extends Store {
                     while (iter.hasNext()) {
                         ImapResponse delResponse = iter.next();
                         if (delResponse.mTag != null || delResponse.size() < 2
-                                || (!ImapResponseParser.equalsIgnoreCase(delResponse.get(1), "EXISTS") && !ImapResponseParser.equalsIgnoreCase(delResponse.get(1), "EXPUNGE"))) {
+                                || (!ImapResponseParser.equalsIgnoreCase(delResponse.get(1), "EXISTS") && !ImapResponseParser.equalsIgnoreCase(delResponse.get(1), "EXPUNGE")
+                                    && !ImapResponseParser.equalsIgnoreCase(delResponse.get(0), "VANISHED"))) {
                             iter.remove();
                         }
                     }
@@ -2807,6 +3209,25 @@ public class ImapStore extends Store {
             mIn = null;
             mOut = null;
             mSocket = null;
+
+            if (mCompressed) {
+                mCompressed = false;
+                if (K9.DEBUG) {
+                    Log.d(K9.LOG_TAG, "Compression for " + getLogId() + ": received " +
+                            mCompression.getBytesRead() + " bytes as " +
+                            mCompression.getWireBytesRead() + ", sent " +
+                            mCompression.getBytesWritten() + " bytes as " +
+                            mCompression.getWireBytesWritten());
+                }
+            }
+        }
+
+        /**
+         * @return The {@code COMPRESS=DEFLATE} layer of the current or last session, or
+         *         {@code null} if compression was never enabled on this connection.
+         */
+        public DeflateCompression getCompression() {
+            return mCompression;
         }
 
         public ImapResponse readResponse() throws IOException, MessagingException {
@@ -2826,6 +3247,21 @@ public class ImapStore extends Store {
             }
         }
 
+        /**
+         * Continues the current command with another line, e.g. after a literal.
+         */
+        public void writeLine(String line, boolean flush) throws IOException {
+            mOut.write(line.getBytes());
+            mOut.write('\r');
+            mOut.write('\n');
+            if (flush) {
+                mOut.flush();
+            }
+
+            if (K9.DEBUG && K9.DEBUG_PROTOCOL_IMAP)
+                Log.v(K9.LOG_TAG, getLogId() + ">>> " + line);
+        }
+
         public void sendContinuation(String continuation) throws IOException {
             mOut.write(continuation.getBytes());
             mOut.write('\r');
@@ -2895,6 +3331,27 @@ public class ImapStore extends Store {
 
             return readStatusResponse(tag, commandToLog, untaggedHandler);
         }
+
+        /**
+         * Streaming variant of {@link #executeSimpleCommand(String, boolean)}. The untagged
+         * responses are handed to {@code consumer} as they arrive instead of being returned.
+         *
+         * @return The tagged "OK" response.
+         */
+        public ImapResponse executeCommand(String command, boolean sensitive, ImapResponseConsumer consumer)
+        throws IOException, ImapException, MessagingException {
+            String commandToLog = command;
+            if (sensitive && !K9.DEBUG_SENSITIVE) {
+                commandToLog = "*sensitive*";
+            }
+
+            String tag = sendCommand(command, sensitive);
+            ImapResponse response = readUntaggedResponses(tag, consumer, null);
+            if (response.size() < 1 || !ImapResponseParser.equalsIgnoreCase(response.get(0), "OK")) {
+                throw new ImapException("Command: " + commandToLog + "; response: " + response.toString(), response.getAlertText());
+            }
+            return response;
+        }
     }
 
     static class ImapMessage extends MimeMessage {
@@ -3160,7 +3617,8 @@ public class ImapStore extends Store {
                 Object responseType = response.get(1);
                 if (ImapResponseParser.equalsIgnoreCase(responseType, "FETCH")
                         || ImapResponseParser.equalsIgnoreCase(responseType, "EXPUNGE")
-                        || ImapResponseParser.equalsIgnoreCase(responseType, "EXISTS")) {
+                        || ImapResponseParser.equalsIgnoreCase(responseType, "EXISTS")
+                        || isVanishedResponse(response)) {
                     if (K9.DEBUG)
                         Log.d(K9.LOG_TAG, "Storing response " + response + " for later processing");
 
@@ -3261,7 +3719,7 @@ public class ImapStore extends Store {
                 List<? extends Message> existingMessages = getMessagesFromUids(removeUids, true, null);
                 for (Message existingMessage : existingMessages) {
                     needsPoll.set(true);
-                    msgSeqUidMap.clear();
+                    clearMsgSeqUids();
                     String existingUid = existingMessage.getUid();
                     Log.w(K9.LOG_TAG, "Message with UID " + existingUid + " still exists on server, not expunging");
                     removeUids.remove(existingUid);
@@ -3285,6 +3743,66 @@ public class ImapStore extends Store {
         protected int processUntaggedResponse(long oldMessageCount, ImapResponse response, List<Long> flagSyncMsgSeqs, List<String> removeMsgUids) {
             super.handleUntaggedResponse(response);
             int messageCountDelta = 0;
+            if (response.mTag == null && isVanishedResponse(response)) {
+                long[] vanishedUids = getVanishedUidRanges(response);
+                long vanishedCount = ImapUtility.countImapSequenceValues(vanishedUids);
+                boolean earlier = response.get(1) instanceof ImapList;
+                if (!earlier) {
+                    messageCountDelta = (int) -vanishedCount;
+                }
+                if (K9.DEBUG)
+                    Log.d(K9.LOG_TAG, "Got untagged VANISHED for " + vanishedCount + " UIDs for " + getLogId());
+
+                // Look up the sequence numbers of the messages we know. Whichever is smaller, the
+                // vanished UIDs or the known messages, is iterated.
+                List<Long> vanishedMsgSeqs = new ArrayList<Long>();
+                if (vanishedCount <= uidMsgSeqMap.size()) {
+                    for (int i = 0; i < vanishedUids.length; i += 2) {
+                        for (long uid = vanishedUids[i]; uid <= vanishedUids[i + 1]; uid++) {
+                            Long msgSeq = uidMsgSeqMap.get(Long.toString(uid));
+                            if (msgSeq != null) {
+                                vanishedMsgSeqs.add(msgSeq);
+                            }
+                        }
+                    }
+                } else {
+                    for (Map.Entry<String, Long> entry : uidMsgSeqMap.entrySet()) {
+                        try {
+                            if (ImapUtility.isInImapSequenceRanges(vanishedUids, Long.parseLong(entry.getKey()))) {
+                                vanishedMsgSeqs.add(entry.getValue());
+                            }
+                        } catch (NumberFormatException e) {
+                            // Not a valid UID, so it can't have vanished
+                        }
+                    }
+                }
+
+                if (earlier) {
+                    // VANISHED (EARLIER) messages are already gone and don't affect the sequence
+                    // numbers of this session
+                    for (Long msgSeq : vanishedMsgSeqs) {
+                        String uid = msgSeqUidMap.remove(msgSeq);
+                        if (uid != null) {
+                            uidMsgSeqMap.remove(uid);
+                            removeMsgUids.add(uid);
+                        }
+                    }
+                } else {
+                    // The messages are expunged like with EXPUNGE responses, so the sequence
+                    // numbers of the following messages are reduced
+                    expungeMsgSeqs(vanishedMsgSeqs, flagSyncMsgSeqs, removeMsgUids);
+                }
+
+                if (vanishedMsgSeqs.size() < vanishedCount) {
+                    // The other messages are removed by the next poll. Without their sequence
+                    // numbers the ones of the following messages aren't known anymore, either.
+                    if (!earlier) {
+                        clearMsgSeqUids();
+                    }
+                    needsPoll.set(true);
+                }
+                return messageCountDelta;
+            }
             if (response.mTag == null && response.size() > 1) {
                 try {
                     Object responseType = response.get(1);
@@ -3307,43 +3825,9 @@ public class ImapStore extends Store {
                         if (K9.DEBUG)
                             Log.d(K9.LOG_TAG, "Got untagged EXPUNGE for msgseq " + msgSeq + " for " + getLogId());
 
-                        List<Long> newSeqs = new ArrayList<Long>();
-                        Iterator<Long> flagIter = flagSyncMsgSeqs.iterator();
-                        while (flagIter.hasNext()) {
-                            long flagMsg = flagIter.next();
-                            if (flagMsg >= msgSeq) {
-                                flagIter.remove();
-                                if (flagMsg > msgSeq) {
-                                    newSeqs.add(flagMsg--);
-                                }
-                            }
-                        }
-                        flagSyncMsgSeqs.addAll(newSeqs);
-
-
-                        List<Long> msgSeqs = new ArrayList<Long>(msgSeqUidMap.keySet());
-                        Collections.sort(msgSeqs);  // Have to do comparisons in order because of msgSeq reductions
-
-                        for (long msgSeqNum : msgSeqs) {
-                            if (K9.DEBUG) {
-                                Log.v(K9.LOG_TAG, "Comparing EXPUNGEd msgSeq " + msgSeq + " to " + msgSeqNum);
-                            }
-                            if (msgSeqNum == msgSeq) {
-                                String uid = msgSeqUidMap.get(msgSeqNum);
-                                if (K9.DEBUG) {
-                                    Log.d(K9.LOG_TAG, "Scheduling removal of UID " + uid + " because msgSeq " + msgSeqNum + " was expunged");
-                                }
-                                removeMsgUids.add(uid);
-                                msgSeqUidMap.remove(msgSeqNum);
-                            } else if (msgSeqNum > msgSeq) {
-                                String uid = msgSeqUidMap.get(msgSeqNum);
-                                if (K9.DEBUG) {
-                                    Log.d(K9.LOG_TAG, "Reducing msgSeq for UID " + uid + " from " + msgSeqNum + " to " + (msgSeqNum - 1));
-                                }
-                                msgSeqUidMap.remove(msgSeqNum);
-                                msgSeqUidMap.put(msgSeqNum - 1, uid);
-                            }
-                        }
+                        List<Long> msgSeqs = new ArrayList<Long>(1);
+                        msgSeqs.add(msgSeq);
+                        expungeMsgSeqs(msgSeqs, flagSyncMsgSeqs, removeMsgUids);
                     }
                 } catch (Exception e) {
                     Log.e(K9.LOG_TAG, "Could not handle untagged FETCH for " + getLogId(), e);
@@ -3352,6 +3836,49 @@ public class ImapStore extends Store {
             return messageCountDelta;
         }
 
+        /**
+         * Removes expunged messages and reduces the sequence numbers of the following messages.
+         *
+         * @param msgSeqs
+         *         The sequence numbers the expunged messages had before any of them was removed.
+         */
+        private void expungeMsgSeqs(List<Long> msgSeqs, List<Long> flagSyncMsgSeqs, List<String> removeMsgUids) {
+            if (msgSeqs.isEmpty()) {
+                return;
+            }
+            Collections.sort(msgSeqs);
+
+            // A message moves down by the number of expunged messages before it
+            List<Long> newSeqs = new ArrayList<Long>(flagSyncMsgSeqs.size());
+            for (long flagMsg : flagSyncMsgSeqs) {
+                int index = Collections.binarySearch(msgSeqs, flagMsg);
+                if (index < 0) {
+                    newSeqs.add(flagMsg - (-index - 1));
+                }
+            }
+            flagSyncMsgSeqs.clear();
+            flagSyncMsgSeqs.addAll(newSeqs);
+
+            Map<Long, String> renumbered = new HashMap<Long, String>();
+            for (Map.Entry<Long, String> entry : msgSeqUidMap.entrySet()) {
+                long msgSeqNum = entry.getKey();
+                String uid = entry.getValue();
+                int index = Collections.binarySearch(msgSeqs, msgSeqNum);
+                if (index >= 0) {
+                    if (K9.DEBUG) {
+                        Log.d(K9.LOG_TAG, "Scheduling removal of UID " + uid + " because msgSeq " + msgSeqNum + " was expunged");
+                    }
+                    removeMsgUids.add(uid);
+                } else {
+                    renumbered.put(msgSeqNum - (-index - 1), uid);
+                }
+            }
+
+            clearMsgSeqUids();
+            for (Map.Entry<Long, String> entry : renumbered.entrySet()) {
+                putMsgSeqUid(entry.getKey(), entry.getValue());
+            }
+        }
 
         private void pushMessages(List<Message> messages, boolean newArrivals) {
             RuntimeException holdException = null;
@@ -3405,7 +3932,7 @@ public class ImapStore extends Store {
                         boolean started = false;
                         Object responseType = response.get(1);
                         if (ImapResponseParser.equalsIgnoreCase(responseType, "EXISTS") || ImapResponseParser.equalsIgnoreCase(responseType, "EXPUNGE") ||
-                                ImapResponseParser.equalsIgnoreCase(responseType, "FETCH")) {
+                                ImapResponseParser.equalsIgnoreCase(responseType, "FETCH") || isVanishedResponse(response)) {
                             if (!started) {
                                 wakeLock.acquire(K9.PUSH_WAKE_LOCK_TIMEOUT);
                                 started = true;
@@ -3515,6 +4042,19 @@ public class ImapStore extends Store {
         void handleAsyncUntaggedResponse(ImapResponse respose);
     }
 
+    /**
+     * Receives the untagged responses of a command as soon as they have been read.
+     *
+     * <p>
+     * Used with {@link ImapConnection#executeCommand(String, boolean, ImapResponseConsumer)} so
+     * large results (SEARCH, FETCH) can be processed one response at a time instead of being
+     * collected in a list first.
+     * </p>
+     */
+    interface ImapResponseConsumer {
+        void handleResponse(ImapResponse response) throws IOException, MessagingException;
+    }
+
     protected static class ImapPushState {
         protected long uidNext;
         protected ImapPushState(long nUidNext) {
@@ -3550,7 +4090,7 @@ public class ImapStore extends Store {
 
     }
     private interface ImapSearcher {
-        List<ImapResponse> search() throws IOException, MessagingException;
+        void search(ImapResponseConsumer consumer) throws IOException, MessagingException;
     }
 
     private static class FetchBodyCallback implements ImapResponseParser.IImapResponseCallback {
@@ -1,6 +1,7 @@
 package com.fsck.k9.mail.store;
 
 import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -38,6 +39,22 @@ public class LockableDatabase {
         T doDbWork(SQLiteDatabase db) throws WrappedException, UnavailableStorageException;
     }
 
+    /**
+     * A {@link DbCallback} that only reads from the database.
+     *
+     * <p>
+     * In write-ahead logging mode such a callback never starts a transaction of its own, so
+     * {@link SQLiteDatabase} runs its queries on one of the read-only connections of its
+     * connection pool. That way it isn't blocked by a long write transaction of another thread,
+     * e.g. while messages are stored during synchronization. If the current thread is already in
+     * a transaction the callback is executed as part of it, like any other callback.
+     * </p>
+     *
+     * @see #isWriteAheadLoggingEnabled()
+     */
+    public static interface ReadOnlyDbCallback<T> extends DbCallback<T> {
+    }
+
     public static interface SchemaDefinition {
         int getVersion();
 
@@ -127,6 +144,24 @@ public class LockableDatabase {
 
     private final StorageListener mStorageListener = new StorageListener();
 
+    /**
+     * Read callbacks that take longer than this, including the time spent waiting for the
+     * database, are logged in debug mode.
+     */
+    private static final long SLOW_READ_MILLIS = 100;
+
+    /**
+     * Whether {@link #mDb} uses write-ahead logging.
+     */
+    private volatile boolean mWriteAheadLogging;
+
+    /**
+     * Incremented whenever the database may have been modified.
+     *
+     * @see #getWriteGeneration()
+     */
+    private final AtomicLong mWriteGeneration = new AtomicLong();
+
     private Application mApplication;
 
     /**
@@ -271,13 +306,22 @@ public class LockableDatabase {
      * @throws UnavailableStorageException
      */
     public <T> T execute(final boolean transactional, final DbCallback<T> callback) throws UnavailableStorageException {
+        final boolean readOnly = callback instanceof ReadOnlyDbCallback;
+        final long start = (K9.DEBUG && readOnly) ? System.currentTimeMillis() : 0;
+
         lockRead();
-        final boolean doTransaction = transactional && inTransaction.get() == null;
+        final boolean doTransaction = transactional && inTransaction.get() == null &&
+                !(readOnly && mWriteAheadLogging);
         try {
             final boolean debug = K9.DEBUG;
             if (doTransaction) {
                 inTransaction.set(Boolean.TRUE);
-                mDb.beginTransaction();
+                if (mWriteAheadLogging) {
+                    // Exclusive transactions would needlessly lock out the reading connections
+                    mDb.beginTransactionNonExclusive();
+                } else {
+                    mDb.beginTransaction();
+                }
             }
             try {
                 final T result = callback.doDbWork(mDb);
@@ -305,9 +349,51 @@ public class LockableDatabase {
                 inTransaction.set(null);
             }
             unlockRead();
+
+            // Only after the transaction has ended, so readers that see the new value also see
+            // the changes
+            if (!readOnly) {
+                mWriteGeneration.incrementAndGet();
+            }
+
+            if (start != 0) {
+                long duration = System.currentTimeMillis() - start;
+                if (duration >= SLOW_READ_MILLIS) {
+                    Log.d(K9.LOG_TAG, "LockableDatabase: Read took " + duration + "ms / " +
+                            new Exception().getStackTrace()[1].toString());
+                }
+            }
         }
     }
 
+    /**
+     * Returns whether the database uses write-ahead logging.
+     *
+     * <p>
+     * Write-ahead logging is enabled for databases on internal storage on Android 4.1 and
+     * newer, where {@link SQLiteDatabase} keeps a pool of read-only connections next to the
+     * connection used for writing. Then queries outside of a transaction, e.g. those of
+     * {@link ReadOnlyDbCallback}s, don't have to wait for write transactions to finish.
+     * </p>
+     */
+    public boolean isWriteAheadLoggingEnabled() {
+        return mWriteAheadLogging;
+    }
+
+    /**
+     * Returns a number that changes whenever the database may have been modified.
+     *
+     * <p>
+     * The number is incremented after every callback other than a {@link ReadOnlyDbCallback} has
+     * been executed, including the end of its transaction, and whenever the database is
+     * (re)opened. Caches of data derived from the database can compare it to the value read
+     * before they were filled to find out whether they are still valid.
+     * </p>
+     */
+    public long getWriteGeneration() {
+        return mWriteGeneration.get();
+    }
+
     /**
      * @param newProviderId
      *            Never <code>null</code>.
@@ -380,12 +466,13 @@ public class LockableDatabase {
             } catch (SQLiteException e) {
                 // try to gracefully handle DB corruption - see issue 2537
                 Log.w(K9.LOG_TAG, "Unable to open DB " + databaseFile + " - removing file and retrying", e);
-                databaseFile.delete();
+                deleteDatabase(databaseFile);
                 doOpenOrCreateDb(databaseFile);
             }
             if (mDb.getVersion() != mSchemaDefinition.getVersion()) {
                 mSchemaDefinition.doDbUpgrade(mDb);
             }
+            mWriteGeneration.incrementAndGet();
         } finally {
             unlockWrite();
         }
@@ -396,9 +483,31 @@ public class LockableDatabase {
             // internal storage
             mDb = mApplication.openOrCreateDatabase(databaseFile.getName(), Context.MODE_PRIVATE,
                     null);
+            mWriteAheadLogging = enableWriteAheadLogging(mDb);
         } else {
-            // external storage
+            // external storage, which may not support the shared memory file needed for WAL
             mDb = SQLiteDatabase.openOrCreateDatabase(databaseFile, null);
+            mWriteAheadLogging = false;
+        }
+
+        if (K9.DEBUG) {
+            Log.d(K9.LOG_TAG, "LockableDatabase: Opened DB " + uUid + ", write-ahead logging: " +
+                    mWriteAheadLogging);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static boolean enableWriteAheadLogging(SQLiteDatabase db) {
+        // Before Android 4.1 SQLiteDatabase didn't use a pool of connections for reading
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return false;
+        }
+
+        try {
+            return db.enableWriteAheadLogging();
+        } catch (SQLiteException e) {
+            Log.w(K9.LOG_TAG, "LockableDatabase: Unable to enable write-ahead logging", e);
+            return false;
         }
     }
 
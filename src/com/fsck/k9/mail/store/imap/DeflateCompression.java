@@ -0,0 +1,229 @@
+package com.fsck.k9.mail.store.imap;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.jcraft.jzlib.JZlib;
+import com.jcraft.jzlib.ZStream;
+import com.jcraft.jzlib.ZStreamException;
+
+/**
+ * The {@code COMPRESS=DEFLATE} layer (RFC 4978) of an IMAP connection.
+ *
+ * <p>
+ * An instance belongs to one connection and is used again every time the connection is
+ * reopened. The {@link Inflater} is reset instead of allocating new native zlib state for each
+ * session.
+ * </p>
+ * <p>
+ * Outgoing data is compressed without flushing the deflater. Only {@link OutputStream#flush()},
+ * which the connection calls once a command or literal is complete, ends the current block with
+ * {@code Z_SYNC_FLUSH} so the server can process what was sent. Writing a large literal doesn't
+ * cause a flush (and a new deflate block) per buffer.
+ * </p>
+ * <p>
+ * The number of bytes on the wire and the number of uncompressed bytes are counted for the
+ * current session in both directions. They stay available after the connection was closed,
+ * until it is reopened.
+ * </p>
+ */
+public class DeflateCompression {
+    private final int mInputBufferSize;
+    private final int mOutputBufferSize;
+    private final int mLevel;
+
+    private Inflater mInflater;
+    private DeflateOutputStream mDeflateStream;
+
+    /**
+     * @param inputBufferSize
+     *         Number of compressed bytes to read from the server at a time.
+     * @param outputBufferSize
+     *         Number of bytes to collect before they are compressed, and number of compressed
+     *         bytes written to the server at a time.
+     * @param level
+     *         The compression level, e.g. {@link JZlib#Z_BEST_SPEED}.
+     */
+    public DeflateCompression(int inputBufferSize, int outputBufferSize, int level) {
+        if (inputBufferSize < 1 || outputBufferSize < 1) {
+            throw new IllegalArgumentException("Invalid buffer sizes " + inputBufferSize + "/" +
+                    outputBufferSize);
+        }
+        mInputBufferSize = inputBufferSize;
+        mOutputBufferSize = outputBufferSize;
+        mLevel = level;
+    }
+
+    /**
+     * Starts decompressing the data received from the server.
+     *
+     * <p>
+     * Closing the returned stream closes {@code in}, but keeps the inflater for the next session.
+     * </p>
+     */
+    public InputStream decompress(InputStream in) {
+        if (mInflater == null) {
+            mInflater = new Inflater(true);
+        } else {
+            mInflater.reset();
+        }
+
+        return new InflaterInputStream(in, mInflater, mInputBufferSize) {
+            @Override
+            public void close() throws IOException {
+                // Some implementations end the inflater here, even if it was passed in
+                in.close();
+            }
+        };
+    }
+
+    /**
+     * Starts compressing the data sent to the server.
+     *
+     * <p>
+     * Closing the returned stream flushes the remaining data, releases the deflater and closes
+     * {@code out}.
+     * </p>
+     */
+    public OutputStream compress(OutputStream out) throws IOException {
+        if (mDeflateStream != null) {
+            mDeflateStream.end();
+        }
+        mDeflateStream = new DeflateOutputStream(out, mLevel, mOutputBufferSize);
+        return new BufferedOutputStream(mDeflateStream, mOutputBufferSize);
+    }
+
+    /**
+     * @return The number of compressed bytes received in the current session.
+     */
+    public long getWireBytesRead() {
+        return (mInflater == null) ? 0 : mInflater.getBytesRead();
+    }
+
+    /**
+     * @return The number of bytes received in the current session after decompression.
+     */
+    public long getBytesRead() {
+        return (mInflater == null) ? 0 : mInflater.getBytesWritten();
+    }
+
+    /**
+     * @return The number of compressed bytes sent in the current session.
+     */
+    public long getWireBytesWritten() {
+        return (mDeflateStream == null) ? 0 : mDeflateStream.getWireBytesWritten();
+    }
+
+    /**
+     * @return The number of bytes sent in the current session before compression.
+     */
+    public long getBytesWritten() {
+        return (mDeflateStream == null) ? 0 : mDeflateStream.getBytesWritten();
+    }
+
+    /**
+     * Compresses data with jzlib, which unlike {@link java.util.zip.Deflater} on older Android
+     * versions supports {@code Z_SYNC_FLUSH}.
+     */
+    static class DeflateOutputStream extends OutputStream {
+        private final OutputStream mOut;
+        private final ZStream mStream = new ZStream();
+        private final byte[] mBuffer;
+        private final byte[] mSingleByte = new byte[1];
+        private boolean mEnded;
+        private long mBytesWritten;
+        private long mWireBytesWritten;
+
+        DeflateOutputStream(OutputStream out, int level, int bufferSize) throws IOException {
+            mOut = out;
+            mBuffer = new byte[bufferSize];
+            if (mStream.deflateInit(level, true) != JZlib.Z_OK) {
+                throw new ZStreamException("deflateInit: " + mStream.msg);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mSingleByte[0] = (byte) b;
+            write(mSingleByte, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int length) throws IOException {
+            if (offset < 0 || length < 0 || offset + length > b.length) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (length == 0) {
+                return;
+            }
+
+            mStream.next_in = b;
+            mStream.next_in_index = offset;
+            mStream.avail_in = length;
+            deflate(JZlib.Z_NO_FLUSH);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!mEnded) {
+                mStream.avail_in = 0;
+                deflate(JZlib.Z_SYNC_FLUSH);
+            }
+            mOut.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                end();
+                mOut.close();
+            }
+        }
+
+        long getBytesWritten() {
+            return mEnded ? mBytesWritten : mStream.total_in;
+        }
+
+        long getWireBytesWritten() {
+            return mEnded ? mWireBytesWritten : mStream.total_out;
+        }
+
+        void end() {
+            if (!mEnded) {
+                mBytesWritten = mStream.total_in;
+                mWireBytesWritten = mStream.total_out;
+                mStream.deflateEnd();
+                mEnded = true;
+            }
+        }
+
+        private void deflate(int flush) throws IOException {
+            if (mEnded) {
+                throw new IOException("Stream has been closed");
+            }
+
+            do {
+                mStream.next_out = mBuffer;
+                mStream.next_out_index = 0;
+                mStream.avail_out = mBuffer.length;
+
+                // Z_BUF_ERROR only means there was nothing left to do
+                int result = mStream.deflate(flush);
+                if (result != JZlib.Z_OK && result != JZlib.Z_BUF_ERROR) {
+                    throw new ZStreamException("deflating: " + mStream.msg);
+                }
+
+                int count = mBuffer.length - mStream.avail_out;
+                if (count > 0) {
+                    mOut.write(mBuffer, 0, count);
+                }
+            } while (mStream.avail_in > 0 || mStream.avail_out == 0);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.fsck.k9.mail.store.imap;
+
+/**
+ * Decides how many messages to request with a single {@code UID FETCH} command.
+ *
+ * <p>
+ * The window starts out at a size that depends on what is being fetched and is then adjusted
+ * after each completed window, based on the measured time and number of bytes per message. The
+ * goal is to keep each command's response around {@link #getTargetMillis()} milliseconds and
+ * {@link #getTargetBytes()} bytes, so that on fast links few round trips are needed while on
+ * slow links a single window doesn't monopolize the connection for too long.
+ * </p>
+ */
+public class FetchWindowSizer {
+    /**
+     * Weight of the most recent window in the moving averages.
+     */
+    private static final double SMOOTHING_FACTOR = 0.5;
+
+    /**
+     * The window never grows by more than this factor from one command to the next.
+     */
+    private static final int MAX_GROWTH_FACTOR = 2;
+
+    private final int mMinSize;
+    private final int mMaxSize;
+    private final long mTargetMillis;
+    private final long mTargetBytes;
+
+    private int mWindowSize;
+    private double mMillisPerMessage = -1;
+    private double mBytesPerMessage = -1;
+
+    public FetchWindowSizer(int initialSize, int minSize, int maxSize, long targetMillis,
+            long targetBytes) {
+        if (minSize < 1 || maxSize < minSize) {
+            throw new IllegalArgumentException("Invalid window size limits " + minSize + "/" + maxSize);
+        }
+        mMinSize = minSize;
+        mMaxSize = maxSize;
+        mTargetMillis = targetMillis;
+        mTargetBytes = targetBytes;
+        mWindowSize = clamp(initialSize);
+    }
+
+    /**
+     * @return The number of messages to request with the next command.
+     */
+    public int getWindowSize() {
+        return mWindowSize;
+    }
+
+    public long getTargetMillis() {
+        return mTargetMillis;
+    }
+
+    public long getTargetBytes() {
+        return mTargetBytes;
+    }
+
+    /**
+     * Records the cost of a completed window and recomputes the window size.
+     *
+     * @param messageCount
+     *         Number of messages that were requested.
+     * @param bytes
+     *         Number of bytes received for the window.
+     * @param elapsedMillis
+     *         Time the server took to deliver the window.
+     */
+    public void windowFinished(int messageCount, long bytes, long elapsedMillis) {
+        if (messageCount <= 0) {
+            return;
+        }
+
+        mMillisPerMessage = smooth(mMillisPerMessage, Math.max(elapsedMillis, 1) / (double) messageCount);
+        mBytesPerMessage = smooth(mBytesPerMessage, Math.max(bytes, 1) / (double) messageCount);
+
+        double byTime = mTargetMillis / mMillisPerMessage;
+        double byBytes = mTargetBytes / mBytesPerMessage;
+        int size = (int) Math.min(byTime, byBytes);
+
+        mWindowSize = clamp(Math.min(size, mWindowSize * MAX_GROWTH_FACTOR));
+    }
+
+    private static double smooth(double average, double value) {
+        if (average < 0) {
+            return value;
+        }
+        return SMOOTHING_FACTOR * value + (1 - SMOOTHING_FACTOR) * average;
+    }
+
+    private int clamp(int size) {
+        return Math.max(mMinSize, Math.min(mMaxSize, size));
+    }
+}
@@ -20,9 +20,16 @@ package com.fsck.k9.mail.store.imap;
 import android.util.Log;
 
 import com.fsck.k9.K9;
+import com.fsck.k9.mail.store.ImapResponseParser;
+import com.fsck.k9.mail.store.ImapResponseParser.ImapList;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Utility methods for use with IMAP.
@@ -112,6 +119,181 @@ public class ImapUtility {
         return list;
     }
 
+    /**
+     * Gets the ranges of a sequence set per RFC 3501 without expanding them.
+     *
+     * @param set
+     *         The sequence set string as received by the server.
+     *
+     * @return The first and last number of each range, i.e. {@code {first1, last1, first2,
+     *         last2, ...}}. The ranges are sorted, overlapping and adjacent ranges are merged.
+     *         Invalid items are skipped.
+     */
+    public static long[] getImapSequenceRanges(String set) {
+        List<long[]> ranges = new ArrayList<long[]>();
+        if (set != null) {
+            for (String item : set.split(",")) {
+                try {
+                    int colonPos = item.indexOf(':');
+                    long first = Long.parseLong((colonPos == -1) ? item : item.substring(0, colonPos));
+                    long last = (colonPos == -1) ? first : Long.parseLong(item.substring(colonPos + 1));
+                    if (is32bitValue(first) && is32bitValue(last)) {
+                        ranges.add(new long[] { Math.min(first, last), Math.max(first, last) });
+                    } else {
+                        Log.d(K9.LOG_TAG, "Invalid range: " + item);
+                    }
+                } catch (NumberFormatException e) {
+                    Log.d(K9.LOG_TAG, "Invalid range value: " + item, e);
+                }
+            }
+        }
+
+        Collections.sort(ranges, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] lhs, long[] rhs) {
+                return (lhs[0] < rhs[0]) ? -1 : ((lhs[0] == rhs[0]) ? 0 : 1);
+            }
+        });
+
+        long[] result = new long[ranges.size() * 2];
+        int length = 0;
+        for (long[] range : ranges) {
+            if (length > 0 && range[0] <= result[length - 1] + 1) {
+                result[length - 1] = Math.max(result[length - 1], range[1]);
+            } else {
+                result[length++] = range[0];
+                result[length++] = range[1];
+            }
+        }
+        return Arrays.copyOf(result, length);
+    }
+
+    /**
+     * @param ranges
+     *         Ranges as returned by {@link #getImapSequenceRanges(String)}.
+     *
+     * @return {@code true} if {@code value} is part of one of the ranges.
+     */
+    public static boolean isInImapSequenceRanges(long[] ranges, long value) {
+        // Find the last range starting at or before the value
+        int low = 0;
+        int high = ranges.length / 2 - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (ranges[middle * 2] <= value) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high >= 0 && value <= ranges[high * 2 + 1];
+    }
+
+    /**
+     * @param ranges
+     *         Ranges as returned by {@link #getImapSequenceRanges(String)}.
+     *
+     * @return The number of values in the ranges.
+     */
+    public static long countImapSequenceValues(long[] ranges) {
+        long count = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            count += ranges[i + 1] - ranges[i] + 1;
+        }
+        return count;
+    }
+
+    /**
+     * Gets the UIDs assigned to appended messages from an {@code APPENDUID} response code
+     * (RFC 4315), e.g.
+     *
+     * <pre>
+     * 11 OK [APPENDUID 2 238268:238269] APPEND completed
+     * </pre>
+     *
+     * @param response
+     *         The tagged response to the {@code APPEND} command.
+     * @param count
+     *         The number of appended messages.
+     *
+     * @return The UIDs in the order the messages were appended, or {@code null} if the response
+     *         doesn't contain a valid {@code APPENDUID} response code for {@code count} messages.
+     */
+    public static List<String> getAppendUids(ImapList response, int count) {
+        ImapList responseCode = getResponseCode(response, "APPENDUID");
+        if (responseCode == null || responseCode.size() < 3) {
+            return null;
+        }
+
+        List<String> uids = getImapSequenceValues(getStringOrNull(responseCode, 2));
+        if (uids.size() != count) {
+            Log.d(K9.LOG_TAG, "APPENDUID has " + uids.size() + " UIDs for " + count + " messages");
+            return null;
+        }
+        return uids;
+    }
+
+    /**
+     * Gets the mapping of source UIDs to destination UIDs from the {@code COPYUID} response codes
+     * (RFC 4315) of a {@code UID COPY} command, e.g.
+     *
+     * <pre>
+     * 24 OK [COPYUID 38505 304,319:320 3956:3958] Success
+     * </pre>
+     *
+     * <p>
+     * Usually the response code is part of the tagged response, but some servers send it with an
+     * untagged {@code OK} response. All responses are searched, so the responses of several
+     * {@code UID COPY} commands can be passed at once.
+     * </p>
+     *
+     * @return The new UIDs keyed by the source UIDs. The map is empty if there was no valid
+     *         {@code COPYUID} response code.
+     */
+    public static Map<String, String> getCopyUidMap(List<? extends ImapList> responses) {
+        Map<String, String> uidMap = new HashMap<String, String>();
+        for (ImapList response : responses) {
+            ImapList responseCode = getResponseCode(response, "COPYUID");
+            if (responseCode == null || responseCode.size() < 4) {
+                continue;
+            }
+
+            List<String> srcUids = getImapSequenceValues(getStringOrNull(responseCode, 2));
+            List<String> destUids = getImapSequenceValues(getStringOrNull(responseCode, 3));
+            if (srcUids.size() != destUids.size()) {
+                Log.d(K9.LOG_TAG, "COPYUID has " + srcUids.size() + " source UIDs but " +
+                        destUids.size() + " destination UIDs");
+                continue;
+            }
+
+            for (int i = 0, count = srcUids.size(); i < count; i++) {
+                uidMap.put(srcUids.get(i), destUids.get(i));
+            }
+        }
+        return uidMap;
+    }
+
+    /**
+     * Returns the response code (the bracketed list following "OK") with the given name.
+     */
+    private static ImapList getResponseCode(ImapList response, String name) {
+        if (response.size() < 2 || !ImapResponseParser.equalsIgnoreCase(response.get(0), "OK") ||
+                !(response.get(1) instanceof ImapList)) {
+            return null;
+        }
+
+        ImapList responseCode = response.getList(1);
+        if (responseCode.isEmpty() || !ImapResponseParser.equalsIgnoreCase(responseCode.get(0), name)) {
+            return null;
+        }
+        return responseCode;
+    }
+
+    private static String getStringOrNull(ImapList list, int index) {
+        Object value = list.get(index);
+        return (value instanceof String) ? (String) value : null;
+    }
+
     private static boolean isNumberValid(String number) {
         try {
             long value = Long.parseLong(number);
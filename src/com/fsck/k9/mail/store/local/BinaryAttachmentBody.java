@@ -10,7 +10,9 @@ import org.apache.james.mime4j.util.MimeUtil;
 
 import com.fsck.k9.mail.Body;
 import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.filter.Base64EncoderOutputStream;
 import com.fsck.k9.mail.filter.Base64OutputStream;
+import com.fsck.k9.mail.filter.SizeCountingOutputStream;
 
 /**
  * Superclass for attachments that contain binary data.
@@ -24,11 +26,19 @@ public abstract class BinaryAttachmentBody implements Body {
 
     @Override
     public void writeTo(OutputStream out) throws IOException, MessagingException {
+        if (out instanceof SizeCountingOutputStream) {
+            long encodedSize = getEncodedSize();
+            if (encodedSize >= 0) {
+                ((SizeCountingOutputStream) out).skip(encodedSize);
+                return;
+            }
+        }
+
         InputStream in = getInputStream();
         try {
             boolean closeStream = false;
             if (MimeUtil.isBase64Encoding(mEncoding)) {
-                out = new Base64OutputStream(out);
+                out = new Base64EncoderOutputStream(out);
                 closeStream = true;
             } else if (MimeUtil.isQuotedPrintableEncoded(mEncoding)){
                 out = new QuotedPrintableOutputStream(out, false);
@@ -55,4 +65,27 @@ public abstract class BinaryAttachmentBody implements Body {
     public String getEncoding() {
         return mEncoding;
     }
+
+    /**
+     * Returns the number of bytes {@link #writeTo(OutputStream)} writes without encoding the data.
+     *
+     * @return The size of the encoded data, or -1 if it isn't known.
+     */
+    public long getEncodedSize() throws MessagingException {
+        if (!MimeUtil.isBase64Encoding(mEncoding)) {
+            return -1;
+        }
+
+        long size = getSize();
+        return (size >= 0) ? Base64OutputStream.getEncodedLength(size) : -1;
+    }
+
+    /**
+     * Returns the size of the data returned by {@link #getInputStream()}.
+     *
+     * @return The size in bytes, or -1 if it isn't known without reading the data.
+     */
+    protected long getSize() throws MessagingException {
+        return -1;
+    }
 }
\ No newline at end of file
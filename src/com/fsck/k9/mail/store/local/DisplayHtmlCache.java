@@ -0,0 +1,56 @@
+package com.fsck.k9.mail.store.local;
+
+import android.support.v4.util.LruCache;
+
+import com.fsck.k9.helper.HtmlConverter;
+
+/**
+ * Cache of the HTML created on demand for plain text messages.
+ *
+ * <p>
+ * Messages that consist of a single {@code text/plain} part are stored without
+ * {@code html_content}. The HTML used to display them is created from {@code text_content} when
+ * the message is viewed and kept here, keyed by the message's database ID. There's one cache per
+ * {@link LocalStore}, i.e. per account.
+ * </p>
+ * <p>
+ * Code that writes {@code text_content} has to call {@link #invalidate(long)}.
+ * </p>
+ */
+class DisplayHtmlCache {
+    private final LruCache<Long, String> mCache;
+
+    /**
+     * @param maxSize
+     *         Maximum number of characters of HTML kept in the cache.
+     */
+    DisplayHtmlCache(int maxSize) {
+        mCache = new LruCache<Long, String>(maxSize) {
+            @Override
+            protected int sizeOf(Long key, String value) {
+                return value.length();
+            }
+        };
+    }
+
+    /**
+     * Returns the HTML to display for a plain text message.
+     *
+     * @param messageId
+     *         The database ID of the message.
+     * @param text
+     *         The {@code text_content} of the message.
+     */
+    String get(long messageId, String text) {
+        String html = mCache.get(messageId);
+        if (html == null) {
+            html = HtmlConverter.convertEmoji2Img(HtmlConverter.textToHtml(text));
+            mCache.put(messageId, html);
+        }
+        return html;
+    }
+
+    void invalidate(long messageId) {
+        mCache.remove(messageId);
+    }
+}
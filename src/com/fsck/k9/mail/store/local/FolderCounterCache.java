@@ -0,0 +1,78 @@
+package com.fsck.k9.mail.store.local;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.fsck.k9.mail.store.LockableDatabase;
+import com.fsck.k9.mail.store.LockableDatabase.ReadOnlyDbCallback;
+import com.fsck.k9.mail.store.LockableDatabase.WrappedException;
+import com.fsck.k9.mail.store.UnavailableStorageException;
+
+/**
+ * In-memory copy of the unread and flagged message counts of all folders.
+ *
+ * <p>
+ * The counts are kept up to date in the {@code folders} table by triggers (see
+ * {@link StoreSchemaDefinition}). The cache reads the counts of all folders with one query and
+ * uses them until the database has been written to, see
+ * {@link LockableDatabase#getWriteGeneration()}. Asking for the counts of every folder in a list
+ * therefore doesn't cause a query per folder. There's one cache per {@link LocalStore}, i.e. per
+ * account.
+ * </p>
+ */
+class FolderCounterCache {
+    private static final int[] NO_COUNTS = { 0, 0 };
+
+    private final LockableDatabase mDatabase;
+
+    private Map<Long, int[]> mCounts;
+    private long mGeneration;
+
+    FolderCounterCache(LockableDatabase database) {
+        mDatabase = database;
+    }
+
+    int getUnreadCount(long folderId) throws UnavailableStorageException {
+        return getCounts(folderId)[0];
+    }
+
+    int getFlaggedCount(long folderId) throws UnavailableStorageException {
+        return getCounts(folderId)[1];
+    }
+
+    private synchronized int[] getCounts(long folderId) throws UnavailableStorageException {
+        // Read the generation first, so changes made while loading invalidate the result
+        long generation = mDatabase.getWriteGeneration();
+        if (mCounts == null || mGeneration != generation) {
+            mCounts = loadCounts();
+            mGeneration = generation;
+        }
+
+        int[] counts = mCounts.get(folderId);
+        return (counts != null) ? counts : NO_COUNTS;
+    }
+
+    private Map<Long, int[]> loadCounts() throws UnavailableStorageException {
+        return mDatabase.execute(false, new ReadOnlyDbCallback<Map<Long, int[]>>() {
+            @Override
+            public Map<Long, int[]> doDbWork(final SQLiteDatabase db) throws WrappedException {
+                Map<Long, int[]> counts = new HashMap<Long, int[]>();
+                Cursor cursor = db.query("folders",
+                        new String[] { "id", "unread_count", "flagged_count" },
+                        null, null, null, null, null);
+                try {
+                    while (cursor.moveToNext()) {
+                        counts.put(cursor.getLong(0),
+                                new int[] { cursor.getInt(1), cursor.getInt(2) });
+                    }
+                } finally {
+                    cursor.close();
+                }
+                return counts;
+            }
+        });
+    }
+}
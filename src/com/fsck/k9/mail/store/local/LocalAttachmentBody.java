@@ -2,10 +2,12 @@ package com.fsck.k9.mail.store.local;
 
 import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 
 import android.app.Application;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 
 import com.fsck.k9.mail.MessagingException;
 
@@ -16,6 +18,11 @@ public class LocalAttachmentBody extends BinaryAttachmentBody {
     private Application mApplication;
     private Uri mUri;
 
+    /**
+     * Size of the attachment file once it has been determined, -1 before that.
+     */
+    private long mSize = -1;
+
     public LocalAttachmentBody(Uri uri, Application application) {
         mApplication = application;
         mUri = uri;
@@ -37,4 +44,33 @@ public class LocalAttachmentBody extends BinaryAttachmentBody {
     public Uri getContentUri() {
         return mUri;
     }
+
+    @Override
+    protected long getSize() throws MessagingException {
+        if (mSize >= 0) {
+            return mSize;
+        }
+
+        try {
+            ParcelFileDescriptor fd = mApplication.getContentResolver().openFileDescriptor(mUri, "r");
+            if (fd == null) {
+                return -1;
+            }
+            try {
+                long size = fd.getStatSize();
+                if (size >= 0) {
+                    // Attachment files don't change once they have been downloaded
+                    mSize = size;
+                }
+                return size;
+            } finally {
+                fd.close();
+            }
+        } catch (FileNotFoundException e) {
+            // Not downloaded (yet). getInputStream() returns an empty stream in this case.
+            return 0;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
 }
\ No newline at end of file
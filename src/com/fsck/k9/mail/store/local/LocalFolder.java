@@ -28,6 +28,7 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.util.Log;
 
@@ -58,12 +59,29 @@ import com.fsck.k9.mail.internet.MimeUtility.ViewableContainer;
 import com.fsck.k9.mail.store.StorageManager;
 import com.fsck.k9.mail.store.UnavailableStorageException;
 import com.fsck.k9.mail.store.LockableDatabase.DbCallback;
+import com.fsck.k9.mail.store.LockableDatabase.ReadOnlyDbCallback;
 import com.fsck.k9.mail.store.LockableDatabase.WrappedException;
+import com.fsck.k9.mail.store.local.LocalStore.BatchSetSelection;
 import com.fsck.k9.provider.AttachmentProvider;
 
 public class LocalFolder extends Folder implements Serializable {
 
     private static final long serialVersionUID = -1973296520918624767L;
+
+    private static final String[] MESSAGE_COLUMNS = {
+        "uid", "subject", "sender_list", "date", "flags", "deleted", "read", "flagged",
+        "answered", "forwarded", "folder_id", "to_list", "cc_list", "bcc_list", "html_content",
+        "text_content", "preview", "reply_to_list", "attachment_count", "internal_date",
+        "mime_type", "empty", "message_id"
+    };
+
+    private static final String INSERT_MESSAGE_SQL = buildInsertSql("messages", MESSAGE_COLUMNS);
+
+    private static final String INSERT_THREAD_SQL =
+            "INSERT INTO threads (message_id, root, parent) VALUES (?, ?, ?)";
+
+    private static final String INSERT_HEADER_SQL =
+            "INSERT INTO headers (message_id, name, value) VALUES (?, ?, ?)";
     
     private final LocalStore localStore;
 
@@ -77,6 +95,10 @@ public class LocalFolder extends Folder implements Serializable {
     private FolderClass mNotifyClass = FolderClass.INHERITED;
     private boolean mInTopGroup = false;
     private String mPushState = null;
+    private long mUidValidity = -1;
+    private long mHighestModSeq = -1;
+    private int mSyncedMessageCount = -1;
+    private long mSyncedUidNext = -1;
     private boolean mIntegrate = false;
     // mLastUid is used during syncs. It holds the highest UID within the local folder so we
     // know whether or not an unread message added to the local folder is actually "new" or not.
@@ -119,7 +141,8 @@ public class LocalFolder extends Folder implements Serializable {
         }
 
         try {
-            this.localStore.database.execute(false, new DbCallback<Void>() {
+            // A missing folder is created by a callback of its own
+            this.localStore.database.execute(false, new ReadOnlyDbCallback<Void>() {
                 @Override
                 public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
                     Cursor cursor = null;
@@ -160,6 +183,10 @@ public class LocalFolder extends Folder implements Serializable {
         mName = cursor.getString(LocalStore.FOLDER_NAME_INDEX);
         mVisibleLimit = cursor.getInt(LocalStore.FOLDER_VISIBLE_LIMIT_INDEX);
         mPushState = cursor.getString(LocalStore.FOLDER_PUSH_STATE_INDEX);
+        mUidValidity = cursor.getLong(LocalStore.FOLDER_UID_VALIDITY_INDEX);
+        mHighestModSeq = cursor.getLong(LocalStore.FOLDER_HIGHEST_MOD_SEQ_INDEX);
+        mSyncedMessageCount = cursor.getInt(LocalStore.FOLDER_SYNCED_MESSAGE_COUNT_INDEX);
+        mSyncedUidNext = cursor.getLong(LocalStore.FOLDER_SYNCED_UID_NEXT_INDEX);
         super.setStatus(cursor.getString(LocalStore.FOLDER_STATUS_INDEX));
         // Only want to set the local variable stored in the super class.  This class
         // does a DB update on setLastChecked
@@ -195,7 +222,7 @@ public class LocalFolder extends Folder implements Serializable {
 
     @Override
     public boolean exists() throws MessagingException {
-        return this.localStore.database.execute(false, new DbCallback<Boolean>() {
+        return this.localStore.database.execute(false, new ReadOnlyDbCallback<Boolean>() {
             @Override
             public Boolean doDbWork(final SQLiteDatabase db) throws WrappedException {
                 Cursor cursor = null;
@@ -251,7 +278,7 @@ public class LocalFolder extends Folder implements Serializable {
     @Override
     public int getMessageCount() throws MessagingException {
         try {
-            return this.localStore.database.execute(false, new DbCallback<Integer>() {
+            return this.localStore.database.execute(false, new ReadOnlyDbCallback<Integer>() {
                 @Override
                 public Integer doDbWork(final SQLiteDatabase db) throws WrappedException {
                     try {
@@ -283,29 +310,7 @@ public class LocalFolder extends Folder implements Serializable {
             open(OPEN_MODE_RW);
         }
 
-        try {
-            return this.localStore.database.execute(false, new DbCallback<Integer>() {
-                @Override
-                public Integer doDbWork(final SQLiteDatabase db) throws WrappedException {
-                    int unreadMessageCount = 0;
-                    Cursor cursor = db.query("messages", new String[] { "COUNT(id)" },
-                            "folder_id = ? AND (empty IS NULL OR empty != 1) AND deleted = 0 AND read=0",
-                            new String[] { Long.toString(mFolderId) }, null, null, null);
-
-                    try {
-                        if (cursor.moveToFirst()) {
-                            unreadMessageCount = cursor.getInt(0);
-                        }
-                    } finally {
-                        cursor.close();
-                    }
-
-                    return unreadMessageCount;
-                }
-            });
-        } catch (WrappedException e) {
-            throw(MessagingException) e.getCause();
-        }
+        return this.localStore.folderCounterCache.getUnreadCount(mFolderId);
     }
 
     @Override
@@ -314,29 +319,7 @@ public class LocalFolder extends Folder implements Serializable {
             open(OPEN_MODE_RW);
         }
 
-        try {
-            return this.localStore.database.execute(false, new DbCallback<Integer>() {
-                @Override
-                public Integer doDbWork(final SQLiteDatabase db) throws WrappedException {
-                    int flaggedMessageCount = 0;
-                    Cursor cursor = db.query("messages", new String[] { "COUNT(id)" },
-                            "folder_id = ? AND (empty IS NULL OR empty != 1) AND deleted = 0 AND flagged = 1",
-                            new String[] { Long.toString(mFolderId) }, null, null, null);
-
-                    try {
-                        if (cursor.moveToFirst()) {
-                            flaggedMessageCount = cursor.getInt(0);
-                        }
-                    } finally {
-                        cursor.close();
-                    }
-
-                    return flaggedMessageCount;
-                }
-            });
-        } catch (WrappedException e) {
-            throw(MessagingException) e.getCause();
-        }
+        return this.localStore.folderCounterCache.getFlaggedCount(mFolderId);
     }
 
     @Override
@@ -387,6 +370,11 @@ public class LocalFolder extends Folder implements Serializable {
     public void setVisibleLimit(final int visibleLimit) throws MessagingException {
         mVisibleLimit = visibleLimit;
         updateFolderColumn("visible_limit", mVisibleLimit);
+
+        // Messages outside of the old window haven't been synchronized yet
+        if (mHighestModSeq > 0) {
+            setSyncState(mUidValidity, -1, -1, -1);
+        }
     }
 
     @Override
@@ -421,6 +409,48 @@ public class LocalFolder extends Folder implements Serializable {
         return mPushState;
     }
 
+    /**
+     * Stores the UIDVALIDITY, HIGHESTMODSEQ, message count and UIDNEXT of the remote folder up
+     * to which the local folder has been synchronized.
+     */
+    public void setSyncState(final long uidValidity, final long highestModSeq,
+            final int messageCount, final long uidNext) throws MessagingException {
+        mUidValidity = uidValidity;
+        mHighestModSeq = highestModSeq;
+        mSyncedMessageCount = messageCount;
+        mSyncedUidNext = uidNext;
+        updateFolderColumn("uid_validity", uidValidity);
+        updateFolderColumn("highest_mod_seq", highestModSeq);
+        updateFolderColumn("synced_message_count", messageCount);
+        updateFolderColumn("synced_uid_next", uidNext);
+    }
+
+    @Override
+    public long getUidValidity() {
+        return mUidValidity;
+    }
+
+    @Override
+    public long getHighestModSeq() {
+        return mHighestModSeq;
+    }
+
+    /**
+     * @return The message count of the remote folder when it was last synchronized, or
+     *         {@code -1} if unknown.
+     */
+    public int getSyncedMessageCount() {
+        return mSyncedMessageCount;
+    }
+
+    /**
+     * @return The UIDNEXT of the remote folder when it was last synchronized, or {@code -1} if
+     *         unknown.
+     */
+    public long getSyncedUidNext() {
+        return mSyncedUidNext;
+    }
+
     @Override
     public FolderClass getDisplayClass() {
         return mDisplayClass;
@@ -603,191 +633,13 @@ public class LocalFolder extends Folder implements Serializable {
     public void fetch(final List<? extends Message> messages, final FetchProfile fp, final MessageRetrievalListener listener)
     throws MessagingException {
         try {
-            this.localStore.database.execute(false, new DbCallback<Void>() {
+            this.localStore.database.execute(false, new ReadOnlyDbCallback<Void>() {
                 @Override
                 public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
                     try {
                         open(OPEN_MODE_RW);
                         if (fp.contains(FetchProfile.Item.BODY)) {
-                            for (Message message : messages) {
-                                LocalMessage localMessage = (LocalMessage)message;
-                                Cursor cursor = null;
-                                MimeMultipart mp = new MimeMultipart();
-                                mp.setSubType("mixed");
-                                try {
-                                    cursor = db.rawQuery("SELECT html_content, text_content, mime_type FROM messages "
-                                                         + "WHERE id = ?",
-                                                         new String[] { Long.toString(localMessage.mId) });
-                                    cursor.moveToNext();
-                                    String htmlContent = cursor.getString(0);
-                                    String textContent = cursor.getString(1);
-                                    String mimeType = cursor.getString(2);
-                                    if (mimeType != null && mimeType.toLowerCase(Locale.US).startsWith("multipart/")) {
-                                        // If this is a multipart message, preserve both text
-                                        // and html parts, as well as the subtype.
-                                        mp.setSubType(mimeType.toLowerCase(Locale.US).replaceFirst("^multipart/", ""));
-                                        if (textContent != null) {
-                                            LocalTextBody body = new LocalTextBody(textContent, htmlContent);
-                                            MimeBodyPart bp = new MimeBodyPart(body, "text/plain");
-                                            mp.addBodyPart(bp);
-                                        }
-
-                                        if (mAccount.getMessageFormat() != MessageFormat.TEXT) {
-                                            if (htmlContent != null) {
-                                                TextBody body = new TextBody(htmlContent);
-                                                MimeBodyPart bp = new MimeBodyPart(body, "text/html");
-                                                mp.addBodyPart(bp);
-                                            }
-
-                                            // If we have both text and html content and our MIME type
-                                            // isn't multipart/alternative, then corral them into a new
-                                            // multipart/alternative part and put that into the parent.
-                                            // If it turns out that this is the only part in the parent
-                                            // MimeMultipart, it'll get fixed below before we attach to
-                                            // the message.
-                                            if (textContent != null && htmlContent != null && !mimeType.equalsIgnoreCase("multipart/alternative")) {
-                                                MimeMultipart alternativeParts = mp;
-                                                alternativeParts.setSubType("alternative");
-                                                mp = new MimeMultipart();
-                                                mp.addBodyPart(new MimeBodyPart(alternativeParts));
-                                            }
-                                        }
-                                    } else if (mimeType != null && mimeType.equalsIgnoreCase("text/plain")) {
-                                        // If it's text, add only the plain part. The MIME
-                                        // container will drop away below.
-                                        if (textContent != null) {
-                                            LocalTextBody body = new LocalTextBody(textContent, htmlContent);
-                                            MimeBodyPart bp = new MimeBodyPart(body, "text/plain");
-                                            mp.addBodyPart(bp);
-                                        }
-                                    } else if (mimeType != null && mimeType.equalsIgnoreCase("text/html")) {
-                                        // If it's html, add only the html part. The MIME
-                                        // container will drop away below.
-                                        if (htmlContent != null) {
-                                            TextBody body = new TextBody(htmlContent);
-                                            MimeBodyPart bp = new MimeBodyPart(body, "text/html");
-                                            mp.addBodyPart(bp);
-                                        }
-                                    } else {
-                                        // MIME type not set. Grab whatever part we can get,
-                                        // with Text taking precedence. This preserves pre-HTML
-                                        // composition behaviour.
-                                        if (textContent != null) {
-                                            LocalTextBody body = new LocalTextBody(textContent, htmlContent);
-                                            MimeBodyPart bp = new MimeBodyPart(body, "text/plain");
-                                            mp.addBodyPart(bp);
-                                        } else if (htmlContent != null) {
-                                            TextBody body = new TextBody(htmlContent);
-                                            MimeBodyPart bp = new MimeBodyPart(body, "text/html");
-                                            mp.addBodyPart(bp);
-                                        }
-                                    }
-
-                                } catch (Exception e) {
-                                    Log.e(K9.LOG_TAG, "Exception fetching message:", e);
-                                } finally {
-                                    Utility.closeQuietly(cursor);
-                                }
-
-                                try {
-                                    cursor = db.query(
-                                                 "attachments",
-                                                 new String[] {
-                                                     "id",
-                                                     "size",
-                                                     "name",
-                                                     "mime_type",
-                                                     "store_data",
-                                                     "content_uri",
-                                                     "content_id",
-                                                     "content_disposition"
-                                                 },
-                                                 "message_id = ?",
-                                                 new String[] { Long.toString(localMessage.mId) },
-                                                 null,
-                                                 null,
-                                                 null);
-
-                                    while (cursor.moveToNext()) {
-                                        long id = cursor.getLong(0);
-                                        int size = cursor.getInt(1);
-                                        String name = cursor.getString(2);
-                                        String type = cursor.getString(3);
-                                        String storeData = cursor.getString(4);
-                                        String contentUri = cursor.getString(5);
-                                        String contentId = cursor.getString(6);
-                                        String contentDisposition = cursor.getString(7);
-                                        String encoding = MimeUtility.getEncodingforType(type);
-                                        Body body = null;
-
-                                        if (contentDisposition == null) {
-                                            contentDisposition = "attachment";
-                                        }
-
-                                        if (contentUri != null) {
-                                            if (MimeUtil.isMessage(type)) {
-                                                body = new LocalAttachmentMessageBody(
-                                                        Uri.parse(contentUri),
-                                                        LocalFolder.this.localStore.mApplication);
-                                            } else {
-                                                body = new LocalAttachmentBody(
-                                                        Uri.parse(contentUri),
-                                                        LocalFolder.this.localStore.mApplication);
-                                            }
-                                        }
-
-                                        MimeBodyPart bp = new LocalAttachmentBodyPart(body, id);
-                                        bp.setEncoding(encoding);
-                                        if (name != null) {
-                                            bp.setHeader(MimeHeader.HEADER_CONTENT_TYPE,
-                                                         String.format("%s;\r\n name=\"%s\"",
-                                                                       type,
-                                                                       name));
-                                            bp.setHeader(MimeHeader.HEADER_CONTENT_DISPOSITION,
-                                                         String.format(Locale.US, "%s;\r\n filename=\"%s\";\r\n size=%d",
-                                                                       contentDisposition,
-                                                                       name, // TODO: Should use encoded word defined in RFC 2231.
-                                                                       size));
-                                        } else {
-                                            bp.setHeader(MimeHeader.HEADER_CONTENT_TYPE, type);
-                                            bp.setHeader(MimeHeader.HEADER_CONTENT_DISPOSITION,
-                                                    String.format(Locale.US, "%s;\r\n size=%d",
-                                                                  contentDisposition,
-                                                                  size));
-                                        }
-
-                                        bp.setHeader(MimeHeader.HEADER_CONTENT_ID, contentId);
-                                        /*
-                                         * HEADER_ANDROID_ATTACHMENT_STORE_DATA is a custom header we add to that
-                                         * we can later pull the attachment from the remote store if necessary.
-                                         */
-                                        bp.setHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA, storeData);
-
-                                        mp.addBodyPart(bp);
-                                    }
-                                } finally {
-                                    Utility.closeQuietly(cursor);
-                                }
-
-                                if (mp.getCount() == 0) {
-                                    // If we have no body, remove the container and create a
-                                    // dummy plain text body. This check helps prevents us from
-                                    // triggering T_MIME_NO_TEXT and T_TVD_MIME_NO_HEADERS
-                                    // SpamAssassin rules.
-                                    localMessage.setHeader(MimeHeader.HEADER_CONTENT_TYPE, "text/plain");
-                                    MimeMessageHelper.setBody(localMessage, new TextBody(""));
-                                } else if (mp.getCount() == 1 && (mp.getBodyPart(0) instanceof LocalAttachmentBodyPart) == false)
-
-                                {
-                                    // If we have only one part, drop the MimeMultipart container.
-                                    BodyPart part = mp.getBodyPart(0);
-                                    localMessage.setHeader(MimeHeader.HEADER_CONTENT_TYPE, part.getContentType());
-                                    MimeMessageHelper.setBody(localMessage, part.getBody());
-                                } else {
-                                    // Otherwise, attach the MimeMultipart to the message.
-                                    MimeMessageHelper.setBody(localMessage, mp);
-                                }
-                            }
+                            fetchBodies(messages, listener);
                         }
                     } catch (MessagingException e) {
                         throw new WrappedException(e);
@@ -800,6 +652,286 @@ public class LocalFolder extends Folder implements Serializable {
         }
     }
 
+    /**
+     * Loads the text and attachments of the given messages and sets their bodies.
+     *
+     * <p>
+     * The message rows and the attachment rows are read with one query each for up to
+     * {@link LocalStore#FETCH_BATCH_SIZE} messages, instead of two queries per message.
+     * </p>
+     */
+    private void fetchBodies(List<? extends Message> messages, MessageRetrievalListener listener)
+            throws MessagingException {
+        final List<String> ids = new ArrayList<String>(messages.size());
+        for (Message message : messages) {
+            ids.add(Long.toString(((LocalMessage) message).mId));
+        }
+        final Map<Long, MimeMultipart> containers = new HashMap<Long, MimeMultipart>();
+
+        this.localStore.doBatchSetSelection(new BatchSetSelection() {
+            @Override
+            public int getListSize() {
+                return ids.size();
+            }
+
+            @Override
+            public String getListItem(int index) {
+                return ids.get(index);
+            }
+
+            @Override
+            public void doDbWork(SQLiteDatabase db, String selectionSet, String[] selectionArgs) {
+                Cursor cursor = db.rawQuery("SELECT id, html_content, text_content, mime_type " +
+                        "FROM messages WHERE id" + selectionSet, selectionArgs);
+                try {
+                    while (cursor.moveToNext()) {
+                        long id = cursor.getLong(0);
+                        try {
+                            containers.put(id, createBodyContainer(id, cursor.getString(1),
+                                    cursor.getString(2), cursor.getString(3)));
+                        } catch (Exception e) {
+                            Log.e(K9.LOG_TAG, "Exception fetching message:", e);
+                        }
+                    }
+                } finally {
+                    Utility.closeQuietly(cursor);
+                }
+            }
+
+            @Override
+            public void postDbWork() {
+                // not used
+            }
+        }, LocalStore.FETCH_BATCH_SIZE, true);
+
+        this.localStore.doBatchSetSelection(new BatchSetSelection() {
+            @Override
+            public int getListSize() {
+                return ids.size();
+            }
+
+            @Override
+            public String getListItem(int index) {
+                return ids.get(index);
+            }
+
+            @Override
+            public void doDbWork(SQLiteDatabase db, String selectionSet, String[] selectionArgs) {
+                Cursor cursor = db.query(
+                        "attachments",
+                        new String[] {
+                            "message_id",
+                            "id",
+                            "size",
+                            "name",
+                            "mime_type",
+                            "store_data",
+                            "content_uri",
+                            "content_id",
+                            "content_disposition"
+                        },
+                        "message_id" + selectionSet,
+                        selectionArgs,
+                        null,
+                        null,
+                        "message_id, id");
+                try {
+                    while (cursor.moveToNext()) {
+                        long messageId = cursor.getLong(0);
+                        MimeMultipart mp = containers.get(messageId);
+                        if (mp == null) {
+                            mp = new MimeMultipart();
+                            mp.setSubType("mixed");
+                            containers.put(messageId, mp);
+                        }
+                        mp.addBodyPart(createAttachmentPart(cursor));
+                    }
+                } catch (MessagingException e) {
+                    throw new WrappedException(e);
+                } finally {
+                    Utility.closeQuietly(cursor);
+                }
+            }
+
+            @Override
+            public void postDbWork() {
+                // not used
+            }
+        }, LocalStore.FETCH_BATCH_SIZE, true);
+
+        for (int i = 0, count = messages.size(); i < count; i++) {
+            LocalMessage localMessage = (LocalMessage) messages.get(i);
+            MimeMultipart mp = containers.get(localMessage.mId);
+
+            if (mp == null || mp.getCount() == 0) {
+                // If we have no body, remove the container and create a
+                // dummy plain text body. This check helps prevents us from
+                // triggering T_MIME_NO_TEXT and T_TVD_MIME_NO_HEADERS
+                // SpamAssassin rules.
+                localMessage.setHeader(MimeHeader.HEADER_CONTENT_TYPE, "text/plain");
+                MimeMessageHelper.setBody(localMessage, new TextBody(""));
+            } else if (mp.getCount() == 1 && (mp.getBodyPart(0) instanceof LocalAttachmentBodyPart) == false) {
+                // If we have only one part, drop the MimeMultipart container.
+                BodyPart part = mp.getBodyPart(0);
+                localMessage.setHeader(MimeHeader.HEADER_CONTENT_TYPE, part.getContentType());
+                MimeMessageHelper.setBody(localMessage, part.getBody());
+            } else {
+                // Otherwise, attach the MimeMultipart to the message.
+                MimeMessageHelper.setBody(localMessage, mp);
+            }
+
+            if (listener != null) {
+                listener.messageFinished(localMessage, i, count);
+            }
+        }
+
+        if (listener != null) {
+            listener.messagesFinished(messages.size());
+        }
+    }
+
+    /**
+     * Creates the container for the text parts of a message from its row in the messages table.
+     */
+    private MimeMultipart createBodyContainer(long id, String htmlContent, String textContent,
+            String mimeType) throws MessagingException {
+        MimeMultipart mp = new MimeMultipart();
+        mp.setSubType("mixed");
+
+        if (mimeType != null && mimeType.toLowerCase(Locale.US).startsWith("multipart/")) {
+            // If this is a multipart message, preserve both text
+            // and html parts, as well as the subtype.
+            mp.setSubType(mimeType.toLowerCase(Locale.US).replaceFirst("^multipart/", ""));
+            if (textContent != null) {
+                LocalTextBody body = new LocalTextBody(textContent, htmlContent,
+                        this.localStore.displayHtmlCache, id);
+                MimeBodyPart bp = new MimeBodyPart(body, "text/plain");
+                mp.addBodyPart(bp);
+            }
+
+            if (mAccount.getMessageFormat() != MessageFormat.TEXT) {
+                if (htmlContent == null && textContent != null) {
+                    // The HTML of plain text messages isn't stored. Like before, the message
+                    // gets an HTML part, so e.g. replies still quote it as HTML.
+                    htmlContent = this.localStore.displayHtmlCache.get(id, textContent);
+                }
+                if (htmlContent != null) {
+                    TextBody body = new TextBody(htmlContent);
+                    MimeBodyPart bp = new MimeBodyPart(body, "text/html");
+                    mp.addBodyPart(bp);
+                }
+
+                // If we have both text and html content and our MIME type
+                // isn't multipart/alternative, then corral them into a new
+                // multipart/alternative part and put that into the parent.
+                // If it turns out that this is the only part in the parent
+                // MimeMultipart, it'll get fixed below before we attach to
+                // the message.
+                if (textContent != null && htmlContent != null && !mimeType.equalsIgnoreCase("multipart/alternative")) {
+                    MimeMultipart alternativeParts = mp;
+                    alternativeParts.setSubType("alternative");
+                    mp = new MimeMultipart();
+                    mp.addBodyPart(new MimeBodyPart(alternativeParts));
+                }
+            }
+        } else if (mimeType != null && mimeType.equalsIgnoreCase("text/plain")) {
+            // If it's text, add only the plain part. The MIME
+            // container will drop away below.
+            if (textContent != null) {
+                LocalTextBody body = new LocalTextBody(textContent, htmlContent,
+                        this.localStore.displayHtmlCache, id);
+                MimeBodyPart bp = new MimeBodyPart(body, "text/plain");
+                mp.addBodyPart(bp);
+            }
+        } else if (mimeType != null && mimeType.equalsIgnoreCase("text/html")) {
+            // If it's html, add only the html part. The MIME
+            // container will drop away below.
+            if (htmlContent != null) {
+                TextBody body = new TextBody(htmlContent);
+                MimeBodyPart bp = new MimeBodyPart(body, "text/html");
+                mp.addBodyPart(bp);
+            }
+        } else {
+            // MIME type not set. Grab whatever part we can get,
+            // with Text taking precedence. This preserves pre-HTML
+            // composition behaviour.
+            if (textContent != null) {
+                LocalTextBody body = new LocalTextBody(textContent, htmlContent,
+                        this.localStore.displayHtmlCache, id);
+                MimeBodyPart bp = new MimeBodyPart(body, "text/plain");
+                mp.addBodyPart(bp);
+            } else if (htmlContent != null) {
+                TextBody body = new TextBody(htmlContent);
+                MimeBodyPart bp = new MimeBodyPart(body, "text/html");
+                mp.addBodyPart(bp);
+            }
+        }
+
+        return mp;
+    }
+
+    /**
+     * Creates an attachment part from a row of the attachments table, starting at column 1
+     * (after message_id).
+     */
+    private MimeBodyPart createAttachmentPart(Cursor cursor) throws MessagingException {
+        long id = cursor.getLong(1);
+        int size = cursor.getInt(2);
+        String name = cursor.getString(3);
+        String type = cursor.getString(4);
+        String storeData = cursor.getString(5);
+        String contentUri = cursor.getString(6);
+        String contentId = cursor.getString(7);
+        String contentDisposition = cursor.getString(8);
+        String encoding = MimeUtility.getEncodingforType(type);
+        Body body = null;
+
+        if (contentDisposition == null) {
+            contentDisposition = "attachment";
+        }
+
+        if (contentUri != null) {
+            if (MimeUtil.isMessage(type)) {
+                body = new LocalAttachmentMessageBody(
+                        Uri.parse(contentUri),
+                        this.localStore.mApplication);
+            } else {
+                body = new LocalAttachmentBody(
+                        Uri.parse(contentUri),
+                        this.localStore.mApplication);
+            }
+        }
+
+        MimeBodyPart bp = new LocalAttachmentBodyPart(body, id);
+        bp.setEncoding(encoding);
+        if (name != null) {
+            bp.setHeader(MimeHeader.HEADER_CONTENT_TYPE,
+                         String.format("%s;\r\n name=\"%s\"",
+                                       type,
+                                       name));
+            bp.setHeader(MimeHeader.HEADER_CONTENT_DISPOSITION,
+                         String.format(Locale.US, "%s;\r\n filename=\"%s\";\r\n size=%d",
+                                       contentDisposition,
+                                       name, // TODO: Should use encoded word defined in RFC 2231.
+                                       size));
+        } else {
+            bp.setHeader(MimeHeader.HEADER_CONTENT_TYPE, type);
+            bp.setHeader(MimeHeader.HEADER_CONTENT_DISPOSITION,
+                    String.format(Locale.US, "%s;\r\n size=%d",
+                                  contentDisposition,
+                                  size));
+        }
+
+        bp.setHeader(MimeHeader.HEADER_CONTENT_ID, contentId);
+        /*
+         * HEADER_ANDROID_ATTACHMENT_STORE_DATA is a custom header we add to that
+         * we can later pull the attachment from the remote store if necessary.
+         */
+        bp.setHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA, storeData);
+
+        return bp;
+    }
+
     @Override
     public List<? extends Message> getMessages(int start, int end, Date earliestDate, MessageRetrievalListener listener)
     throws MessagingException {
@@ -817,7 +949,7 @@ public class LocalFolder extends Folder implements Serializable {
      * @throws UnavailableStorageException
      */
     void populateHeaders(final List<LocalMessage> messages) throws UnavailableStorageException {
-        this.localStore.database.execute(false, new DbCallback<Void>() {
+        this.localStore.database.execute(false, new ReadOnlyDbCallback<Void>() {
             @Override
             public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
                 Cursor cursor = null;
@@ -863,7 +995,7 @@ public class LocalFolder extends Folder implements Serializable {
 
     public String getMessageUidById(final long id) throws MessagingException {
         try {
-            return this.localStore.database.execute(false, new DbCallback<String>() {
+            return this.localStore.database.execute(false, new ReadOnlyDbCallback<String>() {
                 @Override
                 public String doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
                     try {
@@ -897,7 +1029,7 @@ public class LocalFolder extends Folder implements Serializable {
     @Override
     public LocalMessage getMessage(final String uid) throws MessagingException {
         try {
-            return this.localStore.database.execute(false, new DbCallback<LocalMessage>() {
+            return this.localStore.database.execute(false, new ReadOnlyDbCallback<LocalMessage>() {
                 @Override
                 public LocalMessage doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
                     try {
@@ -941,7 +1073,7 @@ public class LocalFolder extends Folder implements Serializable {
     @Override
     public List<? extends Message> getMessages(final MessageRetrievalListener listener, final boolean includeDeleted) throws MessagingException {
         try {
-            return this.localStore.database.execute(false, new DbCallback<List<? extends Message>>() {
+            return this.localStore.database.execute(false, new ReadOnlyDbCallback<List<? extends Message>>() {
                 @Override
                 public List<? extends Message> doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
                     try {
@@ -1008,6 +1140,9 @@ public class LocalFolder extends Folder implements Serializable {
                 public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
                     try {
                         lDestFolder.open(OPEN_MODE_RW);
+                        // Both folders are invalidated below, the changes are only needed here
+                        MessageIdIndex.Transaction indexTransaction =
+                                LocalFolder.this.localStore.messageIdIndex.begin(lDestFolder.getId());
                         for (Message message : msgs) {
                             LocalMessage lMessage = (LocalMessage)message;
 
@@ -1024,7 +1159,8 @@ public class LocalFolder extends Folder implements Serializable {
                             uidMap.put(oldUID, newUid);
 
                             // Message threading in the target folder
-                            ThreadInfo threadInfo = lDestFolder.doMessageThreading(db, message);
+                            ThreadInfo threadInfo = lDestFolder.doMessageThreading(db, indexTransaction,
+                                    message);
 
                             /*
                              * "Move" the message into the new folder
@@ -1102,6 +1238,10 @@ public class LocalFolder extends Folder implements Serializable {
                             db.update("threads", cv, "id = ?",
                                     new String[] { Long.toString(lMessage.getThreadId()) });
                         }
+
+                        MessageIdIndex messageIdIndex = LocalFolder.this.localStore.messageIdIndex;
+                        messageIdIndex.invalidateFolder(mFolderId);
+                        messageIdIndex.invalidateFolder(lDestFolder.getId());
                     } catch (MessagingException e) {
                         throw new WrappedException(e);
                     }
@@ -1127,22 +1267,32 @@ public class LocalFolder extends Folder implements Serializable {
      * @throws MessagingException
      */
     public Message storeSmallMessage(final Message message, final Runnable runnable) throws MessagingException {
-        return this.localStore.database.execute(true, new DbCallback<Message>() {
-            @Override
-            public Message doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
-                try {
-                    appendMessages(Collections.singletonList(message));
-                    final String uid = message.getUid();
-                    final Message result = getMessage(uid);
-                    runnable.run();
-                    // Set a flag indicating this message has now be fully downloaded
-                    result.setFlag(Flag.X_DOWNLOADED_FULL, true);
-                    return result;
-                } catch (MessagingException e) {
-                    throw new WrappedException(e);
+        boolean committed = false;
+        try {
+            Message stored = this.localStore.database.execute(true, new DbCallback<Message>() {
+                @Override
+                public Message doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
+                    try {
+                        appendMessages(Collections.singletonList(message));
+                        final String uid = message.getUid();
+                        final Message result = getMessage(uid);
+                        runnable.run();
+                        // Set a flag indicating this message has now be fully downloaded
+                        result.setFlag(Flag.X_DOWNLOADED_FULL, true);
+                        return result;
+                    } catch (MessagingException e) {
+                        throw new WrappedException(e);
+                    }
                 }
+            });
+            committed = true;
+            return stored;
+        } finally {
+            if (!committed) {
+                // appendMessages() updated the index within this transaction
+                this.localStore.messageIdIndex.invalidateFolder(mFolderId);
             }
-        });
+        }
     }
 
     /**
@@ -1181,33 +1331,19 @@ public class LocalFolder extends Folder implements Serializable {
         }
     }
 
-    private ThreadInfo getThreadInfo(SQLiteDatabase db, String messageId, boolean onlyEmpty) {
-        String sql = "SELECT t.id, t.message_id, t.root, t.parent " +
-                "FROM messages m " +
-                "LEFT JOIN threads t ON (t.message_id = m.id) " +
-                "WHERE m.folder_id = ? AND m.message_id = ? " +
-                ((onlyEmpty) ? "AND m.empty = 1 " : "") +
-                "ORDER BY m.id LIMIT 1";
-        String[] selectionArgs = { Long.toString(mFolderId), messageId };
-        Cursor cursor = db.rawQuery(sql, selectionArgs);
+    private ThreadInfo getThreadInfo(SQLiteDatabase db, MessageIdIndex.Transaction index,
+            String messageId, boolean onlyEmpty) {
+        MessageIdIndex.Entry entry = index.get(messageId);
+        if (entry == null && messageId != null) {
+            loadThreadInfo(db, index, Collections.singletonList(messageId));
+            entry = index.get(messageId);
+        }
 
-        if (cursor != null) {
-            try {
-                if (cursor.getCount() > 0) {
-                    cursor.moveToFirst();
-                    long threadId = cursor.getLong(0);
-                    long msgId = cursor.getLong(1);
-                    long rootId = (cursor.isNull(2)) ? -1 : cursor.getLong(2);
-                    long parentId = (cursor.isNull(3)) ? -1 : cursor.getLong(3);
-
-                    return new ThreadInfo(threadId, msgId, messageId, rootId, parentId);
-                }
-            } finally {
-                cursor.close();
-            }
+        if (entry == null) {
+            return null;
         }
 
-        return null;
+        return index.resolve((onlyEmpty) ? entry.firstEmpty : entry.first);
     }
 
     /**
@@ -1226,12 +1362,24 @@ public class LocalFolder extends Folder implements Serializable {
      */
     private Map<String, String> appendMessages(final List<? extends Message> messages, final boolean copy) throws MessagingException {
         open(OPEN_MODE_RW);
+        boolean committed = false;
         try {
             final Map<String, String> uidMap = new HashMap<String, String>();
             this.localStore.database.execute(true, new DbCallback<Void>() {
                 @Override
                 public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
+                    SQLiteStatement insertMessage = db.compileStatement(INSERT_MESSAGE_SQL);
+                    SQLiteStatement insertThread = db.compileStatement(INSERT_THREAD_SQL);
+                    SQLiteStatement insertHeader = db.compileStatement(INSERT_HEADER_SQL);
                     try {
+                        Map<String, ExistingMessage> existingMessages = (copy) ?
+                                new HashMap<String, ExistingMessage>() :
+                                findExistingMessages(db, messages);
+                        // The index only learns about the changes once they are complete
+                        MessageIdIndex.Transaction messageIdIndex =
+                                LocalFolder.this.localStore.messageIdIndex.begin(mFolderId);
+                        loadThreadInfo(db, messageIdIndex, messages);
+
                         for (Message message : messages) {
                             if (!(message instanceof MimeMessage)) {
                                 throw new Error("LocalStore can only store Messages that extend MimeMessage");
@@ -1239,6 +1387,7 @@ public class LocalFolder extends Folder implements Serializable {
 
                             long oldMessageId = -1;
                             String uid = message.getUid();
+                            String messageId = message.getMessageId();
                             if (uid == null || copy) {
                                 /*
                                  * Create a new message in the database
@@ -1260,13 +1409,18 @@ public class LocalFolder extends Folder implements Serializable {
                                 /*
                                  * Replace an existing message in the database
                                  */
-                                LocalMessage oldMessage = getMessage(uid);
+                                ExistingMessage oldMessage = existingMessages.get(uid);
 
                                 if (oldMessage != null) {
-                                    oldMessageId = oldMessage.getId();
-                                }
+                                    oldMessageId = oldMessage.id;
+                                    deleteAttachments(oldMessageId);
 
-                                deleteAttachments(message.getUid());
+                                    if (oldMessage.messageId == null ?
+                                            messageId != null : !oldMessage.messageId.equals(messageId)) {
+                                        messageIdIndex.invalidate(oldMessage.messageId);
+                                        messageIdIndex.invalidate(messageId);
+                                    }
+                                }
                             }
 
                             long rootId = -1;
@@ -1274,10 +1428,15 @@ public class LocalFolder extends Folder implements Serializable {
 
                             if (oldMessageId == -1) {
                                 // This is a new message. Do the message threading.
-                                ThreadInfo threadInfo = doMessageThreading(db, message);
+                                ThreadInfo threadInfo = doMessageThreading(db, messageIdIndex, message);
                                 oldMessageId = threadInfo.msgId;
                                 rootId = threadInfo.rootId;
                                 parentId = threadInfo.parentId;
+
+                                if (oldMessageId != -1) {
+                                    // An empty placeholder message is turned into a real one
+                                    messageIdIndex.invalidate(messageId);
+                                }
                             }
 
                             boolean isDraft = (message.getHeader(K9.IDENTITY_HEADER) != null);
@@ -1296,24 +1455,32 @@ public class LocalFolder extends Folder implements Serializable {
                                 html = container.html;
                                 attachments = container.attachments;
                             } else {
+                                // The HTML of plain text messages is created when they are
+                                // displayed. See DisplayHtmlCache.
                                 ViewableContainer container =
-                                        MimeUtility.extractTextAndAttachments(LocalFolder.this.localStore.mApplication, message);
+                                        MimeUtility.extractTextAndAttachments(LocalFolder.this.localStore.mApplication, message, true);
 
                                 attachments = container.attachments;
                                 text = container.text;
-                                html = HtmlConverter.convertEmoji2Img(container.html);
+                                html = (container.html != null) ?
+                                        HtmlConverter.convertEmoji2Img(container.html) : "";
                             }
 
                             String preview = Message.calculateContentPreview(text);
 
                             try {
+                                // All headers are saved below, so X_GOT_ALL_HEADERS is stored
+                                // right away.
+                                List<Flag> flags = new ArrayList<Flag>(message.getFlags());
+                                flags.add(Flag.X_GOT_ALL_HEADERS);
+
                                 ContentValues cv = new ContentValues();
                                 cv.put("uid", uid);
                                 cv.put("subject", message.getSubject());
                                 cv.put("sender_list", Address.pack(message.getFrom()));
                                 cv.put("date", message.getSentDate() == null
                                        ? System.currentTimeMillis() : message.getSentDate().getTime());
-                                cv.put("flags", LocalFolder.this.localStore.serializeFlags(message.getFlags()));
+                                cv.put("flags", LocalFolder.this.localStore.serializeFlags(flags));
                                 cv.put("deleted", message.isSet(Flag.DELETED) ? 1 : 0);
                                 cv.put("read", message.isSet(Flag.SEEN) ? 1 : 0);
                                 cv.put("flagged", message.isSet(Flag.FLAGGED) ? 1 : 0);
@@ -1333,7 +1500,6 @@ public class LocalFolder extends Folder implements Serializable {
                                 cv.put("mime_type", message.getMimeType());
                                 cv.put("empty", 0);
 
-                                String messageId = message.getMessageId();
                                 if (messageId != null) {
                                     cv.put("message_id", messageId);
                                 }
@@ -1341,45 +1507,251 @@ public class LocalFolder extends Folder implements Serializable {
                                 long msgId;
 
                                 if (oldMessageId == -1) {
-                                    msgId = db.insert("messages", "uid", cv);
+                                    bindValues(insertMessage, MESSAGE_COLUMNS, cv);
+                                    msgId = insertMessage.executeInsert();
 
                                     // Create entry in 'threads' table
-                                    cv.clear();
-                                    cv.put("message_id", msgId);
-
+                                    insertThread.clearBindings();
+                                    insertThread.bindLong(1, msgId);
                                     if (rootId != -1) {
-                                        cv.put("root", rootId);
+                                        insertThread.bindLong(2, rootId);
                                     }
                                     if (parentId != -1) {
-                                        cv.put("parent", parentId);
+                                        insertThread.bindLong(3, parentId);
                                     }
 
-                                    db.insert("threads", null, cv);
+                                    long threadId = insertThread.executeInsert();
+
+                                    if (messageId != null) {
+                                        messageIdIndex.messageCreated(
+                                                new ThreadInfo(threadId, msgId, messageId, rootId, parentId));
+                                    }
                                 } else {
                                     db.update("messages", cv, "id = ?", new String[] { Long.toString(oldMessageId) });
+                                    db.delete("headers", "message_id = ?", new String[] { Long.toString(oldMessageId) });
                                     msgId = oldMessageId;
                                 }
 
+                                existingMessages.put(uid, new ExistingMessage(msgId, messageId));
+                                LocalFolder.this.localStore.displayHtmlCache.invalidate(msgId);
+
                                 for (Part attachment : attachments) {
                                     saveAttachment(msgId, attachment, copy);
                                 }
-                                saveHeaders(msgId, (MimeMessage)message);
+                                insertHeaders(insertHeader, msgId, (MimeMessage) message);
                             } catch (Exception e) {
                                 throw new MessagingException("Error appending message", e);
                             }
                         }
+
+                        messageIdIndex.commit();
                     } catch (MessagingException e) {
                         throw new WrappedException(e);
+                    } finally {
+                        insertMessage.close();
+                        insertThread.close();
+                        insertHeader.close();
                     }
                     return null;
                 }
             });
+            committed = true;
 
             this.localStore.notifyChange();
 
             return uidMap;
         } catch (WrappedException e) {
             throw(MessagingException) e.getCause();
+        } finally {
+            if (!committed) {
+                // The index may have been updated before the commit failed
+                this.localStore.messageIdIndex.invalidateFolder(mFolderId);
+            }
+        }
+    }
+
+    /**
+     * Looks up the database IDs of the messages in this folder that have the same UID as one of
+     * the given messages.
+     */
+    private Map<String, ExistingMessage> findExistingMessages(SQLiteDatabase db,
+            List<? extends Message> messages) {
+        Map<String, ExistingMessage> result = new HashMap<String, ExistingMessage>();
+
+        List<String> uids = new ArrayList<String>(messages.size());
+        for (Message message : messages) {
+            if (message.getUid() != null) {
+                uids.add(message.getUid());
+            }
+        }
+
+        for (int start = 0; start < uids.size(); start += LocalStore.UID_CHECK_BATCH_SIZE) {
+            List<String> batch = uids.subList(start,
+                    Math.min(uids.size(), start + LocalStore.UID_CHECK_BATCH_SIZE));
+
+            Cursor cursor = db.rawQuery("SELECT uid, id, message_id FROM messages " +
+                    "WHERE folder_id = ? AND uid IN (" + placeholders(batch.size()) + ")",
+                    selectionArgs(batch));
+            try {
+                while (cursor.moveToNext()) {
+                    String uid = cursor.getString(0);
+                    if (!result.containsKey(uid)) {
+                        result.put(uid, new ExistingMessage(cursor.getLong(1), cursor.getString(2)));
+                    }
+                }
+            } finally {
+                Utility.closeQuietly(cursor);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Makes sure the thread information for the Message-IDs of the given messages and all
+     * Message-IDs they reference is in the {@link MessageIdIndex}.
+     */
+    private void loadThreadInfo(SQLiteDatabase db, MessageIdIndex.Transaction index,
+            List<? extends Message> messages) throws MessagingException {
+        Set<String> messageIds = new HashSet<String>();
+        for (Message message : messages) {
+            String messageId = message.getMessageId();
+            if (messageId != null) {
+                messageIds.add(messageId);
+            }
+            List<String> references = getThreadReferences(message);
+            if (references != null) {
+                messageIds.addAll(references);
+            }
+        }
+
+        loadThreadInfo(db, index, messageIds);
+    }
+
+    /**
+     * Loads the thread information of all Message-IDs that are not in the
+     * {@link MessageIdIndex} yet.
+     */
+    private void loadThreadInfo(SQLiteDatabase db, MessageIdIndex.Transaction index,
+            Collection<String> messageIds) {
+        List<String> ids = new ArrayList<String>(messageIds.size());
+        for (String messageId : messageIds) {
+            if (index.get(messageId) == null) {
+                ids.add(messageId);
+            }
+        }
+
+        Map<String, ThreadInfo> first = new HashMap<String, ThreadInfo>();
+        Map<String, ThreadInfo> firstEmpty = new HashMap<String, ThreadInfo>();
+        for (int start = 0; start < ids.size(); start += LocalStore.UID_CHECK_BATCH_SIZE) {
+            List<String> batch = ids.subList(start,
+                    Math.min(ids.size(), start + LocalStore.UID_CHECK_BATCH_SIZE));
+
+            Cursor cursor = db.rawQuery("SELECT m.message_id, m.empty, t.id, t.message_id, " +
+                    "t.root, t.parent " +
+                    "FROM messages m " +
+                    "LEFT JOIN threads t ON (t.message_id = m.id) " +
+                    "WHERE m.folder_id = ? AND m.message_id IN (" +
+                    placeholders(batch.size()) + ") " +
+                    "ORDER BY m.id", selectionArgs(batch));
+            try {
+                while (cursor.moveToNext()) {
+                    String messageId = cursor.getString(0);
+                    boolean empty = cursor.getInt(1) == 1;
+                    long threadId = cursor.getLong(2);
+                    long msgId = cursor.getLong(3);
+                    long rootId = (cursor.isNull(4)) ? -1 : cursor.getLong(4);
+                    long parentId = (cursor.isNull(5)) ? -1 : cursor.getLong(5);
+
+                    ThreadInfo threadInfo = new ThreadInfo(threadId, msgId, messageId, rootId, parentId);
+                    if (!first.containsKey(messageId)) {
+                        first.put(messageId, threadInfo);
+                    }
+                    if (empty && !firstEmpty.containsKey(messageId)) {
+                        firstEmpty.put(messageId, threadInfo);
+                    }
+                }
+            } finally {
+                Utility.closeQuietly(cursor);
+            }
+
+            for (String messageId : batch) {
+                index.putLoaded(messageId, first.get(messageId),
+                        firstEmpty.get(messageId));
+            }
+        }
+    }
+
+    private String[] selectionArgs(List<String> values) {
+        String[] args = new String[values.size() + 1];
+        args[0] = Long.toString(mFolderId);
+        for (int i = 0, end = values.size(); i < end; i++) {
+            args[i + 1] = values.get(i);
+        }
+        return args;
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            sb.append((i == 0) ? "?" : ",?");
+        }
+        return sb.toString();
+    }
+
+    private static String buildInsertSql(String table, String[] columns) {
+        StringBuilder sb = new StringBuilder("INSERT INTO ").append(table).append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(columns[i]);
+        }
+        return sb.append(") VALUES (").append(placeholders(columns.length)).append(')').toString();
+    }
+
+    private static void bindValues(SQLiteStatement statement, String[] columns, ContentValues cv) {
+        statement.clearBindings();
+        for (int i = 0; i < columns.length; i++) {
+            Object value = cv.get(columns[i]);
+            if (value == null) {
+                statement.bindNull(i + 1);
+            } else if (value instanceof Number) {
+                statement.bindLong(i + 1, ((Number) value).longValue());
+            } else {
+                statement.bindString(i + 1, value.toString());
+            }
+        }
+    }
+
+    /**
+     * Inserts all headers of a message. The caller makes sure there are no old header rows.
+     */
+    private void insertHeaders(SQLiteStatement insertHeader, long id, MimeMessage message) {
+        for (String name : message.getHeaderNames()) {
+            String[] values = message.getHeader(name);
+            for (String value : values) {
+                insertHeader.clearBindings();
+                insertHeader.bindLong(1, id);
+                insertHeader.bindString(2, name);
+                if (value != null) {
+                    insertHeader.bindString(3, value);
+                }
+                insertHeader.executeInsert();
+            }
+        }
+    }
+
+    /**
+     * A message in the database that an appended message replaces.
+     */
+    private static class ExistingMessage {
+        final long id;
+        final String messageId;
+
+        ExistingMessage(long id, String messageId) {
+            this.id = id;
+            this.messageId = messageId;
         }
     }
 
@@ -1403,11 +1775,12 @@ public class LocalFolder extends Folder implements Serializable {
                         message.buildMimeRepresentation();
 
                         ViewableContainer container =
-                                MimeUtility.extractTextAndAttachments(LocalFolder.this.localStore.mApplication, message);
+                                MimeUtility.extractTextAndAttachments(LocalFolder.this.localStore.mApplication, message, true);
 
                         List<Part> attachments = container.attachments;
                         String text = container.text;
-                        String html = HtmlConverter.convertEmoji2Img(container.html);
+                        String html = (container.html != null) ?
+                                HtmlConverter.convertEmoji2Img(container.html) : "";
 
                         String preview = Message.calculateContentPreview(text);
 
@@ -1444,6 +1817,7 @@ public class LocalFolder extends Folder implements Serializable {
                                            message.isSet(Flag.FORWARDED) ? 1 : 0,
                                            message.mId
                                        });
+                            LocalFolder.this.localStore.displayHtmlCache.invalidate(message.mId);
 
                             for (int i = 0, count = attachments.size(); i < count; i++) {
                                 Part attachment = attachments.get(i);
@@ -1710,14 +2084,28 @@ public class LocalFolder extends Folder implements Serializable {
      * @throws com.fsck.k9.mail.MessagingException
      */
     public void changeUid(final LocalMessage message) throws MessagingException {
+        changeUids(Collections.singletonList(message));
+    }
+
+    /**
+     * Changes the stored uids of the given messages to the uids in the messages, using one
+     * transaction.
+     */
+    public void changeUids(final List<LocalMessage> messages) throws MessagingException {
+        if (messages.isEmpty()) {
+            return;
+        }
+
         open(OPEN_MODE_RW);
-        final ContentValues cv = new ContentValues();
-        cv.put("uid", message.getUid());
-        this.localStore.database.execute(false, new DbCallback<Void>() {
+        this.localStore.database.execute(true, new DbCallback<Void>() {
             @Override
             public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
-                db.update("messages", cv, "id = ?", new String[]
-                          { Long.toString(message.mId) });
+                ContentValues cv = new ContentValues();
+                for (LocalMessage message : messages) {
+                    cv.put("uid", message.getUid());
+                    db.update("messages", cv, "id = ?", new String[]
+                              { Long.toString(message.mId) });
+                }
                 return null;
             }
         });
@@ -1818,6 +2206,7 @@ public class LocalFolder extends Folder implements Serializable {
                         db.execSQL("DELETE FROM threads WHERE message_id IN " +
                                 "(SELECT id FROM messages WHERE folder_id = ?)", folderIdArg);
                         db.execSQL("DELETE FROM messages WHERE folder_id = ?", folderIdArg);
+                        LocalFolder.this.localStore.messageIdIndex.invalidateFolder(mFolderId);
 
                         return null;
                     } catch (MessagingException e) {
@@ -1832,6 +2221,7 @@ public class LocalFolder extends Folder implements Serializable {
         this.localStore.notifyChange();
 
         setPushState(null);
+        setSyncState(-1, -1, -1, -1);
         setLastPush(0);
         setLastChecked(0);
         setVisibleLimit(mAccount.getDisplayCount());
@@ -1855,6 +2245,7 @@ public class LocalFolder extends Folder implements Serializable {
                     }
                     db.execSQL("DELETE FROM folders WHERE id = ?", new Object[]
                                { Long.toString(mFolderId), });
+                    LocalFolder.this.localStore.messageIdIndex.invalidateFolder(mFolderId);
                     return null;
                 }
             });
@@ -1979,7 +2370,7 @@ public class LocalFolder extends Folder implements Serializable {
      * @throws MessagingException
      */
     public void updateLastUid() throws MessagingException {
-        Integer lastUid = this.localStore.database.execute(false, new DbCallback<Integer>() {
+        Integer lastUid = this.localStore.database.execute(false, new ReadOnlyDbCallback<Integer>() {
             @Override
             public Integer doDbWork(final SQLiteDatabase db) {
                 Cursor cursor = null;
@@ -2004,7 +2395,7 @@ public class LocalFolder extends Folder implements Serializable {
     }
 
     public Long getOldestMessageDate() throws MessagingException {
-        return this.localStore.database.execute(false, new DbCallback<Long>() {
+        return this.localStore.database.execute(false, new ReadOnlyDbCallback<Long>() {
             @Override
             public Long doDbWork(final SQLiteDatabase db) {
                 Cursor cursor = null;
@@ -2025,16 +2416,11 @@ public class LocalFolder extends Folder implements Serializable {
         });
     }
 
-    private ThreadInfo doMessageThreading(SQLiteDatabase db, Message message)
-            throws MessagingException {
-        long rootId = -1;
-        long parentId = -1;
-
-        String messageId = message.getMessageId();
-
-        // If there's already an empty message in the database, update that
-        ThreadInfo msgThreadInfo = getThreadInfo(db, messageId, true);
-
+    /**
+     * @return The Message-IDs from the "References" header followed by the first Message-ID of
+     *         the "In-Reply-To" header, or {@code null} if the message is not a reply.
+     */
+    private List<String> getThreadReferences(Message message) throws MessagingException {
         // Get the message IDs from the "References" header line
         String[] referencesArray = message.getHeader("References");
         List<String> messageIds = null;
@@ -2057,6 +2443,24 @@ public class LocalFolder extends Folder implements Serializable {
             }
         }
 
+        return messageIds;
+    }
+
+    /**
+     * Finds or creates the thread of a new message. Records the rows written in {@code index}.
+     */
+    private ThreadInfo doMessageThreading(SQLiteDatabase db, MessageIdIndex.Transaction index,
+            Message message) throws MessagingException {
+        long rootId = -1;
+        long parentId = -1;
+
+        String messageId = message.getMessageId();
+
+        // If there's already an empty message in the database, update that
+        ThreadInfo msgThreadInfo = getThreadInfo(db, index, messageId, true);
+
+        List<String> messageIds = getThreadReferences(message);
+
         if (messageIds == null) {
             // This is not a reply, nothing to do for us.
             return (msgThreadInfo != null) ?
@@ -2064,7 +2468,7 @@ public class LocalFolder extends Folder implements Serializable {
         }
 
         for (String reference : messageIds) {
-            ThreadInfo threadInfo = getThreadInfo(db, reference, false);
+            ThreadInfo threadInfo = getThreadInfo(db, index, reference, false);
 
             if (threadInfo == null) {
                 // Create placeholder message in 'messages' table
@@ -2085,7 +2489,11 @@ public class LocalFolder extends Folder implements Serializable {
                     cv.put("parent", parentId);
                 }
 
-                parentId = db.insert("threads", null, cv);
+                long newThreadId = db.insert("threads", null, cv);
+                index.placeholderCreated(
+                        new ThreadInfo(newThreadId, newMsgId, reference, rootId, parentId));
+
+                parentId = newThreadId;
                 if (rootId == -1) {
                     rootId = parentId;
                 }
@@ -2105,6 +2513,8 @@ public class LocalFolder extends Folder implements Serializable {
                     cv.put("parent", parentId);
                     db.update("threads", cv, "id = ?",
                             new String[] { Long.toString(threadInfo.threadId) });
+
+                    index.threadAttached(threadInfo.threadId, rootId, parentId);
                 } else {
                     rootId = (threadInfo.rootId == -1) ?
                             threadInfo.threadId : threadInfo.rootId;
@@ -2132,7 +2542,7 @@ public class LocalFolder extends Folder implements Serializable {
             throws MessagingException {
 
         try {
-            return this.localStore.database.execute(false, new DbCallback<List<Message>>() {
+            return this.localStore.database.execute(false, new ReadOnlyDbCallback<List<Message>>() {
                 @Override
                 public List<Message> doDbWork(final SQLiteDatabase db) throws WrappedException {
                     try {
@@ -326,6 +326,8 @@ public class LocalMessage extends MimeMessage {
                     cv.putNull("reply_to_list");
 
                     db.update("messages", cv, "id = ?", idArg);
+                    LocalMessage.this.localStore.messageIdIndex.invalidateFolder(
+                            ((LocalFolder) mFolder).getId());
 
                     /*
                      * Delete all of the message's attachments to save space.
@@ -367,6 +369,10 @@ public class LocalMessage extends MimeMessage {
 
                         localFolder.deleteAttachments(mId);
 
+                        // The thread structure changes in ways the index can't follow
+                        LocalMessage.this.localStore.messageIdIndex.invalidateFolder(
+                                localFolder.getId());
+
                         if (hasThreadChildren(db, mId)) {
                             // This message has children in the thread structure so we need to
                             // make it an empty message.
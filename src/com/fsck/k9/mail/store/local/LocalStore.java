@@ -38,6 +38,7 @@ import com.fsck.k9.mail.store.LockableDatabase;
 import com.fsck.k9.mail.store.StorageManager;
 import com.fsck.k9.mail.store.UnavailableStorageException;
 import com.fsck.k9.mail.store.LockableDatabase.DbCallback;
+import com.fsck.k9.mail.store.LockableDatabase.ReadOnlyDbCallback;
 import com.fsck.k9.mail.store.LockableDatabase.WrappedException;
 import com.fsck.k9.mail.store.StorageManager.StorageProvider;
 import com.fsck.k9.provider.EmailProvider;
@@ -71,7 +72,8 @@ public class LocalStore extends Store implements Serializable {
 
     static final String GET_FOLDER_COLS =
         "folders.id, name, visible_limit, last_updated, status, push_state, last_pushed, " +
-        "integrate, top_group, poll_class, push_class, display_class, notify_class";
+        "integrate, top_group, poll_class, push_class, display_class, notify_class, " +
+        "uid_validity, highest_mod_seq, synced_message_count, synced_uid_next";
 
     static final int FOLDER_ID_INDEX = 0;
     static final int FOLDER_NAME_INDEX = 1;
@@ -86,9 +88,28 @@ public class LocalStore extends Store implements Serializable {
     static final int FOLDER_PUSH_CLASS_INDEX = 10;
     static final int FOLDER_DISPLAY_CLASS_INDEX = 11;
     static final int FOLDER_NOTIFY_CLASS_INDEX = 12;
+    static final int FOLDER_UID_VALIDITY_INDEX = 13;
+    static final int FOLDER_HIGHEST_MOD_SEQ_INDEX = 14;
+    static final int FOLDER_SYNCED_MESSAGE_COUNT_INDEX = 15;
+    static final int FOLDER_SYNCED_UID_NEXT_INDEX = 16;
 
     static final String[] UID_CHECK_PROJECTION = { "uid" };
 
+    /**
+     * Name of the FTS table indexing subject, sender and text of all messages.
+     *
+     * @see com.fsck.k9.search.SqlQueryBuilder
+     */
+    public static final String FULLTEXT_TABLE = "messages_fts";
+
+    /**
+     * Name of the table holding the count, date and flags of every thread per folder, indexed by
+     * folder and date.
+     *
+     * @see com.fsck.k9.provider.EmailProvider
+     */
+    public static final String THREAD_SUMMARY_TABLE = "thread_summary";
+
     /**
      * Maximum number of UIDs to check for existence at once.
      *
@@ -96,6 +117,16 @@ public class LocalStore extends Store implements Serializable {
      */
     static final int UID_CHECK_BATCH_SIZE = 500;
 
+    /**
+     * Maximum number of Message-IDs kept in the {@link MessageIdIndex}.
+     */
+    static final int MESSAGE_ID_INDEX_SIZE = 16384;
+
+    /**
+     * Maximum number of characters kept in the {@link DisplayHtmlCache}.
+     */
+    static final int DISPLAY_HTML_CACHE_SIZE = 512 * 1024;
+
     /**
      * Maximum number of messages to perform flag updates on at once.
      *
@@ -110,7 +141,14 @@ public class LocalStore extends Store implements Serializable {
      */
     private static final int THREAD_FLAG_UPDATE_BATCH_SIZE = 500;
 
-    public static final int DB_VERSION = 50;
+    /**
+     * Maximum number of messages whose bodies are loaded with one query.
+     *
+     * @see LocalFolder#fetch(List, com.fsck.k9.mail.FetchProfile, MessageRetrievalListener)
+     */
+    static final int FETCH_BATCH_SIZE = 500;
+
+    public static final int DB_VERSION = 56;
 
 
     public static String getColumnNameForFlag(Flag flag) {
@@ -140,6 +178,12 @@ public class LocalStore extends Store implements Serializable {
 
     LockableDatabase database;
 
+    final MessageIdIndex messageIdIndex = new MessageIdIndex(MESSAGE_ID_INDEX_SIZE);
+
+    final DisplayHtmlCache displayHtmlCache = new DisplayHtmlCache(DISPLAY_HTML_CACHE_SIZE);
+
+    final FolderCounterCache folderCounterCache;
+
     private ContentResolver mContentResolver;
 
     /**
@@ -152,6 +196,7 @@ public class LocalStore extends Store implements Serializable {
     public LocalStore(final Account account, final Application application) throws MessagingException {
         super(account);
         database = new LockableDatabase(application, account.getUuid(), new StoreSchemaDefinition(this));
+        folderCounterCache = new FolderCounterCache(database);
 
         mApplication = application;
         mContentResolver = application.getContentResolver();
@@ -176,7 +221,7 @@ public class LocalStore extends Store implements Serializable {
         final File attachmentDirectory = storageManager.getAttachmentDirectory(uUid,
                                          database.getStorageProviderId());
 
-        return database.execute(false, new DbCallback<Long>() {
+        return database.execute(false, new ReadOnlyDbCallback<Long>() {
             @Override
             public Long doDbWork(final SQLiteDatabase db) {
                 final File[] files = attachmentDirectory.listFiles();
@@ -245,6 +290,7 @@ public class LocalStore extends Store implements Serializable {
                 return null;
             }
         });
+        messageIdIndex.clear();
 
         compact();
 
@@ -256,7 +302,7 @@ public class LocalStore extends Store implements Serializable {
     }
 
     public int getMessageCount() throws MessagingException {
-        return database.execute(false, new DbCallback<Integer>() {
+        return database.execute(false, new ReadOnlyDbCallback<Integer>() {
             @Override
             public Integer doDbWork(final SQLiteDatabase db) {
                 Cursor cursor = null;
@@ -272,7 +318,7 @@ public class LocalStore extends Store implements Serializable {
     }
 
     public int getFolderCount() throws MessagingException {
-        return database.execute(false, new DbCallback<Integer>() {
+        return database.execute(false, new ReadOnlyDbCallback<Integer>() {
             @Override
             public Integer doDbWork(final SQLiteDatabase db) {
                 Cursor cursor = null;
@@ -301,7 +347,7 @@ public class LocalStore extends Store implements Serializable {
     public List <? extends Folder > getPersonalNamespaces(boolean forceListAll) throws MessagingException {
         final List<LocalFolder> folders = new LinkedList<LocalFolder>();
         try {
-            database.execute(false, new DbCallback < List <? extends Folder >> () {
+            database.execute(false, new ReadOnlyDbCallback < List <? extends Folder >> () {
                 @Override
                 public List <? extends Folder > doDbWork(final SQLiteDatabase db) throws WrappedException {
                     Cursor cursor = null;
@@ -338,10 +384,12 @@ public class LocalStore extends Store implements Serializable {
     }
 
     public void delete() throws UnavailableStorageException {
+        messageIdIndex.clear();
         database.delete();
     }
 
     public void recreate() throws UnavailableStorageException {
+        messageIdIndex.clear();
         database.recreate();
     }
 
@@ -425,7 +473,7 @@ public class LocalStore extends Store implements Serializable {
     }
 
     public List<PendingCommand> getPendingCommands() throws UnavailableStorageException {
-        return database.execute(false, new DbCallback<List<PendingCommand>>() {
+        return database.execute(false, new ReadOnlyDbCallback<List<PendingCommand>>() {
             @Override
             public List<PendingCommand> doDbWork(final SQLiteDatabase db) throws WrappedException {
                 Cursor cursor = null;
@@ -559,7 +607,7 @@ public class LocalStore extends Store implements Serializable {
         final String queryString, final String[] placeHolders
     ) throws MessagingException {
         final List<LocalMessage> messages = new ArrayList<LocalMessage>();
-        final int j = database.execute(false, new DbCallback<Integer>() {
+        final int j = database.execute(false, new ReadOnlyDbCallback<Integer>() {
             @Override
             public Integer doDbWork(final SQLiteDatabase db) throws WrappedException {
                 Cursor cursor = null;
@@ -616,7 +664,7 @@ public class LocalStore extends Store implements Serializable {
     }
 
     public AttachmentInfo getAttachmentInfo(final String attachmentId) throws UnavailableStorageException {
-        return database.execute(false, new DbCallback<AttachmentInfo>() {
+        return database.execute(false, new ReadOnlyDbCallback<AttachmentInfo>() {
             @Override
             public AttachmentInfo doDbWork(final SQLiteDatabase db) throws WrappedException {
                 String name;
@@ -753,6 +801,20 @@ public class LocalStore extends Store implements Serializable {
      */
     public void doBatchSetSelection(final BatchSetSelection selectionCallback, final int batchSize)
             throws MessagingException {
+        doBatchSetSelection(selectionCallback, batchSize, false);
+    }
+
+    /**
+     * Split database operations with a large set of arguments into multiple SQL statements.
+     *
+     * @param readOnly
+     *         {@code true} if {@code selectionCallback} only queries the database. Then each
+     *         subset is processed by a {@link ReadOnlyDbCallback} instead of in a transaction.
+     *
+     * @see #doBatchSetSelection(BatchSetSelection, int)
+     */
+    public void doBatchSetSelection(final BatchSetSelection selectionCallback, final int batchSize,
+            final boolean readOnly) throws MessagingException {
 
         final List<String> selectionArgs = new ArrayList<String>();
         int start = 0;
@@ -777,17 +839,28 @@ public class LocalStore extends Store implements Serializable {
             selection.append(")");
 
             try {
-                database.execute(true, new DbCallback<Void>() {
-                    @Override
-                    public Void doDbWork(final SQLiteDatabase db) throws WrappedException,
-                            UnavailableStorageException {
+                final String[] args = selectionArgs.toArray(EMPTY_STRING_ARRAY);
+                if (readOnly) {
+                    database.execute(false, new ReadOnlyDbCallback<Void>() {
+                        @Override
+                        public Void doDbWork(final SQLiteDatabase db) throws WrappedException,
+                                UnavailableStorageException {
+                            selectionCallback.doDbWork(db, selection.toString(), args);
+                            return null;
+                        }
+                    });
+                } else {
+                    database.execute(true, new DbCallback<Void>() {
+                        @Override
+                        public Void doDbWork(final SQLiteDatabase db) throws WrappedException,
+                                UnavailableStorageException {
 
-                        selectionCallback.doDbWork(db, selection.toString(),
-                                selectionArgs.toArray(EMPTY_STRING_ARRAY));
+                            selectionCallback.doDbWork(db, selection.toString(), args);
 
-                        return null;
-                    }
-                });
+                            return null;
+                        }
+                    });
+                }
 
                 selectionCallback.postDbWork();
 
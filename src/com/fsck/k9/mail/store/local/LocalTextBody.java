@@ -8,13 +8,29 @@ public class LocalTextBody extends TextBody {
      */
     private final String mBodyForDisplay;
 
+    /**
+     * Creates {@link #mBodyForDisplay} on demand if it wasn't stored in the database.
+     */
+    private final DisplayHtmlCache mDisplayHtmlCache;
+    private final long mMessageId;
+
     public LocalTextBody(String body, String bodyForDisplay) {
+        this(body, bodyForDisplay, null, -1);
+    }
+
+    LocalTextBody(String body, String bodyForDisplay, DisplayHtmlCache displayHtmlCache,
+            long messageId) {
         super(body);
         this.mBodyForDisplay = bodyForDisplay;
+        this.mDisplayHtmlCache = displayHtmlCache;
+        this.mMessageId = messageId;
     }
 
     public String getBodyForDisplay() {
+        if (mBodyForDisplay == null && mDisplayHtmlCache != null && getText() != null) {
+            return mDisplayHtmlCache.get(mMessageId, getText());
+        }
         return mBodyForDisplay;
     }
 
-}//LocalTextBody
\ No newline at end of file
+}//LocalTextBody
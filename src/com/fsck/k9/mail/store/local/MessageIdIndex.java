@@ -0,0 +1,426 @@
+package com.fsck.k9.mail.store.local;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Size-bounded in-memory index from (folder, Message-ID) to the thread information of the
+ * matching messages.
+ *
+ * <p>
+ * {@link LocalFolder} uses the index when threading new messages instead of looking up every
+ * Message-ID of the "References" and "In-Reply-To" headers in the {@code messages} table. There's
+ * one index per {@link LocalStore}, i.e. per account.
+ * </p>
+ * <p>
+ * Keys are 64-bit hashes of the folder ID and the Message-ID, stored in open-addressing tables of
+ * primitive {@code long}s. Entries keep the Message-ID so hash collisions are detected. The index
+ * holds two generations of entries: when the current table is full it becomes the previous one
+ * and a new table is started. Entries found in the previous table are moved to the current one,
+ * so Message-IDs that are looked up often survive while the others are dropped.
+ * </p>
+ * <p>
+ * Threads attached to another root aren't updated in the tables. Instead the new root and parent
+ * of each attached thread are kept in a map, and {@link #resolve(ThreadInfo)} applies them when
+ * an entry is used.
+ * </p>
+ * <p>
+ * {@link LocalFolder} records what it writes while threading messages in a {@link Transaction}.
+ * Other code that modifies the {@code messages} or {@code threads} tables has to call
+ * {@link #invalidate(long, String)}, {@link #invalidateFolder(long)} or {@link #clear()}.
+ * </p>
+ */
+class MessageIdIndex {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int mGenerationSize;
+
+    private Table mCurrent;
+    private Table mPrevious;
+
+    /**
+     * Invalidation counter per folder. Entries created before the last invalidation of their
+     * folder are ignored.
+     */
+    private final Map<Long, Integer> mFolderGenerations = new HashMap<Long, Integer>();
+
+    /**
+     * Thread ID of every attached thread to its new root and parent.
+     */
+    private final Map<Long, long[]> mAttachedThreads = new HashMap<Long, long[]>();
+
+    /**
+     * @param maxSize
+     *         Maximum number of Message-IDs kept in the index.
+     */
+    MessageIdIndex(int maxSize) {
+        if (maxSize < 2) {
+            throw new IllegalArgumentException("Invalid index size " + maxSize);
+        }
+        mGenerationSize = maxSize / 2;
+        mCurrent = new Table(mGenerationSize);
+    }
+
+    /**
+     * Looks up a Message-ID.
+     *
+     * @return The entry for the Message-ID or {@code null} if the index doesn't know whether the
+     *         Message-ID is present in the database.
+     */
+    synchronized Entry get(long folderId, String messageId) {
+        if (messageId == null) {
+            return null;
+        }
+
+        long key = hash(folderId, messageId);
+        Entry entry = mCurrent.get(key);
+        if (isValid(entry, folderId, messageId)) {
+            return entry;
+        }
+
+        if (mPrevious != null) {
+            entry = mPrevious.get(key);
+            if (isValid(entry, folderId, messageId)) {
+                put(key, entry);
+                return entry;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Adds the result of a database lookup.
+     *
+     * @param first
+     *         The oldest message with the Message-ID, or {@code null} if there is none.
+     * @param firstEmpty
+     *         The oldest empty message with the Message-ID, or {@code null} if there is none.
+     */
+    synchronized void putLoaded(long folderId, String messageId, ThreadInfo first,
+            ThreadInfo firstEmpty) {
+        Entry entry = new Entry(folderId, messageId, getFolderGeneration(folderId));
+        entry.first = first;
+        entry.firstEmpty = firstEmpty;
+        put(hash(folderId, messageId), entry);
+    }
+
+    /**
+     * Starts recording the changes of a database transaction that modifies the given folder.
+     */
+    Transaction begin(long folderId) {
+        return new Transaction(folderId);
+    }
+
+    /**
+     * Applies the threads attached since {@code info} was read from the database.
+     */
+    synchronized ThreadInfo resolve(ThreadInfo info) {
+        return resolve(info, null);
+    }
+
+    /**
+     * Forgets what is known about a Message-ID in a folder.
+     */
+    synchronized void invalidate(long folderId, String messageId) {
+        Entry entry = get(folderId, messageId);
+        if (entry != null) {
+            entry.folderGeneration = -1;
+        }
+    }
+
+    /**
+     * Forgets what is known about all Message-IDs in a folder.
+     */
+    synchronized void invalidateFolder(long folderId) {
+        mFolderGenerations.put(folderId, getFolderGeneration(folderId) + 1);
+    }
+
+    synchronized void clear() {
+        mCurrent = new Table(mGenerationSize);
+        mPrevious = null;
+        mFolderGenerations.clear();
+        mAttachedThreads.clear();
+    }
+
+    synchronized int size() {
+        return mCurrent.mSize + ((mPrevious != null) ? mPrevious.mSize : 0);
+    }
+
+    private void put(long key, Entry entry) {
+        if (!mCurrent.replace(key, entry)) {
+            if (mCurrent.mSize >= mGenerationSize) {
+                mPrevious = mCurrent;
+                mCurrent = new Table(mGenerationSize);
+            }
+            mCurrent.insert(key, entry);
+        }
+    }
+
+    private synchronized void commit(Transaction transaction) {
+        mAttachedThreads.putAll(transaction.mAttached);
+        if (mAttachedThreads.size() > mGenerationSize) {
+            // Rather start over than keep stale roots forever
+            clear();
+            return;
+        }
+
+        long folderId = transaction.mFolderId;
+        for (String messageId : transaction.mInvalidated) {
+            invalidate(folderId, messageId);
+        }
+
+        int folderGeneration = getFolderGeneration(folderId);
+        for (Entry entry : transaction.mEntries.values()) {
+            entry.folderGeneration = folderGeneration;
+            put(hash(folderId, entry.messageId), entry);
+        }
+    }
+
+    private ThreadInfo resolve(ThreadInfo info, Map<Long, long[]> pending) {
+        if (info == null) {
+            return null;
+        }
+
+        long rootId = info.rootId;
+        long parentId = info.parentId;
+        long[] attached = getAttached(info.threadId, pending);
+        if (attached != null) {
+            rootId = attached[0];
+            parentId = attached[1];
+        }
+
+        // A root may have been attached to yet another root later on
+        while (rootId != -1 && (attached = getAttached(rootId, pending)) != null) {
+            rootId = attached[0];
+        }
+
+        if (rootId == info.rootId && parentId == info.parentId) {
+            return info;
+        }
+        return new ThreadInfo(info.threadId, info.msgId, info.messageId, rootId, parentId);
+    }
+
+    private long[] getAttached(long threadId, Map<Long, long[]> pending) {
+        long[] attached = (pending != null) ? pending.get(threadId) : null;
+        return (attached != null) ? attached : mAttachedThreads.get(threadId);
+    }
+
+    private boolean isValid(Entry entry, long folderId, String messageId) {
+        return entry != null && entry.folderId == folderId && entry.messageId.equals(messageId) &&
+                entry.folderGeneration == getFolderGeneration(folderId);
+    }
+
+    private int getFolderGeneration(long folderId) {
+        Integer generation = mFolderGenerations.get(folderId);
+        return (generation == null) ? 0 : generation;
+    }
+
+    static long hash(long folderId, String messageId) {
+        // FNV-1a over the characters, then mix in the folder ID
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0, length = messageId.length(); i < length; i++) {
+            hash ^= messageId.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        hash ^= folderId * 0x9e3779b97f4a7c15L;
+
+        // Finalizer of MurmurHash3
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    static class Entry {
+        final long folderId;
+        final String messageId;
+        int folderGeneration;
+
+        /**
+         * The oldest message with the Message-ID or {@code null} if there is none.
+         */
+        ThreadInfo first;
+
+        /**
+         * The oldest empty message with the Message-ID or {@code null} if there is none.
+         */
+        ThreadInfo firstEmpty;
+
+        Entry(long folderId, String messageId, int folderGeneration) {
+            this.folderId = folderId;
+            this.messageId = messageId;
+            this.folderGeneration = folderGeneration;
+        }
+
+        Entry copy() {
+            Entry copy = new Entry(folderId, messageId, folderGeneration);
+            copy.first = first;
+            copy.firstEmpty = firstEmpty;
+            return copy;
+        }
+    }
+
+    /**
+     * The changes of one database transaction.
+     *
+     * <p>
+     * Entries are copied from the index when they are first used, so the index itself isn't
+     * modified before {@link #commit()}. Call it as the last step of the database transaction:
+     * write transactions are serialized, so no other transaction can see the changes before
+     * they're committed. A transaction that was rolled back after {@code commit()} has to
+     * invalidate the folder.
+     * </p>
+     */
+    class Transaction {
+        private final long mFolderId;
+        private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+        private final Set<String> mInvalidated = new HashSet<String>();
+        private final Map<Long, long[]> mAttached = new HashMap<Long, long[]>();
+
+        private Transaction(long folderId) {
+            mFolderId = folderId;
+        }
+
+        /**
+         * @return The entry for the Message-ID or {@code null} if it has to be loaded from the
+         *         database first.
+         */
+        Entry get(String messageId) {
+            if (messageId == null) {
+                return null;
+            }
+
+            Entry entry = mEntries.get(messageId);
+            if (entry == null && !mInvalidated.contains(messageId)) {
+                entry = MessageIdIndex.this.get(mFolderId, messageId);
+                if (entry != null) {
+                    entry = entry.copy();
+                    mEntries.put(messageId, entry);
+                }
+            }
+            return entry;
+        }
+
+        /**
+         * @see MessageIdIndex#putLoaded(long, String, ThreadInfo, ThreadInfo)
+         */
+        void putLoaded(String messageId, ThreadInfo first, ThreadInfo firstEmpty) {
+            Entry entry = new Entry(mFolderId, messageId, 0);
+            entry.first = first;
+            entry.firstEmpty = firstEmpty;
+            mEntries.put(messageId, entry);
+            mInvalidated.remove(messageId);
+        }
+
+        /**
+         * Records an empty placeholder message that was created for a referenced Message-ID.
+         */
+        void placeholderCreated(ThreadInfo threadInfo) {
+            Entry entry = get(threadInfo.messageId);
+            if (entry != null) {
+                if (entry.first == null) {
+                    entry.first = threadInfo;
+                }
+                if (entry.firstEmpty == null) {
+                    entry.firstEmpty = threadInfo;
+                }
+            }
+        }
+
+        /**
+         * Records a new (non-empty) message.
+         */
+        void messageCreated(ThreadInfo threadInfo) {
+            Entry entry = get(threadInfo.messageId);
+            if (entry != null && entry.first == null) {
+                entry.first = threadInfo;
+            }
+        }
+
+        /**
+         * Records that the thread {@code threadId} and all threads that had it as their root
+         * were attached to {@code rootId}.
+         */
+        void threadAttached(long threadId, long rootId, long parentId) {
+            mAttached.put(threadId, new long[] { rootId, parentId });
+        }
+
+        void invalidate(String messageId) {
+            mEntries.remove(messageId);
+            mInvalidated.add(messageId);
+        }
+
+        /**
+         * Applies the threads attached so far, including the ones of this transaction.
+         */
+        ThreadInfo resolve(ThreadInfo info) {
+            synchronized (MessageIdIndex.this) {
+                return MessageIdIndex.this.resolve(info, mAttached);
+            }
+        }
+
+        void commit() {
+            MessageIdIndex.this.commit(this);
+        }
+    }
+
+    /**
+     * Open-addressing hash table with linear probing. Entries are never removed, the whole table
+     * is dropped instead. The load factor stays at or below 0.5.
+     */
+    private static class Table {
+        private final long[] mKeys;
+        private final Entry[] mEntries;
+        private final int mMask;
+        private int mSize;
+
+        Table(int maxEntries) {
+            int capacity = Integer.highestOneBit(Math.max(2, maxEntries * 2 - 1)) << 1;
+            mKeys = new long[capacity];
+            mEntries = new Entry[capacity];
+            mMask = capacity - 1;
+        }
+
+        Entry get(long key) {
+            for (int i = index(key); mEntries[i] != null; i = (i + 1) & mMask) {
+                if (mKeys[i] == key) {
+                    return mEntries[i];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return {@code true} if an entry with the same key existed and was replaced.
+         */
+        boolean replace(long key, Entry entry) {
+            for (int i = index(key); mEntries[i] != null; i = (i + 1) & mMask) {
+                if (mKeys[i] == key) {
+                    mEntries[i] = entry;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void insert(long key, Entry entry) {
+            int i = index(key);
+            while (mEntries[i] != null) {
+                i = (i + 1) & mMask;
+            }
+            mKeys[i] = key;
+            mEntries[i] = entry;
+            mSize++;
+        }
+
+        private int index(long key) {
+            return (int) (key ^ (key >>> 32)) & mMask;
+        }
+    }
+}
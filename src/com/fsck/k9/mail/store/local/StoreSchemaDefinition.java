@@ -66,7 +66,9 @@ class StoreSchemaDefinition implements LockableDatabase.SchemaDefinition {
                 db.execSQL("CREATE TABLE folders (id INTEGER PRIMARY KEY, name TEXT, "
                            + "last_updated INTEGER, unread_count INTEGER, visible_limit INTEGER, status TEXT, "
                            + "push_state TEXT, last_pushed INTEGER, flagged_count INTEGER default 0, "
-                           + "integrate INTEGER, top_group INTEGER, poll_class TEXT, push_class TEXT, display_class TEXT, notify_class TEXT"
+                           + "integrate INTEGER, top_group INTEGER, poll_class TEXT, push_class TEXT, display_class TEXT, notify_class TEXT, "
+                           + "uid_validity INTEGER default -1, highest_mod_seq INTEGER default -1, "
+                           + "synced_message_count INTEGER default -1, synced_uid_next INTEGER default -1"
                            + ")");
 
                 db.execSQL("CREATE INDEX IF NOT EXISTS folder_name ON folders (name)");
@@ -161,6 +163,10 @@ class StoreSchemaDefinition implements LockableDatabase.SchemaDefinition {
                 db.execSQL("DROP TRIGGER IF EXISTS delete_message");
                 db.execSQL("CREATE TRIGGER delete_message BEFORE DELETE ON messages BEGIN DELETE FROM attachments WHERE old.id = message_id; "
                            + "DELETE FROM headers where old.id = message_id; END;");
+
+                createFulltextIndex(db);
+                createThreadSummary(db);
+                createFolderCountTriggers(db);
             } else {
                 // in the case that we're starting out at 29 or newer, run all the needed updates
 
@@ -542,6 +548,27 @@ class StoreSchemaDefinition implements LockableDatabase.SchemaDefinition {
                     db.update("folders", cv, "name = ?",
                             new String[] { this.localStore.getAccount().getInboxFolderName() });
                 }
+                if (db.getVersion() < 51) {
+                    addFolderColumn(db, "uid_validity INTEGER default -1");
+                    addFolderColumn(db, "highest_mod_seq INTEGER default -1");
+                }
+                if (db.getVersion() < 52) {
+                    createFulltextIndex(db);
+                    rebuildFulltextIndex(db);
+                }
+                if (db.getVersion() < 54) {
+                    createFolderCountTriggers(db);
+                    recountFolders(db);
+                }
+                if (db.getVersion() < 55) {
+                    addFolderColumn(db, "synced_message_count INTEGER default -1");
+                    addFolderColumn(db, "synced_uid_next INTEGER default -1");
+                }
+                if (db.getVersion() < 56) {
+                    // Version 53 added the thread summary, version 56 splits it up by folder
+                    createThreadSummary(db);
+                    rebuildThreadSummary(db);
+                }
             }
 
             db.setVersion(LocalStore.DB_VERSION);
@@ -556,6 +583,269 @@ class StoreSchemaDefinition implements LockableDatabase.SchemaDefinition {
         }
     }
 
+    /**
+     * Creates the full-text index used to search the subject, sender and text of messages.
+     *
+     * <p>
+     * The index is kept up to date by triggers on the {@code messages} table. The rowid (docid)
+     * of an entry is the ID of the message. FTS4 tables using the {@code messages} table as
+     * external content need SQLite 3.7.9, so the index stores its own copy of the text.
+     * </p>
+     */
+    private static void createFulltextIndex(final SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + LocalStore.FULLTEXT_TABLE);
+        db.execSQL("CREATE VIRTUAL TABLE " + LocalStore.FULLTEXT_TABLE +
+                " USING fts4 (subject, sender_list, text_content)");
+
+        // REPLACE on the messages table doesn't fire the delete trigger, so remove stale entries
+        // before inserting.
+        db.execSQL("DROP TRIGGER IF EXISTS messages_fts_insert");
+        db.execSQL("CREATE TRIGGER messages_fts_insert AFTER INSERT ON messages " +
+                "BEGIN " +
+                "DELETE FROM " + LocalStore.FULLTEXT_TABLE + " WHERE docid = NEW.id; " +
+                "INSERT INTO " + LocalStore.FULLTEXT_TABLE +
+                " (docid, subject, sender_list, text_content) " +
+                "VALUES (NEW.id, NEW.subject, NEW.sender_list, NEW.text_content); " +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS messages_fts_update");
+        db.execSQL("CREATE TRIGGER messages_fts_update " +
+                "AFTER UPDATE OF subject, sender_list, text_content ON messages " +
+                "BEGIN " +
+                "UPDATE " + LocalStore.FULLTEXT_TABLE + " SET subject = NEW.subject, " +
+                "sender_list = NEW.sender_list, text_content = NEW.text_content " +
+                "WHERE docid = NEW.id; " +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS messages_fts_delete");
+        db.execSQL("CREATE TRIGGER messages_fts_delete AFTER DELETE ON messages " +
+                "BEGIN " +
+                "DELETE FROM " + LocalStore.FULLTEXT_TABLE + " WHERE docid = OLD.id; " +
+                "END");
+    }
+
+    /**
+     * Fills the full-text index from the {@code messages} table, e.g. for databases that were
+     * created before the index existed.
+     */
+    private static void rebuildFulltextIndex(final SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + LocalStore.FULLTEXT_TABLE);
+        db.execSQL("INSERT INTO " + LocalStore.FULLTEXT_TABLE +
+                " (docid, subject, sender_list, text_content) " +
+                "SELECT id, subject, sender_list, text_content FROM messages");
+    }
+
+    /**
+     * Creates the table holding one row per thread and folder with the values shown in the
+     * threaded message list of the folder.
+     *
+     * <p>
+     * A row contains the number of messages of the thread in the folder, their aggregated date
+     * and flags, and the ID of the newest of them. This matches grouping the messages of a single
+     * folder by thread root, so a thread that spans folders (e.g. a reply in the Sent folder) has
+     * one row per folder. Deleted messages and placeholders ({@code empty = 1}) are left out, and
+     * folders without other messages of a thread don't have a row. Like the full-text index, the
+     * table is kept up to date by triggers. Every change of a {@code messages} or {@code threads}
+     * row that could affect a thread recalculates all rows of the thread roots involved. This
+     * covers threading of new messages, flag changes, moves and deletes. The key starts with the
+     * root, so these lookups use the key index.
+     * </p>
+     */
+    private static void createThreadSummary(final SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + LocalStore.THREAD_SUMMARY_TABLE);
+        db.execSQL("CREATE TABLE " + LocalStore.THREAD_SUMMARY_TABLE + " (" +
+                "root INTEGER, " +
+                "folder_id INTEGER, " +
+                "message_id INTEGER, " +
+                "thread_count INTEGER, " +
+                "date INTEGER, " +
+                "internal_date INTEGER, " +
+                "attachment_count INTEGER, " +
+                "read INTEGER, " +
+                "flagged INTEGER, " +
+                "answered INTEGER, " +
+                "forwarded INTEGER, " +
+                "PRIMARY KEY (root, folder_id)" +
+                ")");
+
+        db.execSQL("CREATE INDEX IF NOT EXISTS thread_summary_folder_date ON " +
+                LocalStore.THREAD_SUMMARY_TABLE + " (folder_id, date)");
+
+        String messageRoots = "SELECT root FROM threads WHERE message_id = NEW.id";
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_message_insert");
+        db.execSQL("CREATE TRIGGER thread_summary_message_insert AFTER INSERT ON messages " +
+                "BEGIN " +
+                getThreadSummaryRefresh(messageRoots) +
+                "END");
+
+        // Flags are often set on messages that already have them, so skip updates that don't
+        // change anything.
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_message_update");
+        db.execSQL("CREATE TRIGGER thread_summary_message_update " +
+                "AFTER UPDATE OF deleted, empty, folder_id, date, internal_date, " +
+                "attachment_count, read, flagged, answered, forwarded ON messages " +
+                "WHEN OLD.deleted IS NOT NEW.deleted OR OLD.empty IS NOT NEW.empty OR " +
+                "OLD.folder_id IS NOT NEW.folder_id OR OLD.date IS NOT NEW.date OR " +
+                "OLD.internal_date IS NOT NEW.internal_date OR " +
+                "OLD.attachment_count IS NOT NEW.attachment_count OR " +
+                "OLD.read IS NOT NEW.read OR OLD.flagged IS NOT NEW.flagged OR " +
+                "OLD.answered IS NOT NEW.answered OR OLD.forwarded IS NOT NEW.forwarded " +
+                "BEGIN " +
+                getThreadSummaryRefresh(messageRoots) +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_message_delete");
+        db.execSQL("CREATE TRIGGER thread_summary_message_delete AFTER DELETE ON messages " +
+                "BEGIN " +
+                getThreadSummaryRefresh("SELECT root FROM threads WHERE message_id = OLD.id") +
+                "END");
+
+        // The root of a new entry is usually set by the set_thread_root trigger, which causes an
+        // update.
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_thread_insert");
+        db.execSQL("CREATE TRIGGER thread_summary_thread_insert AFTER INSERT ON threads " +
+                "BEGIN " +
+                getThreadSummaryRefresh("NEW.root") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_thread_update");
+        db.execSQL("CREATE TRIGGER thread_summary_thread_update " +
+                "AFTER UPDATE OF root, message_id ON threads " +
+                "WHEN OLD.root IS NOT NEW.root OR OLD.message_id IS NOT NEW.message_id " +
+                "BEGIN " +
+                getThreadSummaryRefresh("OLD.root, NEW.root") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_thread_delete");
+        db.execSQL("CREATE TRIGGER thread_summary_thread_delete AFTER DELETE ON threads " +
+                "BEGIN " +
+                getThreadSummaryRefresh("OLD.root") +
+                "END");
+    }
+
+    /**
+     * Fills the thread summary table from the {@code messages} and {@code threads} tables, e.g.
+     * for databases that were created before the table existed.
+     */
+    private static void rebuildThreadSummary(final SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + LocalStore.THREAD_SUMMARY_TABLE);
+        db.execSQL(getThreadSummaryInsert("t.root IS NOT NULL"));
+    }
+
+    /**
+     * @param roots
+     *         The thread roots to recalculate, as a list of expressions or a subquery usable with
+     *         {@code IN}.
+     *
+     * @return The trigger statements replacing the thread summary rows of {@code roots}.
+     */
+    private static String getThreadSummaryRefresh(String roots) {
+        return "DELETE FROM " + LocalStore.THREAD_SUMMARY_TABLE + " WHERE root IN (" + roots +
+                "); " +
+                getThreadSummaryInsert("t.root IN (" + roots + ")") + "; ";
+    }
+
+    /**
+     * The aggregation functions match the ones used by
+     * {@link com.fsck.k9.provider.EmailProvider} when grouping messages by thread.
+     */
+    private static String getThreadSummaryInsert(String rootCondition) {
+        return "INSERT INTO " + LocalStore.THREAD_SUMMARY_TABLE + " (root, folder_id, " +
+                "message_id, thread_count, date, internal_date, attachment_count, read, " +
+                "flagged, answered, forwarded) " +
+                "SELECT t.root, m.folder_id, " +
+                "(SELECT n.id FROM threads u JOIN messages n ON (n.id = u.message_id) " +
+                "WHERE u.root = t.root AND n.folder_id = m.folder_id AND n.deleted = 0 AND " +
+                "(n.empty IS NULL OR n.empty != 1) " +
+                "ORDER BY n.date DESC, n.id DESC LIMIT 1), " +
+                "COUNT(*), MAX(m.date), MAX(m.internal_date), SUM(m.attachment_count), " +
+                "MIN(m.read), MAX(m.flagged), MIN(m.answered), MIN(m.forwarded) " +
+                "FROM threads t JOIN messages m ON (m.id = t.message_id) " +
+                "WHERE " + rootCondition + " AND m.deleted = 0 AND " +
+                "(m.empty IS NULL OR m.empty != 1) " +
+                "GROUP BY t.root, m.folder_id";
+    }
+
+    /**
+     * Creates the triggers that keep {@code unread_count} and {@code flagged_count} of the
+     * {@code folders} table up to date.
+     *
+     * <p>
+     * The columns count the same messages as a {@code COUNT} query would: messages that are
+     * neither deleted nor placeholders and are unread or flagged, respectively. Each change of a
+     * message only adds or subtracts its own contribution, so the cost doesn't depend on the size
+     * of the folder.
+     * </p>
+     */
+    private static void createFolderCountTriggers(final SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS folder_counts_message_insert");
+        db.execSQL("CREATE TRIGGER folder_counts_message_insert AFTER INSERT ON messages " +
+                "BEGIN " +
+                getFolderCountsUpdate("NEW", "+") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS folder_counts_message_update");
+        db.execSQL("CREATE TRIGGER folder_counts_message_update " +
+                "AFTER UPDATE OF folder_id, deleted, empty, read, flagged ON messages " +
+                "WHEN OLD.folder_id IS NOT NEW.folder_id OR OLD.deleted IS NOT NEW.deleted OR " +
+                "OLD.empty IS NOT NEW.empty OR OLD.read IS NOT NEW.read OR " +
+                "OLD.flagged IS NOT NEW.flagged " +
+                "BEGIN " +
+                getFolderCountsUpdate("OLD", "-") +
+                getFolderCountsUpdate("NEW", "+") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS folder_counts_message_delete");
+        db.execSQL("CREATE TRIGGER folder_counts_message_delete AFTER DELETE ON messages " +
+                "BEGIN " +
+                getFolderCountsUpdate("OLD", "-") +
+                "END");
+    }
+
+    /**
+     * Sets the unread and flagged counts of all folders from the {@code messages} table, e.g.
+     * for databases that were created before the counts were maintained.
+     */
+    private static void recountFolders(final SQLiteDatabase db) {
+        String visible = "folder_id = folders.id AND deleted = 0 AND " +
+                "(empty IS NULL OR empty != 1)";
+
+        db.execSQL("UPDATE folders SET " +
+                "unread_count = (SELECT COUNT(id) FROM messages WHERE " + visible +
+                " AND read = 0), " +
+                "flagged_count = (SELECT COUNT(id) FROM messages WHERE " + visible +
+                " AND flagged = 1)");
+    }
+
+    /**
+     * @param row
+     *         {@code NEW} or {@code OLD}.
+     * @param operator
+     *         {@code +} to add the message to the counts of its folder, {@code -} to remove it.
+     *
+     * @return The trigger statement updating the counts of the folder of the message.
+     */
+    private static String getFolderCountsUpdate(String row, String operator) {
+        return "UPDATE folders SET " +
+                "unread_count = COALESCE(unread_count, 0) " + operator +
+                " (" + row + ".read IS 0), " +
+                "flagged_count = COALESCE(flagged_count, 0) " + operator +
+                " (" + row + ".flagged IS 1) " +
+                "WHERE id = " + row + ".folder_id AND " + row + ".deleted = 0 AND " +
+                "(" + row + ".empty IS NULL OR " + row + ".empty != 1); ";
+    }
+
+    private void addFolderColumn(final SQLiteDatabase db, String columnDefinition) {
+        try {
+            db.execSQL("ALTER TABLE folders ADD " + columnDefinition);
+        } catch (SQLiteException e) {
+            if (! e.getMessage().startsWith("duplicate column name:")) {
+                throw e;
+            }
+        }
+    }
+
     private void update41Metadata(final SQLiteDatabase  db, SharedPreferences prefs, int id, String name) {
 
 
@@ -26,4 +26,10 @@ public class TempFileBody extends BinaryAttachmentBody {
             return new ByteArrayInputStream(LocalStore.EMPTY_BYTE_ARRAY);
         }
     }
+
+    @Override
+    protected long getSize() {
+        // A missing file is read as empty stream, and length() returns 0 in that case
+        return mFile.length();
+    }
 }
\ No newline at end of file
@@ -181,7 +181,9 @@ public class SmtpTransport extends Transport {
     private PeekableInputStream mIn;
     private OutputStream mOut;
     private boolean m8bitEncodingAllowed;
+    private boolean mPipeliningSupported;
     private int mLargestAcceptableMessage;
+    private boolean mReuseConnection;
 
     public SmtpTransport(Account account) throws MessagingException {
         ServerSettings settings;
@@ -290,6 +292,8 @@ public class SmtpTransport extends Transport {
                 }
             }
 
+            mPipeliningSupported = extensions.containsKey("PIPELINING");
+
             boolean authLoginSupported = false;
             boolean authPlainSupported = false;
             boolean authCramMD5Supported = false;
@@ -483,12 +487,25 @@ public class SmtpTransport extends Transport {
         }
     }
 
+    /**
+     * Keeps the connection open after a message has been sent, so that following messages can
+     * be sent without connecting and authenticating again. The connection stays open until
+     * {@link #close()} is called.
+     */
+    @Override
+    public void setReuseConnection(boolean reuseConnection) {
+        mReuseConnection = reuseConnection;
+    }
+
     private void sendMessageTo(List<String> addresses, Message message)
     throws MessagingException {
         boolean possibleSend = false;
 
-        close();
-        open();
+        boolean reusingConnection = mReuseConnection && mSocket != null;
+        if (!reusingConnection) {
+            close();
+            open();
+        }
 
         if (!m8bitEncodingAllowed) {
             message.setUsing7bitTransport();
@@ -505,13 +522,37 @@ public class SmtpTransport extends Transport {
         }
 
         Address[] from = message.getFrom();
+        boolean dataStarted = false;
+        boolean success = false;
         try {
-            executeSimpleCommand("MAIL FROM:" + "<" + from[0].getAddress() + ">"
+            List<String> commands = new ArrayList<String>();
+            if (reusingConnection) {
+                commands.add("RSET");
+            }
+            commands.add("MAIL FROM:" + "<" + from[0].getAddress() + ">"
                     + (m8bitEncodingAllowed ? " BODY=8BITMIME" : ""));
             for (String address : addresses) {
-                executeSimpleCommand("RCPT TO:" + "<" + address + ">");
+                commands.add("RCPT TO:" + "<" + address + ">");
+            }
+            commands.add("DATA");
+
+            try {
+                executeTransactionCommands(commands);
+            } catch (IOException e) {
+                if (!reusingConnection) {
+                    throw e;
+                }
+
+                // The server probably closed the idle connection. Try again on a new one.
+                if (K9.DEBUG) {
+                    Log.d(K9.LOG_TAG, "Reused SMTP connection failed, reconnecting", e);
+                }
+                close();
+                open();
+                commands.remove(0);
+                executeTransactionCommands(commands);
             }
-            executeSimpleCommand("DATA");
+            dataStarted = true;
 
             EOLConvertingOutputStream msgOut = new EOLConvertingOutputStream(
                     new LineWrapOutputStream(new SmtpDataStuffing(mOut), 1000));
@@ -523,6 +564,7 @@ public class SmtpTransport extends Transport {
 
             possibleSend = true; // After the "\r\n." is attempted, we may have sent the message
             executeSimpleCommand("\r\n.");
+            success = true;
         } catch (Exception e) {
             MessagingException me = new MessagingException("Unable to send message", e);
 
@@ -537,18 +579,86 @@ public class SmtpTransport extends Transport {
             me.setPermanentFailure(possibleSend);
             throw me;
         } finally {
-            close();
+            if (!success && dataStarted && !possibleSend) {
+                /*
+                 * The server is waiting for message data. Anything we send now, including QUIT,
+                 * would become part of the message. Dropping the connection makes the server
+                 * discard the incomplete message.
+                 */
+                closeConnection();
+            } else if (!success || !mReuseConnection) {
+                close();
+            }
         }
 
     }
 
+    /**
+     * Sends the commands of a mail transaction, i.e. (optionally) RSET, MAIL FROM, RCPT TO and
+     * DATA.
+     *
+     * <p>
+     * If the server supports PIPELINING (RFC 2920) all commands are sent at once and the replies
+     * are read afterwards. So starting a transaction only takes a single round trip.
+     * </p>
+     *
+     * @throws NegativeSmtpReplyException
+     *         If one of the commands was rejected. If several commands were rejected, this is the
+     *         reply to the first one.
+     */
+    private void executeTransactionCommands(List<String> commands)
+            throws IOException, MessagingException {
+        if (!mPipeliningSupported) {
+            for (String command : commands) {
+                executeSimpleCommand(command);
+            }
+            return;
+        }
+
+        for (String command : commands) {
+            writeLine(command, false, false);
+        }
+        mOut.flush();
+
+        // Read all replies to stay in sync with the server, then report the first failure
+        NegativeSmtpReplyException failure = null;
+        boolean dataStarted = false;
+        for (int i = 0, count = commands.size(); i < count; i++) {
+            try {
+                readResponse();
+                dataStarted = (i == count - 1);
+            } catch (NegativeSmtpReplyException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+
+        if (failure != null) {
+            if (dataStarted) {
+                /*
+                 * The server accepted DATA although a recipient was rejected. Dropping the
+                 * connection is the only way to abort the transaction.
+                 */
+                closeConnection();
+            }
+            throw failure;
+        }
+    }
+
     @Override
     public void close() {
-        try {
-            executeSimpleCommand("QUIT");
-        } catch (Exception e) {
+        if (mSocket != null) {
+            try {
+                executeSimpleCommand("QUIT");
+            } catch (Exception e) {
 
+            }
         }
+        closeConnection();
+    }
+
+    private void closeConnection() {
         try {
             mIn.close();
         } catch (Exception e) {
@@ -589,6 +699,10 @@ public class SmtpTransport extends Transport {
     }
 
     private void writeLine(String s, boolean sensitive) throws IOException {
+        writeLine(s, sensitive, true);
+    }
+
+    private void writeLine(String s, boolean sensitive, boolean flush) throws IOException {
         if (K9.DEBUG && K9.DEBUG_PROTOCOL_SMTP) {
             final String commandToLog;
             if (sensitive && !K9.DEBUG_SENSITIVE) {
@@ -608,7 +722,9 @@ public class SmtpTransport extends Transport {
          * See issue 799.
          */
         mOut.write(data);
-        mOut.flush();
+        if (flush) {
+            mOut.flush();
+        }
     }
 
     private void checkLine(String line) throws MessagingException {
@@ -643,11 +759,16 @@ public class SmtpTransport extends Transport {
 
     private List<String> executeSimpleCommand(String command, boolean sensitive)
     throws IOException, MessagingException {
-        List<String> results = new ArrayList<String>();
         if (command != null) {
             writeLine(command, sensitive);
         }
 
+        return readResponse();
+    }
+
+    private List<String> readResponse() throws IOException, MessagingException {
+        List<String> results = new ArrayList<String>();
+
         /*
          * Read lines as long as the length is 4 or larger, e.g. "220-banner text here".
          * Shorter lines are either errors of contain only a reply code. Those cases will
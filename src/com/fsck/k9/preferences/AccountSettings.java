@@ -105,6 +105,9 @@ public class AccountSettings {
         s.put("maxPushFolders", Settings.versions(
                 new V(1, new IntegerRangeSetting(0, 100, 10))
             ));
+        s.put("maxSendConnections", Settings.versions(
+                new V(38, new IntegerRangeSetting(1, 10, Account.DEFAULT_MAX_SEND_CONNECTIONS))
+            ));
         s.put("maximumAutoDownloadMessageSize", Settings.versions(
                 new V(1, new IntegerResourceSetting(32768,
                         R.array.account_settings_autodownload_message_size_values))
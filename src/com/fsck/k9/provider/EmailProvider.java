@@ -3,7 +3,10 @@ package com.fsck.k9.provider;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import com.fsck.k9.Account;
 import com.fsck.k9.Preferences;
@@ -12,7 +15,7 @@ import com.fsck.k9.helper.StringUtils;
 import com.fsck.k9.helper.Utility;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.store.LockableDatabase;
-import com.fsck.k9.mail.store.LockableDatabase.DbCallback;
+import com.fsck.k9.mail.store.LockableDatabase.ReadOnlyDbCallback;
 import com.fsck.k9.mail.store.LockableDatabase.WrappedException;
 import com.fsck.k9.mail.store.local.LocalStore;
 import com.fsck.k9.mail.store.UnavailableStorageException;
@@ -47,6 +50,38 @@ public class EmailProvider extends ContentProvider {
 
     public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
 
+    /**
+     * Query parameter of the message list URIs limiting the number of rows returned.
+     *
+     * <p>
+     * Together with {@link #QUERY_PARAMETER_AFTER_ID} and {@link #QUERY_PARAMETER_AFTER_VALUE}
+     * this allows loading a message list page by page. Instead of an offset, a page starts after
+     * the last row of the previous page (keyset pagination), so the database doesn't have to skip
+     * the rows of all previous pages. This is only supported for sort orders accepted by
+     * {@link #getPagingColumn(String)}. The parameters are ignored for other sort orders.
+     * </p>
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+    /**
+     * Query parameter containing the ID of the last row of the previous page.
+     *
+     * @see #QUERY_PARAMETER_LIMIT
+     */
+    public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+
+    /**
+     * Query parameter containing the value of the sort column in the last row of the previous
+     * page. Omitted if that value is {@code null}.
+     *
+     * @see #QUERY_PARAMETER_LIMIT
+     */
+    public static final String QUERY_PARAMETER_AFTER_VALUE = "after_value";
+
+    private static final Pattern PAGING_SORT_ORDER_PATTERN = Pattern.compile(
+            "(" + MessageColumns.DATE + "|" + MessageColumns.INTERNAL_DATE + ") (ASC|DESC), " +
+            MessageColumns.ID + " DESC");
+
 
     /*
      * Constants that are used for the URI matching.
@@ -108,6 +143,24 @@ public class EmailProvider extends ContentProvider {
 
     private static final String THREADS_TABLE = "threads";
 
+    private static final Pattern SELECTION_WORD_PATTERN =
+            Pattern.compile("[A-Za-z_][A-Za-z0-9_.]*");
+
+    /**
+     * SQL keywords allowed in a selection that can be applied to the {@code folders} table.
+     *
+     * @see #isFolderSelection(String)
+     */
+    private static final String[] FOLDER_SELECTION_WORDS = {
+        "AND", "OR", "NOT", "LIKE", "IS", "NULL", "IN"
+    };
+
+    /**
+     * The selection used to list the messages of a single folder. Threaded lists with this
+     * selection are read from {@link LocalStore#THREAD_SUMMARY_TABLE}.
+     */
+    private static final String FOLDER_SELECTION = MessageColumns.FOLDER_ID + " = ?";
+
     static {
         UriMatcher matcher = sUriMatcher;
 
@@ -237,10 +290,10 @@ public class EmailProvider extends ContentProvider {
 
                 if (match == MESSAGES) {
                     cursor = getMessages(accountUuid, dbProjection, selection, selectionArgs,
-                            sortOrder);
+                            sortOrder, Page.fromUri(uri, sortOrder));
                 } else if (match == MESSAGES_THREADED) {
                     cursor = getThreadedMessages(accountUuid, dbProjection, selection,
-                            selectionArgs, sortOrder);
+                            selectionArgs, sortOrder, Page.fromUri(uri, sortOrder));
                 } else if (match == MESSAGES_THREAD) {
                     String threadId = segments.get(3);
                     cursor = getThread(accountUuid, dbProjection, threadId, sortOrder);
@@ -291,13 +344,14 @@ public class EmailProvider extends ContentProvider {
     }
 
     protected Cursor getMessages(String accountUuid, final String[] projection,
-            final String selection, final String[] selectionArgs, final String sortOrder) {
+            final String selection, final String[] selectionArgs, final String sortOrder,
+            final Page page) {
 
         Account account = getAccount(accountUuid);
         LockableDatabase database = getDatabase(account);
 
         try {
-            return database.execute(false, new DbCallback<Cursor>() {
+            return database.execute(false, new ReadOnlyDbCallback<Cursor>() {
                 @Override
                 public Cursor doDbWork(SQLiteDatabase db) throws WrappedException,
                         UnavailableStorageException {
@@ -314,6 +368,15 @@ public class EmailProvider extends ContentProvider {
                                 InternalMessageColumns.EMPTY + "!=1)";
                     }
 
+                    String limit = null;
+                    if (page != null) {
+                        String condition = page.getCondition("", MessageColumns.ID);
+                        if (condition != null) {
+                            where += " AND " + condition;
+                        }
+                        limit = page.getLimit();
+                    }
+
                     final Cursor cursor;
                     if (Utility.arrayContainsAny(projection, (Object[]) FOLDERS_COLUMNS)) {
                         StringBuilder query = new StringBuilder();
@@ -345,11 +408,15 @@ public class EmailProvider extends ContentProvider {
                         query.append(" ORDER BY ");
                         query.append(SqlQueryBuilder.addPrefixToSelection(FIXUP_MESSAGES_COLUMNS,
                                 "m.", sortOrder));
+                        if (limit != null) {
+                            query.append(" LIMIT ");
+                            query.append(limit);
+                        }
 
                         cursor = db.rawQuery(query.toString(), selectionArgs);
                     } else {
                         cursor = db.query(MESSAGES_TABLE, projection, where, selectionArgs, null,
-                                null, sortOrder);
+                                null, sortOrder, limit);
                     }
 
                     return cursor;
@@ -361,17 +428,23 @@ public class EmailProvider extends ContentProvider {
     }
 
     protected Cursor getThreadedMessages(String accountUuid, final String[] projection,
-            final String selection, final String[] selectionArgs, final String sortOrder) {
+            final String selection, final String[] selectionArgs, final String sortOrder,
+            final Page page) {
 
         Account account = getAccount(accountUuid);
         LockableDatabase database = getDatabase(account);
 
         try {
-            return database.execute(false, new DbCallback<Cursor>() {
+            return database.execute(false, new ReadOnlyDbCallback<Cursor>() {
                 @Override
                 public Cursor doDbWork(SQLiteDatabase db) throws WrappedException,
                         UnavailableStorageException {
 
+                    if (FOLDER_SELECTION.equals(selection)) {
+                        return getThreadSummaries(db, projection, selectionArgs, sortOrder,
+                                page);
+                    }
+
                     StringBuilder query = new StringBuilder();
 
                     query.append("SELECT ");
@@ -416,11 +489,13 @@ public class EmailProvider extends ContentProvider {
                     }
 
                     query.append("WHERE m." + MessageColumns.DATE + " = a." + MessageColumns.DATE);
+                    appendPageCondition(query, page, "a.");
                     if (!StringUtils.isNullOrEmpty(sortOrder)) {
                         query.append(" ORDER BY ");
                         query.append(SqlQueryBuilder.addPrefixToSelection(
                                 FIXUP_AGGREGATED_MESSAGES_COLUMNS, "a.", sortOrder));
                     }
+                    appendPageLimit(query, page);
 
                     return db.rawQuery(query.toString(), selectionArgs);
                 }
@@ -430,6 +505,92 @@ public class EmailProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Lists the threads of a single folder using the thread summary table.
+     *
+     * <p>
+     * The table already contains the count and aggregated values of the messages of every thread
+     * in each folder, so this only has to scan the rows of the folder and join the newest message
+     * of each thread. The values match the ones of the generic query grouping the messages of the
+     * folder by thread.
+     * </p>
+     */
+    private Cursor getThreadSummaries(SQLiteDatabase db, String[] projection,
+            String[] selectionArgs, String sortOrder, Page page) {
+
+        StringBuilder query = new StringBuilder();
+
+        query.append("SELECT ");
+        boolean first = true;
+        for (String columnName : projection) {
+            if (!first) {
+                query.append(",");
+            } else {
+                first = false;
+            }
+
+            if (MessageColumns.ID.equals(columnName)) {
+                query.append("m." + MessageColumns.ID + " AS " + MessageColumns.ID);
+            } else if (ThreadColumns.ROOT.equals(columnName) ||
+                    SpecialColumns.THREAD_COUNT.equals(columnName) ||
+                    THREAD_AGGREGATION_FUNCS.containsKey(columnName)) {
+                query.append("s.");
+                query.append(columnName);
+                query.append(" AS ");
+                query.append(columnName);
+            } else if (Utility.arrayContains(FOLDERS_COLUMNS, columnName)) {
+                query.append(columnName);
+            } else {
+                query.append("m.");
+                query.append(columnName);
+                query.append(" AS ");
+                query.append(columnName);
+            }
+        }
+
+        query.append(" FROM " + LocalStore.THREAD_SUMMARY_TABLE + " s " +
+                "JOIN " + MESSAGES_TABLE + " m " +
+                "ON (m." + MessageColumns.ID + " = s." + ThreadColumns.MESSAGE_ID + ") ");
+
+        if (Utility.arrayContainsAny(projection, (Object[]) FOLDERS_COLUMNS)) {
+            query.append("LEFT JOIN " + FOLDERS_TABLE + " f " +
+                    "ON (m." + MessageColumns.FOLDER_ID + " = f." + FolderColumns.ID + ") ");
+        }
+
+        query.append("WHERE s." + FOLDER_SELECTION);
+        appendPageCondition(query, page, "s.");
+        if (!StringUtils.isNullOrEmpty(sortOrder)) {
+            query.append(" ORDER BY ");
+            query.append(SqlQueryBuilder.addPrefixToSelection(
+                    FIXUP_AGGREGATED_MESSAGES_COLUMNS, "s.", sortOrder));
+        }
+        appendPageLimit(query, page);
+
+        return db.rawQuery(query.toString(), selectionArgs);
+    }
+
+    /**
+     * Appends the condition selecting the rows after the previous page of a threaded list.
+     *
+     * @param prefix
+     *         The prefix of the aggregated sort column, e.g. {@code "a."}.
+     */
+    private static void appendPageCondition(StringBuilder query, Page page, String prefix) {
+        String condition = (page != null) ?
+                page.getCondition(prefix, "m." + MessageColumns.ID) : null;
+        if (condition != null) {
+            query.append(" AND ");
+            query.append(condition);
+        }
+    }
+
+    private static void appendPageLimit(StringBuilder query, Page page) {
+        if (page != null) {
+            query.append(" LIMIT ");
+            query.append(page.getLimit());
+        }
+    }
+
     private void createThreadedSubQuery(String[] projection, String selection,
             String[] selectionArgs, StringBuilder query) {
 
@@ -471,7 +632,8 @@ public class EmailProvider extends ContentProvider {
 
         if (!StringUtils.isNullOrEmpty(selection)) {
             query.append(" AND (");
-            query.append(selection);
+            query.append(SqlQueryBuilder.addPrefixToSelection(FIXUP_MESSAGES_COLUMNS,
+                    "m.", selection));
             query.append(")");
         }
 
@@ -485,7 +647,7 @@ public class EmailProvider extends ContentProvider {
         LockableDatabase database = getDatabase(account);
 
         try {
-            return database.execute(false, new DbCallback<Cursor>() {
+            return database.execute(false, new ReadOnlyDbCallback<Cursor>() {
                 @Override
                 public Cursor doDbWork(SQLiteDatabase db) throws WrappedException,
                         UnavailableStorageException {
@@ -544,6 +706,10 @@ public class EmailProvider extends ContentProvider {
         // Use default projection if none was given
         String[] sourceProjection = (columns == null) ? STATS_DEFAULT_PROJECTION : columns;
 
+        // The folders table contains the counts of every folder. Use them if the selection
+        // doesn't depend on the messages themselves, e.g. for the account list.
+        boolean folderSelection = isFolderSelection(selection);
+
         // Create SQL query string
         final StringBuilder sql = new StringBuilder();
         sql.append("SELECT ");
@@ -559,32 +725,57 @@ public class EmailProvider extends ContentProvider {
             }
 
             if (StatsColumns.UNREAD_COUNT.equals(columnName)) {
-                sql.append("SUM(" + MessageColumns.READ + "=0) AS " + StatsColumns.UNREAD_COUNT);
+                if (folderSelection) {
+                    sql.append("SUM(" + FolderColumns.UNREAD_COUNT + ") AS " +
+                            StatsColumns.UNREAD_COUNT);
+                } else {
+                    sql.append("SUM(" + MessageColumns.READ + "=0) AS " +
+                            StatsColumns.UNREAD_COUNT);
+                }
             } else if (StatsColumns.FLAGGED_COUNT.equals(columnName)) {
-                sql.append("SUM(" + MessageColumns.FLAGGED + ") AS " + StatsColumns.FLAGGED_COUNT);
+                if (folderSelection) {
+                    sql.append("SUM(" + FolderColumns.FLAGGED_COUNT + ") AS " +
+                            StatsColumns.FLAGGED_COUNT);
+                } else {
+                    sql.append("SUM(" + MessageColumns.FLAGGED + ") AS " +
+                            StatsColumns.FLAGGED_COUNT);
+                }
             } else {
                 throw new IllegalArgumentException("Column name not allowed: " + columnName);
             }
         }
 
-        // Table selection
-        sql.append(" FROM messages");
+        if (folderSelection) {
+            // Make "folder_id" refer to the folder's ID
+            sql.append(" FROM (SELECT *, " + FolderColumns.ID + " AS " +
+                    MessageColumns.FOLDER_ID + " FROM " + FOLDERS_TABLE + ")");
 
-        if (StringUtils.containsAny(selection, FOLDERS_COLUMNS)) {
-            sql.append(" JOIN folders ON (folders.id = messages.folder_id)");
-        }
+            if (!StringUtils.isNullOrEmpty(selection)) {
+                sql.append(" WHERE (");
+                sql.append(selection);
+                sql.append(")");
+            }
+        } else {
+            // Table selection
+            sql.append(" FROM messages");
 
-        // WHERE clause
-        sql.append(" WHERE (deleted=0 AND (empty IS NULL OR empty!=1))");
-        if (!StringUtils.isNullOrEmpty(selection)) {
-            sql.append(" AND (");
-            sql.append(selection);
-            sql.append(")");
+            if (StringUtils.containsAny(selection, FOLDERS_COLUMNS)) {
+                sql.append(" JOIN folders ON (folders.id = messages.folder_id)");
+            }
+
+            // WHERE clause
+            sql.append(" WHERE (deleted=0 AND (empty IS NULL OR empty!=1))");
+            if (!StringUtils.isNullOrEmpty(selection)) {
+                sql.append(" AND (");
+                sql.append(SqlQueryBuilder.addPrefixToSelection(FIXUP_MESSAGES_COLUMNS,
+                        "messages.", selection));
+                sql.append(")");
+            }
         }
 
         // Query the database and return the result cursor
         try {
-            return database.execute(false, new DbCallback<Cursor>() {
+            return database.execute(false, new ReadOnlyDbCallback<Cursor>() {
                 @Override
                 public Cursor doDbWork(SQLiteDatabase db) throws WrappedException,
                         UnavailableStorageException {
@@ -597,6 +788,55 @@ public class EmailProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Checks whether a selection only refers to columns of the {@code folders} table and
+     * {@code folder_id}, e.g. one created for the folder conditions of a
+     * {@link com.fsck.k9.search.LocalSearch}.
+     */
+    private static boolean isFolderSelection(String selection) {
+        if (StringUtils.isNullOrEmpty(selection)) {
+            return false;
+        }
+
+        Matcher matcher = SELECTION_WORD_PATTERN.matcher(selection);
+        while (matcher.find()) {
+            String word = matcher.group();
+
+            // "id" would be ambiguous
+            boolean folderColumn = MessageColumns.FOLDER_ID.equals(word) ||
+                    (!FolderColumns.ID.equals(word) &&
+                    Utility.arrayContains(FOLDERS_COLUMNS, word));
+
+            if (!folderColumn && !Utility.arrayContains(FOLDER_SELECTION_WORDS,
+                    word.toUpperCase(Locale.US))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the sort column used for paging through a message list with the given sort order.
+     *
+     * <p>
+     * Paging is supported for lists sorted by date or arrival date, followed by the message ID,
+     * e.g. {@code "date DESC, id DESC"}.
+     * </p>
+     *
+     * @return The column name, or {@code null} if the list can't be loaded page by page.
+     *
+     * @see #QUERY_PARAMETER_LIMIT
+     */
+    public static String getPagingColumn(String sortOrder) {
+        if (sortOrder == null) {
+            return null;
+        }
+
+        Matcher matcher = PAGING_SORT_ORDER_PATTERN.matcher(sortOrder);
+        return matcher.matches() ? matcher.group(1) : null;
+    }
+
     private Account getAccount(String accountUuid) {
         if (mPreferences == null) {
             Context appContext = getContext().getApplicationContext();
@@ -623,6 +863,92 @@ public class EmailProvider extends ContentProvider {
         return localStore.getDatabase();
     }
 
+    /**
+     * A page of a message list requested with {@link EmailProvider#QUERY_PARAMETER_LIMIT}.
+     */
+    static class Page {
+        private final int mLimit;
+        private final String mColumn;
+        private final boolean mAscending;
+        private final boolean mAfter;
+        private final Long mAfterValue;
+        private final long mAfterId;
+
+        private Page(int limit, String column, boolean ascending, boolean after, Long afterValue,
+                long afterId) {
+            mLimit = limit;
+            mColumn = column;
+            mAscending = ascending;
+            mAfter = after;
+            mAfterValue = afterValue;
+            mAfterId = afterId;
+        }
+
+        /**
+         * @return The requested page, or {@code null} if all rows should be returned.
+         */
+        static Page fromUri(Uri uri, String sortOrder) {
+            String limit = uri.getQueryParameter(QUERY_PARAMETER_LIMIT);
+            String column = getPagingColumn(sortOrder);
+            if (limit == null || column == null) {
+                return null;
+            }
+
+            try {
+                String afterId = uri.getQueryParameter(QUERY_PARAMETER_AFTER_ID);
+                String afterValue = uri.getQueryParameter(QUERY_PARAMETER_AFTER_VALUE);
+
+                return new Page(Integer.parseInt(limit), column,
+                        sortOrder.startsWith(column + " ASC"), afterId != null,
+                        (afterValue != null) ? Long.valueOf(afterValue) : null,
+                        (afterId != null) ? Long.parseLong(afterId) : 0);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid page: " + uri, e);
+            }
+        }
+
+        String getLimit() {
+            return Integer.toString(mLimit);
+        }
+
+        /**
+         * Creates the condition selecting the rows that are sorted after the last row of the
+         * previous page.
+         *
+         * <p>
+         * The values are numbers, so they are part of the SQL statement. Unlike arguments they
+         * are compared correctly with the results of aggregate functions, which have no type
+         * affinity. {@code NULL} values are sorted before all others.
+         * </p>
+         *
+         * @param prefix
+         *         The prefix of the sort column, e.g. {@code "m."}.
+         * @param idColumn
+         *         The column containing the message ID.
+         *
+         * @return The condition or {@code null} if this is the first page.
+         */
+        String getCondition(String prefix, String idColumn) {
+            if (!mAfter) {
+                return null;
+            }
+
+            String column = prefix + mColumn;
+            String sameValue = "(" + column + ((mAfterValue == null) ?
+                    " IS NULL" : " = " + mAfterValue) + " AND " + idColumn + " < " + mAfterId + ")";
+
+            if (mAscending) {
+                return "(" + column + ((mAfterValue == null) ?
+                        " IS NOT NULL" : " > " + mAfterValue) + " OR " + sameValue + ")";
+            } else if (mAfterValue == null) {
+                return sameValue;
+            } else {
+                return "(" + column + " < " + mAfterValue + " OR " + column + " IS NULL OR " +
+                        sameValue + ")";
+            }
+        }
+    }
+
     /**
      * This class is needed to make {@link CursorAdapter} work with our database schema.
      *
@@ -73,7 +73,9 @@ public class SqlQueryBuilder {
                     break;
                 }
                 default: {
-                    appendCondition(condition, query, selectionArgs);
+                    if (!appendFulltextCondition(condition, query, selectionArgs)) {
+                        appendCondition(condition, query, selectionArgs);
+                    }
                 }
             }
         } else {
@@ -93,6 +95,108 @@ public class SqlQueryBuilder {
         appendExprRight(condition, query, selectionArgs);
     }
 
+    /**
+     * Uses the full-text index for "contains" searches in the subject, sender or message text.
+     *
+     * <p>
+     * Unlike {@code LIKE '%value%'} the index matches the beginning of words, e.g. "mail" finds
+     * "Mailbox" but not "Gmail". Every word of the value has to be present.
+     * </p>
+     *
+     * @return {@code true} if a condition was appended. {@code false} if the condition can't be
+     *         answered by the index.
+     */
+    private static boolean appendFulltextCondition(SearchCondition condition, StringBuilder query,
+            List<String> selectionArgs) {
+        if (condition.attribute != Attribute.CONTAINS) {
+            return false;
+        }
+
+        String columnName = getFulltextColumnName(condition.field);
+        if (columnName == null) {
+            return false;
+        }
+
+        String match = buildMatchQuery(columnName, condition.value);
+        if (match == null) {
+            return false;
+        }
+
+        query.append("id IN (SELECT docid FROM " + LocalStore.FULLTEXT_TABLE + " WHERE " +
+                LocalStore.FULLTEXT_TABLE + " MATCH ?)");
+        selectionArgs.add(match);
+        return true;
+    }
+
+    private static String getFulltextColumnName(Searchfield field) {
+        switch (field) {
+            case SUBJECT: {
+                return "subject";
+            }
+            case SENDER: {
+                return "sender_list";
+            }
+            case MESSAGE_CONTENTS: {
+                return "text_content";
+            }
+            default: {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Creates a MATCH expression that finds all words of {@code value} as word prefixes in the
+     * given column of the full-text index.
+     *
+     * <p>
+     * The value is split the same way the index tokenizer splits text (ASCII letters and digits
+     * and all non-ASCII characters are part of words), so no FTS query syntax can get through.
+     * </p>
+     *
+     * @return The MATCH expression or {@code null} if {@code value} doesn't contain any words.
+     */
+    static String buildMatchQuery(String columnName, String value) {
+        if (value == null) {
+            return null;
+        }
+
+        StringBuilder match = new StringBuilder();
+        int start = -1;
+        for (int i = 0, length = value.length(); i <= length; i++) {
+            boolean wordChar = i < length && isFulltextWordChar(value.charAt(i));
+            if (wordChar && start == -1) {
+                start = i;
+            } else if (!wordChar && start != -1) {
+                if (match.length() > 0) {
+                    match.append(' ');
+                }
+                match.append(columnName).append(':');
+                appendAsciiLowerCase(match, value, start, i);
+                match.append('*');
+                start = -1;
+            }
+        }
+
+        return (match.length() > 0) ? match.toString() : null;
+    }
+
+    /**
+     * Lowercases only ASCII letters, like the index tokenizer does. Other characters are indexed
+     * unchanged, so lowercasing them would prevent matches.
+     */
+    private static void appendAsciiLowerCase(StringBuilder sb, String value, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            sb.append((c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c);
+        }
+    }
+
+    private static boolean isFulltextWordChar(char c) {
+        return c > 127 || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+                (c >= '0' && c <= '9');
+    }
+
     private static long getFolderId(Account account, String folderName) {
         long folderId = 0;
         try {
@@ -2,10 +2,13 @@
 package com.fsck.k9.view;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import android.app.Activity;
 import android.app.Fragment;
@@ -30,13 +33,17 @@ import com.fsck.k9.K9;
 import com.fsck.k9.R;
 import com.fsck.k9.crypto.CryptoHelper;
 import com.fsck.k9.crypto.OpenPgpApiHelper;
+import com.fsck.k9.crypto.PgpMimeHelper;
 import com.fsck.k9.fragment.MessageViewFragment;
 import com.fsck.k9.helper.IdentityHelper;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.Part;
+import com.fsck.k9.mail.internet.BinaryTempFileBody;
 import com.fsck.k9.mail.internet.MimeUtility;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.james.mime4j.util.MimeUtil;
 import org.openintents.openpgp.OpenPgpError;
 import org.openintents.openpgp.OpenPgpSignatureResult;
 import org.openintents.openpgp.util.OpenPgpApi;
@@ -63,9 +70,21 @@ public class MessageOpenPgpView extends LinearLayout {
 
     private static final int REQUEST_CODE_DECRYPT_VERIFY = 12;
 
+    /**
+     * How long to wait for the OpenPGP provider to finish writing the plaintext after it
+     * returned its result.
+     */
+    private static final long OUTPUT_TIMEOUT_SECONDS = 30;
+
     String mData;
     Account mAccount;
 
+    /**
+     * The part holding the OpenPGP message of a PGP/MIME encrypted message, {@code null} for
+     * inline PGP.
+     */
+    private Part mPgpMimePayload;
+
     public MessageOpenPgpView(Context context, AttributeSet attrs) {
         super(context, attrs);
         mContext = context;
@@ -211,13 +230,16 @@ public class MessageOpenPgpView extends LinearLayout {
         CryptoHelper helper = new CryptoHelper();
         if (helper.isEncrypted(message) || helper.isSigned(message)) {
             // start automatic decrypt
-            decryptAndVerify(message);
+            decryptAndVerify(message, null);
         } else {
             try {
                 // check for PGP/MIME encryption
-                Part pgp = MimeUtility
-                        .findFirstPartByMimeType(message, "application/pgp-encrypted");
-                if (pgp != null) {
+                Part payload = PgpMimeHelper.findEncryptedPayload(message);
+                Part pgp = MimeUtility.findFirstPartByMimeType(message,
+                        PgpMimeHelper.PGP_ENCRYPTED_MIME_TYPE);
+                if (payload != null) {
+                    decryptAndVerify(message, payload);
+                } else if (pgp != null) {
                     Toast.makeText(mContext, R.string.pgp_mime_unsupported, Toast.LENGTH_LONG)
                             .show();
                 }
@@ -227,26 +249,35 @@ public class MessageOpenPgpView extends LinearLayout {
         }
     }
 
-    private void decryptAndVerify(final Message message) {
+    /**
+     * @param pgpMimePayload
+     *         The part holding the OpenPGP message of a PGP/MIME encrypted message, or
+     *         {@code null} to decrypt/verify the inline PGP data of the first text part.
+     */
+    private void decryptAndVerify(final Message message, final Part pgpMimePayload) {
         this.setVisibility(View.VISIBLE);
         mProgress.setVisibility(View.VISIBLE);
         MessageOpenPgpView.this.setBackgroundColor(mFragment.getResources().getColor(
                 R.color.openpgp_orange));
         mText.setText(R.string.openpgp_decrypting_verifying);
 
+        mPgpMimePayload = pgpMimePayload;
+
         // waiting in a new thread
         Runnable r = new Runnable() {
 
             @Override
             public void run() {
                 try {
-                    // get data String
-                    Part part = MimeUtility.findFirstPartByMimeType(message, "text/plain");
-                    if (part == null) {
-                        part = MimeUtility.findFirstPartByMimeType(message, "text/html");
-                    }
-                    if (part != null) {
-                        mData = MimeUtility.getTextFromPart(part);
+                    if (pgpMimePayload == null) {
+                        // get data String
+                        Part part = MimeUtility.findFirstPartByMimeType(message, "text/plain");
+                        if (part == null) {
+                            part = MimeUtility.findFirstPartByMimeType(message, "text/html");
+                        }
+                        if (part != null) {
+                            mData = MimeUtility.getTextFromPart(part);
+                        }
                     }
 
                     // wait for service to be bound
@@ -280,12 +311,185 @@ public class MessageOpenPgpView extends LinearLayout {
         String accName = OpenPgpApiHelper.buildAccountName(identity);
         intent.putExtra(OpenPgpApi.EXTRA_ACCOUNT_NAME, accName);
 
-        InputStream is = new ByteArrayInputStream(mData.getBytes(Charset.forName("UTF-8")));
-        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new Thread(new DecryptVerifyTask(intent, mPgpMimePayload)).start();
+    }
+
+    /**
+     * Streams the encrypted data to the OpenPGP provider and the plaintext into a temp file.
+     *
+     * <p>
+     * The result is handed to a {@link DecryptVerifyCallback} on the UI thread.
+     * </p>
+     */
+    private class DecryptVerifyTask implements Runnable {
+        private final Intent mIntent;
+        private final Part mPayload;
+
+        private DecryptVerifyTask(Intent intent, Part payload) {
+            mIntent = intent;
+            mPayload = payload;
+        }
+
+        @Override
+        public void run() {
+            Intent result;
+            String output = null;
+
+            InputStream is = null;
+            BinaryTempFileBody decrypted = null;
+            CloseAwareOutputStream os = null;
+            try {
+                if (mPayload != null) {
+                    is = PgpMimeHelper.getPayloadInputStream(mPayload);
+                } else {
+                    is = new ByteArrayInputStream(mData.getBytes(Charset.forName("UTF-8")));
+                }
+
+                decrypted = new BinaryTempFileBody(MimeUtil.ENC_8BIT);
+                os = new CloseAwareOutputStream(decrypted.getOutputStream());
+
+                result = mOpenPgpApi.executeApi(mIntent, is, os);
+
+                // executeApi() may return before all of the output has been copied
+                boolean complete = os.awaitClose(OUTPUT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+                if (result.getIntExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR) ==
+                        OpenPgpApi.RESULT_CODE_SUCCESS) {
+                    if (!complete) {
+                        throw new IOException("OpenPGP provider didn't finish writing the output");
+                    }
+                    // readOutput() deletes the temp file, even if it fails
+                    BinaryTempFileBody plaintext = decrypted;
+                    decrypted = null;
+                    output = readOutput(plaintext);
+                }
+            } catch (Exception e) {
+                Log.e(K9.LOG_TAG, "Unable to decrypt email.", e);
+
+                result = new Intent();
+                result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
+                result.putExtra(OpenPgpApi.RESULT_ERROR,
+                        new OpenPgpError(OpenPgpError.CLIENT_SIDE_ERROR, e.getMessage()));
+            } finally {
+                IOUtils.closeQuietly(is);
+                if (os != null) {
+                    // Makes a transfer that is still running fail instead of writing to a
+                    // deleted file
+                    os.abandon();
+                }
+                if (decrypted != null) {
+                    discard(decrypted);
+                }
+            }
+
+            final Intent finalResult = result;
+            final String finalOutput = output;
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    new DecryptVerifyCallback(finalOutput, REQUEST_CODE_DECRYPT_VERIFY)
+                            .onReturn(finalResult);
+                }
+            });
+        }
+
+        /**
+         * Reads the text to display from the temp file and deletes it.
+         */
+        private String readOutput(BinaryTempFileBody decrypted)
+                throws IOException, MessagingException {
+            if (mPayload != null) {
+                return PgpMimeHelper.getText(PgpMimeHelper.parseDecrypted(decrypted));
+            }
+
+            InputStream in = decrypted.getInputStream();
+            try {
+                return IOUtils.toString(in, "UTF-8");
+            } finally {
+                in.close();
+            }
+        }
+
+        private void discard(BinaryTempFileBody decrypted) {
+            try {
+                // Closing the input stream deletes the temp file
+                decrypted.getInputStream().close();
+            } catch (Exception e) {
+                Log.w(K9.LOG_TAG, "Unable to delete decrypted temp file", e);
+            }
+        }
+    }
+
+    /**
+     * Lets the caller wait until the transfer thread of {@link OpenPgpApi} closed the stream.
+     *
+     * <p>
+     * The transfer thread closes the stream when it's done, so waiting for {@link #close()}
+     * waits for the thread. {@link #abandon()} makes all later writes fail, which stops a
+     * transfer that didn't finish in time.
+     * </p>
+     */
+    private static class CloseAwareOutputStream extends FilterOutputStream {
+        private final CountDownLatch mClosed = new CountDownLatch(1);
+        private boolean mAbandoned;
+
+        CloseAwareOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public synchronized void write(byte[] buffer, int offset, int count) throws IOException {
+            if (mAbandoned) {
+                throw new IOException("Output stream was abandoned");
+            }
+            out.write(buffer, offset, count);
+        }
 
-        DecryptVerifyCallback callback = new DecryptVerifyCallback(os, REQUEST_CODE_DECRYPT_VERIFY);
+        @Override
+        public synchronized void write(int oneByte) throws IOException {
+            if (mAbandoned) {
+                throw new IOException("Output stream was abandoned");
+            }
+            out.write(oneByte);
+        }
 
-        mOpenPgpApi.executeApiAsync(intent, is, os, callback);
+        @Override
+        public synchronized void flush() throws IOException {
+            if (!mAbandoned) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                synchronized (this) {
+                    if (!mAbandoned) {
+                        super.close();
+                    }
+                }
+            } finally {
+                mClosed.countDown();
+            }
+        }
+
+        /**
+         * @return {@code true} if the stream was closed in time.
+         */
+        boolean awaitClose(long timeout, TimeUnit unit) throws InterruptedException {
+            return mClosed.await(timeout, unit);
+        }
+
+        /**
+         * Closes the underlying stream unless the transfer thread did already. No bytes are
+         * written once this returns.
+         */
+        synchronized void abandon() {
+            if (!mAbandoned) {
+                mAbandoned = true;
+                IOUtils.closeQuietly(out);
+            }
+        }
     }
 
     private void getMissingKey() {
@@ -302,11 +506,11 @@ public class MessageOpenPgpView extends LinearLayout {
      * Called on successful decrypt/verification
      */
     private class DecryptVerifyCallback implements OpenPgpApi.IOpenPgpCallback {
-        ByteArrayOutputStream os;
+        String output;
         int requestCode;
 
-        private DecryptVerifyCallback(ByteArrayOutputStream os, int requestCode) {
-            this.os = os;
+        private DecryptVerifyCallback(String output, int requestCode) {
+            this.output = output;
             this.requestCode = requestCode;
         }
 
@@ -314,26 +518,19 @@ public class MessageOpenPgpView extends LinearLayout {
         public void onReturn(Intent result) {
             switch (result.getIntExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR)) {
                 case OpenPgpApi.RESULT_CODE_SUCCESS: {
-                    try {
-                        final String output = os.toString("UTF-8");
-
-                        OpenPgpSignatureResult sigResult = null;
-                        if (result.hasExtra(OpenPgpApi.RESULT_SIGNATURE)) {
-                            sigResult = result.getParcelableExtra(OpenPgpApi.RESULT_SIGNATURE);
-                        }
+                    OpenPgpSignatureResult sigResult = null;
+                    if (result.hasExtra(OpenPgpApi.RESULT_SIGNATURE)) {
+                        sigResult = result.getParcelableExtra(OpenPgpApi.RESULT_SIGNATURE);
+                    }
 
-                        if (K9.DEBUG)
-                            Log.d(K9.LOG_TAG, "result: " + os.toByteArray().length
-                                    + " str=" + output);
+                    if (K9.DEBUG)
+                        Log.d(K9.LOG_TAG, "result: " + output.length() + " str=" + output);
 
-                        // missing key -> PendingIntent to get keys
-                        mMissingKeyPI = result.getParcelableExtra(OpenPgpApi.RESULT_INTENT);
+                    // missing key -> PendingIntent to get keys
+                    mMissingKeyPI = result.getParcelableExtra(OpenPgpApi.RESULT_INTENT);
 
-                        mProgress.setVisibility(View.GONE);
-                        mFragment.setMessageWithOpenPgp(output, sigResult);
-                    } catch (UnsupportedEncodingException e) {
-                        Log.e(K9.LOG_TAG, "UnsupportedEncodingException", e);
-                    }
+                    mProgress.setVisibility(View.GONE);
+                    mFragment.setMessageWithOpenPgp(output, sigResult);
                     break;
                 }
                 case OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED: {
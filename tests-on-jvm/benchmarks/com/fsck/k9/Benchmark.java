@@ -0,0 +1,34 @@
+package com.fsck.k9;
+
+/**
+ * A task timed by one of the benchmarks in this directory.
+ *
+ * <p>
+ * There is no JMH in this build. The task is run a few times so the JIT compiles it, then it is
+ * timed for several rounds. The fastest round is reported because it is the one least disturbed
+ * by garbage collection and other processes.
+ * </p>
+ */
+public abstract class Benchmark {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 10;
+
+    public abstract void run() throws Exception;
+
+    /**
+     * @return The time of the fastest round in nanoseconds.
+     */
+    public long measure() throws Exception {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            run();
+        }
+
+        long fastest = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            run();
+            fastest = Math.min(fastest, System.nanoTime() - start);
+        }
+        return fastest;
+    }
+}
@@ -0,0 +1,75 @@
+package com.fsck.k9.mail;
+
+import com.fsck.k9.Benchmark;
+
+/**
+ * Compares {@link PreviewExtractor} with the regular expressions that
+ * {@link Message#calculateContentPreview(String)} used before.
+ */
+public class PreviewExtractorBenchmark {
+    private static final int ITERATIONS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Hi Bob,\r\n\r\nsee you   tomorrow at\t10. Details: http://example.com/a?b=c\r\n");
+        sb.append("==============================\r\n");
+        sb.append("On Mon, Jan 5, 2015 at 10:00 AM, Bob <bob@example.com> wrote:\r\n");
+        final String shortText = sb.toString();
+        while (sb.length() < PreviewExtractor.MAX_TEXT_LENGTH) {
+            sb.append("> quoted line that is skipped\r\n");
+        }
+        final String quotedText = sb.toString();
+
+        sb.setLength(0);
+        for (int i = 0; sb.length() < PreviewExtractor.MAX_TEXT_LENGTH; i++) {
+            sb.append("Line ").append(i).append(" of a long message without quotes\r\n");
+        }
+        final String longText = sb.toString();
+
+        for (final String text : new String[] { shortText, quotedText, longText }) {
+            long regex = new Benchmark() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < ITERATIONS; i++) {
+                        calculatePreviewWithRegularExpressions(text);
+                    }
+                }
+            }.measure();
+
+            long extractor = new Benchmark() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < ITERATIONS; i++) {
+                        PreviewExtractor.extract(text);
+                    }
+                }
+            }.measure();
+
+            System.out.println(text.length() + " characters: regular expressions " +
+                    (regex / ITERATIONS / 1000) + " us, PreviewExtractor " +
+                    (extractor / ITERATIONS / 1000) + " us per preview");
+        }
+    }
+
+    /**
+     * The previous implementation of {@link Message#calculateContentPreview(String)}.
+     */
+    private static String calculatePreviewWithRegularExpressions(String text) {
+        if (text.length() > 8192) {
+            text = text.substring(0, 8192);
+        }
+
+        text = text.replaceAll("(?ms)^-- [\\r\\n]+.*", "");
+        text = text.replaceAll("(?m)^----.*?$", "");
+        text = text.replaceAll("(?m)^[#>].*$", "");
+        text = text.replaceAll("(?m)^On .*wrote.?$", "");
+        text = text.replaceAll("(?m)^.*\\w+:$", "");
+        text = text.replaceAll("\\s*([-=_]{30,}+)\\s*", " ");
+        text = text.replaceAll("https?://\\S+", "...");
+        text = text.replaceAll("(\\r|\\n)+", " ");
+        text = text.replaceAll("\\s+", " ");
+        text = text.trim();
+
+        return (text.length() <= 512) ? text : text.substring(0, 512);
+    }
+}
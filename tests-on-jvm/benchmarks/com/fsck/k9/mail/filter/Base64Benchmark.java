@@ -0,0 +1,75 @@
+package com.fsck.k9.mail.filter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.james.mime4j.codec.Base64InputStream;
+
+import com.fsck.k9.Benchmark;
+
+/**
+ * Compares the throughput of {@link Base64EncoderOutputStream} and
+ * {@link Base64DecoderInputStream} with the codecs they replaced.
+ */
+public class Base64Benchmark {
+    private static final int DATA_SIZE = 2 * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        final byte[] data = new byte[DATA_SIZE];
+        new Random(4).nextBytes(data);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream base64 = new Base64OutputStream(out);
+        base64.write(data);
+        base64.close();
+        final byte[] encoded = out.toByteArray();
+
+        report("Encode with Base64OutputStream", new Benchmark() {
+            @Override
+            public void run() throws IOException {
+                encode(new Base64OutputStream(new NullOutputStream()), data);
+            }
+        });
+        report("Encode with Base64EncoderOutputStream", new Benchmark() {
+            @Override
+            public void run() throws IOException {
+                encode(new Base64EncoderOutputStream(new NullOutputStream()), data);
+            }
+        });
+        report("Decode with mime4j's Base64InputStream", new Benchmark() {
+            @Override
+            public void run() throws IOException {
+                decode(new Base64InputStream(new ByteArrayInputStream(encoded), false));
+            }
+        });
+        report("Decode with Base64DecoderInputStream", new Benchmark() {
+            @Override
+            public void run() throws IOException {
+                decode(new Base64DecoderInputStream(new ByteArrayInputStream(encoded)));
+            }
+        });
+    }
+
+    private static void report(String name, Benchmark benchmark) throws Exception {
+        long nanos = benchmark.measure();
+        System.out.println(name + ": " + (DATA_SIZE * 1000L / nanos) + " MB/s");
+    }
+
+    private static void encode(OutputStream out, byte[] data) throws IOException {
+        out.write(data);
+        out.close();
+    }
+
+    private static void decode(InputStream in) throws IOException {
+        byte[] buffer = new byte[4096];
+        while (in.read(buffer) != -1) {
+            // Only the decoding is measured
+        }
+        in.close();
+    }
+}
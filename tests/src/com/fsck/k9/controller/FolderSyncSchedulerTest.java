@@ -0,0 +1,158 @@
+package com.fsck.k9.controller;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class FolderSyncSchedulerTest extends TestCase {
+    private ExecutorService mExecutor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mExecutor = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testRunsAllTasks() throws Exception {
+        FolderSyncScheduler scheduler = new FolderSyncScheduler(mExecutor, 4);
+        ConcurrencyProbe probe = new ConcurrencyProbe();
+
+        runAll(scheduler, "server", 3, probe.createTasks(20));
+
+        assertEquals(20, probe.completed.get());
+    }
+
+    public void testAccountConcurrencyIsLimited() throws Exception {
+        FolderSyncScheduler scheduler = new FolderSyncScheduler(mExecutor, 10);
+        ConcurrencyProbe probe = new ConcurrencyProbe();
+
+        runAll(scheduler, "server", 2, probe.createTasks(10));
+
+        assertTrue(probe.maxRunning.get() <= 2);
+        assertTrue(probe.maxRunning.get() >= 1);
+    }
+
+    public void testServerConcurrencyIsLimited() throws Exception {
+        FolderSyncScheduler scheduler = new FolderSyncScheduler(mExecutor, 1);
+        ConcurrencyProbe probe = new ConcurrencyProbe();
+
+        runAll(scheduler, "server", 5, probe.createTasks(10));
+
+        assertEquals(1, probe.maxRunning.get());
+    }
+
+    public void testFailingTaskDoesNotBlockOthers() throws Exception {
+        FolderSyncScheduler scheduler = new FolderSyncScheduler(mExecutor, 1);
+        ConcurrencyProbe probe = new ConcurrencyProbe();
+
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        tasks.add(new Runnable() {
+            @Override
+            public void run() {
+                throw new RuntimeException("sync failed");
+            }
+        });
+        tasks.addAll(probe.createTasks(3));
+
+        runAll(scheduler, "server", 1, tasks);
+
+        assertEquals(3, probe.completed.get());
+    }
+
+    public void testDoesNotBlockCaller() throws Exception {
+        FolderSyncScheduler scheduler = new FolderSyncScheduler(mExecutor, 4);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        List<Runnable> tasks = Collections.<Runnable>singletonList(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        scheduler.runAll("server", 1, tasks, new Runnable() {
+            @Override
+            public void run() {
+                finished.countDown();
+            }
+        });
+
+        assertEquals(1, finished.getCount());
+        release.countDown();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+    }
+
+    public void testFinishesImmediatelyWithoutTasks() throws Exception {
+        FolderSyncScheduler scheduler = new FolderSyncScheduler(mExecutor, 4);
+        final AtomicInteger finished = new AtomicInteger();
+
+        scheduler.runAll("server", 1, Collections.<Runnable>emptyList(), new Runnable() {
+            @Override
+            public void run() {
+                finished.incrementAndGet();
+            }
+        });
+
+        assertEquals(1, finished.get());
+    }
+
+    private static void runAll(FolderSyncScheduler scheduler, String serverKey, int concurrency,
+            List<Runnable> tasks) throws InterruptedException {
+        final CountDownLatch finished = new CountDownLatch(1);
+        scheduler.runAll(serverKey, concurrency, tasks, new Runnable() {
+            @Override
+            public void run() {
+                finished.countDown();
+            }
+        });
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+    }
+
+    private static class ConcurrencyProbe {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+
+        List<Runnable> createTasks(int count) {
+            List<Runnable> tasks = new ArrayList<Runnable>(count);
+            for (int i = 0; i < count; i++) {
+                tasks.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        int current = running.incrementAndGet();
+                        int max;
+                        while ((max = maxRunning.get()) < current &&
+                                !maxRunning.compareAndSet(max, current)) {
+                            // retry
+                        }
+                        try {
+                            Thread.sleep(10);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        running.decrementAndGet();
+                        completed.incrementAndGet();
+                    }
+                });
+            }
+            return tasks;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.fsck.k9.controller;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.Transport;
+
+public class OutboxDeliverySchedulerTest extends TestCase {
+    private ExecutorService mExecutor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mExecutor = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testRunsAllDeliveries() throws Exception {
+        OutboxDeliveryScheduler scheduler = new OutboxDeliveryScheduler(mExecutor);
+        DeliveryProbe probe = new DeliveryProbe();
+
+        scheduler.runAll(createTransports(2), probe.createDeliveries(20, true));
+
+        assertEquals(20, probe.sent.get());
+        assertEquals(20, probe.finished.get());
+    }
+
+    public void testTransportIsNotShared() throws Exception {
+        OutboxDeliveryScheduler scheduler = new OutboxDeliveryScheduler(mExecutor);
+        DeliveryProbe probe = new DeliveryProbe();
+
+        scheduler.runAll(createTransports(3), probe.createDeliveries(30, true));
+
+        assertFalse(probe.sharedTransport);
+        assertTrue(probe.maxSending.get() <= 3);
+    }
+
+    public void testAfterSendOverlapsWithNextSend() throws Exception {
+        OutboxDeliveryScheduler scheduler = new OutboxDeliveryScheduler(mExecutor);
+        DeliveryProbe probe = new DeliveryProbe();
+        probe.afterSendMillis = 50;
+
+        long start = System.currentTimeMillis();
+        scheduler.runAll(createTransports(1), probe.createDeliveries(4, true));
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertEquals(4, probe.finished.get());
+        // Sequential processing would take at least 4 * (10 + 50) ms
+        assertTrue(elapsed < 240);
+    }
+
+    public void testAfterSendIsSkippedForUnsentMessages() throws Exception {
+        OutboxDeliveryScheduler scheduler = new OutboxDeliveryScheduler(mExecutor);
+        DeliveryProbe probe = new DeliveryProbe();
+
+        scheduler.runAll(createTransports(2), probe.createDeliveries(5, false));
+
+        assertEquals(5, probe.sent.get());
+        assertEquals(0, probe.finished.get());
+    }
+
+    public void testFailingDeliveryDoesNotBlockOthers() throws Exception {
+        OutboxDeliveryScheduler scheduler = new OutboxDeliveryScheduler(mExecutor);
+        DeliveryProbe probe = new DeliveryProbe();
+
+        List<OutboxDeliveryScheduler.Delivery> deliveries =
+                new ArrayList<OutboxDeliveryScheduler.Delivery>();
+        deliveries.add(new OutboxDeliveryScheduler.Delivery() {
+            @Override
+            public Collection<String> getOrderingKeys() {
+                return null;
+            }
+
+            @Override
+            public boolean send(Transport transport) {
+                throw new RuntimeException("send failed");
+            }
+
+            @Override
+            public void afterSend() {
+            }
+        });
+        deliveries.addAll(probe.createDeliveries(3, true));
+
+        scheduler.runAll(createTransports(1), deliveries);
+
+        assertEquals(3, probe.finished.get());
+    }
+
+    public void testDeliveriesWithCommonKeyKeepTheirOrder() throws Exception {
+        OutboxDeliveryScheduler scheduler = new OutboxDeliveryScheduler(mExecutor);
+        List<String> sendOrder = Collections.synchronizedList(new ArrayList<String>());
+
+        List<OutboxDeliveryScheduler.Delivery> deliveries =
+                new ArrayList<OutboxDeliveryScheduler.Delivery>();
+        for (int i = 0; i < 10; i++) {
+            deliveries.add(new OrderedDelivery("a" + i, sendOrder, 10 - i, "a.example"));
+            deliveries.add(new OrderedDelivery("b" + i, sendOrder, 10 - i, "b.example"));
+        }
+
+        scheduler.runAll(createTransports(4), deliveries);
+
+        assertEquals(20, sendOrder.size());
+        assertInOrder(sendOrder, "a");
+        assertInOrder(sendOrder, "b");
+    }
+
+    public void testQueuesAreJoinedByAnyCommonKey() {
+        OutboxDeliveryScheduler.Delivery first = new OrderedDelivery("1", null, 0, "a.example");
+        OutboxDeliveryScheduler.Delivery second = new OrderedDelivery("2", null, 0, "b.example");
+        OutboxDeliveryScheduler.Delivery third = new OrderedDelivery("3", null, 0, "c.example");
+        OutboxDeliveryScheduler.Delivery fourth =
+                new OrderedDelivery("4", null, 0, "c.example", "a.example");
+        OutboxDeliveryScheduler.Delivery fifth = new OrderedDelivery("5", null, 0);
+
+        List<List<OutboxDeliveryScheduler.Delivery>> queues =
+                OutboxDeliveryScheduler.groupByOrderingKeys(
+                        Arrays.asList(first, second, third, fourth, fifth));
+
+        assertEquals(3, queues.size());
+        assertEquals(Arrays.asList(first, third, fourth), queues.get(0));
+        assertEquals(Collections.singletonList(second), queues.get(1));
+        assertEquals(Collections.singletonList(fifth), queues.get(2));
+    }
+
+    private static void assertInOrder(List<String> sendOrder, String prefix) {
+        int expected = 0;
+        for (String name : sendOrder) {
+            if (name.startsWith(prefix)) {
+                assertEquals(prefix + expected, name);
+                expected++;
+            }
+        }
+    }
+
+    private static class OrderedDelivery implements OutboxDeliveryScheduler.Delivery {
+        private final String mName;
+        private final List<String> mSendOrder;
+        private final long mSendMillis;
+        private final List<String> mKeys;
+
+        OrderedDelivery(String name, List<String> sendOrder, long sendMillis, String... keys) {
+            mName = name;
+            mSendOrder = sendOrder;
+            mSendMillis = sendMillis;
+            mKeys = Arrays.asList(keys);
+        }
+
+        @Override
+        public Collection<String> getOrderingKeys() {
+            return mKeys;
+        }
+
+        @Override
+        public boolean send(Transport transport) {
+            // Later messages are faster, so they would overtake the earlier ones
+            DeliveryProbe.sleep(mSendMillis);
+            mSendOrder.add(mName);
+            return true;
+        }
+
+        @Override
+        public void afterSend() {
+        }
+    }
+
+    private static List<Transport> createTransports(int count) {
+        List<Transport> transports = new ArrayList<Transport>(count);
+        for (int i = 0; i < count; i++) {
+            transports.add(new Transport() {
+                @Override
+                public void open() {
+                }
+
+                @Override
+                public void sendMessage(Message message) {
+                }
+
+                @Override
+                public void close() {
+                }
+            });
+        }
+        return transports;
+    }
+
+    private static class DeliveryProbe {
+        final Set<Transport> busyTransports =
+                Collections.newSetFromMap(new ConcurrentHashMap<Transport, Boolean>());
+        final AtomicInteger sending = new AtomicInteger();
+        final AtomicInteger maxSending = new AtomicInteger();
+        final AtomicInteger sent = new AtomicInteger();
+        final AtomicInteger finished = new AtomicInteger();
+        volatile boolean sharedTransport;
+        volatile long afterSendMillis;
+
+        List<OutboxDeliveryScheduler.Delivery> createDeliveries(int count, final boolean success) {
+            List<OutboxDeliveryScheduler.Delivery> deliveries =
+                    new ArrayList<OutboxDeliveryScheduler.Delivery>(count);
+            for (int i = 0; i < count; i++) {
+                deliveries.add(new OutboxDeliveryScheduler.Delivery() {
+                    @Override
+                    public Collection<String> getOrderingKeys() {
+                        return null;
+                    }
+
+                    @Override
+                    public boolean send(Transport transport) {
+                        if (!busyTransports.add(transport)) {
+                            sharedTransport = true;
+                        }
+                        int current = sending.incrementAndGet();
+                        int max;
+                        while ((max = maxSending.get()) < current &&
+                                !maxSending.compareAndSet(max, current)) {
+                            // retry
+                        }
+                        sleep(10);
+                        sending.decrementAndGet();
+                        busyTransports.remove(transport);
+                        sent.incrementAndGet();
+                        return success;
+                    }
+
+                    @Override
+                    public void afterSend() {
+                        sleep(afterSendMillis);
+                        finished.incrementAndGet();
+                    }
+                });
+            }
+            return deliveries;
+        }
+
+        private static void sleep(long millis) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
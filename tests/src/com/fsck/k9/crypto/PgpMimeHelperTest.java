@@ -0,0 +1,135 @@
+package com.fsck.k9.crypto;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.test.AndroidTestCase;
+
+import com.fsck.k9.mail.Part;
+import com.fsck.k9.mail.internet.BinaryTempFileBody;
+import com.fsck.k9.mail.internet.MimeMessage;
+import org.apache.commons.io.IOUtils;
+import org.apache.james.mime4j.util.MimeUtil;
+
+
+public class PgpMimeHelperTest extends AndroidTestCase {
+    private static final String ENCRYPTED_DATA = "-----BEGIN PGP MESSAGE-----\r\n" +
+            "Version: GnuPG v1\r\n" +
+            "\r\n" +
+            "hQEMA3KNyKPqVzVxAQf/dGVzdA==\r\n" +
+            "=abcd\r\n" +
+            "-----END PGP MESSAGE-----\r\n";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        BinaryTempFileBody.setTempDirectory(getContext().getCacheDir());
+    }
+
+    public void testFindEncryptedPayload() throws Exception {
+        MimeMessage message = parse("From: alice@example.com\r\n" +
+                "To: bob@example.com\r\n" +
+                "Subject: encrypted\r\n" +
+                "MIME-Version: 1.0\r\n" +
+                "Content-Type: multipart/encrypted; protocol=\"application/pgp-encrypted\";\r\n" +
+                " boundary=\"boundary\"\r\n" +
+                "\r\n" +
+                "--boundary\r\n" +
+                "Content-Type: application/pgp-encrypted\r\n" +
+                "\r\n" +
+                "Version: 1\r\n" +
+                "\r\n" +
+                "--boundary\r\n" +
+                "Content-Type: application/octet-stream\r\n" +
+                "\r\n" +
+                ENCRYPTED_DATA +
+                "\r\n" +
+                "--boundary--\r\n");
+
+        Part payload = PgpMimeHelper.findEncryptedPayload(message);
+        assertNotNull(payload);
+
+        InputStream in = PgpMimeHelper.getPayloadInputStream(payload);
+        try {
+            assertEquals(ENCRYPTED_DATA, IOUtils.toString(in, "US-ASCII"));
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testFindEncryptedPayloadWithOtherProtocol() throws Exception {
+        MimeMessage message = parse("From: alice@example.com\r\n" +
+                "MIME-Version: 1.0\r\n" +
+                "Content-Type: multipart/encrypted; protocol=\"application/pkcs7-mime\";\r\n" +
+                " boundary=\"boundary\"\r\n" +
+                "\r\n" +
+                "--boundary\r\n" +
+                "Content-Type: text/plain\r\n" +
+                "\r\n" +
+                "one\r\n" +
+                "--boundary\r\n" +
+                "Content-Type: application/octet-stream\r\n" +
+                "\r\n" +
+                "two\r\n" +
+                "--boundary--\r\n");
+
+        assertNull(PgpMimeHelper.findEncryptedPayload(message));
+    }
+
+    public void testParseDecryptedPrefersPlainText() throws Exception {
+        BinaryTempFileBody decrypted = createDecrypted("Content-Type: multipart/alternative; boundary=\"alt\"\r\n" +
+                "\r\n" +
+                "--alt\r\n" +
+                "Content-Type: text/plain; charset=utf-8\r\n" +
+                "\r\n" +
+                "Secret text\r\n" +
+                "--alt\r\n" +
+                "Content-Type: text/html; charset=utf-8\r\n" +
+                "\r\n" +
+                "<p>Secret html</p>\r\n" +
+                "--alt--\r\n");
+
+        assertEquals("Secret text", PgpMimeHelper.getText(PgpMimeHelper.parseDecrypted(decrypted)));
+    }
+
+    public void testParseDecryptedHtmlOnly() throws Exception {
+        BinaryTempFileBody decrypted = createDecrypted("Content-Type: text/html; charset=utf-8\r\n" +
+                "\r\n" +
+                "<p>Secret html</p>\r\n");
+
+        String text = PgpMimeHelper.getText(PgpMimeHelper.parseDecrypted(decrypted));
+        assertTrue(text.contains("Secret html"));
+        assertFalse(text.contains("<p>"));
+    }
+
+    public void testParseDecryptedWithoutText() throws Exception {
+        BinaryTempFileBody decrypted = createDecrypted("Content-Type: application/octet-stream\r\n" +
+                "Content-Transfer-Encoding: base64\r\n" +
+                "\r\n" +
+                "AAECAw==\r\n");
+
+        assertEquals("", PgpMimeHelper.getText(PgpMimeHelper.parseDecrypted(decrypted)));
+    }
+
+    private MimeMessage parse(String source) throws Exception {
+        InputStream in = new ByteArrayInputStream(source.getBytes("US-ASCII"));
+        try {
+            return new MimeMessage(in, true);
+        } finally {
+            in.close();
+        }
+    }
+
+    private BinaryTempFileBody createDecrypted(String source) throws Exception {
+        BinaryTempFileBody body = new BinaryTempFileBody(MimeUtil.ENC_8BIT);
+        OutputStream out = body.getOutputStream();
+        try {
+            out.write(source.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return body;
+    }
+}
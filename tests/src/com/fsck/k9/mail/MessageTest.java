@@ -2,6 +2,8 @@ package com.fsck.k9.mail;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -22,6 +24,9 @@ import com.fsck.k9.mail.internet.MimeMessage;
 import com.fsck.k9.mail.internet.MimeMultipart;
 import com.fsck.k9.mail.internet.MimeUtility;
 import com.fsck.k9.mail.internet.TextBody;
+import com.fsck.k9.mail.filter.CountingOutputStream;
+import com.fsck.k9.mail.filter.EOLConvertingOutputStream;
+import com.fsck.k9.mail.store.local.TempFileBody;
 
 public class MessageTest extends AndroidTestCase {
 
@@ -289,6 +294,46 @@ public class MessageTest extends AndroidTestCase {
         assertEquals(SEVEN_BIT_RESULT, out.toString());
     }
 
+    public void testCalculateSizeWithAttachmentFiles() throws Exception {
+        BinaryTempFileBody.setTempDirectory(getContext().getCacheDir());
+
+        mMimeBoundary = 101;
+        MimeMessage message = sampleMessage();
+        Multipart multipart = (Multipart) message.getBody();
+        for (int size : new int[] { 0, 1, 2, 3, 56, 57, 58, 1000, 100000 }) {
+            MimeBodyPart bodyPart = new MimeBodyPart(attachmentFileBody(size),
+                    "application/octet-stream");
+            bodyPart.setEncoding(MimeUtil.ENC_BASE64);
+            multipart.addBodyPart(bodyPart);
+        }
+
+        CountingOutputStream counter = new CountingOutputStream();
+        EOLConvertingOutputStream out = new EOLConvertingOutputStream(counter);
+        message.writeTo(out);
+        out.flush();
+
+        assertEquals(counter.getCount(), message.calculateSize());
+    }
+
+    private TempFileBody attachmentFileBody(int size) throws IOException {
+        File file = File.createTempFile("attachment", null, getContext().getCacheDir());
+        file.deleteOnExit();
+
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31);
+        }
+
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+
+        return new TempFileBody(file.getAbsolutePath());
+    }
+
     private MimeMessage nestedMessage(MimeMessage subMessage)
             throws MessagingException, IOException {
         BinaryTempFileMessageBody tempMessageBody = new BinaryTempFileMessageBody(MimeUtil.ENC_8BIT);
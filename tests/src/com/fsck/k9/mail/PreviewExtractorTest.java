@@ -0,0 +1,147 @@
+package com.fsck.k9.mail;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class PreviewExtractorTest extends TestCase {
+    private static final String[] SAMPLES = {
+        "Hi Bob,\r\n" +
+        "\r\n" +
+        "see you   tomorrow at\t10.\r\n" +
+        "\r\n" +
+        "-- \r\n" +
+        "Alice\r\n",
+
+        "Sounds good.\r\n" +
+        "\r\n" +
+        "On Mon, Jan 5, 2015 at 10:00 AM, Bob <bob@example.com> wrote:\r\n" +
+        "> Lunch?\r\n" +
+        ">> Maybe\r\n" +
+        "# not a comment\r\n",
+
+        "Check out http://example.com/some/path?q=1 and https://example.org.\n" +
+        "Not a URL: http:// nor ftp://example.com\n",
+
+        "Header line\n" +
+        "==============================\n" +
+        "Text below -=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-= the rule\n" +
+        "short ---- rule\n" +
+        "----- Original Message -----\n" +
+        "From: bob@example.com\n" +
+        "Subject: Test\n" +
+        "Forwarded message follows:\n",
+
+        "  \u0001 leading control characters\r" +
+        "lone CR line\r\r" +
+        "http://example.com/a______________________________b trailing \u0002",
+
+        "On Tuesday, Carol wrote\n" +
+        "On Tuesday, Carol wrote.\n" +
+        "On wrote\n" +
+        "Online wrote\n" +
+        "-- \n",
+
+        "-- no signature\n" +
+        "--\n" +
+        "last line without break\n" +
+        "-- ",
+    };
+
+    public void testNull() {
+        assertNull(Message.calculateContentPreview(null));
+    }
+
+    public void testRemovesQuotesAndSignature() {
+        assertEquals("Hi Bob, see you tomorrow at 10.",
+                Message.calculateContentPreview(SAMPLES[0]));
+        assertEquals("Sounds good.", Message.calculateContentPreview(SAMPLES[1]));
+    }
+
+    public void testReplacesUrls() {
+        assertEquals("Check out ... and ... Not a URL: http:// nor ftp://example.com",
+                Message.calculateContentPreview(SAMPLES[2]));
+    }
+
+    public void testSamplesMatchRegularExpressions() {
+        for (String sample : SAMPLES) {
+            assertEquals(sample, calculatePreviewWithRegularExpressions(sample),
+                    Message.calculateContentPreview(sample));
+        }
+    }
+
+    public void testRandomTextMatchesRegularExpressions() {
+        String[] tokens = { " ", "  ", "\t", "\r\n", "\n", "\r", "-- ", "----", "-", "=", "_",
+                "------------------------------", "==========", "> ", "#", "On ", "wrote",
+                "wrote:", ":", "word", "x", "http://", "https://", "example.com/", "\u0001",
+                "\u00e9t\u00e9" };
+
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int count = random.nextInt(60);
+            for (int j = 0; j < count; j++) {
+                sb.append(tokens[random.nextInt(tokens.length)]);
+            }
+
+            String text = sb.toString();
+            assertEquals(text, calculatePreviewWithRegularExpressions(text),
+                    Message.calculateContentPreview(text));
+        }
+    }
+
+    public void testLongText() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.append("Line ").append(i).append(" with some text\r\n");
+            if (i % 10 == 0) {
+                sb.append("> quoted\r\n");
+            }
+        }
+        String text = sb.toString();
+
+        String preview = Message.calculateContentPreview(text);
+
+        assertEquals(PreviewExtractor.MAX_PREVIEW_LENGTH, preview.length());
+        assertEquals(calculatePreviewWithRegularExpressions(text), preview);
+    }
+
+    public void testAllSamplesWithQuotedTextUpToMaxLength() {
+        StringBuilder sb = new StringBuilder();
+        for (String sample : SAMPLES) {
+            sb.append(sample).append("\r\n");
+        }
+        String shortText = sb.toString().replace("-- \r\n", "");
+        while (sb.length() < PreviewExtractor.MAX_TEXT_LENGTH) {
+            sb.append("> quoted line that is skipped\r\n");
+        }
+        String quotedText = sb.toString();
+
+        for (String text : new String[] { shortText, quotedText }) {
+            assertEquals(calculatePreviewWithRegularExpressions(text),
+                    Message.calculateContentPreview(text));
+        }
+    }
+
+    /**
+     * The previous implementation of {@link Message#calculateContentPreview(String)}.
+     */
+    private static String calculatePreviewWithRegularExpressions(String text) {
+        if (text.length() > 8192) {
+            text = text.substring(0, 8192);
+        }
+
+        text = text.replaceAll("(?ms)^-- [\\r\\n]+.*", "");
+        text = text.replaceAll("(?m)^----.*?$", "");
+        text = text.replaceAll("(?m)^[#>].*$", "");
+        text = text.replaceAll("(?m)^On .*wrote.?$", "");
+        text = text.replaceAll("(?m)^.*\\w+:$", "");
+        text = text.replaceAll("\\s*([-=_]{30,}+)\\s*", " ");
+        text = text.replaceAll("https?://\\S+", "...");
+        text = text.replaceAll("(\\r|\\n)+", " ");
+        text = text.replaceAll("\\s+", " ");
+        text = text.trim();
+
+        return (text.length() <= 512) ? text : text.substring(0, 512);
+    }
+}
@@ -0,0 +1,165 @@
+package com.fsck.k9.mail.filter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.james.mime4j.codec.Base64InputStream;
+
+public class Base64CodecTest extends TestCase {
+    private static final byte[] NOISE = { '!', ' ', '#', '\r', '\n', (byte) 0xff };
+
+    public void testEncoderMatchesBase64OutputStream() throws Exception {
+        Random random = new Random(1);
+        for (int i = 0; i < 500; i++) {
+            byte[] data = new byte[random.nextInt(i < 250 ? 200 : 20000)];
+            random.nextBytes(data);
+
+            byte[] expected = encodeWithBase64OutputStream(data);
+            byte[] actual = encodeInChunks(data, random);
+
+            assertTrue("Length " + data.length, Arrays.equals(expected, actual));
+            assertEquals(Base64OutputStream.getEncodedLength(data.length), actual.length);
+        }
+    }
+
+    public void testEncodeEmpty() throws Exception {
+        assertEquals("\r\n", new String(encodeInChunks(new byte[0], new Random()), "US-ASCII"));
+    }
+
+    public void testDecoderMatchesMime4j() throws Exception {
+        Random random = new Random(2);
+        for (int i = 0; i < 500; i++) {
+            byte[] data = new byte[random.nextInt(5000)];
+            random.nextBytes(data);
+            byte[] encoded = encodeWithBase64OutputStream(data);
+
+            assertTrue(Arrays.equals(data, decode(new Base64DecoderInputStream(
+                    new ByteArrayInputStream(encoded)), random)));
+
+            // Garbage, missing characters and a truncated end
+            ByteArrayOutputStream noisy = new ByteArrayOutputStream();
+            for (byte b : encoded) {
+                if (random.nextInt(50) == 0) {
+                    noisy.write(NOISE[random.nextInt(NOISE.length)]);
+                }
+                if (random.nextInt(200) != 0) {
+                    noisy.write(b);
+                }
+            }
+            byte[] damaged = Arrays.copyOf(noisy.toByteArray(), random.nextInt(noisy.size() + 1));
+
+            byte[] expected = decode(new Base64InputStream(new ByteArrayInputStream(damaged), false),
+                    random);
+            byte[] actual = decode(new Base64DecoderInputStream(new ByteArrayInputStream(damaged)),
+                    random);
+            assertTrue(Arrays.equals(expected, actual));
+        }
+    }
+
+    public void testDecoderStopsAtPadding() throws Exception {
+        byte[] encoded = "YQ==YWJj".getBytes("US-ASCII");
+
+        byte[] decoded = decode(new Base64DecoderInputStream(new ByteArrayInputStream(encoded)),
+                new Random());
+
+        assertEquals("a", new String(decoded, "US-ASCII"));
+    }
+
+    public void testDirectByteBuffers() throws Exception {
+        byte[] data = new byte[10000];
+        new Random(3).nextBytes(data);
+
+        ByteBuffer in = ByteBuffer.allocateDirect(data.length);
+        in.put(data).flip();
+        ByteBuffer encoded = ByteBuffer.allocateDirect(
+                Base64Codec.Encoder.getMaxEncodedLength(data.length));
+        Base64Codec.Encoder encoder = new Base64Codec.Encoder();
+        encoder.encode(in, encoded);
+        byte[] finish = new byte[Base64Codec.Encoder.getMaxFinishLength()];
+        encoded.put(finish, 0, encoder.finish(finish, 0));
+        encoded.flip();
+
+        byte[] encodedBytes = new byte[encoded.remaining()];
+        encoded.duplicate().get(encodedBytes);
+        assertTrue(Arrays.equals(encodeWithBase64OutputStream(data), encodedBytes));
+
+        ByteBuffer decoded = ByteBuffer.allocateDirect(
+                Base64Codec.Decoder.getMaxDecodedLength(encoded.remaining()));
+        new Base64Codec.Decoder().decode(encoded, decoded);
+        decoded.flip();
+
+        byte[] decodedBytes = new byte[decoded.remaining()];
+        decoded.get(decodedBytes);
+        assertTrue(Arrays.equals(data, decodedBytes));
+    }
+
+    public void testLargeRoundTrip() throws Exception {
+        byte[] data = new byte[2 * 1024 * 1024];
+        new Random(4).nextBytes(data);
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        OutputStream out = new Base64EncoderOutputStream(encoded);
+        out.write(data);
+        out.close();
+        assertTrue(Arrays.equals(encodeWithBase64OutputStream(data), encoded.toByteArray()));
+
+        byte[] decoded = decode(new Base64DecoderInputStream(
+                new ByteArrayInputStream(encoded.toByteArray())), new Random(5));
+        assertTrue(Arrays.equals(data, decoded));
+    }
+
+    private static byte[] encodeWithBase64OutputStream(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream base64 = new Base64OutputStream(out);
+        base64.write(data);
+        base64.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] encodeInChunks(byte[] data, Random random) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream base64 = new Base64EncoderOutputStream(out);
+        int i = 0;
+        while (i < data.length) {
+            if (random.nextInt(4) == 0) {
+                base64.write(data[i++]);
+            } else {
+                int count = Math.min(data.length - i, random.nextInt(5000) + 1);
+                base64.write(data, i, count);
+                i += count;
+            }
+        }
+        base64.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] decode(InputStream in, Random random) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[random.nextInt(100) + 1];
+        while (true) {
+            if (random.nextInt(3) == 0) {
+                int b = in.read();
+                if (b == -1) {
+                    break;
+                }
+                out.write(b);
+            } else {
+                int count = in.read(buffer);
+                if (count == -1) {
+                    break;
+                }
+                out.write(buffer, 0, count);
+            }
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
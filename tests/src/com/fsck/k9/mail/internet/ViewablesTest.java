@@ -1,5 +1,6 @@
 package com.fsck.k9.mail.internet;
 
+import java.io.ByteArrayInputStream;
 import java.util.Date;
 import java.util.Locale;
 import java.util.TimeZone;
@@ -36,6 +37,24 @@ public class ViewablesTest extends AndroidTestCase {
         assertEquals(expectedHtml, container.html);
     }
 
+    public void testSimplePlainTextMessageWithoutHtml() throws MessagingException {
+        String bodyText = "K-9 Mail rocks :>";
+
+        // Create text/plain body
+        TextBody body = new TextBody(bodyText);
+
+        // Create message
+        MimeMessage message = new MimeMessage();
+        MimeMessageHelper.setBody(message, body);
+
+        // Extract text
+        ViewableContainer container =
+                MimeUtility.extractTextAndAttachments(getContext(), message, true);
+
+        assertEquals(bodyText, container.text);
+        assertNull(container.html);
+    }
+
     public void testSimpleHtmlMessage() throws MessagingException {
         String bodyText = "<strong>K-9 Mail</strong> rocks :&gt;";
 
@@ -175,4 +194,41 @@ public class ViewablesTest extends AndroidTestCase {
         assertEquals(expectedText, container.text);
         assertEquals(expectedHtml, container.html);
     }
+
+    public void testEncodedPlainTextMessage() throws Exception {
+        BinaryTempFileBody.setTempDirectory(getContext().getCacheDir());
+
+        MimeMessage message = new MimeMessage(new ByteArrayInputStream((
+                "From: from@example.com\r\n" +
+                "MIME-Version: 1.0\r\n" +
+                "Content-Type: text/plain; charset=iso-8859-1\r\n" +
+                "Content-Transfer-Encoding: quoted-printable\r\n" +
+                "\r\n" +
+                "Gr=FC=DFe\r\n").getBytes("US-ASCII")), true);
+
+        ViewableContainer container = MimeUtility.extractTextAndAttachments(getContext(), message);
+
+        assertEquals("Gr\u00fc\u00dfe\r\n", container.text);
+        assertTrue(container.html.contains("Gr\u00fc\u00dfe"));
+    }
+
+    public void testEncodedHtmlMessageWithMetaCharset() throws Exception {
+        BinaryTempFileBody.setTempDirectory(getContext().getCacheDir());
+
+        // ISO-8859-1 encoded HTML that only declares its charset in a meta tag
+        MimeMessage message = new MimeMessage(new ByteArrayInputStream((
+                "From: from@example.com\r\n" +
+                "MIME-Version: 1.0\r\n" +
+                "Content-Type: text/html\r\n" +
+                "Content-Transfer-Encoding: base64\r\n" +
+                "\r\n" +
+                "PG1ldGEgaHR0cC1lcXVpdj0iQ29udGVudC1UeXBlIiBjb250ZW50PSJ0ZXh0L2h0bWw7IGNoYXJz\r\n" +
+                "ZXQ9aXNvLTg4NTktMSI+PHA+R3L832U8L3A+\r\n").getBytes("US-ASCII")), true);
+
+        ViewableContainer container = MimeUtility.extractTextAndAttachments(getContext(), message);
+
+        assertEquals("<meta http-equiv=\"Content-Type\" content=\"text/html; charset=iso-8859-1\">" +
+                "<p>Gr\u00fc\u00dfe</p>", container.html);
+        assertTrue(container.text.contains("Gr\u00fc\u00dfe"));
+    }
 }
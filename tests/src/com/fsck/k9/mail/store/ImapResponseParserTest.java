@@ -2,6 +2,7 @@ package com.fsck.k9.mail.store;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import com.fsck.k9.mail.filter.FixedLengthInputStream;
 import com.fsck.k9.mail.filter.PeekableInputStream;
 import com.fsck.k9.mail.store.ImapResponseParser.ImapList;
 import com.fsck.k9.mail.store.ImapResponseParser.ImapResponse;
@@ -59,6 +60,62 @@ public class ImapResponseParserTest extends TestCase {
         assertEquals("token2", respTextCode.get(1));
     }
 
+    public void testFetchResponseWithLiteral() throws IOException {
+        ImapResponseParser parser = createParser("* 1 FETCH (UID 23 FLAGS (\\Seen) BODY[] {5}\r\nabcde)\r\n");
+        ImapResponse response = parser.readResponse();
+
+        assertEquals(3, response.size());
+        assertEquals("1", response.get(0));
+        assertSame("FETCH", response.get(1));
+
+        ImapList fetchList = response.getList(2);
+        assertEquals("23", fetchList.getKeyedString("UID"));
+        assertEquals("\\Seen", fetchList.getKeyedList("FLAGS").getString(0));
+        assertEquals("abcde", fetchList.getString(6));
+    }
+
+    public void testQuotedStringWithEscapes() throws IOException {
+        ImapResponseParser parser = createParser("* LIST (\\HasNoChildren) \"/\" \"a \\\"b\\\\c\"\r\n");
+        ImapResponse response = parser.readResponse();
+
+        assertEquals(4, response.size());
+        assertEquals("/", response.get(2));
+        assertEquals("a \"b\\c", response.get(3));
+    }
+
+    public void testTokensLargerThanWindow() throws IOException {
+        String atom = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+        String quoted = "quoted string that is longer than the window";
+        ImapResponseParser parser = createParser("* " + atom + " \"" + quoted + "\" {12}\r\n" +
+                "literal data\r\n" + "tag1 OK done\r\n", 8);
+
+        ImapResponse response = parser.readResponse();
+        assertEquals(3, response.size());
+        assertEquals(atom, response.get(0));
+        assertEquals(quoted, response.get(1));
+        assertEquals("literal data", response.get(2));
+
+        response = parser.readResponse();
+        assertEquals("tag1", response.mTag);
+        assertEquals("OK", response.get(0));
+        assertEquals("done", response.get(1));
+    }
+
+    public void testLiteralCallback() throws IOException {
+        ImapResponseParser parser = createParser("* 1 FETCH (BODY[] {10}\r\n0123456789)\r\n* OK\r\n", 16);
+        ImapResponse response = parser.readResponse(new ImapResponseParser.IImapResponseCallback() {
+            @Override
+            public Object foundLiteral(ImapResponse response, FixedLengthInputStream literal) throws Exception {
+                byte[] buffer = new byte[3];
+                assertEquals(3, literal.read(buffer));
+                return new String(buffer, "US-ASCII");
+            }
+        });
+
+        assertEquals("012", response.getList(2).getString(2));
+        assertEquals("OK", parser.readResponse().get(0));
+    }
+
     public void testImapListMethods() throws IOException {
         ImapList list = new ImapList();
         list.add("ONE");
@@ -90,8 +147,12 @@ public class ImapResponseParserTest extends TestCase {
     }
 
     private ImapResponseParser createParser(String response) {
+        return createParser(response, ImapResponseParser.DEFAULT_WINDOW_SIZE);
+    }
+
+    private ImapResponseParser createParser(String response, int windowSize) {
         ByteArrayInputStream in = new ByteArrayInputStream(response.getBytes());
         PeekableInputStream pin = new PeekableInputStream(in);
-        return new ImapResponseParser(pin);
+        return new ImapResponseParser(pin, windowSize);
     }
 }
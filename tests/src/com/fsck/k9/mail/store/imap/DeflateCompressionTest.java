@@ -0,0 +1,105 @@
+package com.fsck.k9.mail.store.imap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+import junit.framework.TestCase;
+
+import com.jcraft.jzlib.JZlib;
+
+public class DeflateCompressionTest extends TestCase {
+    private static final String COMMAND = "5 UID FETCH 1:* (UID FLAGS INTERNALDATE RFC822.SIZE)\r\n";
+
+    public void testFlushMakesCommandReadable() throws Exception {
+        DeflateCompression compression = new DeflateCompression(1024, 256, JZlib.Z_BEST_SPEED);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        OutputStream out = compression.compress(wire);
+        Inflater server = new Inflater(true);
+
+        for (int i = 0; i < 20; i++) {
+            out.write(COMMAND.getBytes("US-ASCII"));
+            out.flush();
+
+            byte[] compressed = wire.toByteArray();
+            wire.reset();
+            server.setInput(compressed);
+            byte[] buffer = new byte[COMMAND.length() * 2];
+            int count = server.inflate(buffer);
+
+            assertEquals(COMMAND, new String(buffer, 0, count, "US-ASCII"));
+        }
+
+        assertEquals(20 * COMMAND.length(), compression.getBytesWritten());
+        assertTrue(compression.getWireBytesWritten() < compression.getBytesWritten());
+        out.close();
+    }
+
+    public void testLargeLiteralIsNotFlushedPerBuffer() throws Exception {
+        byte[] literal = new byte[64 * 1024];
+        for (int i = 0; i < literal.length; i++) {
+            literal[i] = (byte) ("Subject: test\r\n".charAt(i % 15));
+        }
+
+        DeflateCompression compression = new DeflateCompression(1024, 256, JZlib.Z_BEST_SPEED);
+        OutputStream out = compression.compress(new ByteArrayOutputStream());
+        out.write(literal);
+        out.flush();
+
+        // Flushing after every 256 bytes would need at least 5 bytes of overhead per block
+        assertTrue(compression.getWireBytesWritten() < literal.length / 256 * 5);
+        out.close();
+        assertEquals(literal.length, compression.getBytesWritten());
+    }
+
+    public void testInflaterIsReusedAcrossSessions() throws Exception {
+        DeflateCompression compression = new DeflateCompression(64, 256, JZlib.Z_BEST_SPEED);
+
+        for (int session = 0; session < 3; session++) {
+            byte[] data = (session + " " + COMMAND + COMMAND).getBytes("US-ASCII");
+            byte[] compressed = deflate(data);
+
+            InputStream in = compression.decompress(new ByteArrayInputStream(compressed));
+            byte[] actual = readFully(in);
+            in.close();
+
+            assertTrue(Arrays.equals(data, actual));
+            assertEquals(data.length, compression.getBytesRead());
+            assertEquals(compressed.length, compression.getWireBytesRead());
+        }
+    }
+
+    public void testCountersWithoutSession() {
+        DeflateCompression compression = new DeflateCompression(64, 256, JZlib.Z_BEST_SPEED);
+
+        assertEquals(0, compression.getBytesRead());
+        assertEquals(0, compression.getWireBytesRead());
+        assertEquals(0, compression.getBytesWritten());
+        assertEquals(0, compression.getWireBytesWritten());
+    }
+
+    private static byte[] deflate(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeflaterOutputStream deflater = new DeflaterOutputStream(out,
+                new Deflater(Deflater.BEST_SPEED, true));
+        deflater.write(data);
+        deflater.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[100];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,53 @@
+package com.fsck.k9.mail.store.imap;
+
+import junit.framework.TestCase;
+
+public class FetchWindowSizerTest extends TestCase {
+
+    public void testInitialSizeIsClamped() {
+        assertEquals(10, new FetchWindowSizer(5, 10, 100, 2000, 1000000).getWindowSize());
+        assertEquals(100, new FetchWindowSizer(500, 10, 100, 2000, 1000000).getWindowSize());
+    }
+
+    public void testWindowGrowsOnFastResponses() {
+        FetchWindowSizer sizer = new FetchWindowSizer(100, 1, 500, 2000, 1000000);
+
+        // 100 messages of 200 bytes in 100ms
+        sizer.windowFinished(100, 20000, 100);
+
+        // Growth is limited to twice the previous size
+        assertEquals(200, sizer.getWindowSize());
+
+        sizer.windowFinished(200, 40000, 200);
+        assertEquals(400, sizer.getWindowSize());
+
+        sizer.windowFinished(400, 80000, 400);
+        assertEquals(500, sizer.getWindowSize());
+    }
+
+    public void testWindowShrinksOnSlowResponses() {
+        FetchWindowSizer sizer = new FetchWindowSizer(100, 1, 500, 2000, 1000000);
+
+        // 100 messages in 10 seconds
+        sizer.windowFinished(100, 20000, 10000);
+
+        assertEquals(20, sizer.getWindowSize());
+    }
+
+    public void testWindowShrinksOnLargeMessages() {
+        FetchWindowSizer sizer = new FetchWindowSizer(10, 1, 500, 2000, 1000000);
+
+        // 10 messages of 500 KB each, received quickly
+        sizer.windowFinished(10, 5000000, 100);
+
+        assertEquals(2, sizer.getWindowSize());
+    }
+
+    public void testEmptyWindowIsIgnored() {
+        FetchWindowSizer sizer = new FetchWindowSizer(100, 1, 500, 2000, 1000000);
+
+        sizer.windowFinished(0, 0, 0);
+
+        assertEquals(100, sizer.getWindowSize());
+    }
+}
@@ -17,10 +17,15 @@
 
 package com.fsck.k9.mail.store.imap;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+
 import android.test.MoreAsserts;
 import junit.framework.TestCase;
 
+import com.fsck.k9.mail.store.ImapResponseParser.ImapList;
+
 public class ImapUtilityTest extends TestCase {
     /**
      * Test getting elements of an IMAP sequence set.
@@ -144,4 +149,96 @@ public class ImapUtilityTest extends TestCase {
         actual = ImapUtility.getImapRangeValues("1:*");
         MoreAsserts.assertEquals(expected, actual.toArray());
     }
+
+    public void testGetImapSequenceRanges() {
+        assertRanges(new long[] { 1, 1 }, "1");
+        assertRanges(new long[] { 41, 41, 43, 116 }, "41,43:116");
+        assertRanges(new long[] { 1, 4000000000L }, "4000000000:1");
+
+        // Sorted and merged
+        assertRanges(new long[] { 1, 9, 20, 20 }, "20,5:9,1:3,4,2:6");
+
+        // Invalid items are skipped
+        assertRanges(new long[] { 3, 3 }, "a,1:*,3,4294967296");
+        assertRanges(new long[0], "");
+        assertRanges(new long[0], null);
+    }
+
+    public void testIsInImapSequenceRanges() {
+        long[] ranges = ImapUtility.getImapSequenceRanges("41,43:116,200");
+
+        assertFalse(ImapUtility.isInImapSequenceRanges(ranges, 1));
+        assertTrue(ImapUtility.isInImapSequenceRanges(ranges, 41));
+        assertFalse(ImapUtility.isInImapSequenceRanges(ranges, 42));
+        assertTrue(ImapUtility.isInImapSequenceRanges(ranges, 43));
+        assertTrue(ImapUtility.isInImapSequenceRanges(ranges, 100));
+        assertTrue(ImapUtility.isInImapSequenceRanges(ranges, 116));
+        assertFalse(ImapUtility.isInImapSequenceRanges(ranges, 117));
+        assertTrue(ImapUtility.isInImapSequenceRanges(ranges, 200));
+        assertFalse(ImapUtility.isInImapSequenceRanges(ranges, 201));
+        assertFalse(ImapUtility.isInImapSequenceRanges(new long[0], 1));
+    }
+
+    public void testCountImapSequenceValues() {
+        assertEquals(75, ImapUtility.countImapSequenceValues(
+                ImapUtility.getImapSequenceRanges("41,43:116")));
+        assertEquals(4294967295L, ImapUtility.countImapSequenceValues(
+                ImapUtility.getImapSequenceRanges("1:4294967295")));
+        assertEquals(0, ImapUtility.countImapSequenceValues(new long[0]));
+    }
+
+    public void testGetAppendUids() {
+        ImapList response = list("OK", list("APPENDUID", "2", "238268:238269,238271"), "APPEND completed");
+
+        List<String> uids = ImapUtility.getAppendUids(response, 3);
+
+        MoreAsserts.assertEquals(new String[] {"238268", "238269", "238271"}, uids.toArray());
+        assertNull(ImapUtility.getAppendUids(response, 2));
+        assertNull(ImapUtility.getAppendUids(list("OK", "APPEND completed"), 1));
+        assertNull(ImapUtility.getAppendUids(list("NO", list("TRYCREATE"), "No such mailbox"), 1));
+    }
+
+    public void testGetCopyUidMap() {
+        List<ImapList> responses = Arrays.asList(
+                list("OK", list("COPYUID", "38505", "304,319:320", "3956:3958"), "Done"),
+                list("OK", list("COPYUID", "38505", "400", "4000"), "Done"));
+
+        Map<String, String> uidMap = ImapUtility.getCopyUidMap(responses);
+
+        assertEquals(4, uidMap.size());
+        assertEquals("3956", uidMap.get("304"));
+        assertEquals("3957", uidMap.get("319"));
+        assertEquals("3958", uidMap.get("320"));
+        assertEquals("4000", uidMap.get("400"));
+    }
+
+    public void testGetCopyUidMapFromUntaggedResponse() {
+        List<ImapList> responses = Arrays.asList(
+                list("OK", list("COPYUID", "1", "7", "17"), "Moved"),
+                list("3", "EXPUNGE"),
+                list("OK", "Done"));
+
+        Map<String, String> uidMap = ImapUtility.getCopyUidMap(responses);
+
+        assertEquals(1, uidMap.size());
+        assertEquals("17", uidMap.get("7"));
+    }
+
+    public void testGetCopyUidMapWithMismatchedSets() {
+        List<ImapList> responses = Arrays.asList(
+                list("OK", list("COPYUID", "1", "1:3", "10:11"), "Done"));
+
+        assertTrue(ImapUtility.getCopyUidMap(responses).isEmpty());
+    }
+
+    private static ImapList list(Object... items) {
+        ImapList list = new ImapList();
+        list.addAll(Arrays.asList(items));
+        return list;
+    }
+
+    private static void assertRanges(long[] expected, String set) {
+        long[] actual = ImapUtility.getImapSequenceRanges(set);
+        assertTrue(Arrays.toString(actual), Arrays.equals(expected, actual));
+    }
 }
@@ -0,0 +1,39 @@
+package com.fsck.k9.mail.store.local;
+
+import junit.framework.TestCase;
+
+import com.fsck.k9.helper.HtmlConverter;
+
+public class DisplayHtmlCacheTest extends TestCase {
+    public void testCreatesHtmlFromText() {
+        DisplayHtmlCache cache = new DisplayHtmlCache(1024);
+
+        assertEquals(HtmlConverter.textToHtml("K-9 Mail rocks :>"),
+                cache.get(1, "K-9 Mail rocks :>"));
+    }
+
+    public void testReturnsCachedHtml() {
+        DisplayHtmlCache cache = new DisplayHtmlCache(1024);
+        String html = cache.get(1, "first");
+
+        assertSame(html, cache.get(1, "second"));
+    }
+
+    public void testInvalidate() {
+        DisplayHtmlCache cache = new DisplayHtmlCache(1024);
+        cache.get(1, "first");
+        cache.invalidate(1);
+
+        assertEquals(HtmlConverter.textToHtml("second"), cache.get(1, "second"));
+    }
+
+    public void testLocalTextBodyPrefersStoredHtml() {
+        DisplayHtmlCache cache = new DisplayHtmlCache(1024);
+
+        LocalTextBody stored = new LocalTextBody("text", "<b>stored</b>", cache, 1);
+        LocalTextBody derived = new LocalTextBody("text", null, cache, 2);
+
+        assertEquals("<b>stored</b>", stored.getBodyForDisplay());
+        assertEquals(HtmlConverter.textToHtml("text"), derived.getBodyForDisplay());
+    }
+}
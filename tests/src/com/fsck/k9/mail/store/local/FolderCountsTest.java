@@ -0,0 +1,115 @@
+package com.fsck.k9.mail.store.local;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.fsck.k9.mail.Flag;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.store.LockableDatabase.ReadOnlyDbCallback;
+import com.fsck.k9.mail.store.LockableDatabase.WrappedException;
+
+/**
+ * Checks that the unread and flagged counts maintained by triggers match the messages.
+ */
+public class FolderCountsTest extends LocalStoreTestCase {
+    private LocalFolder mInbox;
+    private LocalFolder mArchive;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mInbox = createFolder("INBOX");
+        mArchive = createFolder("Archive");
+
+        // Every other message is flagged, the first one replies to a missing message
+        mInbox.appendMessages(createMessages(10));
+    }
+
+    public void testCountsAfterInsert() throws MessagingException {
+        assertEquals(10, mInbox.getUnreadMessageCount());
+        assertEquals(5, mInbox.getFlaggedMessageCount());
+        assertCounts(mInbox);
+    }
+
+    public void testCountsAfterFlagChange() throws MessagingException {
+        mInbox.getMessage("0").setFlag(Flag.SEEN, true);
+        mInbox.getMessage("1").setFlag(Flag.FLAGGED, true);
+        mInbox.getMessage("2").setFlag(Flag.FLAGGED, false);
+        mInbox.setFlags(getMessages(mInbox, "3", "4"), Collections.singleton(Flag.SEEN), true);
+
+        assertEquals(7, mInbox.getUnreadMessageCount());
+        assertEquals(5, mInbox.getFlaggedMessageCount());
+        assertCounts(mInbox);
+    }
+
+    public void testCountsAfterMove() throws MessagingException {
+        mInbox.moveMessages(getMessages(mInbox, "4", "5", "6"), mArchive);
+
+        assertEquals(7, mInbox.getUnreadMessageCount());
+        assertEquals(3, mInbox.getFlaggedMessageCount());
+        assertCounts(mInbox);
+        assertEquals(3, mArchive.getUnreadMessageCount());
+        assertEquals(2, mArchive.getFlaggedMessageCount());
+        assertCounts(mArchive);
+    }
+
+    public void testCountsAfterDelete() throws MessagingException {
+        mInbox.getMessage("6").setFlag(Flag.DELETED, true);
+        mInbox.getMessage("7").destroy();
+
+        assertEquals(8, mInbox.getUnreadMessageCount());
+        assertEquals(4, mInbox.getFlaggedMessageCount());
+        assertCounts(mInbox);
+    }
+
+    private void assertCounts(LocalFolder folder) throws MessagingException {
+        assertEquals(countMessages(folder, "read = 0"), folder.getUnreadMessageCount());
+        assertEquals(countMessages(folder, "flagged = 1"), folder.getFlaggedMessageCount());
+    }
+
+    private int countMessages(final LocalFolder folder, final String condition)
+            throws MessagingException {
+        return mLocalStore.database.execute(false, new ReadOnlyDbCallback<Integer>() {
+            @Override
+            public Integer doDbWork(SQLiteDatabase db) throws WrappedException {
+                Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM messages WHERE folder_id = ? " +
+                        "AND deleted = 0 AND (empty IS NULL OR empty != 1) AND " + condition,
+                        new String[] { Long.toString(folder.getId()) });
+                try {
+                    cursor.moveToFirst();
+                    return cursor.getInt(0);
+                } finally {
+                    cursor.close();
+                }
+            }
+        });
+    }
+
+    private static List<LocalMessage> getMessages(LocalFolder folder, String... uids)
+            throws MessagingException {
+        List<LocalMessage> messages = new ArrayList<LocalMessage>();
+        for (String uid : uids) {
+            messages.add(folder.getMessage(uid));
+        }
+        return messages;
+    }
+
+    private static List<Message> createMessages(int count) throws MessagingException {
+        List<Message> messages = new ArrayList<Message>(count);
+        for (int i = 0; i < count; i++) {
+            MimeMessage message = createMessage(i);
+            if (i == 0) {
+                message.setInReplyTo("<missing@example.com>");
+            }
+            message.setFlag(Flag.FLAGGED, i % 2 == 0);
+            messages.add(message);
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,72 @@
+package com.fsck.k9.mail.store.local;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.internet.MimeMessage;
+
+public class LocalFolderAppendMessagesTest extends LocalStoreTestCase {
+    private LocalFolder mFolder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFolder = createFolder("INBOX");
+    }
+
+    public void testAppendReplacesMessagesWithSameUid() throws MessagingException {
+        mFolder.appendMessages(createMessages(0, 10, 1));
+        mFolder.appendMessages(createMessages(5, 10, 1));
+
+        assertEquals(15, mFolder.getMessageCount());
+        assertEquals("Message 7", mFolder.getMessage("7").getSubject());
+    }
+
+    public void testAppendThreadsMessagesOfOneBatch() throws MessagingException {
+        mFolder.appendMessages(createMessages(0, 20, 5));
+
+        LocalMessage first = mFolder.getMessage("0");
+        LocalMessage reply = mFolder.getMessage("3");
+        LocalMessage other = mFolder.getMessage("6");
+        assertEquals(first.getThreadId(), reply.getRootId());
+        assertFalse(first.getThreadId() == other.getRootId());
+    }
+
+    public void testAppendAttachesRepliesThatArrivedFirst() throws MessagingException {
+        // Replies first, so the thread root is created as an empty placeholder message
+        mFolder.appendMessages(createMessages(1, 4, 5));
+        mFolder.appendMessages(createMessages(0, 1, 5));
+
+        LocalMessage first = mFolder.getMessage("0");
+        for (int i = 1; i < 5; i++) {
+            assertEquals(first.getThreadId(), mFolder.getMessage(Integer.toString(i)).getRootId());
+        }
+        assertEquals(5, mFolder.getMessageCount());
+    }
+
+    /**
+     * Creates messages with UIDs {@code start} to {@code start + count - 1}. Every
+     * {@code threadSize} consecutive UIDs form a thread.
+     */
+    private static List<Message> createMessages(int start, int count, int threadSize)
+            throws MessagingException {
+        List<Message> messages = new ArrayList<Message>(count);
+        for (int i = start; i < start + count; i++) {
+            MimeMessage message = createMessage(i);
+
+            int threadStart = i - (i % threadSize);
+            if (i != threadStart) {
+                StringBuilder references = new StringBuilder();
+                for (int j = threadStart; j < i; j++) {
+                    references.append(messageId(j)).append(' ');
+                }
+                message.setReferences(references.toString().trim());
+                message.setInReplyTo(messageId(i - 1));
+            }
+            messages.add(message);
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,73 @@
+package com.fsck.k9.mail.store.local;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import android.test.AndroidTestCase;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.Preferences;
+import com.fsck.k9.mail.Address;
+import com.fsck.k9.mail.Folder.FolderType;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.MimeMessageHelper;
+import com.fsck.k9.mail.internet.TextBody;
+
+/**
+ * Base class for tests that work on the {@link LocalStore} of a new account. The account and its
+ * database are deleted after each test.
+ */
+abstract class LocalStoreTestCase extends AndroidTestCase {
+    protected Account mAccount;
+    protected LocalStore mLocalStore;
+    private final List<LocalFolder> mFolders = new ArrayList<LocalFolder>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mAccount = Preferences.getPreferences(getContext()).newAccount();
+        mLocalStore = mAccount.getLocalStore();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (LocalFolder folder : mFolders) {
+            folder.close();
+        }
+        mLocalStore.delete();
+        Preferences.getPreferences(getContext()).deleteAccount(mAccount);
+        super.tearDown();
+    }
+
+    /**
+     * Creates a folder that is closed after the test.
+     */
+    protected LocalFolder createFolder(String name) throws MessagingException {
+        LocalFolder folder = mLocalStore.getFolder(name);
+        folder.create(FolderType.HOLDS_MESSAGES);
+        mFolders.add(folder);
+        return folder;
+    }
+
+    /**
+     * Creates message number {@code i} with the UID {@code i} and the Message-ID
+     * {@link #messageId(int)}. Each message is sent one minute after the previous one.
+     */
+    protected static MimeMessage createMessage(int i) throws MessagingException {
+        MimeMessage message = new MimeMessage();
+        message.setUid(Integer.toString(i));
+        message.setSubject("Message " + i);
+        message.setFrom(new Address("sender@example.com"));
+        message.setSentDate(new Date(1400000000000L + i * 60000L));
+        message.setMessageId(messageId(i));
+
+        MimeMessageHelper.setBody(message, new TextBody("Body of message " + i));
+        return message;
+    }
+
+    protected static String messageId(int i) {
+        return "<message" + i + "@example.com>";
+    }
+}
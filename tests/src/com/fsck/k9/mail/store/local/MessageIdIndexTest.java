@@ -0,0 +1,172 @@
+package com.fsck.k9.mail.store.local;
+
+import junit.framework.TestCase;
+
+public class MessageIdIndexTest extends TestCase {
+    private static final long FOLDER_ID = 1;
+
+    public void testUnknownMessageIdReturnsNull() {
+        MessageIdIndex index = new MessageIdIndex(16);
+
+        assertNull(index.get(FOLDER_ID, "<a@example.com>"));
+        assertNull(index.get(FOLDER_ID, null));
+    }
+
+    public void testLoadedMessageIdWithoutMessages() {
+        MessageIdIndex index = new MessageIdIndex(16);
+        index.putLoaded(FOLDER_ID, "<a@example.com>", null, null);
+
+        MessageIdIndex.Entry entry = index.get(FOLDER_ID, "<a@example.com>");
+        assertNotNull(entry);
+        assertNull(entry.first);
+        assertNull(entry.firstEmpty);
+    }
+
+    public void testEntriesAreSeparatedByFolder() {
+        MessageIdIndex index = new MessageIdIndex(16);
+        index.putLoaded(FOLDER_ID, "<a@example.com>", threadInfo(1, "<a@example.com>", -1), null);
+
+        assertNull(index.get(FOLDER_ID + 1, "<a@example.com>"));
+    }
+
+    public void testPlaceholderCreated() {
+        MessageIdIndex index = new MessageIdIndex(16);
+        index.putLoaded(FOLDER_ID, "<a@example.com>", null, null);
+
+        ThreadInfo placeholder = threadInfo(7, "<a@example.com>", -1);
+        MessageIdIndex.Transaction transaction = index.begin(FOLDER_ID);
+        transaction.placeholderCreated(placeholder);
+        transaction.commit();
+
+        MessageIdIndex.Entry entry = index.get(FOLDER_ID, "<a@example.com>");
+        assertSame(placeholder, entry.first);
+        assertSame(placeholder, entry.firstEmpty);
+    }
+
+    public void testMessageCreatedKeepsOlderMessage() {
+        MessageIdIndex index = new MessageIdIndex(16);
+        ThreadInfo older = threadInfo(3, "<a@example.com>", -1);
+        index.putLoaded(FOLDER_ID, "<a@example.com>", older, null);
+
+        MessageIdIndex.Transaction transaction = index.begin(FOLDER_ID);
+        transaction.messageCreated(threadInfo(9, "<a@example.com>", -1));
+        transaction.commit();
+
+        assertSame(older, index.get(FOLDER_ID, "<a@example.com>").first);
+    }
+
+    public void testChangesAreOnlyVisibleAfterCommit() {
+        MessageIdIndex index = new MessageIdIndex(16);
+        index.putLoaded(FOLDER_ID, "<a@example.com>", null, null);
+
+        ThreadInfo placeholder = threadInfo(7, "<a@example.com>", -1);
+        MessageIdIndex.Transaction transaction = index.begin(FOLDER_ID);
+        transaction.placeholderCreated(placeholder);
+        transaction.putLoaded("<b@example.com>", null, null);
+
+        assertSame(placeholder, transaction.get("<a@example.com>").first);
+        assertNull(index.get(FOLDER_ID, "<a@example.com>").first);
+        assertNull(index.get(FOLDER_ID, "<b@example.com>"));
+
+        transaction.commit();
+
+        assertSame(placeholder, index.get(FOLDER_ID, "<a@example.com>").first);
+        assertNotNull(index.get(FOLDER_ID, "<b@example.com>"));
+    }
+
+    public void testUncommittedChangesAreDiscarded() {
+        MessageIdIndex index = new MessageIdIndex(16);
+        index.putLoaded(FOLDER_ID, "<a@example.com>", null, null);
+        index.putLoaded(FOLDER_ID, "<b@example.com>", threadInfo(5, "<b@example.com>", -1), null);
+
+        MessageIdIndex.Transaction transaction = index.begin(FOLDER_ID);
+        transaction.placeholderCreated(threadInfo(7, "<a@example.com>", -1));
+        transaction.invalidate("<b@example.com>");
+        transaction.threadAttached(5, 1, 2);
+
+        assertNull(transaction.get("<b@example.com>"));
+        assertNull(index.get(FOLDER_ID, "<a@example.com>").first);
+        assertEquals(-1, index.resolve(index.get(FOLDER_ID, "<b@example.com>").first).rootId);
+    }
+
+    public void testThreadAttachedUpdatesRoots() {
+        MessageIdIndex index = new MessageIdIndex(16);
+        index.putLoaded(FOLDER_ID, "<root@example.com>", threadInfo(5, "<root@example.com>", -1), null);
+        index.putLoaded(FOLDER_ID, "<child@example.com>", threadInfo(6, "<child@example.com>", 5), null);
+
+        MessageIdIndex.Transaction transaction = index.begin(FOLDER_ID);
+        transaction.threadAttached(5, 1, 2);
+        assertEquals(1, transaction.resolve(transaction.get("<child@example.com>").first).rootId);
+        transaction.commit();
+
+        ThreadInfo root = index.resolve(index.get(FOLDER_ID, "<root@example.com>").first);
+        assertEquals(1, root.rootId);
+        assertEquals(2, root.parentId);
+        ThreadInfo child = index.resolve(index.get(FOLDER_ID, "<child@example.com>").first);
+        assertEquals(1, child.rootId);
+        assertEquals(-1, child.parentId);
+    }
+
+    public void testThreadAttachedTwice() {
+        MessageIdIndex index = new MessageIdIndex(16);
+        index.putLoaded(FOLDER_ID, "<child@example.com>", threadInfo(6, "<child@example.com>", 5), null);
+
+        MessageIdIndex.Transaction transaction = index.begin(FOLDER_ID);
+        transaction.threadAttached(5, 1, 2);
+        transaction.commit();
+        transaction = index.begin(FOLDER_ID);
+        transaction.threadAttached(1, 10, 11);
+        transaction.commit();
+
+        assertEquals(10, index.resolve(index.get(FOLDER_ID, "<child@example.com>").first).rootId);
+    }
+
+    public void testInvalidate() {
+        MessageIdIndex index = new MessageIdIndex(16);
+        index.putLoaded(FOLDER_ID, "<a@example.com>", null, null);
+        index.putLoaded(FOLDER_ID, "<b@example.com>", null, null);
+
+        index.invalidate(FOLDER_ID, "<a@example.com>");
+
+        assertNull(index.get(FOLDER_ID, "<a@example.com>"));
+        assertNotNull(index.get(FOLDER_ID, "<b@example.com>"));
+    }
+
+    public void testInvalidateFolder() {
+        MessageIdIndex index = new MessageIdIndex(16);
+        index.putLoaded(FOLDER_ID, "<a@example.com>", null, null);
+        index.putLoaded(FOLDER_ID + 1, "<a@example.com>", null, null);
+
+        index.invalidateFolder(FOLDER_ID);
+
+        assertNull(index.get(FOLDER_ID, "<a@example.com>"));
+        assertNotNull(index.get(FOLDER_ID + 1, "<a@example.com>"));
+
+        index.putLoaded(FOLDER_ID, "<a@example.com>", null, null);
+        assertNotNull(index.get(FOLDER_ID, "<a@example.com>"));
+    }
+
+    public void testSizeIsBounded() {
+        MessageIdIndex index = new MessageIdIndex(100);
+        for (int i = 0; i < 1000; i++) {
+            index.putLoaded(FOLDER_ID, "<" + i + "@example.com>", null, null);
+        }
+
+        assertTrue(index.size() <= 100);
+        assertNotNull(index.get(FOLDER_ID, "<999@example.com>"));
+        assertNull(index.get(FOLDER_ID, "<0@example.com>"));
+    }
+
+    public void testRecentlyUsedEntriesSurvive() {
+        MessageIdIndex index = new MessageIdIndex(100);
+        index.putLoaded(FOLDER_ID, "<hot@example.com>", null, null);
+        for (int i = 0; i < 1000; i++) {
+            index.putLoaded(FOLDER_ID, "<" + i + "@example.com>", null, null);
+            assertNotNull(index.get(FOLDER_ID, "<hot@example.com>"));
+        }
+    }
+
+    private static ThreadInfo threadInfo(long threadId, String messageId, long rootId) {
+        return new ThreadInfo(threadId, threadId + 100, messageId, rootId, -1);
+    }
+}
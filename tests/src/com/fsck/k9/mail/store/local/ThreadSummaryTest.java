@@ -0,0 +1,171 @@
+package com.fsck.k9.mail.store.local;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import com.fsck.k9.mail.Flag;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.store.LockableDatabase.DbCallback;
+import com.fsck.k9.mail.store.LockableDatabase.WrappedException;
+import com.fsck.k9.provider.EmailProvider;
+import com.fsck.k9.provider.EmailProvider.MessageColumns;
+import com.fsck.k9.provider.EmailProvider.SpecialColumns;
+import com.fsck.k9.provider.EmailProvider.ThreadColumns;
+
+/**
+ * Checks that threaded lists of a single folder, which are read from the thread summary table,
+ * match the generic query that groups the messages of the folder by thread.
+ */
+public class ThreadSummaryTest extends LocalStoreTestCase {
+    private static final String[] PROJECTION = {
+        MessageColumns.ID,
+        ThreadColumns.ROOT,
+        SpecialColumns.THREAD_COUNT,
+        MessageColumns.SUBJECT,
+        MessageColumns.DATE,
+        MessageColumns.READ,
+        MessageColumns.FLAGGED
+    };
+
+    private LocalFolder mInbox;
+    private LocalFolder mSent;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mInbox = createFolder("INBOX");
+        mSent = createFolder("Sent");
+
+        // A thread of four messages and two single messages
+        List<Message> messages = new ArrayList<Message>();
+        messages.add(createMessage(0, -1));
+        messages.add(createMessage(1, 0));
+        messages.add(createMessage(2, 1));
+        messages.add(createMessage(3, 2));
+        messages.add(createMessage(4, -1));
+        messages.add(createMessage(5, -1));
+        mInbox.appendMessages(messages);
+
+        // LocalFolder threads messages within a folder, but nothing in the database keeps a
+        // thread from spanning folders. Move a reply without rethreading it.
+        mLocalStore.database.execute(true, new DbCallback<Void>() {
+            @Override
+            public Void doDbWork(SQLiteDatabase db) throws WrappedException {
+                ContentValues cv = new ContentValues();
+                cv.put("folder_id", mSent.getId());
+                db.update("messages", cv, "folder_id = ? AND uid = ?",
+                        new String[] { Long.toString(mInbox.getId()), "2" });
+                return null;
+            }
+        });
+    }
+
+    public void testThreadSpanningFolders() throws MessagingException {
+        List<String> inbox = queryThreadSummaries(mInbox);
+        List<String> sent = queryThreadSummaries(mSent);
+
+        assertEquals(queryGrouped(mInbox), inbox);
+        assertEquals(queryGrouped(mSent), sent);
+        assertEquals(3, inbox.size());
+        assertEquals(1, sent.size());
+
+        // The thread only counts the messages in the folder and shows the newest of them
+        String thread = findRow(inbox, "count=3");
+        assertNotNull(inbox.toString(), thread);
+        assertTrue(thread, thread.contains("subject=Message 3"));
+        assertTrue(sent.get(0), sent.get(0).contains("count=1"));
+    }
+
+    public void testAfterFlagChange() throws MessagingException {
+        mInbox.getMessage("1").setFlag(Flag.SEEN, true);
+        mSent.getMessage("2").setFlag(Flag.FLAGGED, true);
+
+        assertSameAsGrouped(mInbox);
+        assertSameAsGrouped(mSent);
+    }
+
+    public void testAfterMove() throws MessagingException {
+        mInbox.moveMessages(Collections.singletonList(mInbox.getMessage("3")), mSent);
+
+        assertSameAsGrouped(mInbox);
+        assertSameAsGrouped(mSent);
+        List<String> sent = queryThreadSummaries(mSent);
+        assertEquals(1, sent.size());
+        assertTrue(sent.get(0), sent.get(0).contains("count=2"));
+    }
+
+    public void testAfterDelete() throws MessagingException {
+        mInbox.getMessage("3").setFlag(Flag.DELETED, true);
+        mInbox.getMessage("4").destroy();
+
+        assertSameAsGrouped(mInbox);
+        assertSameAsGrouped(mSent);
+        assertEquals(2, queryThreadSummaries(mInbox).size());
+    }
+
+    private static String findRow(List<String> rows, String value) {
+        for (String row : rows) {
+            if (row.contains(value)) {
+                return row;
+            }
+        }
+        return null;
+    }
+
+    private void assertSameAsGrouped(LocalFolder folder) throws MessagingException {
+        assertEquals(queryGrouped(folder), queryThreadSummaries(folder));
+    }
+
+    /**
+     * The exact single folder selection is answered from the thread summary table.
+     */
+    private List<String> queryThreadSummaries(LocalFolder folder) throws MessagingException {
+        return query(MessageColumns.FOLDER_ID + " = ?", folder);
+    }
+
+    /**
+     * Any other selection uses the generic query.
+     */
+    private List<String> queryGrouped(LocalFolder folder) throws MessagingException {
+        return query("(" + MessageColumns.FOLDER_ID + " = ?)", folder);
+    }
+
+    private List<String> query(String selection, LocalFolder folder) throws MessagingException {
+        Uri uri = Uri.withAppendedPath(EmailProvider.CONTENT_URI,
+                "account/" + mAccount.getUuid() + "/messages/threaded");
+        Cursor cursor = getContext().getContentResolver().query(uri, PROJECTION, selection,
+                new String[] { Long.toString(folder.getId()) },
+                MessageColumns.DATE + " DESC");
+        try {
+            List<String> rows = new ArrayList<String>();
+            while (cursor.moveToNext()) {
+                rows.add("id=" + cursor.getLong(0) +
+                        " root=" + cursor.getLong(1) +
+                        " count=" + cursor.getInt(2) +
+                        " subject=" + cursor.getString(3) +
+                        " date=" + cursor.getLong(4) +
+                        " read=" + cursor.getInt(5) +
+                        " flagged=" + cursor.getInt(6));
+            }
+            return rows;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static Message createMessage(int i, int replyTo) throws MessagingException {
+        MimeMessage message = createMessage(i);
+        if (replyTo != -1) {
+            message.setInReplyTo(messageId(replyTo));
+        }
+        return message;
+    }
+}
@@ -0,0 +1,161 @@
+package com.fsck.k9.provider;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import com.fsck.k9.provider.EmailProvider.MessageColumns;
+import com.fsck.k9.provider.EmailProvider.Page;
+
+import junit.framework.TestCase;
+
+public class EmailProviderPageTest extends TestCase {
+    private static final String DATE_ASC = "date ASC, id DESC";
+    private static final String DATE_DESC = "date DESC, id DESC";
+
+    public void testPagingColumn() {
+        assertEquals(MessageColumns.DATE, EmailProvider.getPagingColumn(DATE_DESC));
+        assertEquals(MessageColumns.INTERNAL_DATE,
+                EmailProvider.getPagingColumn("internal_date ASC, id DESC"));
+
+        assertNull(EmailProvider.getPagingColumn(null));
+        assertNull(EmailProvider.getPagingColumn("subject ASC, id DESC"));
+        assertNull(EmailProvider.getPagingColumn("date DESC"));
+        assertNull(EmailProvider.getPagingColumn("date DESC, id ASC"));
+    }
+
+    public void testNoPageWithoutLimit() {
+        assertNull(Page.fromUri(uri(null, null, null), DATE_DESC));
+    }
+
+    public void testNoPageForOtherSortOrders() {
+        assertNull(Page.fromUri(uri(10, null, null), "subject ASC, id DESC"));
+    }
+
+    public void testInvalidPage() {
+        try {
+            Page.fromUri(uri(10, "1", "yesterday"), DATE_DESC);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testFirstPage() {
+        Page page = Page.fromUri(uri(10, null, null), DATE_DESC);
+
+        assertEquals("10", page.getLimit());
+        assertNull(page.getCondition("m.", "m.id"));
+    }
+
+    public void testConditionDescending() {
+        Page page = Page.fromUri(uri(10, "5", "1000"), DATE_DESC);
+
+        assertEquals("(m.date < 1000 OR m.date IS NULL OR (m.date = 1000 AND m.id < 5))",
+                page.getCondition("m.", "m.id"));
+    }
+
+    public void testConditionDescendingAfterNull() {
+        Page page = Page.fromUri(uri(10, "5", null), DATE_DESC);
+
+        assertEquals("(m.date IS NULL AND m.id < 5)", page.getCondition("m.", "m.id"));
+    }
+
+    public void testConditionAscending() {
+        Page page = Page.fromUri(uri(10, "5", "1000"), DATE_ASC);
+
+        assertEquals("(m.date > 1000 OR (m.date = 1000 AND m.id < 5))",
+                page.getCondition("m.", "m.id"));
+    }
+
+    public void testConditionAscendingAfterNull() {
+        Page page = Page.fromUri(uri(10, "5", null), DATE_ASC);
+
+        assertEquals("(m.date IS NOT NULL OR (m.date IS NULL AND m.id < 5))",
+                page.getCondition("m.", "m.id"));
+    }
+
+    public void testPagesMatchCompleteQueryDescending() {
+        assertPagesMatchCompleteQuery(DATE_DESC);
+    }
+
+    public void testPagesMatchCompleteQueryAscending() {
+        assertPagesMatchCompleteQuery(DATE_ASC);
+    }
+
+    /**
+     * Pages through a table with duplicate and {@code NULL} dates, the way
+     * {@link com.fsck.k9.activity.loader.MessageListLoader} does, and compares the rows with
+     * those of a single query.
+     */
+    private static void assertPagesMatchCompleteQuery(String sortOrder) {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            db.execSQL("CREATE TABLE messages (id INTEGER PRIMARY KEY, date INTEGER)");
+            Long[] dates = { 1000L, null, 3000L, 1000L, null, 2000L, 1000L, 3000L, null, 2000L };
+            for (int i = 0; i < dates.length; i++) {
+                db.execSQL("INSERT INTO messages (id, date) VALUES (?, ?)",
+                        new Object[] { i + 1, dates[i] });
+            }
+
+            List<String> expected = query(db, null, sortOrder, null);
+
+            for (int pageSize = 1; pageSize <= 4; pageSize++) {
+                List<String> rows = new ArrayList<String>();
+                String afterId = null;
+                String afterValue = null;
+                while (true) {
+                    Page page = Page.fromUri(uri(pageSize, afterId, afterValue), sortOrder);
+                    List<String> pageRows = query(db, page.getCondition("", "id"), sortOrder,
+                            page.getLimit());
+                    rows.addAll(pageRows);
+                    if (pageRows.size() < pageSize) {
+                        break;
+                    }
+
+                    String[] last = pageRows.get(pageRows.size() - 1).split(":");
+                    afterId = last[0];
+                    afterValue = "null".equals(last[1]) ? null : last[1];
+                }
+
+                assertEquals("Page size " + pageSize, expected, rows);
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    private static List<String> query(SQLiteDatabase db, String condition, String sortOrder,
+            String limit) {
+        Cursor cursor = db.query("messages", new String[] { "id", "date" }, condition, null,
+                null, null, sortOrder, limit);
+        try {
+            List<String> rows = new ArrayList<String>();
+            while (cursor.moveToNext()) {
+                rows.add(cursor.getLong(0) + ":" +
+                        (cursor.isNull(1) ? "null" : Long.toString(cursor.getLong(1))));
+            }
+            return rows;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static Uri uri(Integer limit, String afterId, String afterValue) {
+        Uri.Builder builder = EmailProvider.CONTENT_URI.buildUpon().appendPath("messages");
+        if (limit != null) {
+            builder.appendQueryParameter(EmailProvider.QUERY_PARAMETER_LIMIT,
+                    Integer.toString(limit));
+        }
+        if (afterId != null) {
+            builder.appendQueryParameter(EmailProvider.QUERY_PARAMETER_AFTER_ID, afterId);
+        }
+        if (afterValue != null) {
+            builder.appendQueryParameter(EmailProvider.QUERY_PARAMETER_AFTER_VALUE, afterValue);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,41 @@
+package com.fsck.k9.search;
+
+import junit.framework.TestCase;
+
+public class SqlQueryBuilderTest extends TestCase {
+
+    public void testMatchQuerySingleWord() {
+        assertEquals("subject:invoice*", SqlQueryBuilder.buildMatchQuery("subject", "Invoice"));
+    }
+
+    public void testMatchQueryMultipleWords() {
+        assertEquals("text_content:quarterly* text_content:report*",
+                SqlQueryBuilder.buildMatchQuery("text_content", "  quarterly   report "));
+    }
+
+    public void testMatchQuerySplitsAddresses() {
+        assertEquals("sender_list:alice* sender_list:example* sender_list:com*",
+                SqlQueryBuilder.buildMatchQuery("sender_list", "alice@example.com"));
+    }
+
+    public void testMatchQueryKeepsNonAsciiCharacters() {
+        assertEquals("subject:grüße*", SqlQueryBuilder.buildMatchQuery("subject", "grüße"));
+    }
+
+    public void testMatchQueryKeepsCaseOfNonAsciiCharacters() {
+        // The index tokenizer only folds ASCII letters
+        assertEquals("subject:Über*", SqlQueryBuilder.buildMatchQuery("subject", "Über"));
+        assertEquals("subject:Über*", SqlQueryBuilder.buildMatchQuery("subject", "ÜBER"));
+    }
+
+    public void testMatchQueryDropsQuerySyntax() {
+        // Operators are lowercased, which turns them into plain words
+        assertEquals("subject:a* subject:or* subject:b*",
+                SqlQueryBuilder.buildMatchQuery("subject", "\"a\" OR-b*"));
+    }
+
+    public void testMatchQueryWithoutWords() {
+        assertNull(SqlQueryBuilder.buildMatchQuery("subject", " -*\" "));
+        assertNull(SqlQueryBuilder.buildMatchQuery("subject", null));
+    }
+}